@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.TrackInput;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackLoader;
+
+/**
+ * Loads a whole track with TrackLoader as the app does, from the plain file
+ * and from compressed copies of it, so the cost of inflating on the fly
+ * shows next to the parse. A plain GPX file over
+ * TrackLoader.PARALLEL_THRESHOLD_BYTES is parsed on all cores, a compressed
+ * one can only be scanned sequentially.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CompressedLoadBenchmark {
+
+    @Param({ "generated:200000", "generated:200000.nmea" })
+    public String file;
+
+    @Param({ "NONE", "GZIP", "ZIP", "DEFLATE" })
+    public TrackInput.Compression compression;
+
+    private File input;
+
+    private final TrackLoader.Listener listener = new TrackLoader.Listener() {
+        @Override
+        public void onPoint(GpxTrackPoint point) {
+        }
+
+        @Override
+        public void onIndexed(int points, long bytesRead) {
+        }
+
+        @Override
+        public void onEnd(boolean complete) {
+            if (!complete) {
+                throw new IllegalStateException("Load failed");
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            throw new IllegalStateException(message);
+        }
+    };
+
+    @Setup
+    public void setUp() throws IOException {
+        input = TrackFiles.compress(TrackFiles.resolve(file), compression);
+    }
+
+    @Benchmark
+    public int load() throws IOException {
+        LoadedTrack loading = new LoadedTrack(new TrackStore(), null);
+        TrackLoader loader = new TrackLoader(input, loading, listener);
+        loader.open();
+        loader.parse();
+        return loading.track.size();
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.FleetPlayer;
+
+/**
+ * One second of track time of a looping fleet on one 1 Hz track, i.e. the
+ * CPU time per wall second of a fleet replayed at real time. The vehicles
+ * start at different points and are staggered over the second.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FleetBenchmark {
+
+    private static final int POINTS = 3600;
+
+    @Param({ "1000", "10000" })
+    public int vehicles;
+
+    private FleetPlayer fleet;
+    private Blackhole location;
+    private final int ticksPerSecond = (int) (1000 / FleetPlayer.DEFAULT_TICK_MILLIS);
+
+    @Setup
+    public void setUp(Blackhole blackhole) {
+        location = blackhole;
+        TrackStore track = new TrackStore(FleetBenchmark.POINTS);
+        for (int i = 0; i < FleetBenchmark.POINTS; i++) {
+            track.add(60.17 + (i * 0.0001), 24.94, 0, 1188229131983L + (i * 1000L), 0, 0, 0, null, null);
+        }
+        track.finish();
+        fleet = new FleetPlayer(new FleetPlayer.Sink() {
+            @Override
+            public void onLocation(int vehicle, long time, double lat, double lon, double ele, double bearing, double speed,
+                    double hdop) {
+                location.consume(time);
+                location.consume(lat);
+                location.consume(lon);
+            }
+        }, FleetPlayer.DEFAULT_TICK_MILLIS, true);
+        for (int v = 0; v < vehicles; v++) {
+            fleet.addVehicle(track, v % FleetBenchmark.POINTS, v % 1000);
+        }
+    }
+
+    @Benchmark
+    public long second() {
+        long delay = 0;
+        for (int i = 0; i < ticksPerSecond; i++) {
+            delay += fleet.run();
+        }
+        return delay;
+    }
+}
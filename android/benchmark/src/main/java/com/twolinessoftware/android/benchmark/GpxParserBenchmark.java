@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.Parser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxScanner;
+
+/**
+ * Whole file GPX parsing with the XmlPullParser based GpxPullParser and the
+ * byte level GpxScanner.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class GpxParserBenchmark {
+
+    @Param({ "sample_track.gpx", "se_oikea.gpx", "generated:200000" })
+    public String file;
+
+    @Param({ "pull", "scanner" })
+    public String parser;
+
+    private File input;
+    private final TrackFiles.CountingListener listener = new TrackFiles.CountingListener();
+
+    @Setup
+    public void setUp() throws IOException {
+        input = TrackFiles.resolve(file);
+    }
+
+    @Benchmark
+    public double parse() throws IOException {
+        Parser instance = "pull".equals(parser) ? new GpxPullParser(listener) : new GpxScanner(listener);
+        FileInputStream in = new FileInputStream(input);
+        try {
+            instance.parse(in);
+        } finally {
+            in.close();
+        }
+        return listener.checksum + listener.points;
+    }
+}
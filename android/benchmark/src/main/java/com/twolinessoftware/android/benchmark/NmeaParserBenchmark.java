@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import net.sf.marineapi.nmea.parser.SentenceFactory;
+import net.sf.marineapi.nmea.sentence.RMCSentence;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceValidator;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.gps.NmeaParser;
+import com.twolinessoftware.android.framework.service.comms.gps.NmeaScanner;
+
+/**
+ * NMEA input. nmeaParser reads the whole file through NmeaParser, which
+ * parses every sentence with the marine API's SentenceFactory.
+ * sentenceFactory measures that parsing work alone, from lines in memory,
+ * and nmeaScanner the whole file through NmeaScanner. nmeaScannerLarge
+ * reads a generated log of a few hundred MB.
+ */
+@State(Scope.Thread)
+@Fork(1)
+public class NmeaParserBenchmark {
+
+    @Param({ "se_oikea.nmea" })
+    public String file;
+
+    private File input;
+    private List<String> lines;
+
+    @Setup
+    public void setUp() throws IOException {
+        input = TrackFiles.resolve(file);
+        lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(input), "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 5)
+    public double sentenceFactory() {
+        SentenceFactory factory = SentenceFactory.getInstance();
+        double checksum = 0;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            if (!SentenceValidator.isValid(line)) {
+                continue;
+            }
+            Sentence sentence;
+            try {
+                sentence = factory.createParser(line);
+            } catch (IllegalArgumentException e) {
+                // No parser for this sentence type.
+                continue;
+            }
+            if (sentence instanceof RMCSentence) {
+                RMCSentence rmc = (RMCSentence) sentence;
+                checksum += rmc.getPosition().getLatitude() + rmc.getPosition().getLongitude()
+                        + rmc.getTime().getMilliseconds() + rmc.getCourse() + rmc.getSpeed();
+            }
+        }
+        return checksum;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 5)
+    public double nmeaScanner() throws IOException {
+        return scan(input);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public double nmeaScannerLarge(LargeLog log) throws IOException {
+        return scan(log.file);
+    }
+
+    private static double scan(File file) throws IOException {
+        TrackFiles.CountingListener listener = new TrackFiles.CountingListener();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            new NmeaScanner(listener).parse(in);
+        } finally {
+            in.close();
+        }
+        return listener.checksum + listener.points;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 5)
+    public double nmeaParser() throws IOException {
+        TrackFiles.CountingListener listener = new TrackFiles.CountingListener();
+        FileInputStream in = new FileInputStream(input);
+        try {
+            new NmeaParser(listener).parse(in);
+        } finally {
+            in.close();
+        }
+        return listener.checksum + listener.points;
+    }
+
+    @State(Scope.Benchmark)
+    public static class LargeLog {
+
+        File file;
+
+        @Setup
+        public void setUp() throws IOException {
+            file = TrackFiles.resolve(TrackFiles.GENERATED + "1000000.nmea");
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.gps.ParallelGpxParser;
+
+/**
+ * Scaling of ParallelGpxParser over the number of threads on a large
+ * generated track.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParallelGpxParserBenchmark {
+
+    @Param({ "generated:1000000" })
+    public String file;
+
+    @Param({ "1", "2", "4", "8" })
+    public int threads;
+
+    private File input;
+    private final TrackFiles.CountingListener listener = new TrackFiles.CountingListener();
+
+    @Setup
+    public void setUp() throws IOException {
+        input = TrackFiles.resolve(file);
+    }
+
+    @Benchmark
+    public double parse() throws IOException {
+        FileInputStream in = new FileInputStream(input);
+        try {
+            new ParallelGpxParser(listener, threads).parse(in);
+        } finally {
+            in.close();
+        }
+        return listener.checksum + listener.points;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.SpatialIndex;
+import com.twolinessoftware.android.framework.service.playback.TimeIndex;
+
+/**
+ * Building the seek indexes over a random walk, and seeking by time and by
+ * location. Every tenth location is far off the track, which is the slow
+ * path of SpatialIndex.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SeekIndexBenchmark {
+
+    private static final int QUERIES = 1024;
+
+    @Param({ "100000", "1000000" })
+    public int points;
+
+    private TrackStore track;
+    private TimeIndex timeIndex;
+    private SpatialIndex spatialIndex;
+    private long[] times;
+    private double[] lats;
+    private double[] lons;
+    private int query;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        track = new TrackStore(points);
+        double lat = 60.17;
+        double lon = 24.94;
+        double heading = 0;
+        for (int i = 0; i < points; i++) {
+            heading += random.nextGaussian() * 0.3;
+            lat += Math.cos(heading) * 0.00009;
+            lon += Math.sin(heading) * 0.00018;
+            track.add(lat, lon, 0, 1188229131983L + (i * 1000L), 0, 0, 0, null, null);
+        }
+        track.finish();
+        timeIndex = buildTimeIndex();
+        spatialIndex = buildSpatialIndex();
+
+        times = new long[SeekIndexBenchmark.QUERIES];
+        lats = new double[SeekIndexBenchmark.QUERIES];
+        lons = new double[SeekIndexBenchmark.QUERIES];
+        for (int q = 0; q < SeekIndexBenchmark.QUERIES; q++) {
+            int near = random.nextInt(points);
+            double spread = (q % 10) == 0 ? 0.5 : 0.002;
+            times[q] = track.getTime(near) + random.nextInt(1000);
+            lats[q] = track.getLat(near) + (random.nextGaussian() * spread);
+            lons[q] = track.getLon(near) + (random.nextGaussian() * spread);
+        }
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public TimeIndex buildTimeIndex() {
+        TimeIndex index = new TimeIndex();
+        index.update(track);
+        return index;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public SpatialIndex buildSpatialIndex() {
+        SpatialIndex index = new SpatialIndex();
+        index.update(track);
+        return index;
+    }
+
+    @Benchmark
+    public int seekTime() {
+        int q = query++ & (SeekIndexBenchmark.QUERIES - 1);
+        return timeIndex.indexOf(track, times[q]);
+    }
+
+    @Benchmark
+    public int seekLocation() {
+        int q = query++ & (SeekIndexBenchmark.QUERIES - 1);
+        return spatialIndex.nearest(track, lats[q], lons[q]);
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCache;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCacheWriter;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackPlayer;
+
+/**
+ * Per tick cost of the playback: one TrackPlayer run producing a location,
+ * minus handing it to the LocationManager, over the in-memory TrackStore and
+ * the memory mapped track from TrackCache. Run with -prof gc to see that the
+ * steady state allocates nothing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TickBenchmark {
+
+    @Param({ "store", "mapped" })
+    public String track;
+
+    /**
+     * Interpolation step in track milliseconds, 0 for raw playback.
+     */
+    @Param({ "0", "20" })
+    public long step;
+
+    private File cacheFile;
+    private TrackPlayer player;
+    private BlackholeSink sink;
+
+    /**
+     * Consumes everything the player emits, without allocating.
+     */
+    private static final class BlackholeSink implements TrackPlayer.Sink {
+        Blackhole location;
+
+        @Override
+        public void onLocation(long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+            location.consume(time);
+            location.consume(lat);
+            location.consume(lon);
+            location.consume(ele);
+            location.consume(bearing);
+            location.consume(speed);
+            location.consume(hdop);
+        }
+
+        @Override
+        public void onProgress(int index, int count) {
+            location.consume(index);
+        }
+
+        @Override
+        public void onStreamEnd() {
+        }
+    }
+
+    @Setup
+    public void setUp() throws IOException {
+        File source = TrackFiles.resolve(TrackFiles.GENERATED + 100000);
+        TrackStore store = TrackFiles.load(source);
+        Track current = store;
+        if (!"store".equals(track)) {
+            File tempDir = new File(System.getProperty("java.io.tmpdir"));
+            cacheFile = TrackCache.cacheFileFor(source, tempDir);
+            TrackCacheWriter writer = new TrackCacheWriter(source, cacheFile, tempDir);
+            GpxTrackPoint point = new GpxTrackPoint();
+            for (int i = 0; i < store.size(); i++) {
+                writer.add(store.get(i, point));
+            }
+            if (!writer.finish(store.getSegments())) {
+                throw new IOException("Could not write " + cacheFile);
+            }
+            current = TrackCache.open(source, cacheFile);
+            if (current == null) {
+                throw new IOException("Could not open " + cacheFile);
+            }
+        }
+        sink = new BlackholeSink();
+        player = new TrackPlayer(new LoadedTrack(current, null), sink, 0);
+        player.setInterpolationStep(step);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (cacheFile != null) {
+            cacheFile.delete();
+        }
+    }
+
+    /**
+     * One tick, returning the delay to the next one.
+     */
+    @Benchmark
+    public long tick(Blackhole location) {
+        sink.location = location;
+        return player.run();
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Calendar;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import com.twolinessoftware.android.framework.service.comms.TrackInput;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * Input files for the benchmarks: the recorded tracks under test/ and
+ * generated tracks of any length in the same shape as se_oikea.gpx.
+ */
+final class TrackFiles {
+
+    /**
+     * Prefix of a file parameter asking for a generated track, followed by
+     * the number of points.
+     */
+    static final String GENERATED = "generated:";
+
+    private TrackFiles() {
+    }
+
+    /**
+     * @return The named file from test/, or a generated track for
+     *         "generated:&lt;points&gt;" and "generated:&lt;points&gt;.nmea".
+     */
+    static File resolve(String name) throws IOException {
+        if (name.startsWith(TrackFiles.GENERATED)) {
+            String points = name.substring(TrackFiles.GENERATED.length());
+            if (points.endsWith(".nmea")) {
+                return TrackFiles.generateNmea(Integer.parseInt(points.substring(0, points.length() - 5)));
+            }
+            return TrackFiles.generateGpx(Integer.parseInt(points));
+        }
+        String dir = System.getProperty("gpsplayback.testdata", "../../test");
+        File file = new File(dir, name);
+        if (!file.isFile()) {
+            throw new IOException(file + " not found, set -Dgpsplayback.testdata");
+        }
+        return file;
+    }
+
+    /**
+     * Writes a track of one second fixes wandering around Joensuu, with the
+     * same elements as the GPSBabel output in se_oikea.gpx.
+     */
+    static File generateGpx(int points) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "gpsplayback-" + points + ".gpx");
+        if (file.isFile() && (file.length() > 0)) {
+            return file;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"), 64 * 1024);
+        try {
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            out.write("<gpx version=\"1.0\" creator=\"gpsplayback benchmark\" xmlns=\"http://www.topografix.com/GPX/1/0\">\n");
+            out.write("<trk>\n<trkseg>\n");
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+            calendar.clear();
+            calendar.set(2007, Calendar.AUGUST, 27, 15, 38, 51);
+            long start = calendar.getTimeInMillis() + 983;
+            double lat = 62.597965;
+            double lon = 29.744683;
+            double course = 140.0;
+            for (int i = 0; i < points; i++) {
+                course = (course + (Math.sin(i / 97.0) * 7)) % 360;
+                if (course < 0) {
+                    course += 360;
+                }
+                double speed = 4 + (3 * Math.sin(i / 31.0));
+                lat += (Math.cos(Math.toRadians(course)) * speed) / 111320.0;
+                lon += (Math.sin(Math.toRadians(course)) * speed) / (111320.0 * Math.cos(Math.toRadians(lat)));
+                out.write(String.format(Locale.US, "<trkpt lat=\"%.9f\" lon=\"%.9f\">\n", lat, lon));
+                out.write(String.format(Locale.US, "  <ele>%.6f</ele>\n", 100 + (10 * Math.sin(i / 300.0))));
+                out.write("  <time>" + TrackFiles.isoTime(start + (i * 1000L)) + "</time>\n");
+                out.write(String.format(Locale.US, "  <course>%.6f</course>\n  <speed>%.6f</speed>\n", course, speed));
+                out.write("  <fix>3d</fix>\n  <sat>" + (5 + (i % 4)) + "</sat>\n");
+                out.write("  <hdop>1.600000</hdop>\n  <vdop>2.400000</vdop>\n  <pdop>2.900000</pdop>\n</trkpt>\n");
+            }
+            out.write("</trkseg>\n</trk>\n</gpx>\n");
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not create " + file);
+        }
+        return file;
+    }
+
+    /**
+     * Writes the GGA, GSA, GSV and RMC sentences of a GPS logger for the
+     * given number of one second fixes.
+     */
+    static File generateNmea(int fixes) throws IOException {
+        File file = new File(System.getProperty("java.io.tmpdir"), "gpsplayback-" + fixes + ".nmea");
+        if (file.isFile() && (file.length() > 0)) {
+            return file;
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "US-ASCII"), 64 * 1024);
+        try {
+            double lat = 62.597965;
+            double lon = 29.744683;
+            double course = 140.0;
+            Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+            calendar.clear();
+            calendar.set(2007, Calendar.AUGUST, 27, 15, 38, 51);
+            long start = calendar.getTimeInMillis() + 983;
+            for (int i = 0; i < fixes; i++) {
+                course = (course + (Math.sin(i / 97.0) * 7)) % 360;
+                if (course < 0) {
+                    course += 360;
+                }
+                double speed = 4 + (3 * Math.sin(i / 31.0));
+                lat += (Math.cos(Math.toRadians(course)) * speed) / 111320.0;
+                lon += (Math.sin(Math.toRadians(course)) * speed) / (111320.0 * Math.cos(Math.toRadians(lat)));
+                calendar.setTimeInMillis(start + (i * 1000L));
+                String time = String.format(Locale.US, "%02d%02d%02d.%03d", calendar.get(Calendar.HOUR_OF_DAY),
+                        calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND));
+                String date = String.format(Locale.US, "%02d%02d%02d", calendar.get(Calendar.DAY_OF_MONTH),
+                        calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.YEAR) % 100);
+                String position = String.format(Locale.US, "%09.4f,N,%010.4f,E", TrackFiles.degreesMinutes(lat),
+                        TrackFiles.degreesMinutes(lon));
+                TrackFiles.writeSentence(out, String.format(Locale.US, "GPGGA,%s,%s,1,%02d,1.6,%.1f,M,,,,0000", time, position,
+                        5 + (i % 4), 100 + (10 * Math.sin(i / 300.0))));
+                TrackFiles.writeSentence(out, "GPGSA,A,3,05,30,02,06,31,,,,,,,,2.9,1.6,2.4");
+                TrackFiles.writeSentence(out, "GPGSV,3,1,10,05,74,187,51,30,68,251,49,02,47,111,39,04,35,059,15");
+                TrackFiles.writeSentence(out, "GPGSV,3,2,10,06,26,233,39,31,26,313,34,01,24,296,00,14,14,260,00");
+                TrackFiles.writeSentence(out, "GPGSV,3,3,10,09,08,173,00,20,07,353,00");
+                TrackFiles.writeSentence(out, String.format(Locale.US, "GPRMC,%s,A,%s,%.6f,%.2f,%s,,A", time, position,
+                        speed / 0.514444, course, date));
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            throw new IOException("Could not create " + file);
+        }
+        return file;
+    }
+
+    /**
+     * @return A compressed copy of the file next to the generated tracks,
+     *         or the file itself for NONE.
+     */
+    static File compress(File file, TrackInput.Compression compression) throws IOException {
+        if (compression == TrackInput.Compression.NONE) {
+            return file;
+        }
+        File compressed = new File(System.getProperty("java.io.tmpdir"), file.getName() + "." + compression.name().toLowerCase());
+        if (compressed.isFile() && (compressed.length() > 0) && (compressed.lastModified() >= file.lastModified())) {
+            return compressed;
+        }
+        File tmp = new File(compressed.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            if (compression == TrackInput.Compression.GZIP) {
+                out = new GZIPOutputStream(out, 64 * 1024);
+            } else if (compression == TrackInput.Compression.DEFLATE) {
+                out = new DeflaterOutputStream(out, new Deflater(), 64 * 1024);
+            } else {
+                ZipOutputStream zip = new ZipOutputStream(out);
+                zip.putNextEntry(new ZipEntry(file.getName()));
+                out = zip;
+            }
+            InputStream in = new FileInputStream(file);
+            try {
+                byte[] buffer = new byte[64 * 1024];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            } finally {
+                in.close();
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(compressed)) {
+            throw new IOException("Could not create " + compressed);
+        }
+        return compressed;
+    }
+
+    private static double degreesMinutes(double degrees) {
+        double whole = Math.floor(degrees);
+        return (whole * 100) + ((degrees - whole) * 60);
+    }
+
+    private static void writeSentence(Writer out, String body) throws IOException {
+        int checksum = 0;
+        for (int i = 0; i < body.length(); i++) {
+            checksum ^= body.charAt(i);
+        }
+        out.write('$');
+        out.write(body);
+        out.write(String.format(Locale.US, "*%02X\r\n", checksum));
+    }
+
+    /**
+     * @return The time as written by GPSBabel, e.g. 2007-08-27T15:38:51.983Z.
+     */
+    static String isoTime(long millis) {
+        Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"), Locale.US);
+        calendar.setTimeInMillis(millis);
+        return String.format(Locale.US, "%04d-%02d-%02dT%02d:%02d:%02d.%03dZ", calendar.get(Calendar.YEAR),
+                calendar.get(Calendar.MONTH) + 1, calendar.get(Calendar.DAY_OF_MONTH), calendar.get(Calendar.HOUR_OF_DAY),
+                calendar.get(Calendar.MINUTE), calendar.get(Calendar.SECOND), calendar.get(Calendar.MILLISECOND));
+    }
+
+    /**
+     * Loads a GPX file completely.
+     */
+    static TrackStore load(File file) throws IOException {
+        final TrackStore track = new TrackStore();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            new GpxScanner(new CountingListener() {
+                @Override
+                public void onGpxPoint(GpxTrackPoint item) {
+                    track.add(item);
+                }
+            }).parse(in);
+        } finally {
+            in.close();
+        }
+        track.finish();
+        return track;
+    }
+
+    /**
+     * Counts the points and folds their values into a checksum, so that no
+     * parsed field can be optimized away.
+     */
+    static class CountingListener implements GpxPullParserListener {
+
+        int points;
+        double checksum;
+        boolean ended;
+
+        @Override
+        public void onGpxStart() {
+            points = 0;
+            checksum = 0;
+            ended = false;
+        }
+
+        @Override
+        public void onGpxPoint(GpxTrackPoint item) {
+            points++;
+            checksum += item.getLat() + item.getLon() + item.getEle() + item.getTime() + item.getSpeed();
+        }
+
+        @Override
+        public void onGpxRoutePoint(GpxTrackPoint item) {
+        }
+
+        @Override
+        public void onGpxSegment(boolean newTrack) {
+        }
+
+        @Override
+        public void onGpxEnd() {
+            ended = true;
+        }
+
+        @Override
+        public void onGpxError(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        @Override
+        public void onGpxRoute(GpxTrackSegments items) {
+        }
+    }
+}
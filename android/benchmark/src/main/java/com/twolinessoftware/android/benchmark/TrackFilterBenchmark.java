@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.playback.TrackFilter;
+
+/**
+ * Simplifies a day of a 10 Hz track, a random walk at walking speed with a
+ * meter of noise, with each mode at its default tolerance in Replay. The
+ * simplify() result is the number of points kept; Douglas-Peucker keeps
+ * about 1 in 140, Visvalingam 1 in 113 and the time filter 1 in 10.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackFilterBenchmark {
+
+    private static final int POINTS = 24 * 3600 * 10;
+
+    private static final double METER = 1 / 111195.0;
+
+    @Param({ "DOUGLAS_PEUCKER", "VISVALINGAM", "TIME" })
+    public TrackFilter.Mode mode;
+
+    private final double[] lats = new double[TrackFilterBenchmark.POINTS];
+    private final double[] lons = new double[TrackFilterBenchmark.POINTS];
+    private final GpxTrackPoint point = new GpxTrackPoint();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        double lat = 60.17;
+        double lon = 24.94;
+        double heading = 0;
+        double metersPerLon = Math.cos(Math.toRadians(lat)) / TrackFilterBenchmark.METER;
+        for (int i = 0; i < TrackFilterBenchmark.POINTS; i++) {
+            heading += random.nextGaussian() * 0.05;
+            // 1.4 m/s, a tenth of a second apart.
+            lat += (0.14 * Math.cos(heading)) * TrackFilterBenchmark.METER;
+            lon += (0.14 * Math.sin(heading)) / metersPerLon;
+            lats[i] = lat + (random.nextGaussian() * TrackFilterBenchmark.METER);
+            lons[i] = lon + (random.nextGaussian() / metersPerLon);
+        }
+    }
+
+    @Benchmark
+    public long simplify(final Blackhole blackhole) {
+        double tolerance = mode == TrackFilter.Mode.DOUGLAS_PEUCKER ? 5 : mode == TrackFilter.Mode.VISVALINGAM ? 25 : 1000;
+        TrackFilter filter = TrackFilter.create(mode, tolerance);
+        filter.setOutput(new TrackFilter.Output() {
+            @Override
+            public void accept(GpxTrackPoint kept) {
+                blackhole.consume(kept.getLat());
+            }
+        });
+        for (int i = 0; i < TrackFilterBenchmark.POINTS; i++) {
+            point.setLat(lats[i]);
+            point.setLon(lons[i]);
+            point.setTime(1188229131983L + (i * 100L));
+            filter.add(point);
+        }
+        filter.finish();
+        return filter.getOutputCount();
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackWindow;
+
+/**
+ * Point storage: the columnar TrackStore and the bounded TrackWindow against
+ * the ArrayList of GpxTrackPoint objects they replaced. Run with -prof gc to
+ * compare the allocation per point as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TrackStorageBenchmark {
+
+    private static final int WINDOW = 4096;
+
+    @Param({ "100000", "1000000" })
+    public int points;
+
+    private double[] lats;
+    private double[] lons;
+    private long[] times;
+    private int[] randomIndexes;
+    private TrackStore filledStore;
+    private List<GpxTrackPoint> filledList;
+    private final GpxTrackPoint scratch = new GpxTrackPoint();
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        lats = new double[points];
+        lons = new double[points];
+        times = new long[points];
+        randomIndexes = new int[points];
+        for (int i = 0; i < points; i++) {
+            lats[i] = 62 + random.nextDouble();
+            lons[i] = 29 + random.nextDouble();
+            times[i] = 1188229131983L + (i * 1000L);
+            randomIndexes[i] = random.nextInt(points);
+        }
+        filledStore = addTrackStore();
+        filledList = addArrayList();
+    }
+
+    private void fill(GpxTrackPoint point, int i) {
+        point.reset();
+        point.setLat(lats[i]);
+        point.setLon(lons[i]);
+        point.setTime(times[i]);
+        point.setEle(100);
+        point.setFix("3d");
+        point.setSat("5");
+    }
+
+    @Benchmark
+    public TrackStore addTrackStore() {
+        TrackStore store = new TrackStore();
+        for (int i = 0; i < points; i++) {
+            fill(scratch, i);
+            store.add(scratch);
+        }
+        store.finish();
+        return store;
+    }
+
+    @Benchmark
+    public List<GpxTrackPoint> addArrayList() {
+        List<GpxTrackPoint> list = new ArrayList<GpxTrackPoint>();
+        for (int i = 0; i < points; i++) {
+            GpxTrackPoint point = new GpxTrackPoint();
+            fill(point, i);
+            list.add(point);
+        }
+        return list;
+    }
+
+    /**
+     * Single threaded producer that keeps releasing all but the last quarter
+     * of the window, i.e. the steady state of a streamed playback.
+     */
+    @Benchmark
+    public int streamTrackWindow() {
+        TrackWindow window = new TrackWindow(TrackStorageBenchmark.WINDOW);
+        int keep = TrackStorageBenchmark.WINDOW / 4;
+        for (int i = 0; i < points; i++) {
+            fill(scratch, i);
+            if ((window.size() - window.firstIndex()) >= window.getCapacity()) {
+                window.release(i - keep);
+            }
+            window.add(scratch);
+        }
+        return window.size();
+    }
+
+    @Benchmark
+    public double randomReadTrackStore() {
+        double sum = 0;
+        for (int index : randomIndexes) {
+            sum += filledStore.getLat(index) + filledStore.getLon(index) + filledStore.getTime(index);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    public double randomReadArrayList() {
+        double sum = 0;
+        for (int index : randomIndexes) {
+            GpxTrackPoint point = filledList.get(index);
+            sum += point.getLat() + point.getLon() + point.getTime();
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.benchmark;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPointScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTimeParser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+
+/**
+ * Per value costs of reading a track point: timestamps through
+ * GpxTrackPoint.setTime() against the SimpleDateFormat parsing it replaced,
+ * and coordinates through GpxPointScanner.parseDouble() against
+ * Double.parseDouble().
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ValueParserBenchmark {
+
+    private static final int VALUES = 1024;
+
+    private final String[] times = new String[ValueParserBenchmark.VALUES];
+    private final String[] numbers = new String[ValueParserBenchmark.VALUES];
+    private final ByteBuffer numberBytes = ByteBuffer.allocate(ValueParserBenchmark.VALUES * 16);
+    private final int[] numberEnds = new int[ValueParserBenchmark.VALUES];
+    private final GpxTrackPoint point = new GpxTrackPoint();
+    private final GpxTimeParser timeParser = new GpxTimeParser();
+
+    @Setup
+    public void setUp() {
+        // Consecutive fixes as in se_oikea.gpx.
+        long start = 1188229131983L;
+        for (int i = 0; i < ValueParserBenchmark.VALUES; i++) {
+            times[i] = TrackFiles.isoTime(start + (i * 1000L));
+            numbers[i] = String.format(Locale.US, "%.9f", 62.597965 + (i * 0.0000137));
+            numberBytes.put(numbers[i].getBytes());
+            numberEnds[i] = numberBytes.position();
+        }
+    }
+
+    /**
+     * The implementation before GpxTimeParser, which built a
+     * SimpleDateFormat for every value.
+     */
+    @Benchmark
+    @OperationsPerInvocation(ValueParserBenchmark.VALUES)
+    public long simpleDateFormat() throws ParseException {
+        long sum = 0;
+        for (String time : times) {
+            SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+            format.setTimeZone(TimeZone.getTimeZone("UTC"));
+            sum += format.parse(time).getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ValueParserBenchmark.VALUES)
+    public long setTimeString() {
+        long sum = 0;
+        for (String time : times) {
+            point.setTime(time);
+            sum += point.getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ValueParserBenchmark.VALUES)
+    public long setTimeSharedParser() {
+        long sum = 0;
+        for (String time : times) {
+            point.setTime(timeParser, time);
+            sum += point.getTime();
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ValueParserBenchmark.VALUES)
+    public double doubleParseDouble() {
+        double sum = 0;
+        for (String number : numbers) {
+            sum += Double.parseDouble(number);
+        }
+        return sum;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ValueParserBenchmark.VALUES)
+    public double scannerParseDouble() {
+        double sum = 0;
+        int start = 0;
+        for (int end : numberEnds) {
+            sum += GpxPointScanner.parseDouble(numberBytes, start, end);
+            start = end;
+        }
+        return sum;
+    }
+}
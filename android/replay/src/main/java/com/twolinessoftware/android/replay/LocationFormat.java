@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.replay;
+
+/**
+ * Text formats of a replayed location. Formatting appends to a reused
+ * StringBuilder, so a location costs no garbage beyond what the Writer
+ * makes of it.
+ */
+public enum LocationFormat {
+
+    /**
+     * A $GPRMC and a $GPGGA sentence, like a GPS receiver. The sentences of
+     * a vehicle carry its id as the source of an NMEA 4 TAG block, e.g.
+     * \s:12*4A\$GPRMC,...
+     */
+    NMEA {
+        @Override
+        public void format(StringBuilder out, int vehicle, long time, double lat, double lon, double ele, double bearing,
+                double speed, double hdop) {
+            LocationFormat.appendTagBlock(out, vehicle);
+            int start = out.length();
+            out.append("$GPRMC,");
+            LocationFormat.appendTime(out, time);
+            out.append(",A,");
+            LocationFormat.appendLatLon(out, lat, 2, 'N', 'S');
+            out.append(',');
+            LocationFormat.appendLatLon(out, lon, 3, 'E', 'W');
+            out.append(',');
+            LocationFormat.appendFixed(out, speed * LocationFormat.KNOTS_PER_MPS, 3);
+            out.append(',');
+            LocationFormat.appendFixed(out, bearing, 2);
+            out.append(',');
+            LocationFormat.appendDate(out, time);
+            out.append(",,,A");
+            LocationFormat.appendChecksum(out, start);
+
+            LocationFormat.appendTagBlock(out, vehicle);
+            start = out.length();
+            out.append("$GPGGA,");
+            LocationFormat.appendTime(out, time);
+            out.append(',');
+            LocationFormat.appendLatLon(out, lat, 2, 'N', 'S');
+            out.append(',');
+            LocationFormat.appendLatLon(out, lon, 3, 'E', 'W');
+            out.append(",1,08,");
+            LocationFormat.appendFixed(out, hdop > 0 ? hdop : 1, 1);
+            out.append(',');
+            LocationFormat.appendFixed(out, ele, 1);
+            out.append(",M,0.0,M,,");
+            LocationFormat.appendChecksum(out, start);
+        }
+    },
+
+    /**
+     * One JSON object per line.
+     */
+    JSON {
+        @Override
+        public void format(StringBuilder out, int vehicle, long time, double lat, double lon, double ele, double bearing,
+                double speed, double hdop) {
+            out.append('{');
+            if (vehicle >= 0) {
+                out.append("\"vehicle\":").append(vehicle).append(',');
+            }
+            out.append("\"time\":").append(time);
+            out.append(",\"lat\":");
+            LocationFormat.appendFixed(out, lat, 7);
+            out.append(",\"lon\":");
+            LocationFormat.appendFixed(out, lon, 7);
+            out.append(",\"ele\":");
+            LocationFormat.appendFixed(out, ele, 1);
+            out.append(",\"bearing\":");
+            LocationFormat.appendFixed(out, bearing, 2);
+            out.append(",\"speed\":");
+            LocationFormat.appendFixed(out, speed, 2);
+            out.append(",\"hdop\":");
+            LocationFormat.appendFixed(out, hdop, 1);
+            out.append("}\n");
+        }
+    };
+
+    private static final double KNOTS_PER_MPS = 3600.0 / 1852;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+    private static final long[] POWERS_OF_TEN = { 1, 10, 100, 1000, 10000, 100000, 1000000, 10000000 };
+
+    /**
+     * Appends the location, including the line end.
+     *
+     * @param vehicle
+     *            Id of the vehicle in a fleet, or -1 for a single track.
+     * @param time
+     *            Milliseconds since the epoch.
+     */
+    public abstract void format(StringBuilder out, int vehicle, long time, double lat, double lon, double ele, double bearing,
+            double speed, double hdop);
+
+    /**
+     * Appends the value rounded to the given number of decimals, without
+     * going through Double.toString().
+     */
+    static void appendFixed(StringBuilder out, double value, int decimals) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            value = 0;
+        }
+        long scale = LocationFormat.POWERS_OF_TEN[decimals];
+        long scaled = Math.round(Math.abs(value) * scale);
+        if ((value < 0) && (scaled != 0)) {
+            out.append('-');
+        }
+        out.append(scaled / scale);
+        if (decimals > 0) {
+            out.append('.');
+            LocationFormat.appendPadded(out, scaled % scale, decimals);
+        }
+    }
+
+    private static void appendPadded(StringBuilder out, long value, int digits) {
+        for (long limit = LocationFormat.POWERS_OF_TEN[digits - 1]; (limit > 1) && (value < limit); limit /= 10) {
+            out.append('0');
+        }
+        out.append(value);
+    }
+
+    /**
+     * Appends degrees as NMEA dddmm.mmmm and the hemisphere.
+     */
+    private static void appendLatLon(StringBuilder out, double degrees, int degreeDigits, char positive, char negative) {
+        // Ten thousandths of a minute, so that rounding carries into the
+        // degrees.
+        long total = Math.round(Math.abs(degrees) * 600000);
+        LocationFormat.appendPadded(out, total / 600000, degreeDigits);
+        long minutes = total % 600000;
+        LocationFormat.appendPadded(out, minutes / 10000, 2);
+        out.append('.');
+        LocationFormat.appendPadded(out, minutes % 10000, 4);
+        out.append(',').append(degrees < 0 ? negative : positive);
+    }
+
+    /**
+     * Appends the UTC time of day as hhmmss.sss.
+     */
+    private static void appendTime(StringBuilder out, long time) {
+        long millis = time % LocationFormat.MILLIS_PER_DAY;
+        if (millis < 0) {
+            millis += LocationFormat.MILLIS_PER_DAY;
+        }
+        LocationFormat.appendPadded(out, millis / 3600000, 2);
+        LocationFormat.appendPadded(out, (millis / 60000) % 60, 2);
+        LocationFormat.appendPadded(out, (millis / 1000) % 60, 2);
+        out.append('.');
+        LocationFormat.appendPadded(out, millis % 1000, 3);
+    }
+
+    /**
+     * Appends the UTC date as ddmmyy, from the days since the epoch with the
+     * civil calendar algorithm instead of a Calendar.
+     */
+    private static void appendDate(StringBuilder out, long time) {
+        long days = time / LocationFormat.MILLIS_PER_DAY;
+        if ((time % LocationFormat.MILLIS_PER_DAY) < 0) {
+            days--;
+        }
+        long z = days + 719468;
+        long era = (z >= 0 ? z : z - 146096) / 146097;
+        long dayOfEra = z - (era * 146097);
+        long yearOfEra = (dayOfEra - (dayOfEra / 1460) + (dayOfEra / 36524) - (dayOfEra / 146096)) / 365;
+        long dayOfYear = dayOfEra - ((365 * yearOfEra) + (yearOfEra / 4) - (yearOfEra / 100));
+        long mp = ((5 * dayOfYear) + 2) / 153;
+        long day = (dayOfYear - (((153 * mp) + 2) / 5)) + 1;
+        long month = mp < 10 ? mp + 3 : mp - 9;
+        long year = (yearOfEra + (era * 400)) + (month <= 2 ? 1 : 0);
+        LocationFormat.appendPadded(out, day, 2);
+        LocationFormat.appendPadded(out, month, 2);
+        LocationFormat.appendPadded(out, year % 100, 2);
+    }
+
+    /**
+     * Appends *XX and the line end for the sentence starting at start.
+     */
+    private static void appendChecksum(StringBuilder out, int start) {
+        LocationFormat.appendChecksumOnly(out, start);
+        out.append("\r\n");
+    }
+
+    /**
+     * Appends *XX for everything after the delimiter at start.
+     */
+    private static void appendChecksumOnly(StringBuilder out, int start) {
+        int checksum = 0;
+        for (int i = start + 1; i < out.length(); i++) {
+            checksum ^= out.charAt(i);
+        }
+        out.append('*').append(LocationFormat.HEX[(checksum >> 4) & 0xf]).append(LocationFormat.HEX[checksum & 0xf]);
+    }
+
+    private static void appendTagBlock(StringBuilder out, int vehicle) {
+        if (vehicle < 0) {
+            return;
+        }
+        int start = out.length();
+        out.append("\\s:").append(vehicle);
+        LocationFormat.appendChecksumOnly(out, start);
+        out.append('\\');
+    }
+}
@@ -0,0 +1,770 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.replay;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.twolinessoftware.android.framework.service.comms.FileTrackSource;
+import com.twolinessoftware.android.framework.service.comms.TrackSource;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.metrics.Counter;
+import com.twolinessoftware.android.framework.service.metrics.Histogram;
+import com.twolinessoftware.android.framework.service.metrics.MetricsRegistry;
+import com.twolinessoftware.android.framework.service.playback.FleetPlayer;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.PlaybackClock;
+import com.twolinessoftware.android.framework.service.playback.PlaybackScheduler;
+import com.twolinessoftware.android.framework.service.playback.RouteTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackFilter;
+import com.twolinessoftware.android.framework.service.playback.TrackLoader;
+import com.twolinessoftware.android.framework.service.playback.TrackPlayer;
+
+/**
+ * Replays a GPX or NMEA file as NMEA sentences or JSON lines, to stdout, a
+ * file or a TCP connection, with the same TrackLoader, TrackPlayer and
+ * PlaybackScheduler as PlaybackService. At "--speed max" the points are
+ * written as fast as the output takes them, without a schedule.
+ *
+ * Several files, or --vehicles, replay a fleet with a FleetPlayer instead:
+ * every file is loaded completely and played back by that many vehicles,
+ * started --stagger milliseconds of track time apart.
+ *
+ * A FILE of "-" reads the track from stdin, e.g. piped from zcat or curl.
+ *
+ * --track and --segment load the file completely and play back just that
+ * part of it, --list shows which parts there are.
+ *
+ * --route drives the routes and waypoints of a GPX file instead of playing
+ * back its tracks, once the file is loaded completely.
+ */
+public class Replay implements TrackPlayer.Sink, FleetPlayer.Sink {
+
+    private static final String USAGE = "Usage: replay [options] FILE...\n" + "  FILE may be - to read stdin.\n"
+            + "  --format nmea|json     Output format, default nmea.\n"
+            + "  --speed N|max          Speed multiplier (" + PlaybackScheduler.MIN_SPEED + " to " + PlaybackScheduler.MAX_SPEED
+            + "), or max for no pacing. Default 1.\n"
+            + "  --hz N                 Interpolated locations per second of track time, default 0 for the recorded points only.\n"
+            + "  --time wall|track      Timestamp the locations with the current time or the track time, default wall.\n"
+            + "  --loop                 Start over at the end of the track instead of exiting.\n"
+            + "  --loop-mode MODE       How to start over, implies --loop: jump back to the first point, bridge to it\n"
+            + "                         or pingpong back and forth. Default jump. Track times keep increasing.\n"
+            + "  --gap MODE             Between track segments: pause for the recorded time, skip to the next one\n"
+            + "                         or interpolate across. Default pause.\n"
+            + "  --list                 List the tracks and segments of the file and exit.\n"
+            + "  --track N              Play back only the Nth track of the file, counting from 1.\n"
+            + "  --segment N            Play back only the Nth segment of the file, counting over all tracks from 1.\n"
+            + "  --out FILE             Write to a file instead of stdout.\n"
+            + "  --tcp HOST:PORT        Write to a TCP connection instead of stdout.\n"
+            + "  --metrics FILE         Dump the playback metrics to a file at the end.\n"
+            + "  --vehicles N           Vehicles per file, for a fleet. Default 1.\n"
+            + "  --stagger MS           Track time between the starts of the vehicles of a file, default 1000.\n"
+            + "  --route PROFILE        Drive the routes and waypoints instead of the tracks: at a constant speed, perleg at\n"
+            + "                         the speed of the waypoint times, or accel with acceleration and turns.\n"
+            + "  --route-speed N        Of --route, in m/s. Default " + (int) RouteTrack.DEFAULT_SPEED + ".\n"
+            + "  --acceleration N       Of --route accel, in m/s^2. Default " + (int) RouteTrack.DEFAULT_ACCELERATION + ".\n"
+            + "  --simplify dp|vw|time  Drop points while loading: Douglas-Peucker, Visvalingam or time decimation.\n"
+            + "  --tolerance N          Of --simplify, in meters, square meters or milliseconds. Default 5, 25 or 1000.\n";
+
+    /**
+     * Points a streamed track keeps behind the cursor, as in the app.
+     */
+    private static final int STREAMING_KEEP_BEHIND = 16 * 60;
+
+    private static final int OUTPUT_BUFFER = 64 * 1024;
+
+    /**
+     * Read through once, as it is a pipe.
+     */
+    private static final TrackSource STDIN = new TrackSource() {
+        @Override
+        public String getName() {
+            return "stdin";
+        }
+
+        @Override
+        public long getLength() {
+            return -1;
+        }
+
+        @Override
+        public FileInputStream open() {
+            return new FileInputStream(FileDescriptor.in);
+        }
+
+        @Override
+        public boolean isReopenable() {
+            return false;
+        }
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    };
+
+    private static final PlaybackClock SYSTEM_CLOCK = new PlaybackClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private final List<TrackSource> files;
+    private final TrackSource file;
+    private final LocationFormat format;
+    private final Writer out;
+    private final boolean paced;
+    /**
+     * Flush after every location instead of after every fleet tick.
+     */
+    private boolean flushEach;
+    private final boolean trackTime;
+    private final boolean loop;
+    private final StringBuilder line = new StringBuilder(256);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final TrackPlayer player;
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final Counter emitted = metrics.counter("replay.emitted");
+    private final Histogram writeLatency = metrics.histogram("replay.write.latency");
+
+    private volatile TrackLoader loader;
+    private TrackFilter.Mode simplification;
+    private double tolerance;
+    /**
+     * Of all loaders, for the summary.
+     */
+    private final List<TrackFilter> filters = new CopyOnWriteArrayList<TrackFilter>();
+    /**
+     * Selected with --track or --segment counting from 0, -1 for all.
+     */
+    private int selectedTrack = -1;
+    private int selectedSegment = -1;
+    /**
+     * Set with --route, null to play back tracks.
+     */
+    private RouteTrack.Profile routeProfile;
+    private double routeSpeed;
+    private double routeAcceleration;
+    private volatile boolean finished;
+    private volatile String failure;
+
+    Replay(List<TrackSource> files, LocationFormat format, Writer out, boolean paced, boolean trackTime, boolean loop) {
+        this.files = files;
+        file = files.get(0);
+        this.format = format;
+        this.out = out;
+        this.paced = paced;
+        flushEach = paced;
+        this.trackTime = trackTime;
+        this.loop = loop;
+        player = new TrackPlayer(TrackLoader.newTrack(file), this, Replay.STREAMING_KEEP_BEHIND);
+    }
+
+    public static void main(String[] args) {
+        String formatName = "nmea";
+        String speedArg = "1";
+        float hz = 0;
+        boolean trackTime = false;
+        boolean loop = false;
+        String loopModeArg = null;
+        String gapArg = null;
+        boolean list = false;
+        int track = 0;
+        int segment = 0;
+        String outFile = null;
+        String tcp = null;
+        String metricsFile = null;
+        int vehicles = 1;
+        long stagger = 1000;
+        String simplify = null;
+        double tolerance = -1;
+        String route = null;
+        double routeSpeed = RouteTrack.DEFAULT_SPEED;
+        double acceleration = RouteTrack.DEFAULT_ACCELERATION;
+        List<TrackSource> inputs = new ArrayList<TrackSource>();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                if ("--format".equals(arg)) {
+                    formatName = args[++i];
+                } else if ("--speed".equals(arg)) {
+                    speedArg = args[++i];
+                } else if ("--hz".equals(arg)) {
+                    hz = Float.parseFloat(args[++i]);
+                } else if ("--time".equals(arg)) {
+                    trackTime = "track".equals(args[++i]);
+                } else if ("--loop".equals(arg)) {
+                    loop = true;
+                } else if ("--loop-mode".equals(arg)) {
+                    loopModeArg = args[++i];
+                    loop = true;
+                } else if ("--gap".equals(arg)) {
+                    gapArg = args[++i];
+                } else if ("--list".equals(arg)) {
+                    list = true;
+                } else if ("--track".equals(arg)) {
+                    track = Integer.parseInt(args[++i]);
+                } else if ("--segment".equals(arg)) {
+                    segment = Integer.parseInt(args[++i]);
+                } else if ("--out".equals(arg)) {
+                    outFile = args[++i];
+                } else if ("--tcp".equals(arg)) {
+                    tcp = args[++i];
+                } else if ("--metrics".equals(arg)) {
+                    metricsFile = args[++i];
+                } else if ("--vehicles".equals(arg)) {
+                    vehicles = Integer.parseInt(args[++i]);
+                } else if ("--stagger".equals(arg)) {
+                    stagger = Long.parseLong(args[++i]);
+                } else if ("--route".equals(arg)) {
+                    route = args[++i];
+                } else if ("--route-speed".equals(arg)) {
+                    routeSpeed = Double.parseDouble(args[++i]);
+                } else if ("--acceleration".equals(arg)) {
+                    acceleration = Double.parseDouble(args[++i]);
+                } else if ("--simplify".equals(arg)) {
+                    simplify = args[++i];
+                } else if ("--tolerance".equals(arg)) {
+                    tolerance = Double.parseDouble(args[++i]);
+                } else if (arg.startsWith("--")) {
+                    Replay.exit("Unknown argument " + arg);
+                } else {
+                    inputs.add("-".equals(arg) ? Replay.STDIN : new FileTrackSource(new File(arg)));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            Replay.exit("Missing value for " + args[args.length - 1]);
+        } catch (NumberFormatException e) {
+            Replay.exit("Not a number: " + e.getMessage());
+        }
+        if (inputs.isEmpty() || (vehicles < 1) || (track < 0) || (segment < 0) || ((track > 0) && (segment > 0)) || (routeSpeed <= 0)
+                || (acceleration <= 0)) {
+            Replay.exit(null);
+        }
+        LocationFormat format = null;
+        try {
+            format = LocationFormat.valueOf(formatName.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Replay.exit("Unknown format " + formatName);
+        }
+        TrackFilter.Mode simplification = null;
+        if ("dp".equals(simplify)) {
+            simplification = TrackFilter.Mode.DOUGLAS_PEUCKER;
+            tolerance = tolerance < 0 ? 5 : tolerance;
+        } else if ("vw".equals(simplify)) {
+            simplification = TrackFilter.Mode.VISVALINGAM;
+            tolerance = tolerance < 0 ? 25 : tolerance;
+        } else if ("time".equals(simplify)) {
+            simplification = TrackFilter.Mode.TIME;
+            tolerance = tolerance < 0 ? 1000 : tolerance;
+        } else if (simplify != null) {
+            Replay.exit("Unknown simplification " + simplify);
+        }
+        RouteTrack.Profile routeProfile = null;
+        if ("constant".equals(route)) {
+            routeProfile = RouteTrack.Profile.CONSTANT;
+        } else if ("perleg".equals(route)) {
+            routeProfile = RouteTrack.Profile.PER_LEG;
+        } else if ("accel".equals(route)) {
+            routeProfile = RouteTrack.Profile.ACCELERATION_LIMITED;
+        } else if (route != null) {
+            Replay.exit("Unknown route profile " + route);
+        }
+        TrackPlayer.LoopMode loopMode = TrackPlayer.LoopMode.JUMP;
+        if ("bridge".equals(loopModeArg)) {
+            loopMode = TrackPlayer.LoopMode.BRIDGE;
+        } else if ("pingpong".equals(loopModeArg)) {
+            loopMode = TrackPlayer.LoopMode.PING_PONG;
+        } else if ((loopModeArg != null) && !"jump".equals(loopModeArg)) {
+            Replay.exit("Unknown loop mode " + loopModeArg);
+        }
+        TrackPlayer.GapMode gapMode = TrackPlayer.GapMode.PAUSE;
+        if ("skip".equals(gapArg)) {
+            gapMode = TrackPlayer.GapMode.SKIP;
+        } else if ("interpolate".equals(gapArg)) {
+            gapMode = TrackPlayer.GapMode.INTERPOLATE;
+        } else if ((gapArg != null) && !"pause".equals(gapArg)) {
+            Replay.exit("Unknown gap mode " + gapArg);
+        }
+        boolean paced = !"max".equals(speedArg);
+        float speed = 1;
+        if (paced) {
+            try {
+                speed = Float.parseFloat(speedArg);
+            } catch (NumberFormatException e) {
+                Replay.exit("Not a speed: " + speedArg);
+            }
+        }
+
+        if (list) {
+            Replay lister = new Replay(Collections.singletonList(inputs.get(0)), LocationFormat.JSON, null, false, false, false);
+            lister.setRoute(routeProfile, routeSpeed, acceleration);
+            try {
+                lister.list(System.out);
+            } catch (IOException e) {
+                Replay.exit(e.getMessage());
+            }
+            System.exit(0);
+        }
+
+        Writer out = null;
+        try {
+            out = new BufferedWriter(new OutputStreamWriter(Replay.open(outFile, tcp, paced), "US-ASCII"), Replay.OUTPUT_BUFFER);
+        } catch (IOException e) {
+            Replay.exit("Can't open the output: " + e.getMessage());
+        }
+        Replay replay = new Replay(inputs, format, out, paced, trackTime, loop);
+        replay.player.setInterpolationStep(hz > 0 ? Math.round(1000 / hz) : 0);
+        replay.player.setLoopMode(loopMode);
+        replay.player.setGapMode(gapMode);
+        replay.selectedTrack = track - 1;
+        replay.selectedSegment = segment - 1;
+        replay.simplification = simplification;
+        replay.tolerance = tolerance;
+        replay.setRoute(routeProfile, routeSpeed, acceleration);
+        long start = System.nanoTime();
+        try {
+            if ((inputs.size() > 1) || (vehicles > 1)) {
+                if (hz > 0) {
+                    System.err.println("A fleet plays back the recorded points only, --hz is ignored");
+                }
+                if (loopMode != TrackPlayer.LoopMode.JUMP) {
+                    System.err.println("A fleet jumps back to the start, --loop-mode is ignored");
+                }
+                if ((gapMode != TrackPlayer.GapMode.PAUSE) || (track > 0) || (segment > 0)) {
+                    System.err.println("A fleet plays back whole files, --gap, --track and --segment are ignored");
+                }
+                replay.runFleet(speed, vehicles, stagger);
+            } else {
+                replay.run(speed);
+            }
+        } catch (IOException e) {
+            Replay.exit(e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // Reported by the sink already.
+            }
+        }
+        replay.report(System.nanoTime() - start, metricsFile);
+        System.exit(replay.failure == null ? 0 : 1);
+    }
+
+    private static OutputStream open(String outFile, String tcp, boolean paced) throws IOException {
+        if (outFile != null) {
+            return new FileOutputStream(outFile);
+        }
+        if (tcp != null) {
+            int colon = tcp.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IOException("expected HOST:PORT, got " + tcp);
+            }
+            Socket socket = new Socket(tcp.substring(0, colon), Integer.parseInt(tcp.substring(colon + 1)));
+            // Paced locations should go out when they are due.
+            socket.setTcpNoDelay(paced);
+            return socket.getOutputStream();
+        }
+        return System.out;
+    }
+
+    private static void exit(String message) {
+        if (message != null) {
+            System.err.println(message);
+        }
+        System.err.print(Replay.USAGE);
+        System.exit(2);
+    }
+
+    /**
+     * Drives routes instead of playing back tracks.
+     *
+     * @param profile
+     *            null to play back tracks.
+     */
+    void setRoute(RouteTrack.Profile profile, double speed, double acceleration) {
+        routeProfile = profile;
+        routeSpeed = speed;
+        routeAcceleration = acceleration;
+    }
+
+    /**
+     * Prints the tracks and segments of the first file with their number of
+     * points, numbered as --track and --segment take them. The generated
+     * ones if driving routes.
+     */
+    void list(PrintStream print) throws IOException {
+        LoadedTrack loaded = load(file);
+        if (failure != null) {
+            throw new IOException(failure);
+        }
+        Track track = loaded.track;
+        TrackSegments segments = track.getSegments();
+        for (int t = 0; t < segments.getTrackCount(); t++) {
+            int first = segments.getTrackStart(t);
+            int end = segments.getTrackEnd(t);
+            print.println("track " + (t + 1) + ": " + (end - first) + ((end - first) == 1 ? " segment" : " segments"));
+            for (int i = first; i < end; i++) {
+                int segmentEnd = segments.getSegmentEnd(i);
+                int points = (segmentEnd < 0 ? track.size() : segmentEnd) - segments.getSegmentStart(i);
+                print.println("  segment " + (i + 1) + ": " + points + " points");
+            }
+        }
+    }
+
+    /**
+     * Replays the file and returns when the end of the track or an error
+     * has been reached.
+     */
+    void run(float speed) throws IOException, InterruptedException {
+        if ((selectedTrack >= 0) || (selectedSegment >= 0) || (routeProfile != null)) {
+            // Only a complete track has all its boundaries, and a route is
+            // only planned once complete.
+            LoadedTrack loaded = load(file);
+            if (finished) {
+                return;
+            }
+            if (((selectedTrack >= 0) || (selectedSegment >= 0)) && !select(loaded.track)) {
+                finish("No " + (selectedTrack >= 0 ? "track " + (selectedTrack + 1) : "segment " + (selectedSegment + 1))
+                        + " in " + file);
+                return;
+            }
+            player.setTrack(loaded);
+        } else {
+            startLoader(player.getTrack());
+        }
+        try {
+            if (paced) {
+                runPaced(player, speed);
+            } else {
+                runUnpaced();
+            }
+        } finally {
+            loader.stop();
+        }
+    }
+
+    /**
+     * Limits the player to the selected track or segment of the complete
+     * track.
+     *
+     * @return false if there is no such part.
+     */
+    private boolean select(Track track) {
+        TrackSegments segments = track.getSegments();
+        int first = selectedSegment;
+        int last = selectedSegment;
+        if (selectedTrack >= 0) {
+            if (selectedTrack >= segments.getTrackCount()) {
+                return false;
+            }
+            first = segments.getTrackStart(selectedTrack);
+            last = segments.getTrackEnd(selectedTrack) - 1;
+        } else if (selectedSegment >= segments.getSegmentCount()) {
+            return false;
+        }
+        int end = segments.getSegmentEnd(last);
+        player.setRange(segments.getSegmentStart(first), end < 0 ? track.size() : end);
+        player.getTrack().cursor.set(track, segments.getSegmentStart(first), false);
+        return true;
+    }
+
+    /**
+     * Loads the input completely on this thread.
+     */
+    private LoadedTrack load(TrackSource input) throws IOException {
+        Track track = new TrackStore();
+        if (routeProfile != null) {
+            track = new RouteTrack(routeProfile, routeSpeed, routeAcceleration, RouteTrack.DEFAULT_STEP, System.currentTimeMillis());
+        }
+        LoadedTrack loaded = new LoadedTrack(track, null);
+        loader = newLoader(input, loaded);
+        loader.open();
+        loader.parse();
+        return loaded;
+    }
+
+    /**
+     * Loads every file completely and replays them with the given number of
+     * vehicles each, until all have reached the end of their track.
+     */
+    void runFleet(float speed, int vehicles, long stagger) throws IOException, InterruptedException {
+        final FleetPlayer fleet = new FleetPlayer(this, FleetPlayer.DEFAULT_TICK_MILLIS, loop);
+        for (TrackSource input : files) {
+            LoadedTrack loaded = load(input);
+            if (finished) {
+                return;
+            }
+            for (int v = 0; v < vehicles; v++) {
+                fleet.addVehicle(loaded.track, 0, v * stagger);
+            }
+        }
+        if (paced) {
+            // All locations of a tick go out together.
+            flushEach = false;
+            runPaced(new PlaybackScheduler.Task() {
+                @Override
+                public long run() {
+                    long delay = fleet.run();
+                    try {
+                        out.flush();
+                    } catch (IOException e) {
+                        finish("Write failed: " + e.getMessage());
+                    }
+                    return delay;
+                }
+            }, speed);
+            return;
+        }
+        while (!finished && (fleet.run() != PlaybackScheduler.STOP)) {
+            // Back to back.
+        }
+    }
+
+    /**
+     * Runs the task on a PlaybackScheduler until it stops or the replay is
+     * finished.
+     */
+    private void runPaced(final PlaybackScheduler.Task task, float speed) throws InterruptedException {
+        if ((speed < PlaybackScheduler.MIN_SPEED) || (speed > PlaybackScheduler.MAX_SPEED)) {
+            System.err.println("Speed clamped to " + PlaybackScheduler.MIN_SPEED + " .. " + PlaybackScheduler.MAX_SPEED
+                    + ", use --speed max for more");
+        }
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor();
+        PlaybackScheduler scheduler = new PlaybackScheduler(executor, Replay.SYSTEM_CLOCK, new PlaybackScheduler.Task() {
+            @Override
+            public long run() {
+                long delay = task.run();
+                if (finished || (delay == PlaybackScheduler.STOP)) {
+                    done.countDown();
+                    return PlaybackScheduler.STOP;
+                }
+                return delay;
+            }
+        }, metrics, "replay.");
+        scheduler.setSpeed(speed);
+        scheduler.start(0);
+        try {
+            done.await();
+        } finally {
+            scheduler.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the player back to back, only waiting when the loader has not
+     * caught up.
+     */
+    private void runUnpaced() throws InterruptedException {
+        while (!finished) {
+            long before = emitted.get();
+            player.run();
+            if (emitted.get() == before) {
+                Thread.sleep(1);
+            }
+        }
+    }
+
+    private void startLoader(LoadedTrack track) throws IOException {
+        final TrackLoader newLoader = newLoader(file, track);
+        newLoader.open();
+        loader = newLoader;
+        Thread thread = new Thread("TrackLoader") {
+            @Override
+            public void run() {
+                newLoader.parse();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return A loader of the file into the track, with a new filter if
+     *         simplifying.
+     */
+    private TrackLoader newLoader(TrackSource input, LoadedTrack track) {
+        LoadListener listener = new LoadListener();
+        listener.loader = new TrackLoader(input, track, listener);
+        if (simplification != null) {
+            TrackFilter filter = TrackFilter.create(simplification, tolerance);
+            filters.add(filter);
+            listener.loader.setFilter(filter);
+        }
+        return listener.loader;
+    }
+
+    private void finish(String error) {
+        if ((error != null) && (failure == null)) {
+            failure = error;
+            System.err.println(error);
+        }
+        finished = true;
+        done.countDown();
+    }
+
+    @Override
+    public void onLocation(long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+        onLocation(-1, time, lat, lon, ele, bearing, speed, hdop);
+    }
+
+    @Override
+    public void onLocation(int vehicle, long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+        if (finished) {
+            return;
+        }
+        long stamp = (trackTime && (time > 0)) ? time : System.currentTimeMillis();
+        line.setLength(0);
+        format.format(line, vehicle, stamp, lat, lon, ele, bearing, speed, hdop);
+        long start = System.nanoTime();
+        try {
+            out.append(line);
+            if (flushEach) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            finish("Write failed: " + e.getMessage());
+            return;
+        }
+        writeLatency.record(System.nanoTime() - start);
+        emitted.increment();
+    }
+
+    @Override
+    public void onProgress(int index, int count) {
+        Track track = player.getTrack().track;
+        if (!loop && track.isComplete() && (index == (Math.min(count, player.getRangeEnd()) - 1))) {
+            finish(null);
+        }
+    }
+
+    @Override
+    public void onStreamEnd() {
+        if (!loop) {
+            finish(null);
+            return;
+        }
+        if (!file.isReopenable()) {
+            finish(file + " can't be read again from the start");
+            return;
+        }
+        // The start of the track is gone, stream it again.
+        loader.stop();
+        LoadedTrack track = TrackLoader.newTrack(file);
+        try {
+            startLoader(track);
+        } catch (IOException e) {
+            finish(file + " is gone");
+            return;
+        }
+        player.setTrack(track);
+    }
+
+    /**
+     * Ends the replay when its loader fails.
+     */
+    private class LoadListener implements TrackLoader.Listener {
+        TrackLoader loader;
+
+        @Override
+        public void onPoint(GpxTrackPoint point) {
+        }
+
+        @Override
+        public void onIndexed(int points, long bytesRead) {
+        }
+
+        @Override
+        public void onEnd(boolean complete) {
+            if (loader.isStopped()) {
+                // Replaced or shut down.
+                return;
+            }
+            if (!complete) {
+                finish("Parsing " + loader.getSource() + " failed");
+            } else if (loader.getTrack().track.isEmpty()) {
+                finish("No points in " + loader.getSource());
+            }
+        }
+
+        @Override
+        public void onError(String message) {
+            System.err.println(message);
+        }
+    }
+
+    /**
+     * Prints a summary to stderr and dumps the metrics if asked to.
+     */
+    private void report(long elapsedNanos, String metricsFile) {
+        long count = emitted.get();
+        double seconds = elapsedNanos / 1e9;
+        System.err.println("Replayed " + count + " locations in " + Math.round(seconds * 1000) / 1000.0 + " s, "
+                + Math.round(count / Math.max(seconds, 1e-9)) + " per second");
+        if (!filters.isEmpty()) {
+            long in = 0;
+            long kept = 0;
+            for (TrackFilter filter : filters) {
+                in += filter.getInputCount();
+                kept += filter.getOutputCount();
+            }
+            System.err.println("Simplified " + in + " points to " + kept + ", " + Math.round(in * 100.0 / Math.max(kept, 1)) / 100.0
+                    + ":1");
+        }
+        if (metricsFile == null) {
+            return;
+        }
+        Writer dump = null;
+        try {
+            dump = new FileWriter(metricsFile);
+            metrics.dump(dump);
+        } catch (IOException e) {
+            System.err.println("Can't dump the metrics to " + metricsFile + ": " + e.getMessage());
+        } finally {
+            if (dump != null) {
+                try {
+                    dump.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android;
+
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import com.twolinessoftware.android.framework.service.comms.TrackSource;
+
+/**
+ * A track behind a content URI, e.g. a document picked with the Storage
+ * Access Framework. Opened through a file descriptor, so that a document
+ * stored in a file is read, and mapped, like a local file.
+ */
+public class ContentTrackSource implements TrackSource {
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private String name;
+    private long length = -1;
+    /**
+     * The last open() returned a pipe, which the provider may not serve
+     * again.
+     */
+    private volatile boolean piped;
+
+    public ContentTrackSource(ContentResolver resolver, Uri uri) {
+        this.resolver = resolver;
+        this.uri = uri;
+    }
+
+    /**
+     * @return true if the string names a content URI rather than a file.
+     */
+    public static boolean isContentUri(String location) {
+        return location.startsWith(ContentResolver.SCHEME_CONTENT + ":");
+    }
+
+    @Override
+    public synchronized String getName() {
+        if (name == null) {
+            query();
+        }
+        return name;
+    }
+
+    @Override
+    public synchronized long getLength() {
+        if (name == null) {
+            query();
+        }
+        return length;
+    }
+
+    /**
+     * Asks the provider for the display name and size, once.
+     */
+    private void query() {
+        Cursor cursor = null;
+        try {
+            cursor = resolver.query(uri, new String[] { OpenableColumns.DISPLAY_NAME, OpenableColumns.SIZE }, null, null, null);
+            if ((cursor != null) && cursor.moveToFirst()) {
+                int nameColumn = cursor.getColumnIndex(OpenableColumns.DISPLAY_NAME);
+                int sizeColumn = cursor.getColumnIndex(OpenableColumns.SIZE);
+                if ((nameColumn >= 0) && !cursor.isNull(nameColumn)) {
+                    name = cursor.getString(nameColumn);
+                }
+                if ((sizeColumn >= 0) && !cursor.isNull(sizeColumn)) {
+                    length = cursor.getLong(sizeColumn);
+                }
+            }
+        } catch (RuntimeException e) {
+            // E.g. a provider that is gone, open() will tell.
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (name == null) {
+            name = uri.getLastPathSegment() == null ? "" : uri.getLastPathSegment();
+        }
+    }
+
+    @Override
+    public FileInputStream open() throws FileNotFoundException {
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException("Can't open " + uri);
+        }
+        piped = descriptor.getStatSize() < 0;
+        return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+    }
+
+    @Override
+    public boolean isReopenable() {
+        return !piped;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
@@ -17,6 +17,7 @@ package com.twolinessoftware.android;
 
 import java.io.File;
 
+import android.annotation.TargetApi;
 import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.ActivityNotFoundException;
@@ -29,6 +30,7 @@ import android.content.IntentFilter;
 import android.content.ServiceConnection;
 import android.content.SharedPreferences;
 import android.net.Uri;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
@@ -46,6 +48,8 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
 
     private static final int REQUEST_FILE = 1;
 
+    private static final int REQUEST_DOCUMENT = 2;
+
     private static final String LOGTAG = GPSPlaybackActivity.class.getSimpleName();
 
     private ServiceConnection connection;
@@ -93,6 +97,9 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
         if (receiver != null) {
             unregisterReceiver(receiver);
         }
+        if (service instanceof PlaybackService.LocalBinder) {
+            ((PlaybackService.LocalBinder) service).setProgressListener(null);
+        }
 
         try {
             unbindService(connection);
@@ -189,7 +196,28 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
         try {
             startActivityForResult(intent, GPSPlaybackActivity.REQUEST_FILE);
         } catch (ActivityNotFoundException e) {
-            // No compatible file manager was found.
+            // No compatible file manager was found, use the system picker if
+            // there is one.
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+                openDocument();
+            } else {
+                Toast.makeText(this, R.string.no_filemanager_installed, Toast.LENGTH_LONG).show();
+            }
+        }
+    }
+
+    /**
+     * Opens the Storage Access Framework picker. The document is played
+     * back through its content URI.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void openDocument() {
+        Intent intent = new Intent(Intent.ACTION_OPEN_DOCUMENT);
+        intent.addCategory(Intent.CATEGORY_OPENABLE);
+        intent.setType("*/*");
+        try {
+            startActivityForResult(intent, GPSPlaybackActivity.REQUEST_DOCUMENT);
+        } catch (ActivityNotFoundException e) {
             Toast.makeText(this, R.string.no_filemanager_installed, Toast.LENGTH_LONG).show();
         }
     }
@@ -251,6 +279,11 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
         @Override
         public void onServiceConnected(ComponentName name, IBinder boundService) {
             service = IPlaybackService.Stub.asInterface(boundService);
+            if (service instanceof PlaybackService.LocalBinder) {
+                // Same process, take progress directly instead of through
+                // broadcasts.
+                ((PlaybackService.LocalBinder) service).setProgressListener(GPSPlaybackActivity.this);
+            }
             try {
                 state = service.getState();
             } catch (RemoteException e) {
@@ -280,19 +313,44 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
                     if (fileUri != null) {
                         String filePath = fileUri.getPath();
                         if (filePath != null) {
-                            textView.setText(filePath);
-                            filepath = filePath;
-
-                            // Save selected file for future reference.
-                            SharedPreferences settings = getPreferences(Context.MODE_PRIVATE);
-                            SharedPreferences.Editor editor = settings.edit();
-                            editor.putString(GPSPlaybackActivity.LAST_FILE, filePath);
-                            editor.commit();
-                            Log.i(GPSPlaybackActivity.LOGTAG, "Stored file preference: " + filePath);
+                            selectFile(filePath);
                         }
                     }
                 }
                 break;
+            case REQUEST_DOCUMENT:
+                if ((resultCode == Activity.RESULT_OK) && (data != null) && (data.getData() != null)) {
+                    keepDocument(data);
+                    selectFile(data.getData().toString());
+                }
+                break;
+        }
+    }
+
+    private void selectFile(String filePath) {
+        textView.setText(filePath);
+        filepath = filePath;
+
+        // Save selected file for future reference.
+        SharedPreferences settings = getPreferences(Context.MODE_PRIVATE);
+        SharedPreferences.Editor editor = settings.edit();
+        editor.putString(GPSPlaybackActivity.LAST_FILE, filePath);
+        editor.commit();
+        Log.i(GPSPlaybackActivity.LOGTAG, "Stored file preference: " + filePath);
+    }
+
+    /**
+     * Keeps the permission to read the document, which is remembered as the
+     * last file.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    private void keepDocument(Intent data) {
+        try {
+            getContentResolver().takePersistableUriPermission(data.getData(),
+                    data.getFlags() & Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            // Not persistable, readable until the app is restarted.
+            Log.w(GPSPlaybackActivity.LOGTAG, "No persistable permission for " + data.getData());
         }
     }
 
@@ -324,4 +382,13 @@ public class GPSPlaybackActivity extends Activity implements GpsPlaybackListener
         progressPercentage = pct;
         updateUi();
     }
+
+    @Override
+    public void onLoadProgress(int pct, float pointsPerSecond, float bytesPerSecond) {
+        Log.d(GPSPlaybackActivity.LOGTAG, "Loaded " + pct + "% at " + (int) pointsPerSecond + " points/s, " + (int) (bytesPerSecond / 1024)
+                + " kB/s");
+        if ((progressDialog != null) && progressDialog.isShowing()) {
+            progressDialog.setMessage(getString(R.string.loading_file) + " " + pct + "%");
+        }
+    }
 }
\ No newline at end of file
@@ -32,10 +32,14 @@ public class GpsPlaybackBroadcastReceiver extends BroadcastReceiver {
 
     public static final String INTENT_ERROR = "gpsplaybackstateerror";
 
+    public static final String INTENT_POINTS_PER_SECOND = "gpsplaybackpointspersecond";
+
+    public static final String INTENT_BYTES_PER_SECOND = "gpsplaybackbytespersecond";
+
     private static final String LOGTAG = GpsPlaybackBroadcastReceiver.class.getSimpleName();
 
     public static enum Status {
-        fileLoadStarted, fileLoadfinished, statusChange, fileError, playbackProgress;
+        fileLoadStarted, fileLoadfinished, statusChange, fileError, playbackProgress, loadProgress;
     }
 
     private final GpsPlaybackListener listener;
@@ -70,6 +74,11 @@ public class GpsPlaybackBroadcastReceiver extends BroadcastReceiver {
                 case playbackProgress:
                     listener.onProgress(state);
                     break;
+                case loadProgress:
+                    listener.onLoadProgress(intent.getIntExtra(GpsPlaybackBroadcastReceiver.INTENT_PROGRESS, 0),
+                            intent.getFloatExtra(GpsPlaybackBroadcastReceiver.INTENT_POINTS_PER_SECOND, 0),
+                            intent.getFloatExtra(GpsPlaybackBroadcastReceiver.INTENT_BYTES_PER_SECOND, 0));
+                    break;
                 default:
                     Log.e(GpsPlaybackBroadcastReceiver.LOGTAG, "Unknown status in receiver:" + status);
             }
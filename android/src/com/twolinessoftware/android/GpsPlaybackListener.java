@@ -26,4 +26,16 @@ public interface GpsPlaybackListener {
 
     void onProgress(int state);
 
+    /**
+     * Progress of the file load.
+     *
+     * @param pct
+     *            Percentage of the file read.
+     * @param pointsPerSecond
+     *            Parse throughput in points.
+     * @param bytesPerSecond
+     *            Parse throughput in bytes.
+     */
+    void onLoadProgress(int pct, float pointsPerSecond, float bytesPerSecond);
+
 }
@@ -22,64 +22,150 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
+import android.net.Uri;
 import android.location.Criteria;
 import android.location.Location;
 import android.location.LocationManager;
 import android.os.AsyncTask;
 import android.os.Build;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationCompat;
 import android.util.Log;
 
-import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParser;
-import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.FileTrackSource;
+import com.twolinessoftware.android.framework.service.comms.TrackSource;
 import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
-import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
-import com.twolinessoftware.android.framework.service.comms.gps.NmeaParser;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCache;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCacheWriter;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.metrics.Counter;
+import com.twolinessoftware.android.framework.service.metrics.Histogram;
+import com.twolinessoftware.android.framework.service.metrics.MetricsRegistry;
+import com.twolinessoftware.android.framework.service.playback.LatenessStats;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.PlaybackClock;
+import com.twolinessoftware.android.framework.service.playback.PlaybackScheduler;
+import com.twolinessoftware.android.framework.service.playback.RouteTrack;
+import com.twolinessoftware.android.framework.service.playback.SpatialIndex;
+import com.twolinessoftware.android.framework.service.playback.TimeIndex;
+import com.twolinessoftware.android.framework.service.playback.TrackFilter;
+import com.twolinessoftware.android.framework.service.playback.TrackLoader;
+import com.twolinessoftware.android.framework.service.playback.TrackPlayer;
 
 import net.sf.marineapi.nmea.event.SentenceEvent;
 import net.sf.marineapi.nmea.event.SentenceListener;
 import net.sf.marineapi.nmea.sentence.Sentence;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.TimeUnit;
 
-public class PlaybackService extends Service implements GpxPullParserListener, SentenceListener {
+public class PlaybackService extends Service implements SentenceListener {
 
-    public static final long UPDATE_LOCATION_WAIT_TIME = 1000;
+    public static final long UPDATE_LOCATION_WAIT_TIME = TrackPlayer.DEFAULT_DELAY;
     public static final boolean CONTINUOUS = true;
     public static final int RUNNING = 0;
     public static final int STOPPED = 1;
+    /**
+     * Keys of the Bundle returned by getLatenessStats().
+     */
+    public static final String STATS_COUNT = "count";
+    public static final String STATS_LATE_COUNT = "lateCount";
+    public static final String STATS_MEAN_NANOS = "meanNanos";
+    public static final String STATS_STDDEV_NANOS = "stdDevNanos";
+    public static final String STATS_MIN_NANOS = "minNanos";
+    public static final String STATS_MAX_NANOS = "maxNanos";
+    /**
+     * Highest supported rate of interpolated locations, per second of wall
+     * clock time whatever the playback speed.
+     */
+    public static final float MAX_INTERPOLATION_RATE = 50f;
+    /**
+     * Name of the fused provider, LocationManager only has a constant for it
+     * from API 31.
+     */
+    public static final String FUSED_PROVIDER = "fused";
     /**
      * A bunch of constants.
      */
     private static final String LOGTAG = PlaybackService.class.getSimpleName();
     private static final int NOTIFICATION = 1;
+    /**
+     * Provider of the default channel, the one driven by startService().
+     */
     private static final String PROVIDER_NAME = LocationManager.GPS_PROVIDER;
     private static final int SAMPLES_IN_MINUTES = 60;
+    /**
+     * Number of points kept behind the cursor when streaming, so that short
+     * backward jumps still work.
+     */
+    private static final int STREAMING_KEEP_BEHIND = 16 * SAMPLES_IN_MINUTES;
+    /**
+     * Upper limit for load and playback progress updates of each kind.
+     */
+    private static final int MAX_PROGRESS_UPDATES_PER_SECOND = 4;
+    /**
+     * Threads shared by the schedules of all channels. A tick only takes
+     * microseconds, so a second thread is only there to keep one late channel
+     * from delaying the others.
+     */
+    private static final int MAX_SCHEDULER_THREADS = 2;
     /**
      * Member variables used in scheduling location updates.
      */
-    private final ScheduledExecutorService scheduleTaskExecutor = Executors.newSingleThreadScheduledExecutor();
+    private final ScheduledExecutorService scheduleTaskExecutor = Executors.newScheduledThreadPool(Math.min(
+            PlaybackService.MAX_SCHEDULER_THREADS, Runtime.getRuntime().availableProcessors()));
+    private final PlaybackClock clock = new PlaybackClock() {
+        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+        @Override
+        public long nanoTime() {
+            return SystemClock.elapsedRealtimeNanos();
+        }
+    };
+    /**
+     * Metrics of all channels, named after their provider, e.g.
+     * "gps.provider.latency". See also PlaybackScheduler.
+     */
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    /**
+     * Channels by provider name.
+     */
+    private final Map<String, PlaybackChannel> channels = new ConcurrentHashMap<String, PlaybackChannel>();
     /**
-     * The list of GPS points to use in mocking location updates.
+     * Channel of PROVIDER_NAME. It reports progress to the activity and is
+     * never removed.
      */
-    protected List<GpxTrackPoint> pointList = new ArrayList<GpxTrackPoint>();
+    private final PlaybackChannel defaultChannel = new PlaybackChannel(PlaybackService.PROVIDER_NAME);
     /**
-     * Currently active point in pointList.
+     * Simplification applied to the files loaded from now on, null for
+     * none.
      */
-    private Integer workerIndex = 0;
+    private volatile TrackFilter.Mode simplification;
+    private volatile double simplificationTolerance;
+    /**
+     * Drives the routes of the files loaded from now on instead of playing
+     * back their tracks, null to play back tracks.
+     */
+    private volatile RouteTrack.Profile routeProfile;
+    private volatile double routeSpeed;
+    private volatile double routeAcceleration;
     private NotificationManager mNM;
-    private ScheduledFuture<?> tickerHandle = null;
+
+    /**
+     * Rate limits the progress updates sent to the activity.
+     */
+    private ProgressReporter progressReporter;
 
     /**
      * Location manager is used to broadcast mock location updates.
@@ -92,20 +178,25 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
     private int state;
 
     /**
-     * File reader.
+     * Binder handed out by onBind(). Clients in the same process can cast
+     * to it to receive progress without broadcasts.
      */
-    private ReadFileTask task;
+    public abstract class LocalBinder extends IPlaybackService.Stub {
 
-    /**
-     * When loadGpxFile is called, this variable is used to figure out if
-     * the active file has changed thus requiring a reset of workerIndex.
-     */
-    private String previousFilename = "";
+        /**
+         * @param listener
+         *            Receives progress on the main thread, or null to go back
+         *            to broadcasts.
+         */
+        public void setProgressListener(GpsPlaybackListener listener) {
+            progressReporter.setLocalListener(listener);
+        }
+    }
 
     /**
      * Service stub.
      */
-    private final IPlaybackService.Stub mBinder = new IPlaybackService.Stub() {
+    private final IPlaybackService.Stub mBinder = new LocalBinder() {
 
         /**
          * Start the service.
@@ -117,23 +208,22 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         @Override
         public void startService(String file) throws RemoteException {
             broadcastStateChange(PlaybackService.RUNNING);
-            loadGpxFile(file);
-            tickerHandle = scheduleTaskExecutor.scheduleAtFixedRate(new TickerTask(), 1, 1, TimeUnit.SECONDS);
+            defaultChannel.start(file);
         }
 
         /**
-         * Stop the service.
+         * Stop the service and all of its channels.
          *
          * @throws RemoteException
          */
         @Override
         public void stopService() throws RemoteException {
-            tickerHandle.cancel(true);
+            for (PlaybackChannel channel : channels.values()) {
+                channel.stop();
+            }
 
             broadcastStateChange(PlaybackService.STOPPED);
 
-            cancelExistingTaskIfNecessary();
-
             onGpsPlaybackStopped();
 
             stopSelf();
@@ -145,7 +235,7 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         }
 
         /**
-         * Interface for jumping around in pointList.
+         * Interface for jumping around in track.
          *
          * @param i
          *            The amount of minutes to jump ahead/behind.
@@ -153,9 +243,363 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
          */
         @Override
         public void jump(int i) throws RemoteException {
-            setWorkerIndex(workerIndex + (PlaybackService.SAMPLES_IN_MINUTES * i));
-            Log.i(PlaybackService.LOGTAG, "@" + workerIndex + "/" + pointList.size());
-            broadcastProgress();
+            defaultChannel.jump(i);
+        }
+
+        /**
+         * Sets the playback speed multiplier of all channels, so that they
+         * stay in step. Interpolating channels keep their rate of locations.
+         *
+         * @param speed
+         *            Multiplier between PlaybackScheduler.MIN_SPEED and
+         *            PlaybackScheduler.MAX_SPEED, 1 being real time.
+         * @throws RemoteException
+         */
+        @Override
+        public void setSpeed(float speed) throws RemoteException {
+            for (PlaybackChannel channel : channels.values()) {
+                channel.setSpeed(speed);
+            }
+        }
+
+        @Override
+        public float getSpeed() throws RemoteException {
+            return defaultChannel.scheduler.getSpeed();
+        }
+
+        /**
+         * Enables interpolated locations between the recorded points of the
+         * default channel.
+         *
+         * @param hz
+         *            Locations per second of wall clock time, up to
+         *            MAX_INTERPOLATION_RATE. 0 plays back recorded points
+         *            only.
+         * @throws RemoteException
+         */
+        @Override
+        public void setInterpolationRate(float hz) throws RemoteException {
+            defaultChannel.setInterpolationRate(hz);
+        }
+
+        /**
+         * @return Emission lateness of the default channel measured since
+         *         playback was started.
+         * @throws RemoteException
+         */
+        @Override
+        public Bundle getLatenessStats() throws RemoteException {
+            LatenessStats stats = defaultChannel.scheduler.getLatenessStats();
+            Bundle bundle = new Bundle();
+            bundle.putLong(PlaybackService.STATS_COUNT, stats.getCount());
+            bundle.putLong(PlaybackService.STATS_LATE_COUNT, stats.getLateCount());
+            bundle.putDouble(PlaybackService.STATS_MEAN_NANOS, stats.getMeanNanos());
+            bundle.putDouble(PlaybackService.STATS_STDDEV_NANOS, stats.getStdDevNanos());
+            bundle.putLong(PlaybackService.STATS_MIN_NANOS, stats.getMinNanos());
+            bundle.putLong(PlaybackService.STATS_MAX_NANOS, stats.getMaxNanos());
+            return bundle;
+        }
+
+        /**
+         * Moves the default channel to the point played back at the given
+         * time.
+         *
+         * @param time
+         *            Milliseconds since the epoch.
+         * @throws RemoteException
+         */
+        @Override
+        public void seekTo(long time) throws RemoteException {
+            defaultChannel.seekTo(time);
+        }
+
+        /**
+         * Moves the default channel by the given track time.
+         *
+         * @param millis
+         *            Milliseconds ahead, or behind if negative.
+         * @throws RemoteException
+         */
+        @Override
+        public void seekBy(long millis) throws RemoteException {
+            defaultChannel.seekBy(millis);
+        }
+
+        /**
+         * Moves the default channel to a fraction of the track.
+         *
+         * @param fraction
+         *            0 for the start to 1 for the end.
+         * @throws RemoteException
+         */
+        @Override
+        public void seekToFraction(float fraction) throws RemoteException {
+            defaultChannel.seekToFraction(fraction);
+        }
+
+        /**
+         * Moves the default channel to the point nearest to the coordinate.
+         *
+         * @return Distance in meters to that point, or -1 if the track is
+         *         empty or streamed.
+         * @throws RemoteException
+         */
+        @Override
+        public float seekToLocation(double lat, double lon) throws RemoteException {
+            return defaultChannel.seekToLocation(lat, lon);
+        }
+
+        /**
+         * Plays back a file through its own test provider, next to the
+         * default channel. Starting a channel that is already running
+         * switches it to the new file.
+         *
+         * @param provider
+         *            e.g. LocationManager.NETWORK_PROVIDER or FUSED_PROVIDER.
+         * @param file
+         *            The file to load.
+         * @param hz
+         *            Interpolation rate as in setInterpolationRate().
+         * @throws RemoteException
+         */
+        @Override
+        public void startChannel(String provider, String file, float hz) throws RemoteException {
+            if ((provider == null) || (file == null)) {
+                return;
+            }
+            PlaybackChannel channel = channels.get(provider);
+            if (channel == null) {
+                channel = new PlaybackChannel(provider);
+                channel.setSpeed(defaultChannel.scheduler.getSpeed());
+                channel.player.setLoopMode(defaultChannel.player.getLoopMode());
+                channel.player.setGapMode(defaultChannel.player.getGapMode());
+                channels.put(provider, channel);
+            }
+            broadcastStateChange(PlaybackService.RUNNING);
+            channel.setInterpolationRate(hz);
+            channel.start(file);
+        }
+
+        /**
+         * Stops a single channel and removes its test provider. The service
+         * is stopped when no channel is left running.
+         *
+         * @throws RemoteException
+         */
+        @Override
+        public void stopChannel(String provider) throws RemoteException {
+            PlaybackChannel channel = provider != null ? channels.get(provider) : null;
+            if (channel == null) {
+                return;
+            }
+            channel.stop();
+            if (channel != defaultChannel) {
+                channels.remove(provider);
+                channel.disableProvider();
+            }
+            for (PlaybackChannel other : channels.values()) {
+                if (other.scheduler.isRunning()) {
+                    return;
+                }
+            }
+            stopService();
+        }
+
+        /**
+         * Simplifies the files loaded from now on, on all channels. Files
+         * already loaded are loaded again on the next start.
+         *
+         * @param mode
+         *            Name of a TrackFilter.Mode, or null for none.
+         * @param tolerance
+         *            In the unit of the mode.
+         * @throws RemoteException
+         */
+        @Override
+        public void setSimplification(String mode, float tolerance) throws RemoteException {
+            TrackFilter.Mode newMode = null;
+            if (mode != null) {
+                try {
+                    newMode = TrackFilter.Mode.valueOf(mode);
+                } catch (IllegalArgumentException e) {
+                    Log.e(PlaybackService.LOGTAG, "Unknown simplification " + mode);
+                    return;
+                }
+            }
+            simplificationTolerance = tolerance;
+            simplification = newMode;
+            for (PlaybackChannel channel : channels.values()) {
+                channel.forgetFile();
+            }
+        }
+
+        /**
+         * Drives the routes and waypoints of the files loaded from now on,
+         * on all channels, instead of playing back their tracks. Files
+         * already loaded are loaded again on the next start.
+         *
+         * @param profile
+         *            Name of a RouteTrack.Profile, or null for tracks.
+         * @param speed
+         *            In m/s, see RouteTrack.
+         * @param acceleration
+         *            In m/s^2, see RouteTrack.
+         * @throws RemoteException
+         */
+        @Override
+        public void setRouteProfile(String profile, float speed, float acceleration) throws RemoteException {
+            RouteTrack.Profile newProfile = null;
+            if (profile != null) {
+                try {
+                    newProfile = RouteTrack.Profile.valueOf(profile);
+                } catch (IllegalArgumentException e) {
+                    Log.e(PlaybackService.LOGTAG, "Unknown route profile " + profile);
+                    return;
+                }
+            }
+            routeSpeed = speed;
+            routeAcceleration = acceleration;
+            routeProfile = newProfile;
+            for (PlaybackChannel channel : channels.values()) {
+                channel.forgetFile();
+            }
+        }
+
+        /**
+         * Sets what follows the end of the track on all channels, see
+         * TrackPlayer.LoopMode.
+         *
+         * @param mode
+         *            Name of a TrackPlayer.LoopMode.
+         * @throws RemoteException
+         */
+        @Override
+        public void setLoopMode(String mode) throws RemoteException {
+            TrackPlayer.LoopMode newMode;
+            try {
+                newMode = TrackPlayer.LoopMode.valueOf(mode);
+            } catch (RuntimeException e) {
+                // Null or unknown.
+                Log.e(PlaybackService.LOGTAG, "Unknown loop mode " + mode);
+                return;
+            }
+            for (PlaybackChannel channel : channels.values()) {
+                channel.player.setLoopMode(newMode);
+            }
+        }
+
+        /**
+         * Sets how the gaps between track segments are crossed on all
+         * channels, see TrackPlayer.GapMode.
+         *
+         * @param mode
+         *            Name of a TrackPlayer.GapMode.
+         * @throws RemoteException
+         */
+        @Override
+        public void setGapMode(String mode) throws RemoteException {
+            TrackPlayer.GapMode newMode;
+            try {
+                newMode = TrackPlayer.GapMode.valueOf(mode);
+            } catch (RuntimeException e) {
+                // Null or unknown.
+                Log.e(PlaybackService.LOGTAG, "Unknown gap mode " + mode);
+                return;
+            }
+            for (PlaybackChannel channel : channels.values()) {
+                channel.player.setGapMode(newMode);
+            }
+        }
+
+        /**
+         * @return Three values per segment of the track loaded by the default
+         *         channel so far: the number of its track, its first point
+         *         and its number of points.
+         * @throws RemoteException
+         */
+        @Override
+        public int[] getSegments() throws RemoteException {
+            return defaultChannel.getSegments();
+        }
+
+        /**
+         * Limits playback of the default channel to one track of a GPX file
+         * and moves there.
+         *
+         * @param track
+         *            Number of the track starting at 0, -1 for all.
+         * @return false if there is no such track, or the track is streamed.
+         * @throws RemoteException
+         */
+        @Override
+        public boolean selectTrack(int track) throws RemoteException {
+            return defaultChannel.select(track, true);
+        }
+
+        /**
+         * Limits playback of the default channel to one track segment and
+         * moves there.
+         *
+         * @param segment
+         *            Number of the segment over all tracks starting at 0, -1
+         *            for all.
+         * @return false if there is no such segment, or the track is
+         *         streamed.
+         * @throws RemoteException
+         */
+        @Override
+        public boolean selectSegment(int segment) throws RemoteException {
+            return defaultChannel.select(segment, false);
+        }
+
+        /**
+         * @return Providers of all channels, the default one included.
+         * @throws RemoteException
+         */
+        @Override
+        public String[] getChannels() throws RemoteException {
+            return channels.keySet().toArray(new String[0]);
+        }
+
+        /**
+         * @return Current metrics of all channels by name. Histograms are
+         *         flattened as described in MetricsRegistry.
+         * @throws RemoteException
+         */
+        @Override
+        public Bundle getMetrics() throws RemoteException {
+            Bundle bundle = new Bundle();
+            for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet()) {
+                bundle.putLong(entry.getKey(), entry.getValue());
+            }
+            return bundle;
+        }
+
+        /**
+         * Writes the current metrics to a file, one "name value" line each.
+         *
+         * @return false if the file could not be written.
+         * @throws RemoteException
+         */
+        @Override
+        public boolean dumpMetrics(String filepath) throws RemoteException {
+            Writer out = null;
+            try {
+                out = new FileWriter(filepath);
+                metrics.dump(out);
+                return true;
+            } catch (IOException e) {
+                Log.e(PlaybackService.LOGTAG, "Unable to dump metrics to " + filepath + ": " + e.getMessage());
+                return false;
+            } finally {
+                if (out != null) {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // Nothing to do.
+                    }
+                }
+            }
         }
     };
 
@@ -171,31 +615,22 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
 
         mLocationManager = (LocationManager) getSystemService(Context.LOCATION_SERVICE);
 
+        progressReporter = new ProgressReporter(this, PlaybackService.MAX_PROGRESS_UPDATES_PER_SECOND);
+
+        // Left behind if the service was killed while writing a cache.
+        TrackCacheWriter.deleteTemporaryFiles(getCacheDir());
+
         broadcastStateChange(PlaybackService.STOPPED);
 
-        setupTestProvider();
+        channels.put(PlaybackService.PROVIDER_NAME, defaultChannel);
+        defaultChannel.setupTestProvider();
     }
 
+    /**
+     * Moves the cursor of the default channel.
+     */
     public void setWorkerIndex(int newIndex) {
-        int count = pointList.size();
-        if (state == PlaybackService.STOPPED) {
-            // In stopped-state we won't wrap.
-            if (newIndex < 0) {
-                newIndex = 0;
-            }
-            if (newIndex > (count - 1)) {
-                newIndex = count - 1;
-            }
-        } else {
-            // Wrap is active only in playback-state.
-            newIndex = newIndex % count;
-            if (newIndex < 0) {
-                newIndex = count + newIndex;
-            }
-        }
-        synchronized (workerIndex) {
-            workerIndex = newIndex;
-        }
+        defaultChannel.seek(newIndex);
     }
 
     @Override
@@ -210,68 +645,13 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
 
     @Override
     public void onDestroy() {
-        if (tickerHandle != null) {
-            tickerHandle.cancel(true);
+        for (PlaybackChannel channel : channels.values()) {
+            channel.scheduler.stop();
         }
+        scheduleTaskExecutor.shutdownNow();
         Log.d(PlaybackService.LOGTAG, "Stopping Playback Service");
     }
 
-    private void cancelExistingTaskIfNecessary() {
-        if (task != null) {
-            try {
-                task.cancel(true);
-            } catch (Exception e) {
-                Log.e(PlaybackService.LOGTAG, "Unable to cancel playback task. May already be stopped");
-            }
-        }
-    }
-
-    private void loadGpxFile(String file) {
-        if (file != null) {
-            if (file.equals(previousFilename)) {
-                // File hasn't changed, bail out.
-                showNotification();
-                return;
-            }
-
-            // File has changed, clear workerIndex, ...
-            workerIndex = 0;
-            // store the new file, ...
-            previousFilename = file;
-            // and clear old points.
-            pointList.clear();
-
-            broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadStarted);
-
-            cancelExistingTaskIfNecessary();
-
-            task = new ReadFileTask(file);
-            task.execute();
-
-            // Display a notification about us starting. We put an icon in the
-            // status bar.
-            showNotification();
-        }
-    }
-
-    private void queueGpxPositions(String filename) {
-        File f = new File(filename);
-        FileInputStream fileIS = null;
-        try {
-            fileIS = new FileInputStream(f);
-        } catch (FileNotFoundException e) {
-            Log.e(PlaybackService.LOGTAG, filename + " not found!");
-            showNotification(filename + " not found!");
-        }
-        if (!filename.toLowerCase().endsWith(".nmea")) {
-            GpxPullParser parser = new GpxPullParser(this);
-            parser.parse(fileIS);
-        } else {
-            NmeaParser nmeaParser = new NmeaParser(this);
-            nmeaParser.parse(fileIS);
-        }
-    }
-
     private void onGpsPlaybackStopped() {
 
         broadcastStateChange(PlaybackService.STOPPED);
@@ -279,53 +659,14 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         // Cancel the persistent notification.
         mNM.cancel(PlaybackService.NOTIFICATION);
 
-        disableGpsProvider();
-
-    }
-
-    private void disableGpsProvider() {
-        if (mLocationManager.getProvider(PlaybackService.PROVIDER_NAME) != null) {
-            try {
-                mLocationManager.setTestProviderEnabled(PlaybackService.PROVIDER_NAME, false);
-                mLocationManager.removeTestProvider(PlaybackService.PROVIDER_NAME);
-            } catch (SecurityException e) {
-                Log.e(PlaybackService.LOGTAG,
-                        "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
-            } catch (IllegalArgumentException e) {
-                Log.e(PlaybackService.LOGTAG, "No provider with the given name exists: " + e.getMessage());
+        for (PlaybackChannel channel : channels.values()) {
+            channel.disableProvider();
+            if (channel != defaultChannel) {
+                channels.remove(channel.provider);
             }
         }
     }
 
-    private void setupTestProvider() {
-        try {
-            mLocationManager.setTestProviderEnabled(PlaybackService.PROVIDER_NAME, false);
-            mLocationManager.removeTestProvider(PlaybackService.PROVIDER_NAME);
-        } catch (SecurityException e) {
-            Log.e(PlaybackService.LOGTAG,
-                    "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
-        } catch (IllegalArgumentException e) {
-            Log.e(PlaybackService.LOGTAG, "Not fatal: provider with the given name does not exist: " + e.getMessage());
-        }
-        try {
-            mLocationManager.addTestProvider(PlaybackService.PROVIDER_NAME, true, // requiresNetwork,
-                    false, // requiresSatellite,
-                    true, // requiresCell,
-                    false, // hasMonetaryCost,
-                    false, // supportsAltitude,
-                    false, // supportsSpeed,
-                    false, // supportsBearing,
-                    Criteria.POWER_MEDIUM, // powerRequirement
-                    Criteria.ACCURACY_FINE); // accuracy
-            mLocationManager.setTestProviderEnabled(PlaybackService.PROVIDER_NAME, true);
-        } catch (SecurityException e) {
-            Log.e(PlaybackService.LOGTAG,
-                    "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
-        } catch (IllegalArgumentException e) {
-            Log.e(PlaybackService.LOGTAG, "No provider with the given name exists: " + e.getMessage());
-        }
-    }
-
     // Default version.
     private void showNotification() {
         showNotification("GPS Playback Running");
@@ -350,38 +691,6 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         mNM.notify(PlaybackService.NOTIFICATION, notification);
     }
 
-    @Override
-    public void onGpxError(String message) {
-        Log.e(PlaybackService.LOGTAG, message);
-        broadcastError(message);
-    }
-
-    @Override
-    public void onGpxPoint(GpxTrackPoint item) {
-        synchronized (pointList) {
-            pointList.add(item);
-        }
-        broadcastProgress();
-    }
-
-    @Override
-    public void onGpxStart() {
-        Log.i(PlaybackService.LOGTAG, "GPS parsing started.");
-    }
-
-    @Override
-    public void onGpxEnd() {
-        Log.i(PlaybackService.LOGTAG, "GPS parsing ended with " + pointList.size() + " points parsed.");
-    }
-
-    private void broadcastProgress() {
-        int pct = 1 + ((100 * workerIndex) / pointList.size());
-        Intent i = new Intent(GpsPlaybackBroadcastReceiver.INTENT_BROADCAST);
-        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATUS, GpsPlaybackBroadcastReceiver.Status.playbackProgress.toString());
-        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATE, pct);
-        sendBroadcast(i);
-    }
-
     private void broadcastStatus(GpsPlaybackBroadcastReceiver.Status status) {
         Intent i = new Intent(GpsPlaybackBroadcastReceiver.INTENT_BROADCAST);
         i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATUS, status.toString());
@@ -403,11 +712,6 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         sendBroadcast(i);
     }
 
-    @Override
-    public void onGpxRoute(GpxTrackSegments items) {
-        Log.i(PlaybackService.LOGTAG, "Got " + items.getTrackSegments().size() + " track segment items.");
-    }
-
     @Override
     public void readingPaused() {
         Log.i(PlaybackService.LOGTAG, "NMEA reading paused.");
@@ -429,64 +733,747 @@ public class PlaybackService extends Service implements GpxPullParserListener, S
         Log.i(PlaybackService.LOGTAG, "Got positionevent: " + sentence.toString());
     }
 
-    class TickerTask implements Runnable {
-        private static final float FAKE_ACCURACY = 5;
+    /**
+     * One test provider playing back its own track on its own schedule. The
+     * schedules of all channels run on scheduleTaskExecutor, so a channel
+     * costs no thread while it waits for its next point.
+     */
+    private class PlaybackChannel {
 
-        @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
-        private void sendLocation(final GpxTrackPoint point) {
-            Location loc = new Location(PlaybackService.PROVIDER_NAME);
-            loc.setLatitude(point.getLat());
-            loc.setLongitude(point.getLon());
-            loc.setBearing((float) point.getCourse());
-            loc.setSpeed((float) point.getSpeed());
-            loc.setTime(System.currentTimeMillis());
-            loc.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-            loc.setAccuracy(TickerTask.FAKE_ACCURACY);
-            Log.d(PlaybackService.LOGTAG, PlaybackService.PROVIDER_NAME + ": " + point.getLat() + ", " + point.getLon());
-            try {
-                mLocationManager.setTestProviderLocation(PlaybackService.PROVIDER_NAME, loc);
-            } catch (Exception e) {
-                Log.e(PlaybackService.LOGTAG, "ARGH! " + e.getMessage());
+        private final String provider;
+
+        /**
+         * Emits the points at the pace of their timestamps.
+         */
+        private final PlaybackScheduler scheduler;
+
+        /**
+         * Plays back the GPS points to use in mocking location updates. Its
+         * track is replaced, never cleared, when a new file is loaded.
+         */
+        private final TrackPlayer player;
+
+        /**
+         * File reader.
+         */
+        private ReadFileTask task;
+
+        /**
+         * When loadGpxFile is called, this variable is used to figure out if
+         * the active file has changed thus requiring a new track.
+         */
+        private String previousFilename = "";
+
+        /**
+         * What the current track was loaded from, for streaming it again.
+         */
+        private String loadedFile;
+        private TrackSource loadedSource;
+
+        private volatile boolean providerEnabled;
+
+        /**
+         * Interpolated locations per second of wall clock time, 0 for none.
+         */
+        private volatile float interpolationRate;
+
+        /**
+         * Checked once per start, Log.isLoggable() is too slow for every
+         * tick.
+         */
+        private volatile boolean debugLogging;
+
+        /**
+         * Time taken by setTestProviderLocation(), in nanoseconds.
+         */
+        private final Histogram providerLatency;
+
+        /**
+         * Locations the LocationManager refused.
+         */
+        private final Counter droppedLocations;
+
+        private final Counter parsedPoints;
+        private final Counter parsedBytes;
+        /**
+         * Points dropped by simplification.
+         */
+        private final Counter filteredPoints;
+
+        /**
+         * Progress of the latest parse, for the parse rate.
+         */
+        private volatile long parseStartNanos;
+        private volatile long parseEndNanos;
+        private volatile int parsePoints;
+
+        public PlaybackChannel(String provider) {
+            this.provider = provider;
+            player = new TrackPlayer(new LoadedTrack(new TrackStore(), new SpatialIndex()), new LocationSink(),
+                    PlaybackService.STREAMING_KEEP_BEHIND);
+            String prefix = provider + ".";
+            scheduler = new PlaybackScheduler(scheduleTaskExecutor, clock, player, metrics, prefix);
+            providerLatency = metrics.histogram(prefix + "provider.latency");
+            droppedLocations = metrics.counter(prefix + "provider.dropped");
+            parsedPoints = metrics.counter(prefix + "parse.points");
+            parsedBytes = metrics.counter(prefix + "parse.bytes");
+            filteredPoints = metrics.counter(prefix + "parse.filtered");
+            metrics.gauge(prefix + "parse.rate", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return getParseRate();
+                }
+            });
+            metrics.gauge(prefix + "track.memory", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return player.getTrack().track.getMemoryUsage();
+                }
+            });
+        }
+
+        /**
+         * @return Points per second of the latest parse, so far if it is
+         *         still running.
+         */
+        private long getParseRate() {
+            long start = parseStartNanos;
+            if (start == 0) {
+                return 0;
             }
+            long end = parseEndNanos;
+            long elapsed = (end != 0 ? end : clock.nanoTime()) - start;
+            return elapsed <= 0 ? 0 : (long) ((parsePoints * 1e9) / elapsed);
         }
 
-        @Override
-        public void run() {
-            if (!pointList.isEmpty()) {
-                sendLocation(pointList.get(workerIndex));
-                broadcastProgress();
-                setWorkerIndex(workerIndex + 1);
+        /**
+         * Only the default channel reports to the activity, which has a
+         * single progress bar.
+         */
+        private boolean isDefault() {
+            return this == defaultChannel;
+        }
+
+        public void start(String file) {
+            if (!providerEnabled) {
+                setupTestProvider();
             }
+            debugLogging = Log.isLoggable(PlaybackService.LOGTAG, Log.DEBUG);
+            loadGpxFile(file);
+            scheduler.getLatenessStats().reset();
+            scheduler.start(0);
         }
-    }
 
-    private class ReadFileTask extends AsyncTask<Void, Integer, Void> {
+        public void stop() {
+            scheduler.stop();
+            if (isDefault()) {
+                progressReporter.flushPlayback();
+            }
+            cancelExistingTaskIfNecessary();
+            Track track = player.getTrack().track;
+            if (!track.isComplete() || (track.firstIndex() > 0)) {
+                // The loaded points can't be replayed from the start, force
+                // a reload on the next start.
+                previousFilename = "";
+            }
+        }
 
-        private final String file;
+        /**
+         * Moves the cursor by the given minutes of track time. Tracks without
+         * timestamps are assumed to have one point per second.
+         */
+        public void jump(int i) {
+            LoadedTrack current = player.getTrack();
+            if (timeIndex(current).hasTimes()) {
+                seekBy(i * 60000L);
+            } else {
+                current.cursor.moveBy(current.track, PlaybackService.SAMPLES_IN_MINUTES * (long) i, scheduler.isRunning());
+                onSeek(current);
+            }
+        }
 
-        public ReadFileTask(String file) {
-            super();
-            this.file = file;
+        /**
+         * Moves the cursor to the point played back at the given time, in
+         * milliseconds since the epoch.
+         */
+        public void seekTo(long time) {
+            LoadedTrack current = player.getTrack();
+            TimeIndex index = timeIndex(current);
+            if (index.hasTimes()) {
+                seek(current, index.indexOf(current.track, time));
+            }
         }
 
-        @Override
-        protected void onPostExecute(Void result) {
-            broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadfinished);
+        /**
+         * Moves the cursor by the given milliseconds of track time. Wraps
+         * around like jump() while playing back a complete track.
+         */
+        public void seekBy(long millis) {
+            LoadedTrack current = player.getTrack();
+            Track track = current.track;
+            TimeIndex index = timeIndex(current);
+            if (!index.hasTimes()) {
+                return;
+            }
+            long first = index.getFirstTime();
+            long duration = index.getLastTime() - first;
+            boolean wrap = scheduler.isRunning();
+            int from;
+            int to;
+            do {
+                from = current.cursor.get();
+                long now = (from >= track.firstIndex()) && (from < track.size()) ? track.getTime(from) : 0;
+                long time = (now > 0 ? now : first) + millis;
+                if (wrap && track.isComplete() && (track.firstIndex() == 0) && (duration > 0)) {
+                    long offset = (time - first) % duration;
+                    time = first + (offset < 0 ? offset + duration : offset);
+                }
+                to = index.indexOf(track, time);
+            } while (!current.cursor.compareAndSet(track, from, to, wrap));
+            onSeek(current);
         }
 
-        @Override
-        protected Void doInBackground(Void... arg0) {
-            publishProgress(1);
-            queueGpxPositions(file);
-            return null;
+        /**
+         * Moves the cursor to a fraction between 0 and 1 of the track
+         * duration, or of the points if the track has no timestamps.
+         */
+        public void seekToFraction(float fraction) {
+            LoadedTrack current = player.getTrack();
+            TimeIndex index = timeIndex(current);
+            double clamped = Math.max(0, Math.min(1, fraction));
+            if (index.hasTimes()) {
+                long first = index.getFirstTime();
+                seek(current, index.indexOf(current.track, first + Math.round(clamped * (index.getLastTime() - first))));
+            } else {
+                seek(current, Math.round(clamped * (current.track.size() - 1)));
+            }
         }
 
-        @Override
-        protected void onProgressUpdate(Integer... progress) {
-            switch (progress[0]) {
-                case 1:
-                    broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadfinished);
-                    break;
+        /**
+         * Moves the cursor to the point nearest to the coordinate.
+         *
+         * @return Distance in meters to that point, or -1 if there is none.
+         */
+        public float seekToLocation(double lat, double lon) {
+            LoadedTrack current = player.getTrack();
+            Track track = current.track;
+            SpatialIndex index = current.spatialIndex;
+            if (index == null) {
+                Log.w(PlaybackService.LOGTAG, "Can't seek to a location in a streamed track");
+                return -1;
+            }
+            index.update(track);
+            int nearest = index.nearest(track, lat, lon);
+            if (nearest < 0) {
+                return -1;
+            }
+            seek(current, nearest);
+            float[] distance = new float[1];
+            Location.distanceBetween(lat, lon, track.getLat(nearest), track.getLon(nearest), distance);
+            return distance[0];
+        }
+
+        /**
+         * Moves the cursor to the given point. Wraps around while playing
+         * back, and clamps otherwise.
+         */
+        public void seek(long index) {
+            seek(player.getTrack(), index);
+        }
+
+        private void seek(LoadedTrack current, long index) {
+            current.cursor.set(current.track, index, scheduler.isRunning());
+            onSeek(current);
+        }
+
+        /**
+         * @see IPlaybackService#getSegments()
+         */
+        public int[] getSegments() {
+            Track track = player.getTrack().track;
+            int size = track.size();
+            TrackSegments segments = track.getSegments();
+            int count = segments.getSegmentCount();
+            int[] values = new int[count * 3];
+            for (int i = 0; i < count; i++) {
+                int start = segments.getSegmentStart(i);
+                int end = segments.getSegmentEnd(i);
+                values[i * 3] = segments.trackOf(i);
+                values[(i * 3) + 1] = start;
+                values[(i * 3) + 2] = (end < 0 ? size : end) - start;
+            }
+            return values;
+        }
+
+        /**
+         * Limits playback to a track or segment and moves the cursor to its
+         * first point.
+         *
+         * @param number
+         *            Of the track or segment, -1 to play back everything.
+         * @return false if there is none with that number, or the track is
+         *         streamed and its start may be gone.
+         */
+        public boolean select(int number, boolean wholeTrack) {
+            LoadedTrack current = player.getTrack();
+            if (number < 0) {
+                player.clearRange();
+                return true;
+            }
+            if (current.spatialIndex == null) {
+                Log.w(PlaybackService.LOGTAG, "Can't select part of a streamed track");
+                return false;
+            }
+            TrackSegments segments = current.track.getSegments();
+            int first = number;
+            int last = number;
+            if (wholeTrack) {
+                if (number >= segments.getTrackCount()) {
+                    return false;
+                }
+                first = segments.getTrackStart(number);
+                last = segments.getTrackEnd(number) - 1;
+            } else if (number >= segments.getSegmentCount()) {
+                return false;
+            }
+            int start = segments.getSegmentStart(first);
+            int end = segments.getSegmentEnd(last);
+            if (end < 0) {
+                // The last segment, which may still be growing.
+                end = current.track.isComplete() ? current.track.size() : Integer.MAX_VALUE;
+            }
+            player.setRange(start, end);
+            seek(current, start);
+            return true;
+        }
+
+        private void onSeek(LoadedTrack current) {
+            int index = current.cursor.get();
+            Log.i(PlaybackService.LOGTAG, provider + " @" + index + "/" + current.track.size());
+            if (isDefault()) {
+                progressReporter.forcePlayback(index, current.track.size());
+            }
+        }
+
+        /**
+         * @return The time index, brought up to date with the loaded points.
+         */
+        private TimeIndex timeIndex(LoadedTrack current) {
+            current.timeIndex.update(current.track);
+            return current.timeIndex;
+        }
+
+        public void setInterpolationRate(float hz) {
+            interpolationRate = hz > 0 ? Math.min(hz, PlaybackService.MAX_INTERPOLATION_RATE) : 0;
+            updateInterpolationStep();
+        }
+
+        public void setSpeed(float speed) {
+            scheduler.setSpeed(speed);
+            updateInterpolationStep();
+        }
+
+        /**
+         * The step is in track time, which passes speed times faster than
+         * wall clock time.
+         */
+        private void updateInterpolationStep() {
+            float rate = interpolationRate;
+            if (rate <= 0) {
+                player.setInterpolationStep(0);
+            } else {
+                player.setInterpolationStep(Math.max(1, Math.round((1000 * scheduler.getSpeed()) / rate)));
+            }
+        }
+
+        private synchronized void cancelExistingTaskIfNecessary() {
+            if (task != null) {
+                task.stop();
+                try {
+                    task.cancel(true);
+                } catch (Exception e) {
+                    Log.e(PlaybackService.LOGTAG, "Unable to cancel playback task. May already be stopped");
+                }
+            }
+        }
+
+        private void loadGpxFile(String file) {
+            if (file != null) {
+                if (file.equals(previousFilename)) {
+                    // File hasn't changed, bail out.
+                    showNotification();
+                    return;
+                }
+
+                // File has changed, store the new file ...
+                previousFilename = file;
+                // and start loading it.
+                startLoading(file);
+
+                // Display a notification about us starting. We put an icon in
+                // the status bar.
+                showNotification();
+            }
+        }
+
+        /**
+         * Makes the next start load the file again.
+         */
+        public synchronized void forgetFile() {
+            previousFilename = "";
+        }
+
+        /**
+         * Starts parsing the file or content URI into a new track and
+         * rewinds the cursor. Playback may begin as soon as the first points
+         * have been parsed. A valid binary cache of a file is mapped instead
+         * of parsing it, unless the track is simplified: the cache holds all
+         * points. Routes are planned once parsed and never cached.
+         */
+        private synchronized void startLoading(String file) {
+            cancelExistingTaskIfNecessary();
+            player.clearRange();
+
+            TrackSource source;
+            File local = null;
+            if (ContentTrackSource.isContentUri(file)) {
+                source = new ContentTrackSource(getContentResolver(), Uri.parse(file));
+            } else {
+                local = new File(file);
+                source = new FileTrackSource(local);
+            }
+            loadedFile = file;
+            loadedSource = source;
+            TrackFilter.Mode mode = simplification;
+            TrackFilter filter = mode == null ? null : TrackFilter.create(mode, simplificationTolerance);
+            // A document can't be checked for changes, it is never cached.
+            RouteTrack.Profile profile = routeProfile;
+            File cacheFile = (filter == null) && (profile == null) && (local != null) ? TrackCache.cacheFileFor(local, getCacheDir()) : null;
+            Track cached = cacheFile == null ? null : TrackCache.open(local, cacheFile);
+            if (cached != null) {
+                Log.i(PlaybackService.LOGTAG, "Mapped " + cached.size() + " points from " + cacheFile);
+                LoadedTrack mapped = new LoadedTrack(cached, new SpatialIndex());
+                player.setTrack(mapped);
+                buildIndexes(mapped);
+                broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadStarted);
+                broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadfinished);
+                return;
+            }
+
+            LoadedTrack newTrack;
+            if (profile != null) {
+                newTrack = new LoadedTrack(new RouteTrack(profile, routeSpeed, routeAcceleration, RouteTrack.DEFAULT_STEP,
+                        System.currentTimeMillis()), new SpatialIndex());
+            } else {
+                newTrack = TrackLoader.newTrack(source);
+            }
+            player.setTrack(newTrack);
+
+            broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadStarted);
+
+            task = new ReadFileTask(file, source, newTrack, cacheFile, filter);
+            // Not execute(), which runs all tasks on one thread: a streamed
+            // file keeps its task busy for the whole playback and would hold
+            // up the other channels.
+            task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR);
+        }
+
+        /**
+         * The start of the streamed track is gone: streams it again from the
+         * beginning, or stops if its source can't be read again.
+         */
+        private synchronized void restartStream() {
+            TrackSource source = loadedSource;
+            if ((source != null) && source.isReopenable()) {
+                startLoading(loadedFile);
+                return;
+            }
+            String message = "Can't read " + source + " again from the start";
+            Log.e(PlaybackService.LOGTAG, message);
+            stop();
+            broadcastError(message);
+        }
+
+                /**
+         * Builds the seek indexes of a mapped track in the background, as
+         * TrackLoader does for a parsed one, so that the first seek does not
+         * build them on the caller's thread.
+         */
+        private void buildIndexes(final LoadedTrack loaded) {
+            AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    loaded.timeIndex.update(loaded.track);
+                    loaded.spatialIndex.update(loaded.track);
+                    Log.i(PlaybackService.LOGTAG, "Indexed " + loaded.spatialIndex.size() + " points in "
+                            + (loaded.spatialIndex.getBuildNanos() / 1000000) + " ms");
+                }
+            });
+        }
+
+        private void broadcastStatus(GpsPlaybackBroadcastReceiver.Status status) {
+            if (isDefault()) {
+                PlaybackService.this.broadcastStatus(status);
+            }
+        }
+
+        private void disableProvider() {
+            providerEnabled = false;
+            if (mLocationManager.getProvider(provider) != null) {
+                try {
+                    mLocationManager.setTestProviderEnabled(provider, false);
+                    mLocationManager.removeTestProvider(provider);
+                } catch (SecurityException e) {
+                    Log.e(PlaybackService.LOGTAG,
+                            "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
+                } catch (IllegalArgumentException e) {
+                    Log.e(PlaybackService.LOGTAG, "No provider with the given name exists: " + e.getMessage());
+                }
+            }
+        }
+
+        private void setupTestProvider() {
+            try {
+                mLocationManager.setTestProviderEnabled(provider, false);
+                mLocationManager.removeTestProvider(provider);
+            } catch (SecurityException e) {
+                Log.e(PlaybackService.LOGTAG,
+                        "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                Log.e(PlaybackService.LOGTAG, "Not fatal: provider with the given name does not exist: " + e.getMessage());
+            }
+            boolean network = LocationManager.NETWORK_PROVIDER.equals(provider);
+            try {
+                mLocationManager.addTestProvider(provider, true, // requiresNetwork,
+                        false, // requiresSatellite,
+                        true, // requiresCell,
+                        false, // hasMonetaryCost,
+                        false, // supportsAltitude,
+                        false, // supportsSpeed,
+                        false, // supportsBearing,
+                        network ? Criteria.POWER_LOW : Criteria.POWER_MEDIUM, // powerRequirement
+                        network ? Criteria.ACCURACY_COARSE : Criteria.ACCURACY_FINE); // accuracy
+                mLocationManager.setTestProviderEnabled(provider, true);
+                providerEnabled = true;
+            } catch (SecurityException e) {
+                Log.e(PlaybackService.LOGTAG,
+                        "Manifest.ACCESS_MOCK_LOCATION or Settings.Secure.ALLOW_MOCK_LOCATION not enabled:" + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                Log.e(PlaybackService.LOGTAG, "No provider with the given name exists: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Hands the locations of the player to the test provider. A single
+         * Location is reused, setTestProviderLocation() copies it.
+         */
+        private class LocationSink implements TrackPlayer.Sink {
+            private static final float FAKE_ACCURACY = 5;
+            /**
+             * Typical accuracy of a cell or Wi-Fi fix.
+             */
+            private static final float FAKE_NETWORK_ACCURACY = 30;
+            /**
+             * Rough user equivalent range error, i.e. the accuracy at an HDOP of
+             * 1.
+             */
+            private static final float METERS_PER_HDOP = 5;
+
+            private final Location location = new Location(provider);
+
+            private final float fakeAccuracy = LocationManager.NETWORK_PROVIDER.equals(provider) ? LocationSink.FAKE_NETWORK_ACCURACY
+                    : LocationSink.FAKE_ACCURACY;
+
+            @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR1)
+            @Override
+            public void onLocation(long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+                location.setLatitude(lat);
+                location.setLongitude(lon);
+                location.setAltitude(ele);
+                location.setBearing((float) bearing);
+                location.setSpeed((float) speed);
+                location.setTime(System.currentTimeMillis());
+                location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+                location.setAccuracy(hdop > 0 ? (float) hdop * LocationSink.METERS_PER_HDOP : fakeAccuracy);
+                if (debugLogging) {
+                    Log.d(PlaybackService.LOGTAG, provider + ": " + lat + ", " + lon);
+                }
+                long start = clock.nanoTime();
+                try {
+                    mLocationManager.setTestProviderLocation(provider, location);
+                } catch (Exception e) {
+                    droppedLocations.increment();
+                    Log.e(PlaybackService.LOGTAG, "ARGH! " + e.getMessage());
+                }
+                providerLatency.record(clock.nanoTime() - start);
+            }
+
+            @Override
+            public void onProgress(int index, int count) {
+                if (isDefault()) {
+                    progressReporter.reportPlayback(index, count);
+                }
+            }
+
+            @Override
+            public void onStreamEnd() {
+                restartStream();
+            }
+        }
+
+        /**
+         * Parses a file or document into its own track with a TrackLoader. A
+         * complete parse of a file also leaves a TrackCache behind for the
+         * next load.
+         */
+        private class ReadFileTask extends AsyncTask<Void, Integer, Void> implements TrackLoader.Listener {
+
+            private final String file;
+            private final TrackLoader loader;
+            private final File cacheFile;
+            private TrackCacheWriter cacheWriter;
+            private long fileLength;
+            /**
+             * Points and bytes already added to the parse metrics.
+             */
+            private int countedPoints;
+            private long countedBytes;
+
+            /**
+             * @param cacheFile
+             *            null to not cache the track, which must be a file
+             *            otherwise.
+             * @param filter
+             *            null to keep all points.
+             */
+            public ReadFileTask(String file, TrackSource source, LoadedTrack loading, File cacheFile, TrackFilter filter) {
+                super();
+                this.file = file;
+                loader = new TrackLoader(source, loading, this);
+                loader.setFilter(filter);
+                this.cacheFile = cacheFile;
+            }
+
+            public void stop() {
+                loader.stop();
+            }
+
+            @Override
+            protected void onPostExecute(Void result) {
+                broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadfinished);
+            }
+
+            @Override
+            protected Void doInBackground(Void... arg0) {
+                publishProgress(1);
+                queueGpxPositions();
+                return null;
+            }
+
+            @Override
+            protected void onProgressUpdate(Integer... progress) {
+                switch (progress[0]) {
+                    case 1:
+                        broadcastStatus(GpsPlaybackBroadcastReceiver.Status.fileLoadfinished);
+                        break;
+                }
+            }
+
+            private void queueGpxPositions() {
+                try {
+                    loader.open();
+                } catch (FileNotFoundException e) {
+                    Log.e(PlaybackService.LOGTAG, file + " not found!");
+                    showNotification(file + " not found!");
+                    return;
+                } catch (IOException e) {
+                    Log.e(PlaybackService.LOGTAG, "Can't open " + file + ": " + e.getMessage());
+                    showNotification("Can't open " + file);
+                    return;
+                }
+                fileLength = loader.getSource().getLength();
+                if (cacheFile != null) {
+                    try {
+                        cacheWriter = new TrackCacheWriter(new File(file), cacheFile, getCacheDir());
+                    } catch (IOException e) {
+                        Log.w(PlaybackService.LOGTAG, "Not caching " + file + ": " + e.getMessage());
+                    }
+                }
+                if (isDefault()) {
+                    progressReporter.startLoad();
+                }
+                parsePoints = 0;
+                parseEndNanos = 0;
+                parseStartNanos = clock.nanoTime();
+                Log.i(PlaybackService.LOGTAG, "GPS parsing started.");
+                loader.parse();
+            }
+
+            @Override
+            public void onError(String message) {
+                Log.e(PlaybackService.LOGTAG, message);
+                broadcastError(message);
+            }
+
+            @Override
+            public void onPoint(GpxTrackPoint point) {
+                TrackCacheWriter writer = cacheWriter;
+                if (writer != null) {
+                    writer.add(point);
+                }
+                if (isDefault() && progressReporter.isLoadReportDue()) {
+                    progressReporter.reportLoad(loader.bytesRead(), fileLength, loader.getTrack().track.size());
+                }
+            }
+
+            @Override
+            public void onIndexed(int points, long bytesRead) {
+                parsedPoints.add(points - countedPoints);
+                countedPoints = points;
+                parsePoints = points;
+                if (bytesRead > countedBytes) {
+                    parsedBytes.add(bytesRead - countedBytes);
+                    countedBytes = bytesRead;
+                }
+            }
+
+            @Override
+            public void onEnd(boolean complete) {
+                parseEndNanos = clock.nanoTime();
+                // A track cut short by an error is played back, not cached.
+                endCache(complete && !loader.isPartial());
+                if (!complete) {
+                    return;
+                }
+                LoadedTrack loading = loader.getTrack();
+                if (isDefault()) {
+                    progressReporter.finishLoad(loader.bytesRead(), fileLength, loading.track.size());
+                }
+                Log.i(PlaybackService.LOGTAG, "GPS parsing ended with " + loading.track.size() + " points parsed.");
+                TrackFilter filter = loader.getFilter();
+                if (filter != null) {
+                    filteredPoints.add(filter.getInputCount() - filter.getOutputCount());
+                    Log.i(PlaybackService.LOGTAG, "Simplified " + filter.getInputCount() + " points to " + filter.getOutputCount()
+                            + ", " + filter.getReductionRatio() + ":1.");
+                }
+                if (loading.spatialIndex != null) {
+                    Log.i(PlaybackService.LOGTAG, "Spatial index built in " + (loading.spatialIndex.getBuildNanos() / 1000000) + " ms.");
+                }
+            }
+
+            /**
+             * Completes or drops the cache being written.
+             */
+            private void endCache(boolean complete) {
+                if (cacheWriter == null) {
+                    return;
+                }
+                if (complete && cacheWriter.finish(loader.getTrack().track.getSegments())) {
+                    Log.i(PlaybackService.LOGTAG, "Cached " + cacheWriter.getCount() + " points in " + cacheFile);
+                } else {
+                    cacheWriter.abort();
+                }
+                cacheWriter = null;
             }
         }
     }
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android;
+
+import android.content.Context;
+import android.content.Intent;
+import android.os.Handler;
+import android.os.Looper;
+
+/**
+ * Coalesces load and playback progress into rate limited updates. An update
+ * is only sent when the percentage has changed and the previous update of the
+ * same kind is at least 1 / maxUpdatesPerSecond old. A playback change held
+ * back by that limit is sent once the interval has passed, so the last
+ * position is not lost when the ticks stop. Updates go directly to
+ * a GpsPlaybackListener on the main thread while the activity is bound, and
+ * fall back to a broadcast otherwise.
+ */
+public class ProgressReporter {
+
+    private final Context context;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final long minIntervalNanos;
+
+    private volatile GpsPlaybackListener localListener;
+
+    private int lastPlaybackPct = -1;
+    private long lastPlaybackNanos;
+    /**
+     * Held back by the rate limit, -1 for none.
+     */
+    private int pendingPlaybackPct = -1;
+    private boolean flushPosted;
+    private final Runnable flushPlayback = new Runnable() {
+        @Override
+        public void run() {
+            flushPlayback();
+        }
+    };
+
+    private int lastLoadPct = -1;
+    private long lastLoadNanos;
+    private long loadStartNanos;
+
+    public ProgressReporter(Context context, int maxUpdatesPerSecond) {
+        this.context = context;
+        minIntervalNanos = 1000000000L / Math.max(1, maxUpdatesPerSecond);
+    }
+
+    /**
+     * Sets the in-process listener, or null to go back to broadcasts.
+     */
+    public void setLocalListener(GpsPlaybackListener listener) {
+        localListener = listener;
+    }
+
+    /**
+     * Reports the playback cursor. Cheap enough to call on every tick.
+     */
+    public void reportPlayback(int index, int count) {
+        if (count <= 0) {
+            return;
+        }
+        int pct = (int) (1 + ((100L * index) / count));
+        long now = System.nanoTime();
+        long wait;
+        synchronized (this) {
+            if (pct == lastPlaybackPct) {
+                pendingPlaybackPct = -1;
+                return;
+            }
+            wait = minIntervalNanos - (now - lastPlaybackNanos);
+            if (wait > 0) {
+                pendingPlaybackPct = pct;
+                if (flushPosted) {
+                    return;
+                }
+                flushPosted = true;
+            } else {
+                lastPlaybackPct = pct;
+                lastPlaybackNanos = now;
+                pendingPlaybackPct = -1;
+            }
+        }
+        if (wait > 0) {
+            mainHandler.postDelayed(flushPlayback, (wait / 1000000) + 1);
+        } else {
+            sendPlayback(pct);
+        }
+    }
+
+    /**
+     * Sends the playback position held back by the rate limit, if any, e.g.
+     * when playback stops.
+     */
+    public void flushPlayback() {
+        int pct;
+        synchronized (this) {
+            flushPosted = false;
+            pct = pendingPlaybackPct;
+            pendingPlaybackPct = -1;
+            if ((pct < 0) || (pct == lastPlaybackPct)) {
+                return;
+            }
+            lastPlaybackPct = pct;
+            lastPlaybackNanos = System.nanoTime();
+        }
+        sendPlayback(pct);
+    }
+
+    /**
+     * Sends the playback position right away, e.g. after a jump.
+     */
+    public void forcePlayback(int index, int count) {
+        synchronized (this) {
+            lastPlaybackNanos = 0;
+            lastPlaybackPct = -1;
+        }
+        reportPlayback(index, count);
+    }
+
+    public synchronized void startLoad() {
+        loadStartNanos = System.nanoTime();
+        lastLoadNanos = loadStartNanos;
+        lastLoadPct = -1;
+    }
+
+    /**
+     * Lets the parser skip measuring the read position when no update would
+     * be sent anyway.
+     */
+    public synchronized boolean isLoadReportDue() {
+        return (System.nanoTime() - lastLoadNanos) >= minIntervalNanos;
+    }
+
+    /**
+     * Reports load progress together with the parse throughput since
+     * startLoad().
+     */
+    public void reportLoad(long bytesRead, long totalBytes, int points) {
+        reportLoad(bytesRead, totalBytes, points, false);
+    }
+
+    /**
+     * Sends the final load figures regardless of the rate limit.
+     */
+    public void finishLoad(long bytesRead, long totalBytes, int points) {
+        reportLoad(bytesRead, totalBytes, points, true);
+    }
+
+    private void reportLoad(long bytesRead, long totalBytes, int points, boolean force) {
+        int pct = totalBytes > 0 ? (int) Math.min(100, (100 * bytesRead) / totalBytes) : 0;
+        long now = System.nanoTime();
+        float seconds;
+        synchronized (this) {
+            if (!force && ((pct == lastLoadPct) || ((now - lastLoadNanos) < minIntervalNanos))) {
+                return;
+            }
+            lastLoadPct = pct;
+            lastLoadNanos = now;
+            seconds = Math.max(1, now - loadStartNanos) / 1e9f;
+        }
+        sendLoad(pct, points / seconds, bytesRead / seconds);
+    }
+
+    private void sendPlayback(final int pct) {
+        final GpsPlaybackListener listener = localListener;
+        if (listener != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onProgress(pct);
+                }
+            });
+            return;
+        }
+        Intent i = new Intent(GpsPlaybackBroadcastReceiver.INTENT_BROADCAST);
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATUS, GpsPlaybackBroadcastReceiver.Status.playbackProgress.toString());
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATE, pct);
+        context.sendBroadcast(i);
+    }
+
+    private void sendLoad(final int pct, final float pointsPerSecond, final float bytesPerSecond) {
+        final GpsPlaybackListener listener = localListener;
+        if (listener != null) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onLoadProgress(pct, pointsPerSecond, bytesPerSecond);
+                }
+            });
+            return;
+        }
+        Intent i = new Intent(GpsPlaybackBroadcastReceiver.INTENT_BROADCAST);
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_STATUS, GpsPlaybackBroadcastReceiver.Status.loadProgress.toString());
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_PROGRESS, pct);
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_POINTS_PER_SECOND, pointsPerSecond);
+        i.putExtra(GpsPlaybackBroadcastReceiver.INTENT_BYTES_PER_SECOND, bytesPerSecond);
+        context.sendBroadcast(i);
+    }
+}
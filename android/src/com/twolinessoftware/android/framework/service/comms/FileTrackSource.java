@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+
+/**
+ * A track in a local file.
+ */
+public class FileTrackSource implements TrackSource {
+
+    private final File file;
+
+    public FileTrackSource(File file) {
+        this.file = file;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public String getName() {
+        return file.getName();
+    }
+
+    @Override
+    public long getLength() {
+        return file.length();
+    }
+
+    @Override
+    public FileInputStream open() throws FileNotFoundException {
+        return new FileInputStream(file);
+    }
+
+    @Override
+    public boolean isReopenable() {
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return file.getPath();
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * ReadableByteChannel over an InputStream that reads straight into the
+ * array of a heap buffer, unlike Channels.newChannel() which copies through
+ * a small transfer buffer of its own. Closing the channel closes the
+ * stream.
+ */
+public class InputStreamChannel implements ReadableByteChannel {
+
+    private final InputStream in;
+    private byte[] transfer;
+    private boolean open = true;
+
+    public InputStreamChannel(InputStream in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        int length = dst.remaining();
+        if (length == 0) {
+            return 0;
+        }
+        if (dst.hasArray()) {
+            int read = in.read(dst.array(), dst.arrayOffset() + dst.position(), length);
+            if (read > 0) {
+                dst.position(dst.position() + read);
+            }
+            return read;
+        }
+        if (transfer == null) {
+            transfer = new byte[TrackInput.BUFFER_SIZE];
+        }
+        int read = in.read(transfer, 0, Math.min(length, transfer.length));
+        if (read > 0) {
+            dst.put(transfer, 0, read);
+        }
+        return read;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        in.close();
+    }
+}
@@ -16,25 +16,31 @@
 package com.twolinessoftware.android.framework.service.comms;
 
 import java.io.FileInputStream;
-import java.io.StringReader;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-
-import android.util.Xml;
+import java.io.InputStream;
+import java.nio.channels.ReadableByteChannel;
 
 public abstract class Parser {
 
     public abstract void parse(String xml);
 
-    protected XmlPullParser buildXmlParser(String xml) throws XmlPullParserException {
-        XmlPullParser xpp = Xml.newPullParser();
-        if (!xml.isEmpty()) {
-            xpp.setInput(new StringReader(xml));
-        }
-        return xpp;
-    }
-
     abstract public void parse(FileInputStream fIS);
 
+    /**
+     * Parses a stream that is not a plain file, e.g. a decompressing one.
+     * The caller closes the stream.
+     */
+    abstract public void parse(InputStream in);
+
+    /**
+     * Parses a channel read sequentially from its current position. The
+     * caller closes the channel.
+     */
+    abstract public void parse(ReadableByteChannel channel);
+
+    /**
+     * Asks a running parse to stop as soon as possible. May be called from
+     * any thread.
+     */
+    abstract public void stop();
+
 }
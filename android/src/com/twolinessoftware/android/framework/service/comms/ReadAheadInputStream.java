@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Reads a stream ahead on a thread of its own into a fixed set of buffers
+ * that are handed back and forth, so that producing the data, e.g.
+ * inflating it, overlaps with consuming it on another core. Nothing is
+ * allocated after construction.
+ *
+ * Not thread-safe on the reading side. Closing stops the thread and closes
+ * the underlying stream.
+ */
+public class ReadAheadInputStream extends InputStream {
+
+    private static class Chunk {
+        final byte[] data;
+        /**
+         * -1 at the end of the stream.
+         */
+        int length;
+        IOException error;
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    private final InputStream in;
+    private final BlockingQueue<Chunk> free;
+    private final BlockingQueue<Chunk> full;
+    private final Thread reader;
+    private Chunk current;
+    private int offset;
+    private volatile boolean closed;
+
+    /**
+     * @param buffers
+     *            Number of buffers, at least 2.
+     */
+    public ReadAheadInputStream(InputStream in, int buffers, int bufferSize) {
+        this.in = in;
+        int count = Math.max(2, buffers);
+        free = new ArrayBlockingQueue<Chunk>(count);
+        full = new ArrayBlockingQueue<Chunk>(count);
+        for (int i = 0; i < count; i++) {
+            free.add(new Chunk(bufferSize));
+        }
+        reader = new Thread("ReadAhead") {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        };
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    private void readAhead() {
+        try {
+            while (!closed) {
+                Chunk chunk = free.take();
+                try {
+                    chunk.length = fill(chunk.data);
+                } catch (IOException e) {
+                    chunk.error = e;
+                }
+                full.put(chunk);
+                if ((chunk.length < 0) || (chunk.error != null)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            // Closed.
+        }
+    }
+
+    /**
+     * @return Bytes read into the whole buffer, fewer only at the end, -1 if
+     *         there are none left.
+     */
+    private int fill(byte[] data) throws IOException {
+        int length = 0;
+        while (length < data.length) {
+            int read = in.read(data, length, data.length - length);
+            if (read < 0) {
+                return length == 0 ? -1 : length;
+            }
+            length += read;
+        }
+        return length;
+    }
+
+    /**
+     * @return The chunk to read from, null at the end of the stream.
+     */
+    private Chunk next() throws IOException {
+        if ((current != null) && (offset < current.length)) {
+            return current;
+        }
+        if ((current != null) && (current.length < 0)) {
+            return null;
+        }
+        if (current != null) {
+            free.add(current);
+        }
+        try {
+            current = full.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        }
+        offset = 0;
+        if (current.error != null) {
+            IOException error = current.error;
+            current.length = -1;
+            throw error;
+        }
+        return current.length < 0 ? null : current;
+    }
+
+    @Override
+    public int read() throws IOException {
+        Chunk chunk = next();
+        if (chunk == null) {
+            return -1;
+        }
+        return chunk.data[offset++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        Chunk chunk = next();
+        if (chunk == null) {
+            return -1;
+        }
+        int count = Math.min(len, chunk.length - offset);
+        System.arraycopy(chunk.data, offset, b, off, count);
+        offset += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return current == null ? 0 : Math.max(0, current.length - offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        reader.interrupt();
+        try {
+            // At most one read of the underlying stream away.
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        in.close();
+    }
+}
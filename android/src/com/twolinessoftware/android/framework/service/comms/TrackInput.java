@@ -0,0 +1,382 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Enumeration;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * A track opened for parsing, decompressed on the fly when it is gzip, zip
+ * or zlib compressed. The compression is detected from the first bytes, not
+ * the name, and the data is inflated in BUFFER_SIZE chunks as the parser
+ * reads it, so nothing is unpacked to storage. With more than one core the
+ * inflating runs ahead of the parser on a thread of its own.
+ *
+ * A seekable source is inspected with positional reads and an uncompressed
+ * one is handed to the parser as a FileChannel, see getChannel(). A source
+ * that is a pipe is read through once.
+ *
+ * Of a zip file the first .gpx or .nmea entry is read.
+ */
+public class TrackInput implements Closeable {
+
+    /**
+     * Size of the buffers between the source and the parser or inflater.
+     */
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Typical size ratio of an inflated track to a compressed one, for
+     * estimates.
+     */
+    private static final int TYPICAL_RATIO = 10;
+
+    /**
+     * Inflated buffers in flight between the inflating thread and the
+     * parser.
+     */
+    private static final int READ_AHEAD_BUFFERS = 4;
+
+    private static final int HEAD_LENGTH = 4;
+
+    private static final String[] SUFFIXES = { ".gz", ".gzip", ".zip", ".zz", ".z", ".deflate" };
+
+    public enum Compression {
+        NONE, GZIP, ZIP,
+        /**
+         * A zlib stream, as written by DeflaterOutputStream.
+         */
+        DEFLATE
+    }
+
+    /**
+     * Counts the bytes read from a source that has no position.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int read = super.read();
+            if (read >= 0) {
+                count++;
+            }
+            return read;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+    }
+
+    private final TrackSource source;
+    private final FileInputStream raw;
+    private final FileChannel channel;
+    private final boolean seekable;
+    /**
+     * The source with its head pushed back, if not seekable.
+     */
+    private final InputStream sequential;
+    private final CountingInputStream counting;
+    private final byte[] head = new byte[TrackInput.HEAD_LENGTH];
+    private final int headLength;
+    private final Compression compression;
+    private InputStream stream;
+    private Inflater inflater;
+    private String name;
+
+    public TrackInput(TrackSource source) throws IOException {
+        this.source = source;
+        raw = source.open();
+        channel = raw.getChannel();
+        ByteBuffer magic = ByteBuffer.wrap(head);
+        boolean positional = true;
+        try {
+            while (magic.hasRemaining() && (channel.read(magic, magic.position()) > 0)) {
+                // Until the head is in.
+            }
+        } catch (IOException e) {
+            // A pipe, the head has to be read and pushed back.
+            positional = false;
+        }
+        seekable = positional;
+        if (seekable) {
+            sequential = null;
+            counting = null;
+            headLength = magic.position();
+        } else {
+            counting = new CountingInputStream(raw);
+            PushbackInputStream pushback = new PushbackInputStream(counting, TrackInput.HEAD_LENGTH);
+            int length = 0;
+            int read;
+            while ((length < head.length) && ((read = pushback.read(head, length, head.length - length)) > 0)) {
+                length += read;
+            }
+            pushback.unread(head, 0, length);
+            headLength = length;
+            sequential = pushback;
+        }
+        compression = TrackInput.detect(head, headLength);
+        name = compression == Compression.ZIP ? null : TrackInput.stripSuffix(source.getName());
+    }
+
+    /**
+     * @return The compression of a file starting with the given bytes.
+     */
+    public static Compression detect(byte[] magic, int length) {
+        if (length < 2) {
+            return Compression.NONE;
+        }
+        int first = magic[0] & 0xff;
+        int second = magic[1] & 0xff;
+        if ((first == 0x1f) && (second == 0x8b)) {
+            return Compression.GZIP;
+        }
+        if ((length >= 4) && (first == 'P') && (second == 'K') && (((magic[2] == 3) && (magic[3] == 4)) || ((magic[2] == 5) && (magic[3] == 6)))) {
+            return Compression.ZIP;
+        }
+        // CMF and FLG of RFC 1950, deflate with a window of at most 32K and
+        // no preset dictionary. Plain GPX and NMEA never start like this.
+        if (((first & 0x0f) == 8) && ((first >> 4) <= 7) && ((second & 0x20) == 0) && ((((first << 8) | second) % 31) == 0)) {
+            return Compression.DEFLATE;
+        }
+        return Compression.NONE;
+    }
+
+    /**
+     * @return The size of the track once decompressed: exact for zip files,
+     *         modulo 4 GiB for gzip, estimated otherwise. -1 if unknown, a
+     *         source of unknown length may be a pipe that can only be read
+     *         once and is not opened.
+     */
+    public static long expandedLength(TrackSource source) {
+        if (source.getLength() < 0) {
+            return -1;
+        }
+        TrackInput input = null;
+        try {
+            input = new TrackInput(source);
+            return input.expandedLength();
+        } catch (IOException e) {
+            return source.getLength();
+        } finally {
+            TrackInput.closeQuietly(input);
+        }
+    }
+
+    private long expandedLength() throws IOException {
+        long length = seekable ? channel.size() : source.getLength();
+        if ((compression == Compression.NONE) || (length < 0)) {
+            return length;
+        }
+        if ((compression == Compression.GZIP) && seekable && (length >= 4)) {
+            // ISIZE of the last member, bumped past the compressed length
+            // when it has wrapped around. Deflate compresses 1032:1 at
+            // best, so a small file cannot have wrapped.
+            ByteBuffer trailer = ByteBuffer.allocate(4);
+            while (trailer.hasRemaining() && (channel.read(trailer, (length - 4) + trailer.position()) > 0)) {
+                // Until the trailer is in.
+            }
+            byte[] b = trailer.array();
+            long size = ((b[0] & 0xff) | ((b[1] & 0xff) << 8) | ((b[2] & 0xff) << 16) | ((long) (b[3] & 0xff) << 24));
+            boolean wrapped = (size < length) && (length >= ((1L << 32) / 1032));
+            return wrapped ? size + (1L << 32) : size;
+        }
+        if ((compression == Compression.ZIP) && (source instanceof FileTrackSource)) {
+            return TrackInput.zipLength((FileTrackSource) source, length);
+        }
+        return length * TrackInput.TYPICAL_RATIO;
+    }
+
+    private static long zipLength(FileTrackSource source, long length) {
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(source.getFile());
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory() && TrackInput.isTrack(entry.getName())) {
+                    return entry.getSize() < 0 ? length * TrackInput.TYPICAL_RATIO : entry.getSize();
+                }
+            }
+            return length;
+        } catch (IOException e) {
+            return length * TrackInput.TYPICAL_RATIO;
+        } finally {
+            if (zip != null) {
+                try {
+                    zip.close();
+                } catch (IOException e) {
+                    // Only read.
+                }
+            }
+        }
+    }
+
+    private static boolean isTrack(String name) {
+        String lower = name.toLowerCase();
+        return lower.endsWith(".gpx") || lower.endsWith(".nmea");
+    }
+
+    /**
+     * @return The name without a compression suffix, "track.gpx" of
+     *         "track.gpx.gz".
+     */
+    public static String stripSuffix(String name) {
+        String lower = name.toLowerCase();
+        for (String suffix : TrackInput.SUFFIXES) {
+            if (lower.endsWith(suffix) && (lower.length() > suffix.length())) {
+                return name.substring(0, name.length() - suffix.length());
+            }
+        }
+        return name;
+    }
+
+    public TrackSource getSource() {
+        return source;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /**
+     * @return Byte at index of the start of the source, as is, or -1 if the
+     *         source is shorter.
+     */
+    public int peek(int index) {
+        return index < headLength ? head[index] & 0xff : -1;
+    }
+
+    /**
+     * @return The channel of an uncompressed seekable source, for parsers
+     *         that read it directly or map it, otherwise null.
+     */
+    public FileChannel getChannel() {
+        return seekable && (compression == Compression.NONE) ? channel : null;
+    }
+
+    /**
+     * Opens the decompressing stream, which for a zip file reads up to the
+     * track entry. Call at most once, on the parsing thread.
+     *
+     * @return The decompressed track, or the source if it is not compressed.
+     * @throws IOException
+     *             If the header is broken, or a zip file has no track.
+     */
+    public InputStream openStream() throws IOException {
+        InputStream in = seekable ? raw : sequential;
+        switch (compression) {
+            case GZIP:
+                stream = new GZIPInputStream(in, TrackInput.BUFFER_SIZE);
+                break;
+            case DEFLATE:
+                inflater = new Inflater();
+                stream = new InflaterInputStream(in, inflater, TrackInput.BUFFER_SIZE);
+                break;
+            case ZIP:
+                ZipInputStream zip = new ZipInputStream(new BufferedInputStream(in, TrackInput.BUFFER_SIZE));
+                stream = zip;
+                ZipEntry entry;
+                while (((entry = zip.getNextEntry()) != null) && (entry.isDirectory() || !TrackInput.isTrack(entry.getName()))) {
+                    // Skip to the track.
+                }
+                if (entry == null) {
+                    throw new IOException("No .gpx or .nmea file in " + source.getName());
+                }
+                name = entry.getName().substring(entry.getName().lastIndexOf('/') + 1);
+                break;
+            default:
+                stream = in;
+                return stream;
+        }
+        if (Runtime.getRuntime().availableProcessors() > 1) {
+            stream = new ReadAheadInputStream(stream, TrackInput.READ_AHEAD_BUFFERS, TrackInput.BUFFER_SIZE);
+        }
+        return stream;
+    }
+
+    /**
+     * @return The name of the track: the source name without the
+     *         compression suffix, or the name of the zip entry once
+     *         openStream() has been called, null before that.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return Bytes read from the source, compressed. Reads are buffered, so
+     *         this runs ahead of the parser.
+     */
+    public long position() {
+        if (!seekable) {
+            return counting.count;
+        }
+        try {
+            return channel.position();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            if (stream != null) {
+                stream.close();
+            }
+            raw.close();
+        } finally {
+            if (inflater != null) {
+                inflater.end();
+            }
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // Only read.
+            }
+        }
+    }
+}
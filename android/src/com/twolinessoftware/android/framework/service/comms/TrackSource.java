@@ -0,0 +1,48 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Where a track is read from: a file, or e.g. a document of a content
+ * provider. Opened as a FileInputStream so that a seekable descriptor can be
+ * mapped and read at positions; one that is a pipe is read sequentially.
+ */
+public interface TrackSource {
+
+    /**
+     * @return Name of the track, by which its format may be recognized.
+     */
+    String getName();
+
+    /**
+     * @return Size in bytes, -1 if unknown.
+     */
+    long getLength();
+
+    /**
+     * Opens the track from the start. May block, call on a worker thread.
+     */
+    FileInputStream open() throws IOException;
+
+    /**
+     * @return Whether open() can read the track from the start again after
+     *         it has been read once, e.g. not if it came through a pipe.
+     */
+    boolean isReopenable();
+}
@@ -0,0 +1,573 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Byte level parser for single trkpt, rtept or wpt elements. It works directly on the
+ * bytes of a ByteBuffer: element names are compared byte by byte, numbers and
+ * timestamps are parsed without creating Strings and unknown child elements
+ * (e.g. extensions) are skipped with their whole subtree. Only the children
+ * read by GpxPullParser are recognized: ele, time, course, speed, fix, sat
+ * and hdop. Entities and namespace prefixes are not interpreted.
+ *
+ * An instance keeps per-parse caches and must not be shared between threads.
+ */
+public class GpxPointScanner {
+
+    /**
+     * Returned by parseTrackPoint() when the buffer ends inside the element.
+     */
+    public static final int INCOMPLETE = -1;
+    /**
+     * Kinds of start tag found by findElement().
+     */
+    public static final int ELEMENT_POINT = 0;
+    public static final int ELEMENT_SEGMENT = 1;
+    public static final int ELEMENT_TRACK = 2;
+    public static final int ELEMENT_ROUTE = 3;
+    public static final int ELEMENT_ROUTE_POINT = 4;
+    public static final int ELEMENT_WAYPOINT = 5;
+    /**
+     * A comment or CDATA section, which may hold anything that looks like
+     * one of the elements. Callers go on after skipMarkup().
+     */
+    public static final int ELEMENT_MARKUP = 6;
+
+    private static final byte[] TRKPT = GpxPointScanner.ascii("trkpt");
+    private static final byte[] TRK = GpxPointScanner.ascii("trk");
+    private static final byte[] RTE = GpxPointScanner.ascii("rte");
+    private static final byte[] WPT = GpxPointScanner.ascii("wpt");
+    private static final byte[] PT = GpxPointScanner.ascii("pt");
+    private static final byte[] SEG = GpxPointScanner.ascii("seg");
+    private static final byte[] LAT = GpxPointScanner.ascii("lat");
+    private static final byte[] LON = GpxPointScanner.ascii("lon");
+    private static final byte[][] FIELDS = {
+            GpxPointScanner.ascii("ele"), GpxPointScanner.ascii("time"), GpxPointScanner.ascii("course"),
+            GpxPointScanner.ascii("speed"), GpxPointScanner.ascii("fix"), GpxPointScanner.ascii("sat"),
+            GpxPointScanner.ascii("hdop")
+    };
+    private static final int NONE = -1;
+    private static final int ELE = 0;
+    private static final int TIME = 1;
+    private static final int COURSE = 2;
+    private static final int SPEED = 3;
+    private static final int FIX = 4;
+    private static final int SAT = 5;
+    private static final int HDOP = 6;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19,
+            1e20, 1e21, 1e22
+    };
+
+    private final GpxTimeParser timeParser = new GpxTimeParser();
+    private final ByteSequence text = new ByteSequence();
+    private final ValueCache fixValues = new ValueCache();
+    private final ValueCache satValues = new ValueCache();
+    private boolean valid;
+
+    /**
+     * @return Offset of the first "&lt;trkpt" start tag or ELEMENT_MARKUP
+     *         beginning in [from, to), or -1.
+     */
+    public static int findTrackPoint(ByteBuffer buffer, int from, int to) {
+        int limit = buffer.limit();
+        int last = Math.min(to - 1, limit - 7);
+        for (int i = from; i <= last; i++) {
+            if ((buffer.get(i) == '<')
+                    && (GpxPointScanner.isMarkup(buffer, i) || (GpxPointScanner.equalsIgnoreCase(buffer, i + 1, i + 6,
+                            GpxPointScanner.TRKPT) && GpxPointScanner.isNameEnd(buffer.get(i + 6))))) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return Offset of the first "&lt;trkpt", "&lt;trkseg", "&lt;trk",
+     *         "&lt;rtept", "&lt;rte" or "&lt;wpt" start tag, comment or
+     *         CDATA section beginning in [from, to), or -1. elementAt() tells
+     *         which one it is.
+     */
+    public static int findElement(ByteBuffer buffer, int from, int to) {
+        int limit = buffer.limit();
+        int last = Math.min(to - 1, limit - 8);
+        for (int i = from; i <= last; i++) {
+            if ((buffer.get(i) == '<') && (GpxPointScanner.elementAt(buffer, i) >= 0)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return One of the ELEMENT_ kinds for the start tag or markup at
+     *         offset, -1 for any other. The buffer must hold 8 bytes from
+     *         offset.
+     */
+    public static int elementAt(ByteBuffer buffer, int offset) {
+        if (GpxPointScanner.isMarkup(buffer, offset)) {
+            return GpxPointScanner.ELEMENT_MARKUP;
+        }
+        boolean track;
+        if (GpxPointScanner.equalsIgnoreCase(buffer, offset + 1, offset + 4, GpxPointScanner.TRK)) {
+            track = true;
+        } else if (GpxPointScanner.equalsIgnoreCase(buffer, offset + 1, offset + 4, GpxPointScanner.RTE)) {
+            track = false;
+        } else if (GpxPointScanner.equalsIgnoreCase(buffer, offset + 1, offset + 4, GpxPointScanner.WPT)) {
+            return GpxPointScanner.isNameEnd(buffer.get(offset + 4)) ? GpxPointScanner.ELEMENT_WAYPOINT : -1;
+        } else {
+            return -1;
+        }
+        if (GpxPointScanner.isNameEnd(buffer.get(offset + 4))) {
+            return track ? GpxPointScanner.ELEMENT_TRACK : GpxPointScanner.ELEMENT_ROUTE;
+        }
+        if (GpxPointScanner.equalsIgnoreCase(buffer, offset + 4, offset + 6, GpxPointScanner.PT)
+                && GpxPointScanner.isNameEnd(buffer.get(offset + 6))) {
+            return track ? GpxPointScanner.ELEMENT_POINT : GpxPointScanner.ELEMENT_ROUTE_POINT;
+        }
+        if (track && GpxPointScanner.equalsIgnoreCase(buffer, offset + 4, offset + 7, GpxPointScanner.SEG)
+                && GpxPointScanner.isNameEnd(buffer.get(offset + 7))) {
+            return GpxPointScanner.ELEMENT_SEGMENT;
+        }
+        return -1;
+    }
+
+    /**
+     * @return Whether a comment or CDATA section starts at offset.
+     */
+    private static boolean isMarkup(ByteBuffer buffer, int offset) {
+        if (buffer.get(offset + 1) != '!') {
+            return false;
+        }
+        byte b = buffer.get(offset + 2);
+        return (b == '[') || ((b == '-') && (buffer.get(offset + 3) == '-'));
+    }
+
+    /**
+     * Parses the trkpt, rtept or wpt element starting at start into point.
+     *
+     * @return Offset just after the element, or INCOMPLETE if the buffer
+     *         ends first. isValid() tells whether all values were readable.
+     */
+    public int parseTrackPoint(ByteBuffer buffer, int start, GpxTrackPoint point) {
+        int limit = buffer.limit();
+        point.reset();
+        valid = true;
+
+        // Attributes, after the element name.
+        int p = start + 1;
+        while ((p < limit) && !GpxPointScanner.isNameEnd(buffer.get(p))) {
+            p++;
+        }
+        while (true) {
+            p = GpxPointScanner.skipWhitespace(buffer, p, limit);
+            if (p >= limit) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            byte b = buffer.get(p);
+            if (b == '>') {
+                p++;
+                break;
+            }
+            if (b == '/') {
+                return (p + 1) < limit ? p + 2 : GpxPointScanner.INCOMPLETE;
+            }
+            int nameStart = p;
+            while ((p < limit) && (buffer.get(p) != '=') && !GpxPointScanner.isWhitespace(buffer.get(p))) {
+                p++;
+            }
+            int nameEnd = p;
+            p = GpxPointScanner.skipWhitespace(buffer, p, limit);
+            if (p >= limit) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            if (buffer.get(p) != '=') {
+                // Not an attribute, resume scanning behind it.
+                valid = false;
+                return p;
+            }
+            p = GpxPointScanner.skipWhitespace(buffer, p + 1, limit);
+            if (p >= limit) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            byte quote = buffer.get(p++);
+            int valueStart = p;
+            while ((p < limit) && (buffer.get(p) != quote)) {
+                p++;
+            }
+            if (p >= limit) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            if (GpxPointScanner.equalsIgnoreCase(buffer, nameStart, nameEnd, GpxPointScanner.LAT)) {
+                point.setLat(parseNumber(buffer, valueStart, p));
+            } else if (GpxPointScanner.equalsIgnoreCase(buffer, nameStart, nameEnd, GpxPointScanner.LON)) {
+                point.setLon(parseNumber(buffer, valueStart, p));
+            }
+            p++;
+        }
+
+        // Content.
+        int depth = 0;
+        int field = GpxPointScanner.NONE;
+        int textStart = p;
+        while (true) {
+            while ((p < limit) && (buffer.get(p) != '<')) {
+                p++;
+            }
+            if ((p + 1) >= limit) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            if (field != GpxPointScanner.NONE) {
+                setField(point, field, buffer, textStart, p);
+                field = GpxPointScanner.NONE;
+            }
+            byte next = buffer.get(p + 1);
+            if ((next == '!') || (next == '?')) {
+                // Comment, CDATA or processing instruction.
+                p = GpxPointScanner.skipMarkup(buffer, p, limit);
+                if (p < 0) {
+                    return GpxPointScanner.INCOMPLETE;
+                }
+                textStart = p;
+                continue;
+            }
+            boolean endTag = next == '/';
+            int nameStart = endTag ? p + 2 : p + 1;
+            int nameEnd = nameStart;
+            while ((nameEnd < limit) && !GpxPointScanner.isNameEnd(buffer.get(nameEnd))) {
+                nameEnd++;
+            }
+            int close = GpxPointScanner.findTagEnd(buffer, nameEnd, limit);
+            if (close < 0) {
+                return GpxPointScanner.INCOMPLETE;
+            }
+            p = close + 1;
+            textStart = p;
+            if (endTag) {
+                if (depth == 0) {
+                    // </trkpt>, </rtept> or </wpt>
+                    return p;
+                }
+                depth--;
+            } else if (buffer.get(close - 1) != '/') {
+                depth++;
+                if (depth == 1) {
+                    field = GpxPointScanner.fieldFor(buffer, nameStart, nameEnd);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if a value of the last parsed point was malformed.
+     */
+    public boolean isValid() {
+        return valid;
+    }
+
+    private void setField(GpxTrackPoint point, int field, ByteBuffer buffer, int start, int end) {
+        switch (field) {
+            case ELE:
+                point.setEle(parseNumber(buffer, start, end));
+                break;
+            case TIME: {
+                long time = timeParser.parse(text.wrap(buffer, start, end));
+                point.setTime(time == GpxTimeParser.INVALID ? 0 : time);
+                break;
+            }
+            case COURSE:
+                point.setCourse(parseNumber(buffer, start, end));
+                break;
+            case SPEED:
+                point.setSpeed(parseNumber(buffer, start, end));
+                break;
+            case FIX:
+                point.setFix(fixValues.get(buffer, start, end));
+                break;
+            case SAT:
+                point.setSat(satValues.get(buffer, start, end));
+                break;
+            case HDOP:
+                point.setHdop(parseNumber(buffer, start, end));
+                break;
+        }
+    }
+
+    private double parseNumber(ByteBuffer buffer, int start, int end) {
+        double value = GpxPointScanner.parseDouble(buffer, start, end);
+        if (Double.isNaN(value)) {
+            valid = false;
+            return 0;
+        }
+        return value;
+    }
+
+    /**
+     * Parses a decimal number without creating a String. Values with more
+     * than 18 significant digits or large exponents fall back to
+     * Double.parseDouble().
+     *
+     * @return The value, or NaN if the text is not a number.
+     */
+    public static double parseDouble(ByteBuffer buffer, int start, int end) {
+        while ((start < end) && GpxPointScanner.isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        while ((end > start) && GpxPointScanner.isWhitespace(buffer.get(end - 1))) {
+            end--;
+        }
+        int p = start;
+        boolean negative = false;
+        if ((p < end) && ((buffer.get(p) == '-') || (buffer.get(p) == '+'))) {
+            negative = buffer.get(p) == '-';
+            p++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean any = false;
+        boolean exact = true;
+        while (p < end) {
+            int d = buffer.get(p) - '0';
+            if ((d < 0) || (d > 9)) {
+                break;
+            }
+            any = true;
+            if (digits < 18) {
+                mantissa = (mantissa * 10) + d;
+                if (mantissa != 0) {
+                    digits++;
+                }
+            } else {
+                exponent++;
+                exact = false;
+            }
+            p++;
+        }
+        if ((p < end) && (buffer.get(p) == '.')) {
+            p++;
+            while (p < end) {
+                int d = buffer.get(p) - '0';
+                if ((d < 0) || (d > 9)) {
+                    break;
+                }
+                any = true;
+                if (digits < 18) {
+                    mantissa = (mantissa * 10) + d;
+                    exponent--;
+                    if (mantissa != 0) {
+                        digits++;
+                    }
+                } else if (d != 0) {
+                    exact = false;
+                }
+                p++;
+            }
+        }
+        if (!any) {
+            return Double.NaN;
+        }
+        if ((p < end) && ((buffer.get(p) == 'e') || (buffer.get(p) == 'E'))) {
+            p++;
+            boolean negativeExponent = false;
+            if ((p < end) && ((buffer.get(p) == '-') || (buffer.get(p) == '+'))) {
+                negativeExponent = buffer.get(p) == '-';
+                p++;
+            }
+            int e = 0;
+            int expDigits = 0;
+            while ((p < end) && (buffer.get(p) >= '0') && (buffer.get(p) <= '9') && (e < 100000)) {
+                e = (e * 10) + (buffer.get(p) - '0');
+                expDigits++;
+                p++;
+            }
+            if (expDigits == 0) {
+                return Double.NaN;
+            }
+            exponent += negativeExponent ? -e : e;
+        }
+        if (p != end) {
+            return Double.NaN;
+        }
+        double value;
+        if (exact && (mantissa < (1L << 53)) && (Math.abs(exponent) < GpxPointScanner.POWERS_OF_TEN.length)) {
+            // Both operands are exact, so the result is correctly rounded.
+            value = exponent >= 0 ? mantissa * GpxPointScanner.POWERS_OF_TEN[exponent] : mantissa
+                    / GpxPointScanner.POWERS_OF_TEN[-exponent];
+        } else {
+            try {
+                value = Math.abs(Double.parseDouble(new ByteSequence().wrap(buffer, start, end).toString()));
+            } catch (NumberFormatException e) {
+                return Double.NaN;
+            }
+        }
+        return negative ? -value : value;
+    }
+
+    private static int fieldFor(ByteBuffer buffer, int start, int end) {
+        for (int i = 0; i < GpxPointScanner.FIELDS.length; i++) {
+            if (GpxPointScanner.equalsIgnoreCase(buffer, start, end, GpxPointScanner.FIELDS[i])) {
+                return i;
+            }
+        }
+        return GpxPointScanner.NONE;
+    }
+
+    /**
+     * @return Offset of the '>' closing a tag, skipping quoted attribute
+     *         values, or -1.
+     */
+    static int findTagEnd(ByteBuffer buffer, int p, int limit) {
+        byte quote = 0;
+        for (; p < limit; p++) {
+            byte b = buffer.get(p);
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if ((b == '"') || (b == '\'')) {
+                quote = b;
+            } else if (b == '>') {
+                return p;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Skips &lt;!-- --&gt;, &lt;![CDATA[ ]]&gt;, &lt;? ?&gt; and &lt;! &gt;.
+     *
+     * @return Offset after the markup, or -1 if the buffer ends first.
+     */
+    static int skipMarkup(ByteBuffer buffer, int p, int limit) {
+        if (GpxPointScanner.startsWith(buffer, p, limit, "<!--")) {
+            return GpxPointScanner.skipPast(buffer, p + 4, limit, "-->");
+        }
+        if (GpxPointScanner.startsWith(buffer, p, limit, "<![CDATA[")) {
+            return GpxPointScanner.skipPast(buffer, p + 9, limit, "]]>");
+        }
+        if (GpxPointScanner.startsWith(buffer, p, limit, "<?")) {
+            return GpxPointScanner.skipPast(buffer, p + 2, limit, "?>");
+        }
+        int end = GpxPointScanner.findTagEnd(buffer, p + 2, limit);
+        return end < 0 ? -1 : end + 1;
+    }
+
+    private static boolean startsWith(ByteBuffer buffer, int p, int limit, String prefix) {
+        if ((p + prefix.length()) > limit) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buffer.get(p + i) != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int skipPast(ByteBuffer buffer, int p, int limit, String terminator) {
+        int last = limit - terminator.length();
+        for (; p <= last; p++) {
+            if (GpxPointScanner.startsWith(buffer, p, limit, terminator)) {
+                return p + terminator.length();
+            }
+        }
+        return -1;
+    }
+
+    static boolean equalsIgnoreCase(ByteBuffer buffer, int start, int end, byte[] lowerName) {
+        if ((end - start) != lowerName.length) {
+            return false;
+        }
+        for (int i = 0; i < lowerName.length; i++) {
+            if ((buffer.get(start + i) | 0x20) != lowerName[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    static boolean isNameEnd(byte b) {
+        return (b == '>') || (b == '/') || GpxPointScanner.isWhitespace(b);
+    }
+
+    static boolean isWhitespace(byte b) {
+        return (b == ' ') || (b == '\t') || (b == '\n') || (b == '\r');
+    }
+
+    private static int skipWhitespace(ByteBuffer buffer, int p, int limit) {
+        while ((p < limit) && GpxPointScanner.isWhitespace(buffer.get(p))) {
+            p++;
+        }
+        return p;
+    }
+
+    private static byte[] ascii(String value) {
+        byte[] bytes = new byte[value.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) value.charAt(i);
+        }
+        return bytes;
+    }
+
+    /**
+     * Maps the bytes of short, repetitive values like "3d" to shared Strings.
+     */
+    private static class ValueCache {
+        private static final int SIZE = 32;
+        private static final Charset UTF_8 = Charset.forName("UTF-8");
+        private final byte[][] keys = new byte[ValueCache.SIZE][];
+        private final String[] values = new String[ValueCache.SIZE];
+        private int count;
+
+        String get(ByteBuffer buffer, int start, int end) {
+            while ((start < end) && GpxPointScanner.isWhitespace(buffer.get(start))) {
+                start++;
+            }
+            while ((end > start) && GpxPointScanner.isWhitespace(buffer.get(end - 1))) {
+                end--;
+            }
+            int length = end - start;
+            for (int i = 0; i < count; i++) {
+                byte[] key = keys[i];
+                if (key.length == length) {
+                    int j = 0;
+                    while ((j < length) && (key[j] == buffer.get(start + j))) {
+                        j++;
+                    }
+                    if (j == length) {
+                        return values[i];
+                    }
+                }
+            }
+            byte[] key = new byte[length];
+            for (int j = 0; j < length; j++) {
+                key[j] = buffer.get(start + j);
+            }
+            String value = new String(key, 0, length, ValueCache.UTF_8);
+            if (count < ValueCache.SIZE) {
+                keys[count] = key;
+                values[count] = value;
+                count++;
+            }
+            return value;
+        }
+    }
+}
@@ -15,7 +15,12 @@
  */
 package com.twolinessoftware.android.framework.service.comms.gps;
 
+import java.io.BufferedInputStream;
 import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -24,11 +29,23 @@ import android.util.Log;
 import android.util.Xml;
 
 import com.twolinessoftware.android.framework.service.comms.Parser;
+import com.twolinessoftware.android.framework.service.comms.TrackInput;
 
 public class GpxPullParser extends Parser {
     private final String LOGTAG = GpxPullParser.class.getSimpleName();
     private final GpxPullParserListener listener;
     private final String trackPoint = "trkpt";
+    private final String track = "trk";
+    private final String trackSegment = "trkseg";
+    private final String route = "rte";
+    private final String routePoint = "rtept";
+    private final String waypoint = "wpt";
+    /**
+     * Scratch point reused for every trkpt, see GpxPullParserListener.
+     */
+    private final GpxTrackPoint scratchPoint = new GpxTrackPoint();
+    private final GpxTimeParser timeParser = new GpxTimeParser();
+    private volatile boolean stopped;
 
     public GpxPullParser(GpxPullParserListener newListener) throws NullPointerException {
         if (newListener == null) {
@@ -39,28 +56,74 @@ public class GpxPullParser extends Parser {
 
     @Override
     public void parse(FileInputStream fIS) {
+        parse((InputStream) fIS);
+    }
+
+    /**
+     * Reads through a buffer: the XmlPullParser reads small chunks.
+     */
+    @Override
+    public void parse(InputStream in) {
         XmlPullParser xpp = Xml.newPullParser();
         try {
-            xpp.setInput(fIS, null);
+            xpp.setInput(new BufferedInputStream(in, TrackInput.BUFFER_SIZE), null);
         } catch (XmlPullParserException e) {
             Log.e(LOGTAG, "Failed to set input: " + e.getMessage());
             listener.onGpxError(e.getMessage());
             return;
         }
+        parse(xpp);
+    }
+
+    @Override
+    public void parse(ReadableByteChannel channel) {
+        parse(Channels.newInputStream(channel));
+    }
+
+    private void parse(XmlPullParser xpp) {
         boolean keepGoing = true;
+        boolean inWaypoints = false;
+        stopped = false;
         long start = System.currentTimeMillis();
         Log.i(LOGTAG, "'START_DOCUMENT', i.e. entering processing loop.");
         while (keepGoing) {
+            if (stopped) {
+                // Like NmeaParser, a stopped parse still ends the document.
+                Log.i(LOGTAG, "Stopped after " + (System.currentTimeMillis() - start) + " ms.");
+                listener.onGpxEnd();
+                break;
+            }
             try {
                 switch (xpp.next()) {
-                    case XmlPullParser.START_TAG:
-                        if (xpp.getName().equalsIgnoreCase(trackPoint)) {
-                            GpxTrackPoint point = parseTrackPoint(xpp);
+                    case XmlPullParser.START_TAG: {
+                        String name = xpp.getName();
+                        boolean isWaypoint = name.equalsIgnoreCase(waypoint);
+                        if (isWaypoint || name.equalsIgnoreCase(routePoint)) {
+                            if (isWaypoint && !inWaypoints) {
+                                // The waypoints of a file form a route of
+                                // their own.
+                                listener.onGpxSegment(true);
+                            }
+                            inWaypoints = isWaypoint;
+                            GpxTrackPoint point = parseTrackPoint(xpp, name);
+                            if (point != null) {
+                                listener.onGpxRoutePoint(point);
+                            }
+                        } else if (name.equalsIgnoreCase(trackPoint)) {
+                            inWaypoints = false;
+                            GpxTrackPoint point = parseTrackPoint(xpp, name);
                             if (point != null) {
                                 listener.onGpxPoint(point);
                             }
+                        } else if (name.equalsIgnoreCase(trackSegment)) {
+                            inWaypoints = false;
+                            listener.onGpxSegment(false);
+                        } else if (name.equalsIgnoreCase(track) || name.equalsIgnoreCase(route)) {
+                            inWaypoints = false;
+                            listener.onGpxSegment(true);
                         }
                         break;
+                    }
                     case XmlPullParser.START_DOCUMENT:
                         listener.onGpxStart();
                         break;
@@ -78,9 +141,10 @@ public class GpxPullParser extends Parser {
         }
     }
 
-    // Parse a singular track point.
-    private GpxTrackPoint parseTrackPoint(XmlPullParser xpp) {
-        GpxTrackPoint point = new GpxTrackPoint();
+    // Parse a singular trkpt, rtept or wpt element of the given name.
+    private GpxTrackPoint parseTrackPoint(XmlPullParser xpp, String element) {
+        GpxTrackPoint point = scratchPoint;
+        point.reset();
         try {
             point.setLon(Double.parseDouble(xpp.getAttributeValue(null, "lon")));
             point.setLat(Double.parseDouble(xpp.getAttributeValue(null, "lat")));
@@ -100,7 +164,7 @@ public class GpxPullParser extends Parser {
                     case XmlPullParser.END_DOCUMENT:
                     case XmlPullParser.END_TAG: {
                         String endTag = xpp.getName();
-                        if ((endTag == null) || endTag.equalsIgnoreCase(trackPoint)) {
+                        if ((endTag == null) || endTag.equalsIgnoreCase(element)) {
                             // Done with this point.
                             keepGoing = false;
                         } else if (tag.equalsIgnoreCase(endTag)) {
@@ -120,6 +184,7 @@ public class GpxPullParser extends Parser {
                          * <speed>0.191927</speed>
                          * <fix>3d</fix>
                          * <sat>5</sat>
+                         * <hdop>1.600000</hdop>
                          */
                         if (text == null) {
                             Log.e(LOGTAG, "BAD STUFF IN TRACK POINT ELEMENT!");
@@ -129,7 +194,7 @@ public class GpxPullParser extends Parser {
                             if (tag.equalsIgnoreCase("ele")) {
                                 point.setEle(Double.parseDouble(text));
                             } else if (tag.equalsIgnoreCase("time")) {
-                                point.setTime(text);
+                                point.setTime(timeParser, text);
                             } else if (tag.equalsIgnoreCase("course")) {
                                 point.setCourse(Double.parseDouble(text));
                             } else if (tag.equalsIgnoreCase("speed")) {
@@ -138,6 +203,8 @@ public class GpxPullParser extends Parser {
                                 point.setFix(text);
                             } else if (tag.equalsIgnoreCase("sat")) {
                                 point.setSat(text);
+                            } else if (tag.equalsIgnoreCase("hdop")) {
+                                point.setHdop(Double.parseDouble(text));
                             }
                         }
                         break;
@@ -156,8 +223,21 @@ public class GpxPullParser extends Parser {
         return point;
     }
 
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
     @Override
     public void parse(String xml) {
-        throw new UnsupportedOperationException("String parsing is not supported in GpxPullParser!");
+        XmlPullParser xpp = Xml.newPullParser();
+        try {
+            xpp.setInput(new StringReader(xml));
+        } catch (XmlPullParserException e) {
+            Log.e(LOGTAG, "Failed to set input: " + e.getMessage());
+            listener.onGpxError(e.getMessage());
+            return;
+        }
+        parse(xpp);
     }
 }
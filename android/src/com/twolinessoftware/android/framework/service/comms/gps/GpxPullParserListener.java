@@ -18,8 +18,26 @@ package com.twolinessoftware.android.framework.service.comms.gps;
 
 public interface GpxPullParserListener extends GpxParserListener {
 
+    /**
+     * Called for every parsed point. Parsers reuse the same instance for the
+     * next point, so the listener must copy what it needs (e.g. into a
+     * TrackStore) instead of keeping a reference.
+     */
     void onGpxPoint(GpxTrackPoint item);
 
+    /**
+     * Called for every rtept and wpt, which are reused like the points of
+     * onGpxPoint(). Usually they have no timestamps.
+     */
+    void onGpxRoutePoint(GpxTrackPoint item);
+
+    /**
+     * Called at the start of a trk, rte or run of wpt (newTrack), or of a
+     * trkseg, before its points. The points after it must not be joined to
+     * the ones before.
+     */
+    void onGpxSegment(boolean newTrack);
+
     void onGpxStart();
 
     void onGpxEnd();
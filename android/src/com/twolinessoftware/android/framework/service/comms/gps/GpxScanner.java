@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import com.twolinessoftware.android.framework.service.comms.InputStreamChannel;
+import com.twolinessoftware.android.framework.service.comms.Parser;
+
+/**
+ * Sequential GPX parser working on the raw bytes of a channel instead of an
+ * XmlPullParser. Everything outside trkpt, rtept and wpt elements is skipped
+ * without being decoded, except for the trk, trkseg and rte start tags that
+ * are reported with onGpxSegment(). The points themselves are read by a
+ * GpxPointScanner. No Strings are created per point apart from new fix / sat
+ * values.
+ *
+ * The input must be in an ASCII compatible encoding such as UTF-8 or
+ * ISO-8859-1, see isSupported(). Comments and CDATA sections are skipped
+ * as a whole, so elements inside them are not reported.
+ */
+public class GpxScanner extends Parser {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /**
+     * Length of "&lt;trkseg" plus the following delimiter, less one.
+     */
+    private static final int TAG_TAIL = 7;
+
+    private final GpxPullParserListener listener;
+    private final GpxPointScanner scanner = new GpxPointScanner();
+    /**
+     * Scratch point reused for every trkpt, see GpxPullParserListener.
+     */
+    private final GpxTrackPoint scratchPoint = new GpxTrackPoint();
+    private ByteBuffer buffer = ByteBuffer.allocate(GpxScanner.BUFFER_SIZE);
+    private volatile boolean stopped;
+
+    public GpxScanner(GpxPullParserListener newListener) throws NullPointerException {
+        if (newListener == null) {
+            throw new NullPointerException("Listener must not be null!");
+        }
+        listener = newListener;
+    }
+
+    /**
+     * @return false if the file is UTF-16 encoded and has to be read with
+     *         GpxPullParser instead.
+     */
+    public static boolean isSupported(File file) {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return GpxScanner.isSupported(in.read(), in.read());
+        } catch (IOException e) {
+            return false;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // Nothing to do.
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if a document starting with these two bytes is UTF-16
+     *         encoded.
+     */
+    public static boolean isSupported(int first, int second) {
+        return (first != 0) && (second != 0) && !((first == 0xfe) && (second == 0xff)) && !((first == 0xff) && (second == 0xfe));
+    }
+
+    @Override
+    public void parse(String xml) {
+        parse(Channels.newChannel(new ByteArrayInputStream(xml.getBytes(Charset.forName("UTF-8")))));
+    }
+
+    @Override
+    public void parse(FileInputStream fIS) {
+        parse(fIS.getChannel());
+    }
+
+    @Override
+    public void parse(InputStream in) {
+        parse(new InputStreamChannel(in));
+    }
+
+    @Override
+    public void parse(ReadableByteChannel channel) {
+        stopped = false;
+        buffer.clear();
+        buffer.limit(0);
+        listener.onGpxStart();
+        try {
+            boolean eof = false;
+            boolean inWaypoints = false;
+            int p = 0;
+            while (!stopped) {
+                int found = GpxPointScanner.findElement(buffer, p, buffer.limit());
+                if (found < 0) {
+                    if (eof) {
+                        break;
+                    }
+                    // The tail may hold the start of a tag.
+                    eof = !fill(channel, Math.max(p, buffer.limit() - GpxScanner.TAG_TAIL));
+                    p = 0;
+                    continue;
+                }
+                int element = GpxPointScanner.elementAt(buffer, found);
+                if (element == GpxPointScanner.ELEMENT_MARKUP) {
+                    int end = GpxPointScanner.skipMarkup(buffer, found, buffer.limit());
+                    if (end >= 0) {
+                        p = end;
+                        continue;
+                    }
+                    if (eof) {
+                        // Unterminated comment or CDATA section.
+                        break;
+                    }
+                    eof = !fill(channel, found);
+                    p = 0;
+                    continue;
+                }
+                if ((element == GpxPointScanner.ELEMENT_TRACK) || (element == GpxPointScanner.ELEMENT_ROUTE)
+                        || (element == GpxPointScanner.ELEMENT_SEGMENT)) {
+                    listener.onGpxSegment(element != GpxPointScanner.ELEMENT_SEGMENT);
+                    inWaypoints = false;
+                    p = found + 4;
+                    continue;
+                }
+                int next = scanner.parseTrackPoint(buffer, found, scratchPoint);
+                if (next == GpxPointScanner.INCOMPLETE) {
+                    if (eof) {
+                        // Truncated file.
+                        break;
+                    }
+                    eof = !fill(channel, found);
+                    p = 0;
+                    continue;
+                }
+                boolean waypoint = element == GpxPointScanner.ELEMENT_WAYPOINT;
+                if (waypoint && !inWaypoints) {
+                    // The waypoints of a file form a route of their own.
+                    listener.onGpxSegment(true);
+                }
+                inWaypoints = waypoint;
+                if (scanner.isValid()) {
+                    if (element == GpxPointScanner.ELEMENT_POINT) {
+                        listener.onGpxPoint(scratchPoint);
+                    } else {
+                        listener.onGpxRoutePoint(scratchPoint);
+                    }
+                }
+                p = next;
+            }
+            listener.onGpxEnd();
+        } catch (IOException e) {
+            listener.onGpxError(e.getMessage());
+        }
+    }
+
+    /**
+     * Moves the bytes from keep on to the front of the buffer, growing it if
+     * they fill it, and reads more behind them.
+     *
+     * @return false at the end of the input.
+     */
+    private boolean fill(ReadableByteChannel channel, int keep) throws IOException {
+        buffer.position(keep);
+        if ((keep == 0) && (buffer.limit() == buffer.capacity())) {
+            // A single point or comment does not fit, e.g. because of huge
+            // extensions.
+            ByteBuffer larger = ByteBuffer.allocate(buffer.capacity() * 2);
+            larger.put(buffer);
+            buffer = larger;
+        } else {
+            buffer.compact();
+        }
+        int read = channel.read(buffer);
+        buffer.limit(buffer.position());
+        buffer.position(0);
+        return read >= 0;
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+}
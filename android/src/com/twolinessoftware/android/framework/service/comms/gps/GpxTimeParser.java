@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+/**
+ * Hand written ISO-8601 / RFC-3339 parser for GPX timestamps. Accepts
+ *
+ * <pre>
+ * 2007-08-27T15:38:52Z
+ * 2007-08-27T15:38:52.983Z
+ * 2007-08-27T15:38:52.983456+03:00
+ * 2007-08-27T15:38:52-0500
+ * 2007-08-27 15:38:52
+ * 2007-08-27T15:38
+ * 2007-08-27
+ * </pre>
+ *
+ * Fractions are truncated to milliseconds and a missing zone means UTC. The
+ * parser does not allocate. The start of the last parsed day is cached, since
+ * consecutive points almost always share the date. An instance must not be
+ * shared between threads.
+ */
+public class GpxTimeParser {
+
+    /**
+     * Returned for text that is not a timestamp.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private int cachedYear = -1;
+    private int cachedMonth;
+    private int cachedDay;
+    private long cachedDayMillis;
+
+    /**
+     * @return Milliseconds since the epoch, or INVALID.
+     */
+    public long parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses text[start, end).
+     *
+     * @return Milliseconds since the epoch, or INVALID.
+     */
+    public long parse(CharSequence text, int start, int end) {
+        while ((start < end) && (text.charAt(start) <= ' ')) {
+            start++;
+        }
+        while ((end > start) && (text.charAt(end - 1) <= ' ')) {
+            end--;
+        }
+        int p = start;
+        if (((end - p) < 10) || (text.charAt(p + 4) != '-') || (text.charAt(p + 7) != '-')) {
+            return GpxTimeParser.INVALID;
+        }
+        int year = GpxTimeParser.digits(text, p, 4);
+        int month = GpxTimeParser.digits(text, p + 5, 2);
+        int day = GpxTimeParser.digits(text, p + 8, 2);
+        if ((year < 0) || (month < 1) || (month > 12) || (day < 1) || (day > 31)) {
+            return GpxTimeParser.INVALID;
+        }
+        long dayMillis;
+        if ((year == cachedYear) && (month == cachedMonth) && (day == cachedDay)) {
+            dayMillis = cachedDayMillis;
+        } else {
+            dayMillis = GpxTimeParser.daysFromCivil(year, month, day) * GpxTimeParser.MILLIS_PER_DAY;
+            cachedYear = year;
+            cachedMonth = month;
+            cachedDay = day;
+            cachedDayMillis = dayMillis;
+        }
+        p += 10;
+        if (p == end) {
+            return dayMillis;
+        }
+
+        char separator = text.charAt(p++);
+        if (((separator != 'T') && (separator != 't') && (separator != ' ')) || ((end - p) < 5) || (text.charAt(p + 2) != ':')) {
+            return GpxTimeParser.INVALID;
+        }
+        int hour = GpxTimeParser.digits(text, p, 2);
+        int minute = GpxTimeParser.digits(text, p + 3, 2);
+        p += 5;
+        int second = 0;
+        if ((p < end) && (text.charAt(p) == ':')) {
+            second = (end - p) >= 3 ? GpxTimeParser.digits(text, p + 1, 2) : -1;
+            p += 3;
+        }
+        if ((hour < 0) || (hour > 24) || (minute < 0) || (minute > 59) || (second < 0) || (second > 60)) {
+            return GpxTimeParser.INVALID;
+        }
+
+        int millis = 0;
+        if ((p < end) && ((text.charAt(p) == '.') || (text.charAt(p) == ','))) {
+            p++;
+            int count = 0;
+            while (p < end) {
+                int digit = text.charAt(p) - '0';
+                if ((digit < 0) || (digit > 9)) {
+                    break;
+                }
+                if (count < 3) {
+                    millis = (millis * 10) + digit;
+                }
+                count++;
+                p++;
+            }
+            if (count == 0) {
+                return GpxTimeParser.INVALID;
+            }
+            for (; count < 3; count++) {
+                millis *= 10;
+            }
+        }
+
+        long offsetMillis = 0;
+        if (p < end) {
+            char zone = text.charAt(p);
+            if ((zone == 'Z') || (zone == 'z')) {
+                p++;
+            } else if ((zone == '+') || (zone == '-')) {
+                if ((end - p) < 3) {
+                    return GpxTimeParser.INVALID;
+                }
+                int offsetHours = GpxTimeParser.digits(text, p + 1, 2);
+                int offsetMinutes = 0;
+                p += 3;
+                if ((p < end) && (text.charAt(p) == ':')) {
+                    p++;
+                }
+                if ((end - p) >= 2) {
+                    offsetMinutes = GpxTimeParser.digits(text, p, 2);
+                    p += 2;
+                }
+                if ((offsetHours < 0) || (offsetMinutes < 0) || (offsetMinutes > 59)) {
+                    return GpxTimeParser.INVALID;
+                }
+                offsetMillis = ((offsetHours * 60L) + offsetMinutes) * 60000L;
+                if (zone == '-') {
+                    offsetMillis = -offsetMillis;
+                }
+            }
+        }
+        if (p != end) {
+            return GpxTimeParser.INVALID;
+        }
+        return (dayMillis + (hour * 3600000L) + (minute * 60000L) + (second * 1000L) + millis) - offsetMillis;
+    }
+
+    /**
+     * @return The value of count decimal digits at start, or -1.
+     */
+    private static int digits(CharSequence text, int start, int count) {
+        int value = 0;
+        for (int i = start; i < (start + count); i++) {
+            int digit = text.charAt(i) - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = (value * 10) + digit;
+        }
+        return value;
+    }
+
+    /**
+     * @return Days since 1970-01-01 in the proleptic Gregorian calendar.
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - (era * 400);
+        int dayOfYear = ((153 * (month + (month > 2 ? -3 : 9))) + 2) / 5 + (day - 1);
+        int dayOfEra = (yearOfEra * 365) + (yearOfEra / 4) - (yearOfEra / 100) + dayOfYear;
+        return (era * 146097L) + dayOfEra - 719468;
+    }
+}
@@ -16,8 +16,6 @@
 package com.twolinessoftware.android.framework.service.comms.gps;
 
 import java.io.Serializable;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
 
 import android.util.Log;
 
@@ -32,8 +30,7 @@ public class GpxTrackPoint implements Serializable {
     private double lon;
     private double course;
     private double speed;
-    private final String preciseTemplate = "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'";
-    private final String impreciseTemplate = "yyyy-MM-dd'T'HH:mm:ss'Z'";
+    private double hdop;
 
     public double getCourse() {
         return course;
@@ -51,6 +48,17 @@ public class GpxTrackPoint implements Serializable {
         this.speed = speed;
     }
 
+    /**
+     * @return Horizontal dilution of precision, or 0 if unknown.
+     */
+    public double getHdop() {
+        return hdop;
+    }
+
+    public void setHdop(double hdop) {
+        this.hdop = hdop;
+    }
+
     public double getEle() {
         return ele;
     }
@@ -67,18 +75,25 @@ public class GpxTrackPoint implements Serializable {
         time = newTime;
     }
 
+    /**
+     * Sets the time from an ISO-8601 timestamp. Unparseable text leaves the
+     * time at 0, i.e. unknown. Parsers should keep their own GpxTimeParser
+     * and call setTime(long) to benefit from its date cache.
+     */
     public void setTime(String timeString) {
-        SimpleDateFormat format = null;
-        if (timeString.length() < (preciseTemplate.length() - 4)) {
-            format = new SimpleDateFormat(impreciseTemplate);
+        setTime(new GpxTimeParser(), timeString);
+    }
+
+    /**
+     * Sets the time from an ISO-8601 timestamp using the given parser.
+     */
+    public void setTime(GpxTimeParser parser, String timeString) {
+        long parsed = parser.parse(timeString);
+        if (parsed == GpxTimeParser.INVALID) {
+            Log.e("GpxTrackPoint", "Unparseable time: " + timeString);
+            time = 0;
         } else {
-            format = new SimpleDateFormat(preciseTemplate);
-        }
-        try {
-            time = format.parse(timeString).getTime();
-        } catch (ParseException e) {
-            Log.e("GpxTrackPoint", e.getMessage());
-            time = System.currentTimeMillis();
+            time = parsed;
         }
     }
 
@@ -113,4 +128,38 @@ public class GpxTrackPoint implements Serializable {
     public void setLon(double lon) {
         this.lon = lon;
     }
+
+    /**
+     * Clears all fields so that the instance can be reused for the next
+     * parsed point.
+     */
+    public void reset() {
+        ele = 0;
+        time = 0;
+        fix = null;
+        sat = null;
+        lat = 0;
+        lon = 0;
+        course = 0;
+        speed = 0;
+        hdop = 0;
+    }
+
+    /**
+     * Copies all fields of the given point into this instance.
+     *
+     * @return This point.
+     */
+    public GpxTrackPoint set(GpxTrackPoint other) {
+        ele = other.ele;
+        time = other.time;
+        fix = other.fix;
+        sat = other.sat;
+        lat = other.lat;
+        lon = other.lon;
+        course = other.course;
+        speed = other.speed;
+        hdop = other.hdop;
+        return this;
+    }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Complete, read-only track backed by a memory mapped TrackCache file. Only
+ * absolute reads are used, so the buffer can be shared between threads.
+ */
+public class MappedTrack implements Track {
+
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int lats;
+    private final int lons;
+    private final int times;
+    private final int eles;
+    private final int courses;
+    private final int speeds;
+    private final int hdops;
+    private final int fixes;
+    private final int sats;
+    private final String[] fixNames;
+    private final String[] satNames;
+    private final TrackSegments segments;
+
+    MappedTrack(ByteBuffer buffer, int columns, int count, String[] fixNames, String[] satNames, TrackSegments segments) {
+        this.buffer = buffer;
+        this.segments = segments;
+        this.count = count;
+        this.fixNames = fixNames;
+        this.satNames = satNames;
+        lats = columns;
+        lons = lats + (8 * count);
+        times = lons + (8 * count);
+        eles = times + (8 * count);
+        courses = eles + (4 * count);
+        speeds = courses + (4 * count);
+        hdops = speeds + (4 * count);
+        fixes = hdops + (4 * count);
+        sats = fixes + count;
+    }
+
+    @Override
+    public boolean add(GpxTrackPoint point) {
+        return false;
+    }
+
+    @Override
+    public void finish() {
+        // Always complete.
+    }
+
+    @Override
+    public void close() {
+        // Nothing is being parsed.
+    }
+
+    @Override
+    public void release(int index) {
+        // The OS pages the mapping in and out.
+    }
+
+    @Override
+    public int firstIndex() {
+        return 0;
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return true;
+    }
+
+    @Override
+    public double getLat(int index) {
+        return buffer.getDouble(lats + (index << 3));
+    }
+
+    @Override
+    public double getLon(int index) {
+        return buffer.getDouble(lons + (index << 3));
+    }
+
+    @Override
+    public long getTime(int index) {
+        return buffer.getLong(times + (index << 3));
+    }
+
+    @Override
+    public double getEle(int index) {
+        return buffer.getFloat(eles + (index << 2));
+    }
+
+    @Override
+    public double getCourse(int index) {
+        return buffer.getFloat(courses + (index << 2));
+    }
+
+    @Override
+    public double getSpeed(int index) {
+        return buffer.getFloat(speeds + (index << 2));
+    }
+
+    @Override
+    public double getHdop(int index) {
+        return buffer.getFloat(hdops + (index << 2));
+    }
+
+    @Override
+    public String getFix(int index) {
+        return MappedTrack.decode(fixNames, buffer.get(fixes + index));
+    }
+
+    @Override
+    public String getSat(int index) {
+        return MappedTrack.decode(satNames, buffer.get(sats + index));
+    }
+
+    @Override
+    public TrackSegments getSegments() {
+        return segments;
+    }
+
+    /**
+     * @return Size of the mapping. It is not on the heap, and the OS only
+     *         keeps the pages in use resident.
+     */
+    @Override
+    public long getMemoryUsage() {
+        return buffer.capacity();
+    }
+
+    private static String decode(String[] names, byte code) {
+        int i = code & 0xff;
+        return i < names.length ? names[i] : null;
+    }
+}
@@ -1,21 +1,36 @@
 package com.twolinessoftware.android.framework.service.comms.gps;
 
+import java.io.BufferedReader;
 import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
 
-import net.sf.marineapi.nmea.event.SentenceEvent;
-import net.sf.marineapi.nmea.event.SentenceListener;
-import net.sf.marineapi.nmea.io.SentenceReader;
+import net.sf.marineapi.nmea.parser.SentenceFactory;
 import net.sf.marineapi.nmea.sentence.RMCSentence;
-import net.sf.marineapi.nmea.sentence.SentenceId;
-import android.util.Log;
+import net.sf.marineapi.nmea.sentence.Sentence;
+import net.sf.marineapi.nmea.sentence.SentenceValidator;
 
 import com.twolinessoftware.android.framework.service.comms.Parser;
 
-public class NmeaParser extends Parser implements SentenceListener {
+/**
+ * Parses the RMC sentences of an NMEA log with the marine API, line by line
+ * on the calling thread. NmeaScanner is faster and merges the other
+ * sentences of a fix, this parser is kept for comparison.
+ */
+public class NmeaParser extends Parser {
 
-    private final String LOGTAG = NmeaParser.class.getSimpleName();
     private final GpxPullParserListener listener;
-    private SentenceReader reader;
+    private volatile boolean stopped;
+    /**
+     * Scratch point reused for every sentence, see GpxPullParserListener.
+     */
+    private final GpxTrackPoint scratchPoint = new GpxTrackPoint();
 
     public NmeaParser(GpxPullParserListener newListener) throws NullPointerException {
         if (newListener == null) {
@@ -25,50 +40,81 @@ public class NmeaParser extends Parser implements SentenceListener {
     }
 
     @Override
-    public void parse(String xml) {
-        throw new UnsupportedOperationException("String parsing is not supported in NmeaParser!");
+    public void parse(String nmea) {
+        parse(new StringReader(nmea));
     }
 
     @Override
     public void parse(FileInputStream fIS) {
-        reader = new SentenceReader(fIS);
-        reader.addSentenceListener(this, SentenceId.RMC);
-        reader.start();
+        parse((InputStream) fIS);
     }
 
     @Override
-    public void readingPaused() {
-        Log.d(LOGTAG, "Reading paused.");
+    public void parse(InputStream in) {
+        parse(new InputStreamReader(in, Charset.forName("US-ASCII")));
     }
 
     @Override
-    public void readingStarted() {
-        listener.onGpxStart();
+    public void parse(ReadableByteChannel channel) {
+        parse(Channels.newInputStream(channel));
     }
 
-    @Override
-    public void readingStopped() {
-        listener.onGpxEnd();
+    /**
+     * Reads the sentences until the end of the input or stop(). The reader
+     * is left open for the caller to close.
+     */
+    private void parse(Reader in) {
+        stopped = false;
+        listener.onGpxStart();
+        SentenceFactory factory = SentenceFactory.getInstance();
+        BufferedReader reader = new BufferedReader(in);
+        try {
+            String line;
+            while (!stopped && ((line = reader.readLine()) != null)) {
+                if (!SentenceValidator.isValid(line)) {
+                    continue;
+                }
+                Sentence sentence;
+                try {
+                    sentence = factory.createParser(line);
+                } catch (IllegalArgumentException e) {
+                    // No parser for this sentence type.
+                    continue;
+                }
+                if (sentence instanceof RMCSentence) {
+                    onRmc((RMCSentence) sentence);
+                }
+            }
+            // A stopped parse still ends the document.
+            listener.onGpxEnd();
+        } catch (IOException e) {
+            listener.onGpxError(e.getMessage());
+        }
     }
 
-    @Override
-    public void sentenceRead(SentenceEvent event) {
-        RMCSentence sentence = (RMCSentence) event.getSentence();
-        GpxTrackPoint point = new GpxTrackPoint();
-        point.setLat(sentence.getPosition().getLatitude());
-        point.setLon(sentence.getPosition().getLongitude());
-        point.setTime(sentence.getTime().getMilliseconds());
-        point.setCourse(sentence.getCourse());
+    private void onRmc(RMCSentence sentence) {
+        GpxTrackPoint point = scratchPoint;
+        point.reset();
+        try {
+            point.setLat(sentence.getPosition().getLatitude());
+            point.setLon(sentence.getPosition().getLongitude());
+            point.setTime(sentence.getTime().getMilliseconds());
+            point.setCourse(sentence.getCourse());
+            point.setEle(sentence.getPosition().getAltitude());
+            point.setSpeed(sentence.getSpeed());
+        } catch (RuntimeException e) {
+            // A fix without data, e.g. while the receiver has no signal.
+            return;
+        }
         point.setSat("8");
-        point.setEle(sentence.getPosition().getAltitude());
-        point.setSpeed(sentence.getSpeed());
         listener.onGpxPoint(point);
     }
 
     /**
-     * Stops the parsing.
+     * Stops the parsing after the current sentence.
      */
+    @Override
     public void stop() {
-        reader.stop();
+        stopped = true;
     }
 }
@@ -0,0 +1,524 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+
+import com.twolinessoftware.android.framework.service.comms.InputStreamChannel;
+import com.twolinessoftware.android.framework.service.comms.Parser;
+
+/**
+ * Fast NMEA 0183 decoder. Sentences are read straight from the bytes of a
+ * channel, their checksums are verified and the GGA, RMC, VTG, GSA and GSV
+ * sentences of one epoch are merged into a single point:
+ *
+ * <pre>
+ * position      GGA or RMC, if GGA has a fix or RMC is active
+ * ele           GGA altitude
+ * time          GGA / RMC time of day plus the RMC date
+ * course, speed RMC, or VTG when present
+ * sat           GGA satellites in use, else GSA, else GSV in view
+ * hdop          GGA, else GSA
+ * fix           GSA 2d / 3d, or dgps / pps from the GGA quality
+ * </pre>
+ *
+ * An epoch starts with every GGA or RMC carrying a new time; sentences
+ * without a time belong to the current one. Epochs without a valid
+ * position are dropped. Sentences with a wrong checksum are skipped, those
+ * without one are accepted. Any talker id is accepted.
+ */
+public class NmeaScanner extends Parser {
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int MAX_FIELDS = 32;
+    private static final double KNOTS_TO_METERS_PER_SECOND = 1852.0 / 3600.0;
+    private static final double KMH_TO_METERS_PER_SECOND = 1 / 3.6;
+    private static final int MILLIS_PER_DAY = 86400000;
+
+    private static final int GGA = NmeaScanner.type('G', 'G', 'A');
+    private static final int RMC = NmeaScanner.type('R', 'M', 'C');
+    private static final int VTG = NmeaScanner.type('V', 'T', 'G');
+    private static final int GSA = NmeaScanner.type('G', 'S', 'A');
+    private static final int GSV = NmeaScanner.type('G', 'S', 'V');
+
+    /**
+     * Satellite counts as Strings, so that no String is built per point.
+     */
+    private static final String[] COUNTS = new String[100];
+
+    static {
+        for (int i = 0; i < NmeaScanner.COUNTS.length; i++) {
+            NmeaScanner.COUNTS[i] = Integer.toString(i);
+        }
+    }
+
+    private final GpxPullParserListener listener;
+    private ByteBuffer buffer = ByteBuffer.allocate(NmeaScanner.BUFFER_SIZE);
+    /**
+     * Start offsets of the fields of the current sentence, plus the offset
+     * one past the end of the last field.
+     */
+    private final int[] fields = new int[NmeaScanner.MAX_FIELDS + 1];
+    private int fieldCount;
+    private volatile boolean stopped;
+    private int checksumErrors;
+
+    /**
+     * The epoch being merged, see the class comment.
+     */
+    private final GpxTrackPoint epoch = new GpxTrackPoint();
+    private int epochTime;
+    private int previousEpochTime;
+    private long dayMillis;
+    private boolean hasPosition;
+    private boolean hasVtg;
+    private int satRank;
+
+    public NmeaScanner(GpxPullParserListener newListener) throws NullPointerException {
+        if (newListener == null) {
+            throw new NullPointerException("Listener must not be null!");
+        }
+        listener = newListener;
+    }
+
+    @Override
+    public void parse(String nmea) {
+        parse(Channels.newChannel(new ByteArrayInputStream(nmea.getBytes(Charset.forName("US-ASCII")))));
+    }
+
+    @Override
+    public void parse(FileInputStream fIS) {
+        parse(fIS.getChannel());
+    }
+
+    @Override
+    public void parse(InputStream in) {
+        parse(new InputStreamChannel(in));
+    }
+
+    @Override
+    public void parse(ReadableByteChannel channel) {
+        stopped = false;
+        checksumErrors = 0;
+        epochTime = -1;
+        previousEpochTime = -1;
+        dayMillis = 0;
+        buffer.clear();
+        buffer.limit(0);
+        listener.onGpxStart();
+        try {
+            byte[] data = buffer.array();
+            boolean eof = false;
+            int p = 0;
+            while (!stopped) {
+                int limit = buffer.limit();
+                int newline = p;
+                while ((newline < limit) && (data[newline] != '\n')) {
+                    newline++;
+                }
+                if (newline < limit) {
+                    sentence(data, p, newline);
+                    p = newline + 1;
+                    continue;
+                }
+                if (eof) {
+                    sentence(data, p, limit);
+                    break;
+                }
+                if ((p == 0) && (limit == data.length)) {
+                    // Not NMEA, drop the line.
+                    p = limit;
+                }
+                eof = !fill(channel, p);
+                data = buffer.array();
+                p = 0;
+            }
+            if (!stopped) {
+                endEpoch();
+            }
+            listener.onGpxEnd();
+        } catch (IOException e) {
+            listener.onGpxError(e.getMessage());
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return Number of sentences dropped by the last parse because of a
+     *         wrong checksum.
+     */
+    public int getChecksumErrors() {
+        return checksumErrors;
+    }
+
+    private boolean fill(ReadableByteChannel channel, int keep) throws IOException {
+        buffer.position(keep);
+        buffer.compact();
+        int read = channel.read(buffer);
+        buffer.limit(buffer.position());
+        buffer.position(0);
+        return read >= 0;
+    }
+
+    /**
+     * Decodes the sentence in data[start, end), if any.
+     */
+    private void sentence(byte[] data, int start, int end) {
+        while ((start < end) && (data[start] != '$')) {
+            start++;
+        }
+        while ((end > start) && (data[end - 1] <= ' ')) {
+            end--;
+        }
+        if ((end - start) < 7) {
+            return;
+        }
+        int bodyEnd = end;
+        if (((end - start) > 3) && (data[end - 3] == '*')) {
+            int expected = (NmeaScanner.hex(data[end - 2]) << 4) | NmeaScanner.hex(data[end - 1]);
+            int checksum = 0;
+            for (int i = start + 1; i < (end - 3); i++) {
+                checksum ^= data[i];
+            }
+            if (checksum != expected) {
+                checksumErrors++;
+                return;
+            }
+            bodyEnd = end - 3;
+        }
+
+        fieldCount = 0;
+        fields[fieldCount++] = start + 1;
+        for (int i = start + 1; (i < bodyEnd) && (fieldCount < NmeaScanner.MAX_FIELDS); i++) {
+            if (data[i] == ',') {
+                fields[fieldCount++] = i + 1;
+            }
+        }
+        fields[fieldCount] = bodyEnd + 1;
+
+        int address = fields[0];
+        if (((fields[1] - 1) - address) != 5) {
+            // Proprietary sentence.
+            return;
+        }
+        int type = NmeaScanner.type(data[address + 2], data[address + 3], data[address + 4]);
+        if (type == NmeaScanner.GGA) {
+            gga(data);
+        } else if (type == NmeaScanner.RMC) {
+            rmc(data);
+        } else if (type == NmeaScanner.VTG) {
+            vtg(data);
+        } else if (type == NmeaScanner.GSA) {
+            gsa(data);
+        } else if (type == NmeaScanner.GSV) {
+            gsv(data);
+        }
+    }
+
+    private void gga(byte[] data) {
+        if (!startEpoch(data, 1)) {
+            return;
+        }
+        int quality = integer(data, 6);
+        if (quality > 0) {
+            position(data, 2, 4);
+        }
+        if (quality == 2) {
+            epoch.setFix("dgps");
+        } else if (quality == 3) {
+            epoch.setFix("pps");
+        }
+        sat(data, 7, 3);
+        double hdop = number(8);
+        if (!Double.isNaN(hdop)) {
+            epoch.setHdop(hdop);
+        }
+        double altitude = number(9);
+        if (!Double.isNaN(altitude)) {
+            epoch.setEle(altitude);
+        }
+    }
+
+    private void rmc(byte[] data) {
+        if (!startEpoch(data, 1)) {
+            return;
+        }
+        if (isChar(data, 2, 'A')) {
+            position(data, 3, 5);
+        }
+        if (!hasVtg) {
+            double speed = number(7);
+            if (!Double.isNaN(speed)) {
+                epoch.setSpeed(speed * NmeaScanner.KNOTS_TO_METERS_PER_SECOND);
+            }
+            double course = number(8);
+            if (!Double.isNaN(course)) {
+                epoch.setCourse(course);
+            }
+        }
+        int date = integer(data, 9);
+        if ((date >= 0) && (fieldLength(9) == 6)) {
+            int day = date / 10000;
+            int month = (date / 100) % 100;
+            int year = date % 100;
+            year += year < 80 ? 2000 : 1900;
+            if ((day >= 1) && (day <= 31) && (month >= 1) && (month <= 12)) {
+                dayMillis = GpxTimeParser.daysFromCivil(year, month, day) * NmeaScanner.MILLIS_PER_DAY;
+            }
+        }
+    }
+
+    private void vtg(byte[] data) {
+        if (epochTime < 0) {
+            return;
+        }
+        double course = number(1);
+        if (!Double.isNaN(course)) {
+            epoch.setCourse(course);
+        }
+        double speed = number(7);
+        if (!Double.isNaN(speed)) {
+            epoch.setSpeed(speed * NmeaScanner.KMH_TO_METERS_PER_SECOND);
+        } else {
+            speed = number(5);
+            if (!Double.isNaN(speed)) {
+                epoch.setSpeed(speed * NmeaScanner.KNOTS_TO_METERS_PER_SECOND);
+            }
+        }
+        hasVtg = true;
+    }
+
+    private void gsa(byte[] data) {
+        if (epochTime < 0) {
+            return;
+        }
+        int type = integer(data, 2);
+        String fix = epoch.getFix();
+        // GGA may already have reported a differential fix.
+        if (!"dgps".equals(fix) && !"pps".equals(fix)) {
+            if (type == 2) {
+                epoch.setFix("2d");
+            } else if (type == 3) {
+                epoch.setFix("3d");
+            } else if (type == 1) {
+                epoch.setFix("none");
+            }
+        }
+        if (satRank < 2) {
+            int used = 0;
+            for (int i = 3; (i <= 14) && (i < fieldCount); i++) {
+                if (fieldLength(i) > 0) {
+                    used++;
+                }
+            }
+            epoch.setSat(NmeaScanner.count(used));
+            satRank = 2;
+        }
+        if (epoch.getHdop() == 0) {
+            double hdop = number(16);
+            if (!Double.isNaN(hdop)) {
+                epoch.setHdop(hdop);
+            }
+        }
+    }
+
+    private void gsv(byte[] data) {
+        if ((epochTime >= 0) && (integer(data, 2) == 1)) {
+            sat(data, 3, 1);
+        }
+    }
+
+    /**
+     * Ends the current epoch if the time in field differs from it.
+     *
+     * @return false if the sentence has no time.
+     */
+    private boolean startEpoch(byte[] data, int field) {
+        int time = timeOfDay(data, field);
+        if (time < 0) {
+            return false;
+        }
+        if (time != epochTime) {
+            endEpoch();
+            if ((previousEpochTime >= 0) && (time < (previousEpochTime - (NmeaScanner.MILLIS_PER_DAY / 2)))) {
+                // Past midnight without a date from RMC yet.
+                dayMillis += NmeaScanner.MILLIS_PER_DAY;
+            }
+            previousEpochTime = time;
+            epochTime = time;
+        }
+        return true;
+    }
+
+    private void endEpoch() {
+        if ((epochTime >= 0) && hasPosition) {
+            epoch.setTime(dayMillis + epochTime);
+            listener.onGpxPoint(epoch);
+        }
+        epoch.reset();
+        epochTime = -1;
+        hasPosition = false;
+        hasVtg = false;
+        satRank = 0;
+    }
+
+    /**
+     * Reads ddmm.mmmm,N,dddmm.mmmm,E style coordinates.
+     */
+    private void position(byte[] data, int latField, int lonField) {
+        double lat = number(latField);
+        double lon = number(lonField);
+        if (Double.isNaN(lat) || Double.isNaN(lon)) {
+            return;
+        }
+        lat = NmeaScanner.degrees(lat);
+        lon = NmeaScanner.degrees(lon);
+        if (isChar(data, latField + 1, 'S')) {
+            lat = -lat;
+        }
+        if (isChar(data, lonField + 1, 'W')) {
+            lon = -lon;
+        }
+        epoch.setLat(lat);
+        epoch.setLon(lon);
+        hasPosition = true;
+    }
+
+    private void sat(byte[] data, int field, int rank) {
+        if (rank <= satRank) {
+            return;
+        }
+        int count = integer(data, field);
+        if (count >= 0) {
+            epoch.setSat(NmeaScanner.count(count));
+            satRank = rank;
+        }
+    }
+
+    /**
+     * @return hhmmss.sss as milliseconds of the day, or -1.
+     */
+    private int timeOfDay(byte[] data, int field) {
+        if (field >= fieldCount) {
+            return -1;
+        }
+        int start = fields[field];
+        int end = fields[field + 1] - 1;
+        if ((end - start) < 6) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < (start + 6); i++) {
+            int digit = data[i] - '0';
+            if ((digit < 0) || (digit > 9)) {
+                return -1;
+            }
+            value = (value * 10) + digit;
+        }
+        int millis = 0;
+        if (((start + 6) < end) && (data[start + 6] == '.')) {
+            int scale = 100;
+            for (int i = start + 7; (i < end) && (scale > 0); i++) {
+                int digit = data[i] - '0';
+                if ((digit < 0) || (digit > 9)) {
+                    return -1;
+                }
+                millis += digit * scale;
+                scale /= 10;
+            }
+        }
+        int hours = value / 10000;
+        int minutes = (value / 100) % 100;
+        int seconds = value % 100;
+        if ((hours > 23) || (minutes > 59) || (seconds > 60)) {
+            return -1;
+        }
+        return (((((hours * 60) + minutes) * 60) + seconds) * 1000) + millis;
+    }
+
+    /**
+     * @return The field as a number, or NaN if it is empty or missing.
+     */
+    private double number(int field) {
+        if ((field >= fieldCount) || (fieldLength(field) == 0)) {
+            return Double.NaN;
+        }
+        return GpxPointScanner.parseDouble(buffer, fields[field], fields[field + 1] - 1);
+    }
+
+    /**
+     * @return The field as a non negative integer, or -1.
+     */
+    private int integer(byte[] data, int field) {
+        if ((field >= fieldCount) || (fieldLength(field) == 0)) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = fields[field]; i < (fields[field + 1] - 1); i++) {
+            int digit = data[i] - '0';
+            if ((digit < 0) || (digit > 9) || (value > 100000000)) {
+                return -1;
+            }
+            value = (value * 10) + digit;
+        }
+        return value;
+    }
+
+    private boolean isChar(byte[] data, int field, char c) {
+        return (field < fieldCount) && (fieldLength(field) == 1) && (data[fields[field]] == c);
+    }
+
+    private int fieldLength(int field) {
+        return (fields[field + 1] - 1) - fields[field];
+    }
+
+    private static double degrees(double degreesMinutes) {
+        double degrees = Math.floor(degreesMinutes / 100);
+        return degrees + ((degreesMinutes - (degrees * 100)) / 60);
+    }
+
+    private static String count(int count) {
+        return count < NmeaScanner.COUNTS.length ? NmeaScanner.COUNTS[count] : Integer.toString(count);
+    }
+
+    private static int hex(byte b) {
+        if ((b >= '0') && (b <= '9')) {
+            return b - '0';
+        }
+        if ((b >= 'A') && (b <= 'F')) {
+            return (b - 'A') + 10;
+        }
+        if ((b >= 'a') && (b <= 'f')) {
+            return (b - 'a') + 10;
+        }
+        return -1;
+    }
+
+    private static int type(int a, int b, int c) {
+        return (a << 16) | (b << 8) | c;
+    }
+}
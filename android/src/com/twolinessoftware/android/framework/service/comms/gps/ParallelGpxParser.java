@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.twolinessoftware.android.framework.service.comms.Parser;
+
+/**
+ * Parses a GPX file on several threads. The file is cut into chunks of about
+ * chunkSize bytes at "&lt;trkpt" boundaries, every chunk is memory mapped and
+ * scanned with its own GpxPointScanner into a TrackStore, and the chunks are
+ * handed to the listener strictly in file order. At most two chunks per
+ * thread are in flight, so memory stays bounded however large the file is.
+ *
+ * The trk, trkseg, rte and wpt start tags a chunk finds are kept with the
+ * index of the following point and replayed to the listener between the
+ * points, so onGpxSegment() is called as by GpxScanner. Route points and
+ * waypoints themselves are skipped, they are read with GpxScanner.
+ *
+ * Comments and CDATA sections are skipped as a whole. A chunk boundary is
+ * never taken inside one that starts in the boundary window, and if one
+ * still runs past the end of a chunk, e.g. a long commented out part of a
+ * track, the chunks it covers are parsed again from its end.
+ *
+ * Only a FileChannel can be cut into chunks. Strings, streams and other
+ * channels are parsed on the calling thread with a GpxScanner instead.
+ */
+public class ParallelGpxParser extends Parser {
+
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Bytes mapped beyond the end of a chunk, so that the last point of a
+     * chunk can be read without remapping.
+     */
+    private static final int TAIL_BYTES = 64 * 1024;
+    /**
+     * Window used to look for a chunk boundary.
+     */
+    private static final int BOUNDARY_WINDOW = 64 * 1024;
+
+    private final GpxPullParserListener listener;
+    private final int threads;
+    private final int chunkSize;
+    private volatile boolean stopped;
+    /**
+     * Parsing an input that can't be mapped, for stop().
+     */
+    private volatile GpxScanner sequential;
+
+    public ParallelGpxParser(GpxPullParserListener newListener, int threads) {
+        this(newListener, threads, ParallelGpxParser.DEFAULT_CHUNK_SIZE);
+    }
+
+    public ParallelGpxParser(GpxPullParserListener newListener, int threads, int chunkSize) throws NullPointerException {
+        if (newListener == null) {
+            throw new NullPointerException("Listener must not be null!");
+        }
+        listener = newListener;
+        this.threads = Math.max(1, threads);
+        this.chunkSize = Math.max(ParallelGpxParser.BOUNDARY_WINDOW, chunkSize);
+    }
+
+    @Override
+    public void parse(String xml) {
+        startSequential().parse(xml);
+    }
+
+    /**
+     * Parses the whole file behind fIS. The position of its channel is moved
+     * to the end of every delivered chunk to make progress observable.
+     */
+    @Override
+    public void parse(FileInputStream fIS) {
+        parse(fIS.getChannel());
+    }
+
+    /**
+     * Can't be cut into chunks, parsed sequentially.
+     */
+    @Override
+    public void parse(InputStream in) {
+        startSequential().parse(in);
+    }
+
+    /**
+     * Parsed in parallel if it is a FileChannel, otherwise sequentially.
+     */
+    @Override
+    public void parse(ReadableByteChannel channel) {
+        if (channel instanceof FileChannel) {
+            parse((FileChannel) channel);
+        } else {
+            startSequential().parse(channel);
+        }
+    }
+
+    /**
+     * @return A GpxScanner for an input that can't be mapped, published for
+     *         stop().
+     */
+    private GpxScanner startSequential() {
+        GpxScanner scanner = new GpxScanner(listener);
+        sequential = scanner;
+        return scanner;
+    }
+
+    public void parse(FileChannel channel) {
+        stopped = false;
+        listener.onGpxStart();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        LinkedList<Future<Chunk>> pending = new LinkedList<Future<Chunk>>();
+        LinkedList<ChunkTask> tasks = new LinkedList<ChunkTask>();
+        GpxTrackPoint point = new GpxTrackPoint();
+        try {
+            long size = channel.size();
+            long next = 0;
+            boolean inWaypoints = false;
+            while (!stopped) {
+                // Keep the pool busy without parsing arbitrarily far ahead.
+                while ((next < size) && (pending.size() < (threads * 2))) {
+                    long end = findBoundary(channel, next + chunkSize, size);
+                    ChunkTask task = new ChunkTask(channel, next, end, size);
+                    pending.add(pool.submit(task));
+                    tasks.add(task);
+                    next = end;
+                }
+                if (pending.isEmpty()) {
+                    break;
+                }
+                Chunk chunk = pending.removeFirst().get();
+                ChunkTask done = tasks.removeFirst();
+                int count = chunk.points.size();
+                int event = 0;
+                for (int i = 0; (i <= count) && !stopped; i++) {
+                    // The start tags before the point.
+                    for (; (event < chunk.eventCount) && ((chunk.events[event] >>> 3) == i); event++) {
+                        int element = chunk.events[event] & 7;
+                        if (element == GpxPointScanner.ELEMENT_WAYPOINT) {
+                            if (!inWaypoints) {
+                                // The waypoints of a file form a route of
+                                // their own.
+                                listener.onGpxSegment(true);
+                            }
+                            inWaypoints = true;
+                        } else {
+                            if ((element == GpxPointScanner.ELEMENT_TRACK) || (element == GpxPointScanner.ELEMENT_ROUTE)
+                                    || (element == GpxPointScanner.ELEMENT_SEGMENT)) {
+                                listener.onGpxSegment(element != GpxPointScanner.ELEMENT_SEGMENT);
+                            }
+                            inWaypoints = false;
+                        }
+                    }
+                    if (i < count) {
+                        listener.onGpxPoint(chunk.points.get(i, point));
+                        inWaypoints = false;
+                    }
+                }
+                // A comment or CDATA section running past the end of the
+                // chunk hides what the following chunks took for points,
+                // they are parsed again from its end.
+                while (!tasks.isEmpty() && (tasks.getFirst().end <= chunk.scanned)) {
+                    pending.removeFirst().cancel(false);
+                    tasks.removeFirst();
+                }
+                if (!tasks.isEmpty() && (tasks.getFirst().start < chunk.scanned)) {
+                    ChunkTask task = new ChunkTask(channel, chunk.scanned, tasks.getFirst().end, size);
+                    pending.removeFirst().cancel(false);
+                    pending.addFirst(pool.submit(task));
+                    tasks.set(0, task);
+                }
+                next = Math.max(next, chunk.scanned);
+                channel.position(Math.min(Math.max(done.end, chunk.scanned), size));
+            }
+            listener.onGpxEnd();
+        } catch (IOException e) {
+            listener.onGpxError(e.getMessage());
+        } catch (ExecutionException e) {
+            listener.onGpxError(e.getCause().getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            listener.onGpxError(e.getMessage());
+        } finally {
+            stopped = true;
+            for (Future<Chunk> future : pending) {
+                future.cancel(false);
+            }
+            pool.shutdown();
+        }
+    }
+
+    @Override
+    public void stop() {
+        stopped = true;
+        GpxScanner scanner = sequential;
+        if (scanner != null) {
+            scanner.stop();
+        }
+    }
+
+    /**
+     * @return Offset of the first "&lt;trkpt" at or after from that is not
+     *         inside a comment or CDATA section starting there, or size.
+     */
+    private static long findBoundary(FileChannel channel, long from, long size) throws IOException {
+        while (from < size) {
+            int length = (int) Math.min(ParallelGpxParser.BOUNDARY_WINDOW, size - from);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, length);
+            int found = GpxPointScanner.findTrackPoint(buffer, 0, length);
+            if (found >= 0) {
+                if (GpxPointScanner.elementAt(buffer, found) != GpxPointScanner.ELEMENT_MARKUP) {
+                    return from + found;
+                }
+                from = ParallelGpxParser.skipMarkup(channel, from + found, size);
+                continue;
+            }
+            if ((from + length) >= size) {
+                break;
+            }
+            // Overlap the windows so that a tag across them is found.
+            from += length - 7;
+        }
+        return size;
+    }
+
+    /**
+     * @return Offset after the comment or CDATA section at offset, or size
+     *         if it is not terminated.
+     */
+    private static long skipMarkup(FileChannel channel, long offset, long size) throws IOException {
+        int length = (int) Math.min(Integer.MAX_VALUE, size - offset);
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+        int end = GpxPointScanner.skipMarkup(buffer, 0, length);
+        return end < 0 ? size : offset + end;
+    }
+
+    /**
+     * The points of a chunk and the start tags between them.
+     */
+    private static class Chunk {
+
+        final TrackStore points;
+        /**
+         * The index of the following point shifted left by 3, and the
+         * ELEMENT_ kind of the tag. ELEMENT_POINT stands for an invalid
+         * point.
+         */
+        int[] events = new int[16];
+        int eventCount;
+        /**
+         * Offset in the file where scanning stopped, after the chunk end if
+         * its last point or a comment runs past it.
+         */
+        long scanned;
+
+        Chunk(int capacity) {
+            points = new TrackStore(capacity);
+        }
+
+        void addEvent(int element) {
+            if (eventCount == events.length) {
+                events = Arrays.copyOf(events, eventCount * 2);
+            }
+            events[eventCount++] = (points.size() << 3) | element;
+        }
+    }
+
+    /**
+     * Parses the points and start tags starting in [start, end).
+     */
+    private class ChunkTask implements Callable<Chunk> {
+
+        private final FileChannel channel;
+        private final long start;
+        private final long end;
+        private final long size;
+
+        ChunkTask(FileChannel channel, long start, long end, long size) {
+            this.channel = channel;
+            this.start = start;
+            this.end = end;
+            this.size = size;
+        }
+
+        @Override
+        public Chunk call() throws IOException {
+            int limit = (int) (end - start);
+            long mapped = Math.min(size - start, (long) limit + ParallelGpxParser.TAIL_BYTES);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, mapped);
+            GpxPointScanner scanner = new GpxPointScanner();
+            GpxTrackPoint point = new GpxTrackPoint();
+            // Typical trkpt elements take 100 to 200 bytes.
+            Chunk out = new Chunk(limit / 128);
+            int p = 0;
+            while (!stopped) {
+                int found = GpxPointScanner.findElement(buffer, p, limit);
+                if (found < 0) {
+                    break;
+                }
+                int element = GpxPointScanner.elementAt(buffer, found);
+                int next;
+                if (element == GpxPointScanner.ELEMENT_MARKUP) {
+                    next = GpxPointScanner.skipMarkup(buffer, found, buffer.limit());
+                } else if (element == GpxPointScanner.ELEMENT_POINT) {
+                    next = scanner.parseTrackPoint(buffer, found, point);
+                } else {
+                    out.addEvent(element);
+                    p = found + 4;
+                    continue;
+                }
+                if (next < 0) {
+                    long remaining = Math.min(size - start, Integer.MAX_VALUE);
+                    if (mapped >= remaining) {
+                        // Truncated file.
+                        p = (int) remaining;
+                        break;
+                    }
+                    // The element is larger than the tail, map the rest.
+                    mapped = remaining;
+                    buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, mapped);
+                    continue;
+                }
+                if (element == GpxPointScanner.ELEMENT_POINT) {
+                    if (scanner.isValid()) {
+                        out.points.add(point);
+                    } else {
+                        out.addEvent(element);
+                    }
+                }
+                p = next;
+            }
+            out.scanned = start + p;
+            return out;
+        }
+    }
+}
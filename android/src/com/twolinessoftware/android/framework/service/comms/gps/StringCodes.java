@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.util.Arrays;
+
+/**
+ * Small dictionary interning the few distinct fix and sat strings of a track
+ * into one byte codes. Code 0 stands for null; values beyond the 255th
+ * distinct one are stored as null.
+ */
+class StringCodes {
+
+    static final int NO_CODE = 0;
+
+    private static final int MAX_CODES = 255;
+
+    private final String[] names = new String[StringCodes.MAX_CODES + 1];
+    private int count = 1;
+
+    /**
+     * Only called by the single writer of the owning track.
+     */
+    byte encode(String value) {
+        if (value == null) {
+            return StringCodes.NO_CODE;
+        }
+        for (int i = 1; i < count; i++) {
+            if (value.equals(names[i])) {
+                return (byte) i;
+            }
+        }
+        if (count > StringCodes.MAX_CODES) {
+            return StringCodes.NO_CODE;
+        }
+        names[count] = value;
+        return (byte) count++;
+    }
+
+    String decode(byte code) {
+        return names[code & 0xff];
+    }
+
+    /**
+     * @return Number of interned values, codes 1..size().
+     */
+    int size() {
+        return count - 1;
+    }
+
+    void clear() {
+        Arrays.fill(names, null);
+        count = 1;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+/**
+ * Points of a track, filled by one parser thread and read by index by the
+ * playback threads. Indices are absolute: the first parsed point is 0 even
+ * when an implementation only keeps a window of the track in memory.
+ *
+ * Readable indices are firstIndex() (inclusive) to size() (exclusive). A
+ * point is fully written before size() includes it.
+ */
+public interface Track {
+
+    /**
+     * Appends a copy of the point. May block the parser until the consumer
+     * has released room.
+     *
+     * @return false if the track has been closed and the parser should stop.
+     */
+    boolean add(GpxTrackPoint point);
+
+    /**
+     * Called by the parser after the last point.
+     */
+    void finish();
+
+    /**
+     * Stops accepting points and wakes up a blocked parser.
+     */
+    void close();
+
+    /**
+     * Tells the track that points before index are no longer needed by the
+     * consumer.
+     */
+    void release(int index);
+
+    int firstIndex();
+
+    int size();
+
+    boolean isEmpty();
+
+    /**
+     * @return true once the parser has delivered every point.
+     */
+    boolean isComplete();
+
+    double getLat(int index);
+
+    double getLon(int index);
+
+    long getTime(int index);
+
+    double getEle(int index);
+
+    double getCourse(int index);
+
+    double getSpeed(int index);
+
+    /**
+     * @return Horizontal dilution of precision, or 0 if unknown.
+     */
+    double getHdop(int index);
+
+    String getFix(int index);
+
+    String getSat(int index);
+
+    /**
+     * @return The track and segment boundaries of the points added so far.
+     *         The parser marks them with start() before adding the first
+     *         point of a segment.
+     */
+    TrackSegments getSegments();
+
+    /**
+     * @return Approximate number of bytes held for the points, on the heap
+     *         or in a mapping.
+     */
+    long getMemoryUsage();
+}
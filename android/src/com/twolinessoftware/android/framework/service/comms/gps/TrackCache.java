@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Binary sidecar of a parsed track, so that reloading a file needs no parsing.
+ * Layout, big endian:
+ *
+ * <pre>
+ * int    MAGIC
+ * int    VERSION
+ * long   length of the source file
+ * long   last modification time of the source file
+ * int    point count
+ * int    number of fix names, followed by that many UTF strings
+ * int    number of sat names, followed by that many UTF strings
+ * int    number of segments, followed by the index of their first points
+ * int    number of tracks, followed by the index of their first segments
+ * 0-7    bytes of padding to an 8 byte boundary
+ * double lat[count], double lon[count], long time[count],
+ * float  ele[count], float course[count], float speed[count], float hdop[count],
+ * byte   fix[count], byte sat[count]
+ * int    END_MAGIC
+ * </pre>
+ *
+ * A cache whose source length or time differs, or whose size does not match
+ * the header, is treated as stale and rebuilt.
+ */
+public final class TrackCache {
+
+    static final int MAGIC = 0x47505843;
+    static final int END_MAGIC = 0x43585047;
+    static final int VERSION = 3;
+
+    /**
+     * Bytes per point over all columns.
+     */
+    static final int POINT_BYTES = 8 + 8 + 8 + 4 + 4 + 4 + 4 + 1 + 1;
+
+    /**
+     * Largest track that still fits a single mapping.
+     */
+    static final int MAX_POINTS = (Integer.MAX_VALUE - (64 * 1024)) / TrackCache.POINT_BYTES;
+
+    private static final String SUFFIX = ".trkcache";
+
+    private TrackCache() {
+    }
+
+    /**
+     * @return The sidecar next to the source, or a file in fallbackDir if the
+     *         source directory is not writable.
+     */
+    public static File cacheFileFor(File source, File fallbackDir) {
+        File parent = source.getAbsoluteFile().getParentFile();
+        if ((parent != null) && parent.canWrite()) {
+            return new File(parent, source.getName() + TrackCache.SUFFIX);
+        }
+        return new File(fallbackDir, Integer.toHexString(source.getAbsolutePath().hashCode()) + TrackCache.SUFFIX);
+    }
+
+    /**
+     * Maps the cache of source.
+     *
+     * @return The cached track, or null if there is no valid cache. An
+     *         invalid cache file is deleted.
+     */
+    public static Track open(File source, File cacheFile) {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(cacheFile, "r");
+            FileChannel channel = file.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Cache too large");
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if ((buffer.getInt() != TrackCache.MAGIC) || (buffer.getInt() != TrackCache.VERSION)
+                    || (buffer.getLong() != source.length()) || (buffer.getLong() != source.lastModified())) {
+                throw new IOException("Stale cache");
+            }
+            int count = buffer.getInt();
+            String[] fixNames = TrackCache.readNames(buffer);
+            String[] satNames = TrackCache.readNames(buffer);
+            int[] segmentStarts = TrackCache.readStarts(buffer, Math.max(1, count));
+            int[] trackStarts = TrackCache.readStarts(buffer, segmentStarts.length);
+            int columns = TrackCache.align(buffer.position());
+            if ((count < 0) || (size != (columns + ((long) count * TrackCache.POINT_BYTES) + 4))
+                    || (buffer.getInt((int) size - 4) != TrackCache.END_MAGIC)) {
+                throw new IOException("Corrupt cache");
+            }
+            return new MappedTrack(buffer, columns, count, fixNames, satNames, new TrackSegments(segmentStarts, trackStarts));
+        } catch (Exception e) {
+            cacheFile.delete();
+            return null;
+        } finally {
+            if (file != null) {
+                try {
+                    // The mapping stays valid after the channel is closed.
+                    file.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+        }
+    }
+
+    private static String[] readNames(ByteBuffer buffer) throws IOException {
+        int count = buffer.getInt();
+        if ((count < 0) || (count > 256)) {
+            throw new IOException("Corrupt dictionary");
+        }
+        String[] names = new String[count + 1];
+        for (int i = 1; i <= count; i++) {
+            byte[] utf = new byte[buffer.getShort() & 0xffff];
+            buffer.get(utf);
+            names[i] = new String(utf, "UTF-8");
+        }
+        return names;
+    }
+
+    /**
+     * @return Ascending indices starting with 0, all below bound.
+     */
+    private static int[] readStarts(ByteBuffer buffer, int bound) throws IOException {
+        int count = buffer.getInt();
+        if ((count < 1) || (count > bound)) {
+            throw new IOException("Corrupt segments");
+        }
+        int[] starts = new int[count];
+        for (int i = 0; i < count; i++) {
+            starts[i] = buffer.getInt();
+            if ((i == 0) ? (starts[i] != 0) : ((starts[i] <= starts[i - 1]) || (starts[i] >= bound))) {
+                throw new IOException("Corrupt segments");
+            }
+        }
+        return starts;
+    }
+
+    static int align(int offset) {
+        return (offset + 7) & ~7;
+    }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes a TrackCache while a file is being parsed. Every column is streamed
+ * to its own temporary file in a private directory, so memory use does not
+ * depend on the track length, and finish() concatenates them behind the
+ * header into a file next to the cache, which is renamed once it is
+ * complete. Only that file, under a fixed name that the next write
+ * replaces, can be left next to the cache by a crash.
+ *
+ * Write errors never reach the parser; the cache is just dropped.
+ */
+public class TrackCacheWriter {
+
+    private static final int LAT = 0;
+    private static final int LON = 1;
+    private static final int TIME = 2;
+    private static final int ELE = 3;
+    private static final int COURSE = 4;
+    private static final int SPEED = 5;
+    private static final int HDOP = 6;
+    private static final int FIX = 7;
+    private static final int SAT = 8;
+    private static final int COLUMNS = 9;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final String COLUMN_PREFIX = "trkcolumn";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File target;
+    private final long sourceLength;
+    private final long sourceModified;
+    private final File[] columnFiles = new File[TrackCacheWriter.COLUMNS];
+    private final DataOutputStream[] columns = new DataOutputStream[TrackCacheWriter.COLUMNS];
+    private final StringCodes fixNames = new StringCodes();
+    private final StringCodes satNames = new StringCodes();
+    private int count;
+    private boolean failed;
+
+    /**
+     * @param tempDir
+     *            Directory of the column files, e.g. the app's cache
+     *            directory, never the one of the user's tracks.
+     */
+    public TrackCacheWriter(File source, File target, File tempDir) throws IOException {
+        this.target = target;
+        sourceLength = source.length();
+        sourceModified = source.lastModified();
+        try {
+            for (int i = 0; i < TrackCacheWriter.COLUMNS; i++) {
+                columnFiles[i] = File.createTempFile(TrackCacheWriter.COLUMN_PREFIX, TrackCacheWriter.TEMP_SUFFIX, tempDir);
+                columns[i] = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(columnFiles[i]),
+                        TrackCacheWriter.BUFFER_SIZE));
+            }
+        } catch (IOException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    public void add(GpxTrackPoint point) {
+        if (failed) {
+            return;
+        }
+        if (count >= TrackCache.MAX_POINTS) {
+            abort();
+            return;
+        }
+        try {
+            columns[TrackCacheWriter.LAT].writeDouble(point.getLat());
+            columns[TrackCacheWriter.LON].writeDouble(point.getLon());
+            columns[TrackCacheWriter.TIME].writeLong(point.getTime());
+            columns[TrackCacheWriter.ELE].writeFloat((float) point.getEle());
+            columns[TrackCacheWriter.COURSE].writeFloat((float) point.getCourse());
+            columns[TrackCacheWriter.SPEED].writeFloat((float) point.getSpeed());
+            columns[TrackCacheWriter.HDOP].writeFloat((float) point.getHdop());
+            columns[TrackCacheWriter.FIX].writeByte(fixNames.encode(point.getFix()));
+            columns[TrackCacheWriter.SAT].writeByte(satNames.encode(point.getSat()));
+            count++;
+        } catch (IOException e) {
+            abort();
+        }
+    }
+
+    /**
+     * Assembles the cache file.
+     *
+     * @param segments
+     *            Boundaries of the points added, usually those of the track
+     *            they were added to.
+     * @return true if the cache was written.
+     */
+    public boolean finish(TrackSegments segments) {
+        if (failed) {
+            return false;
+        }
+        File assembled = null;
+        FileOutputStream out = null;
+        try {
+            closeColumns();
+            // Next to the target, renaming across file systems fails.
+            assembled = new File(target.getPath() + TrackCacheWriter.TEMP_SUFFIX);
+            out = new FileOutputStream(assembled);
+            DataOutputStream header = new DataOutputStream(new BufferedOutputStream(out, TrackCacheWriter.BUFFER_SIZE));
+            header.writeInt(TrackCache.MAGIC);
+            header.writeInt(TrackCache.VERSION);
+            header.writeLong(sourceLength);
+            header.writeLong(sourceModified);
+            header.writeInt(count);
+            TrackCacheWriter.writeNames(header, fixNames);
+            TrackCacheWriter.writeNames(header, satNames);
+            TrackCacheWriter.writeStarts(header, segments.copySegmentStarts());
+            TrackCacheWriter.writeStarts(header, segments.copyTrackStarts());
+            for (int i = header.size(); i < TrackCache.align(header.size()); i++) {
+                header.writeByte(0);
+            }
+            header.flush();
+
+            FileChannel channel = out.getChannel();
+            for (File columnFile : columnFiles) {
+                FileInputStream in = new FileInputStream(columnFile);
+                try {
+                    FileChannel column = in.getChannel();
+                    long position = 0;
+                    long size = column.size();
+                    while (position < size) {
+                        position += column.transferTo(position, size - position, channel);
+                    }
+                } finally {
+                    in.close();
+                }
+            }
+            header.writeInt(TrackCache.END_MAGIC);
+            header.flush();
+            out.getFD().sync();
+            out.close();
+            out = null;
+            if (!assembled.renameTo(target)) {
+                throw new IOException("Unable to rename " + assembled + " to " + target);
+            }
+            return true;
+        } catch (IOException e) {
+            failed = true;
+            if (assembled != null) {
+                assembled.delete();
+            }
+            return false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // Ignore.
+                }
+            }
+            deleteColumns();
+        }
+    }
+
+    /**
+     * Drops the partially written cache.
+     */
+    public void abort() {
+        failed = true;
+        try {
+            closeColumns();
+        } catch (IOException e) {
+            // Ignore.
+        }
+        deleteColumns();
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Deletes the column files left in tempDir by writers that never
+     * finished, e.g. because the process was killed. Call before any writer
+     * is created.
+     */
+    public static void deleteTemporaryFiles(File tempDir) {
+        File[] files = tempDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith(TrackCacheWriter.COLUMN_PREFIX) && name.endsWith(TrackCacheWriter.TEMP_SUFFIX)) {
+                file.delete();
+            }
+        }
+    }
+
+    private void closeColumns() throws IOException {
+        IOException error = null;
+        for (int i = 0; i < TrackCacheWriter.COLUMNS; i++) {
+            if (columns[i] != null) {
+                try {
+                    columns[i].close();
+                } catch (IOException e) {
+                    error = e;
+                }
+                columns[i] = null;
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void deleteColumns() {
+        for (File columnFile : columnFiles) {
+            if (columnFile != null) {
+                columnFile.delete();
+            }
+        }
+    }
+
+    private static void writeStarts(DataOutputStream out, int[] starts) throws IOException {
+        out.writeInt(starts.length);
+        for (int start : starts) {
+            out.writeInt(start);
+        }
+    }
+
+    private static void writeNames(DataOutputStream out, StringCodes names) throws IOException {
+        out.writeInt(names.size());
+        for (int i = 1; i <= names.size(); i++) {
+            byte[] utf = names.decode((byte) i).getBytes("UTF-8");
+            out.writeShort(utf.length);
+            out.write(utf);
+        }
+    }
+}
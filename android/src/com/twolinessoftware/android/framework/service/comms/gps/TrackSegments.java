@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.util.Arrays;
+
+/**
+ * Boundaries of the tracks (trk) and segments (trkseg) of a Track, kept as
+ * two offset arrays instead of nested lists: the index of the first point of
+ * every segment, and the index of the first segment of every track. Points
+ * before the first boundary form track 0, segment 0, so a file without any,
+ * e.g. an NMEA log, is a single segment. Empty segments are dropped.
+ *
+ * Written by the parser thread and read by any number of threads, like
+ * TrackStore. The arrays grow with the number of segments, not points.
+ */
+public class TrackSegments {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] segmentStarts;
+    private int[] trackStarts;
+    private volatile int segmentCount = 1;
+    private volatile int trackCount = 1;
+
+    /**
+     * A boundary seen by the parser, waiting for the next point.
+     */
+    private boolean pending;
+    private boolean pendingTrack;
+
+    public TrackSegments() {
+        segmentStarts = new int[TrackSegments.INITIAL_CAPACITY];
+        trackStarts = new int[TrackSegments.INITIAL_CAPACITY];
+    }
+
+    /**
+     * Complete boundaries, e.g. read from a TrackCache or generated.
+     *
+     * @param segmentStarts
+     *            First point of every segment, starting with 0.
+     * @param trackStarts
+     *            First segment of every track, starting with 0.
+     */
+    public TrackSegments(int[] segmentStarts, int[] trackStarts) {
+        this.segmentStarts = segmentStarts;
+        this.trackStarts = trackStarts;
+        segmentCount = segmentStarts.length;
+        trackCount = trackStarts.length;
+    }
+
+    /**
+     * Makes the next point added the first of a new segment, and of a new
+     * track if newTrack.
+     */
+    public void start(boolean newTrack) {
+        pending = true;
+        pendingTrack |= newTrack;
+    }
+
+    /**
+     * @return true if start() has been called since the last point.
+     */
+    boolean isPending() {
+        return pending;
+    }
+
+    boolean isPendingTrack() {
+        return pendingTrack;
+    }
+
+    /**
+     * Called by the track before it publishes the point at index.
+     */
+    void onAdd(int index) {
+        if (!pending) {
+            return;
+        }
+        boolean newTrack = pendingTrack;
+        pending = false;
+        pendingTrack = false;
+        int segments = segmentCount;
+        if (index <= segmentStarts[segments - 1]) {
+            // Nothing in the current segment yet.
+            return;
+        }
+        if (segments == segmentStarts.length) {
+            segmentStarts = Arrays.copyOf(segmentStarts, segments * 2);
+        }
+        segmentStarts[segments] = index;
+        int tracks = trackCount;
+        if (newTrack && (tracks == trackStarts.length)) {
+            trackStarts = Arrays.copyOf(trackStarts, tracks * 2);
+        }
+        if (newTrack) {
+            trackStarts[tracks] = segments;
+        }
+        // Publish the segment before the track that refers to it.
+        segmentCount = segments + 1;
+        if (newTrack) {
+            trackCount = tracks + 1;
+        }
+    }
+
+    public int getSegmentCount() {
+        return segmentCount;
+    }
+
+    public int getTrackCount() {
+        return trackCount;
+    }
+
+    /**
+     * @return Index of the first point of the segment.
+     */
+    public int getSegmentStart(int segment) {
+        return segmentStarts[segment];
+    }
+
+    /**
+     * @return Index after the last point of the segment, or -1 if it is the
+     *         last one and ends with the track.
+     */
+    public int getSegmentEnd(int segment) {
+        return (segment + 1) < segmentCount ? segmentStarts[segment + 1] : -1;
+    }
+
+    /**
+     * @return Index of the first segment of the track.
+     */
+    public int getTrackStart(int track) {
+        return trackStarts[track];
+    }
+
+    /**
+     * @return Index after the last segment of the track.
+     */
+    public int getTrackEnd(int track) {
+        return (track + 1) < trackCount ? trackStarts[track + 1] : segmentCount;
+    }
+
+    /**
+     * @return The segment the point at index belongs to.
+     */
+    public int segmentOf(int index) {
+        return TrackSegments.floor(segmentStarts, segmentCount, index);
+    }
+
+    /**
+     * @return The track the segment belongs to.
+     */
+    public int trackOf(int segment) {
+        return TrackSegments.floor(trackStarts, trackCount, segment);
+    }
+
+    /**
+     * @return true if the point at index starts a segment other than the
+     *         first, i.e. the point before it ends a segment.
+     */
+    public boolean isSegmentStart(int index) {
+        int count = segmentCount;
+        if ((count == 1) || (index <= 0)) {
+            return false;
+        }
+        int segment = TrackSegments.floor(segmentStarts, count, index);
+        return segmentStarts[segment] == index;
+    }
+
+    /**
+     * @return true if the segment is the first of its track.
+     */
+    public boolean isTrackStart(int segment) {
+        return trackStarts[trackOf(segment)] == segment;
+    }
+
+    /**
+     * @return Copies of the offset arrays, for a TrackCache.
+     */
+    int[] copySegmentStarts() {
+        return Arrays.copyOf(segmentStarts, segmentCount);
+    }
+
+    int[] copyTrackStarts() {
+        return Arrays.copyOf(trackStarts, trackCount);
+    }
+
+    /**
+     * @return Position of the last value in the first count of the sorted
+     *         values that is at most key, 0 if there is none.
+     */
+    private static int floor(int[] values, int count, int key) {
+        int low = 0;
+        int high = count - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (values[mid] <= key) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+import java.util.Arrays;
+
+/**
+ * Columnar track storage. Every field of a track point lives in its own
+ * primitive array so that a point costs a few dozen bytes instead of a
+ * GpxTrackPoint object graph. The fix and satellite strings are interned
+ * into one byte codes through small per-store dictionaries.
+ *
+ * The store is written by a single parser thread and read by any number of
+ * threads. Values are written before the volatile size is advanced, so a
+ * reader that checks size() first always sees fully written points. The
+ * whole track is kept, see TrackWindow for a bounded alternative.
+ */
+public class TrackStore implements Track {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private double[] lats;
+    private double[] lons;
+    private long[] times;
+    private float[] eles;
+    private float[] courses;
+    private float[] speeds;
+    private float[] hdops;
+    private byte[] fixes;
+    private byte[] sats;
+
+    private final StringCodes fixNames = new StringCodes();
+    private final StringCodes satNames = new StringCodes();
+    private TrackSegments segments = new TrackSegments();
+
+    private volatile int size;
+    private volatile boolean complete;
+    private volatile boolean closed;
+
+    public TrackStore() {
+        this(TrackStore.INITIAL_CAPACITY);
+    }
+
+    public TrackStore(int initialCapacity) {
+        allocate(Math.max(1, initialCapacity));
+    }
+
+    private void allocate(int capacity) {
+        lats = new double[capacity];
+        lons = new double[capacity];
+        times = new long[capacity];
+        eles = new float[capacity];
+        courses = new float[capacity];
+        speeds = new float[capacity];
+        hdops = new float[capacity];
+        fixes = new byte[capacity];
+        sats = new byte[capacity];
+    }
+
+    private void ensureCapacity(int required) {
+        int capacity = lats.length;
+        if (required <= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(required, capacity + (capacity >> 1));
+        lats = Arrays.copyOf(lats, newCapacity);
+        lons = Arrays.copyOf(lons, newCapacity);
+        times = Arrays.copyOf(times, newCapacity);
+        eles = Arrays.copyOf(eles, newCapacity);
+        courses = Arrays.copyOf(courses, newCapacity);
+        speeds = Arrays.copyOf(speeds, newCapacity);
+        hdops = Arrays.copyOf(hdops, newCapacity);
+        fixes = Arrays.copyOf(fixes, newCapacity);
+        sats = Arrays.copyOf(sats, newCapacity);
+    }
+
+    /**
+     * Appends a copy of the given point. The point itself is not retained.
+     */
+    @Override
+    public boolean add(GpxTrackPoint point) {
+        if (closed) {
+            return false;
+        }
+        add(point.getLat(), point.getLon(), point.getEle(), point.getTime(), point.getCourse(), point.getSpeed(), point.getHdop(),
+                point.getFix(), point.getSat());
+        return true;
+    }
+
+    public synchronized void add(double lat, double lon, double ele, long time, double course, double speed, double hdop, String fix,
+            String sat) {
+        int index = size;
+        ensureCapacity(index + 1);
+        lats[index] = lat;
+        lons[index] = lon;
+        times[index] = time;
+        eles[index] = (float) ele;
+        courses[index] = (float) course;
+        speeds[index] = (float) speed;
+        hdops[index] = (float) hdop;
+        fixes[index] = fixNames.encode(fix);
+        sats[index] = satNames.encode(sat);
+        segments.onAdd(index);
+        // Publish the point.
+        size = index + 1;
+    }
+
+    /**
+     * Marks the track complete and releases the unused tail of the columns.
+     */
+    @Override
+    public void finish() {
+        trimToSize();
+        complete = true;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public void release(int index) {
+        // Everything is kept.
+    }
+
+    @Override
+    public int firstIndex() {
+        return 0;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * Drops all points. Must only be called while nobody is reading the
+     * store.
+     */
+    public synchronized void clear() {
+        size = 0;
+        complete = false;
+        closed = false;
+        allocate(TrackStore.INITIAL_CAPACITY);
+        fixNames.clear();
+        satNames.clear();
+        segments = new TrackSegments();
+    }
+
+    /**
+     * Releases the unused tail of the columns once parsing has ended.
+     */
+    public synchronized void trimToSize() {
+        int count = Math.max(1, size);
+        if (count < lats.length) {
+            lats = Arrays.copyOf(lats, count);
+            lons = Arrays.copyOf(lons, count);
+            times = Arrays.copyOf(times, count);
+            eles = Arrays.copyOf(eles, count);
+            courses = Arrays.copyOf(courses, count);
+            speeds = Arrays.copyOf(speeds, count);
+            hdops = Arrays.copyOf(hdops, count);
+            fixes = Arrays.copyOf(fixes, count);
+            sats = Arrays.copyOf(sats, count);
+        }
+    }
+
+    /**
+     * @return Approximate number of bytes held by the columns.
+     */
+    @Override
+    public long getMemoryUsage() {
+        // 8 + 8 + 8 for lat, lon and time, 4 * 4 for the floats and 2 for the
+        // codes.
+        return 42L * lats.length;
+    }
+
+    @Override
+    public double getLat(int index) {
+        return lats[index];
+    }
+
+    @Override
+    public double getLon(int index) {
+        return lons[index];
+    }
+
+    @Override
+    public long getTime(int index) {
+        return times[index];
+    }
+
+    @Override
+    public double getEle(int index) {
+        return eles[index];
+    }
+
+    @Override
+    public double getCourse(int index) {
+        return courses[index];
+    }
+
+    @Override
+    public double getSpeed(int index) {
+        return speeds[index];
+    }
+
+    @Override
+    public double getHdop(int index) {
+        return hdops[index];
+    }
+
+    @Override
+    public String getFix(int index) {
+        return fixNames.decode(fixes[index]);
+    }
+
+    @Override
+    public String getSat(int index) {
+        return satNames.decode(sats[index]);
+    }
+
+    @Override
+    public TrackSegments getSegments() {
+        return segments;
+    }
+
+    /**
+     * Copies the point at index into the given instance.
+     *
+     * @return The filled in point.
+     */
+    public GpxTrackPoint get(int index, GpxTrackPoint point) {
+        point.setLat(lats[index]);
+        point.setLon(lons[index]);
+        point.setEle(eles[index]);
+        point.setTime(times[index]);
+        point.setCourse(courses[index]);
+        point.setSpeed(speeds[index]);
+        point.setHdop(hdops[index]);
+        point.setFix(getFix(index));
+        point.setSat(getSat(index));
+        return point;
+    }
+}
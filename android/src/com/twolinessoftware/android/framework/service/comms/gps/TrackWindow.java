@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.comms.gps;
+
+/**
+ * Bounded columnar ring buffer between a streaming parser and the ticker.
+ * Only the points from firstIndex() on are kept. When the window is full the
+ * parser blocks in add() until the consumer calls release(), so memory stays
+ * at the window size however large the file is.
+ *
+ * Readers must not access indices below what they have released.
+ */
+public class TrackWindow implements Track {
+
+    private final int capacity;
+    private final int mask;
+
+    private final double[] lats;
+    private final double[] lons;
+    private final long[] times;
+    private final float[] eles;
+    private final float[] courses;
+    private final float[] speeds;
+    private final float[] hdops;
+    private final byte[] fixes;
+    private final byte[] sats;
+
+    private final StringCodes fixNames = new StringCodes();
+    private final StringCodes satNames = new StringCodes();
+    private final TrackSegments segments = new TrackSegments();
+
+    private final Object lock = new Object();
+    private boolean producerWaiting;
+
+    private volatile int first;
+    private volatile int size;
+    private volatile boolean complete;
+    private volatile boolean closed;
+
+    /**
+     * @param minCapacity
+     *            Number of points to keep, rounded up to a power of two.
+     */
+    public TrackWindow(int minCapacity) {
+        capacity = Integer.highestOneBit(Math.max(2, minCapacity - 1)) << 1;
+        mask = capacity - 1;
+        lats = new double[capacity];
+        lons = new double[capacity];
+        times = new long[capacity];
+        eles = new float[capacity];
+        courses = new float[capacity];
+        speeds = new float[capacity];
+        hdops = new float[capacity];
+        fixes = new byte[capacity];
+        sats = new byte[capacity];
+    }
+
+    @Override
+    public boolean add(GpxTrackPoint point) {
+        int index = size;
+        synchronized (lock) {
+            while (!closed && ((index - first) >= capacity)) {
+                producerWaiting = true;
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                } finally {
+                    producerWaiting = false;
+                }
+            }
+            if (closed) {
+                return false;
+            }
+        }
+        int slot = index & mask;
+        lats[slot] = point.getLat();
+        lons[slot] = point.getLon();
+        times[slot] = point.getTime();
+        eles[slot] = (float) point.getEle();
+        courses[slot] = (float) point.getCourse();
+        speeds[slot] = (float) point.getSpeed();
+        hdops[slot] = (float) point.getHdop();
+        fixes[slot] = fixNames.encode(point.getFix());
+        sats[slot] = satNames.encode(point.getSat());
+        segments.onAdd(index);
+        // Publish the point.
+        size = index + 1;
+        return true;
+    }
+
+    @Override
+    public void finish() {
+        complete = true;
+    }
+
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void release(int index) {
+        if (index <= first) {
+            return;
+        }
+        synchronized (lock) {
+            int target = Math.min(index, size);
+            if (target > first) {
+                first = target;
+                if (producerWaiting) {
+                    lock.notifyAll();
+                }
+            }
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Approximate number of bytes held by the ring, which does not
+     *         grow.
+     */
+    @Override
+    public long getMemoryUsage() {
+        // Same columns as TrackStore.
+        return 42L * capacity;
+    }
+
+    @Override
+    public int firstIndex() {
+        return first;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == first;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public double getLat(int index) {
+        return lats[index & mask];
+    }
+
+    @Override
+    public double getLon(int index) {
+        return lons[index & mask];
+    }
+
+    @Override
+    public long getTime(int index) {
+        return times[index & mask];
+    }
+
+    @Override
+    public double getEle(int index) {
+        return eles[index & mask];
+    }
+
+    @Override
+    public double getCourse(int index) {
+        return courses[index & mask];
+    }
+
+    @Override
+    public double getSpeed(int index) {
+        return speeds[index & mask];
+    }
+
+    @Override
+    public double getHdop(int index) {
+        return hdops[index & mask];
+    }
+
+    @Override
+    public String getFix(int index) {
+        return fixNames.decode(fixes[index & mask]);
+    }
+
+    @Override
+    public String getSat(int index) {
+        return satNames.decode(sats[index & mask]);
+    }
+
+    /**
+     * @return Boundaries of the whole track, including the part that has
+     *         been released.
+     */
+    @Override
+    public TrackSegments getSegments() {
+        return segments;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free histogram of non-negative values, typically nanoseconds, in the
+ * style of HdrHistogram: every power of two is split into SUB_BUCKETS linear
+ * buckets, so any recorded value is known to within about 3% with a fixed
+ * 10 kB of counts. Recording is a handful of uncontended atomic operations
+ * and never allocates, so it can stay on in the emission path.
+ *
+ * Values are clamped to 0..MAX_VALUE. Percentiles are read from a Snapshot,
+ * which may miss values recorded while it is taken.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << Histogram.SUB_BUCKET_BITS;
+
+    /**
+     * Largest value told apart from larger ones, about 4.9 hours in
+     * nanoseconds.
+     */
+    public static final long MAX_VALUE = (1L << 44) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(Histogram.indexOf(Histogram.MAX_VALUE) + 1);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long value) {
+        long clamped = Math.max(0, Math.min(Histogram.MAX_VALUE, value));
+        counts.incrementAndGet(Histogram.indexOf(clamped));
+        count.incrementAndGet();
+        sum.addAndGet(clamped);
+        long current = max.get();
+        while ((clamped > current) && !max.compareAndSet(current, clamped)) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Clears the histogram. Values recorded concurrently may be half
+     * cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[counts.length()];
+        long total = 0;
+        for (int i = 0; i < copy.length; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    /**
+     * Values below SUB_BUCKETS have a bucket each. Above that, the top
+     * SUB_BUCKET_BITS + 1 bits of the value select the bucket within its
+     * power of two.
+     */
+    static int indexOf(long value) {
+        if (value < Histogram.SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - Histogram.SUB_BUCKET_BITS;
+        return (shift << Histogram.SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    /**
+     * @return The largest value that falls into the bucket at index.
+     */
+    static long highestValueAt(int index) {
+        int shift = (index >>> Histogram.SUB_BUCKET_BITS) - 1;
+        if (shift < 0) {
+            return index;
+        }
+        long lowest = (long) (Histogram.SUB_BUCKETS + (index & (Histogram.SUB_BUCKETS - 1))) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * Counts of a histogram at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile
+         *            0 to 100.
+         * @return The value at or below which the given percentage of the
+         *         recorded values fall, rounded up to the end of its bucket
+         *         but never above the maximum. 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long target = Math.max(1, (long) Math.ceil((Math.min(100, Math.max(0, percentile)) / 100) * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target) {
+                    return Math.min(max, Histogram.highestValueAt(i));
+                }
+            }
+            return max;
+        }
+    }
+}
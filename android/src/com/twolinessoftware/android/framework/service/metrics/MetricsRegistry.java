@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.metrics;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Named counters, gauges and histograms. Metrics are looked up once, when
+ * their owner is created, and then updated through their own objects, so
+ * the registry is never on a hot path. Names are dotted, e.g.
+ * "gps.tick.lateness".
+ *
+ * A snapshot flattens every metric into longs: a histogram NAME becomes
+ * NAME.count, NAME.mean, NAME.p50 .. NAME.p999 and NAME.max.
+ */
+public class MetricsRegistry {
+
+    /**
+     * A value computed when the metrics are read, e.g. memory in use.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    public static final String COUNT = ".count";
+    public static final String MEAN = ".mean";
+    public static final String P50 = ".p50";
+    public static final String P90 = ".p90";
+    public static final String P99 = ".p99";
+    public static final String P999 = ".p999";
+    public static final String MAX = ".max";
+
+    private final Map<String, Object> metrics = new ConcurrentHashMap<String, Object>();
+
+    /**
+     * @return The counter with the given name, created if needed.
+     * @throws IllegalArgumentException
+     *             If the name is taken by another kind of metric.
+     */
+    public Counter counter(String name) {
+        synchronized (metrics) {
+            Object metric = metrics.get(name);
+            if (metric == null) {
+                metric = new Counter();
+                metrics.put(name, metric);
+            }
+            return MetricsRegistry.cast(name, metric, Counter.class);
+        }
+    }
+
+    /**
+     * @return The histogram with the given name, created if needed.
+     * @throws IllegalArgumentException
+     *             If the name is taken by another kind of metric.
+     */
+    public Histogram histogram(String name) {
+        synchronized (metrics) {
+            Object metric = metrics.get(name);
+            if (metric == null) {
+                metric = new Histogram();
+                metrics.put(name, metric);
+            }
+            return MetricsRegistry.cast(name, metric, Histogram.class);
+        }
+    }
+
+    /**
+     * Registers a gauge, replacing any previous gauge of the same name.
+     *
+     * @throws IllegalArgumentException
+     *             If the name is taken by another kind of metric.
+     */
+    public void gauge(String name, Gauge gauge) {
+        synchronized (metrics) {
+            Object metric = metrics.get(name);
+            if (metric != null) {
+                MetricsRegistry.cast(name, metric, Gauge.class);
+            }
+            metrics.put(name, gauge);
+        }
+    }
+
+    private static <T> T cast(String name, Object metric, Class<T> type) {
+        if (!type.isInstance(metric)) {
+            throw new IllegalArgumentException(name + " is a " + metric.getClass().getSimpleName() + ", not a " + type.getSimpleName());
+        }
+        return type.cast(metric);
+    }
+
+    /**
+     * Resets all counters and histograms.
+     */
+    public void reset() {
+        for (Object metric : metrics.values()) {
+            if (metric instanceof Counter) {
+                ((Counter) metric).reset();
+            } else if (metric instanceof Histogram) {
+                ((Histogram) metric).reset();
+            }
+        }
+    }
+
+    /**
+     * @return Current values by name, sorted.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> values = new TreeMap<String, Long>();
+        for (Map.Entry<String, Object> entry : metrics.entrySet()) {
+            String name = entry.getKey();
+            Object metric = entry.getValue();
+            if (metric instanceof Counter) {
+                values.put(name, ((Counter) metric).get());
+            } else if (metric instanceof Gauge) {
+                values.put(name, ((Gauge) metric).getValue());
+            } else {
+                Histogram.Snapshot histogram = ((Histogram) metric).snapshot();
+                values.put(name + MetricsRegistry.COUNT, histogram.getCount());
+                values.put(name + MetricsRegistry.MEAN, Math.round(histogram.getMean()));
+                values.put(name + MetricsRegistry.P50, histogram.getValueAtPercentile(50));
+                values.put(name + MetricsRegistry.P90, histogram.getValueAtPercentile(90));
+                values.put(name + MetricsRegistry.P99, histogram.getValueAtPercentile(99));
+                values.put(name + MetricsRegistry.P999, histogram.getValueAtPercentile(99.9));
+                values.put(name + MetricsRegistry.MAX, histogram.getMax());
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Writes the snapshot as "name value" lines.
+     */
+    public void dump(Writer out) throws IOException {
+        for (Map.Entry<String, Long> entry : snapshot().entrySet()) {
+            out.write(entry.getKey());
+            out.write(' ');
+            out.write(Long.toString(entry.getValue()));
+            out.write('\n');
+        }
+        out.flush();
+    }
+}
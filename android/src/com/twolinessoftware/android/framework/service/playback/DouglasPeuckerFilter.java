@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+/**
+ * Douglas-Peucker simplification: keeps the point farthest from the line
+ * between the kept ends of a stretch while it is farther than the
+ * tolerance, then repeats for both halves. Runs per window, see
+ * WindowedFilter, with an explicit stack instead of recursion.
+ */
+public class DouglasPeuckerFilter extends WindowedFilter {
+
+    private final double tolerance;
+    private final int[] stack;
+
+    /**
+     * @param tolerance
+     *            Largest distance in meters of a dropped point from the
+     *            simplified line.
+     */
+    public DouglasPeuckerFilter(double tolerance) {
+        this(tolerance, WindowedFilter.DEFAULT_WINDOW);
+    }
+
+    public DouglasPeuckerFilter(double tolerance, int window) {
+        super(window);
+        this.tolerance = tolerance;
+        // Pairs of indices, at most one pair per point.
+        stack = new int[2 * Math.max(3, window)];
+    }
+
+    @Override
+    protected void simplify(int count) {
+        double limit = tolerance * tolerance;
+        int top = 0;
+        stack[top++] = 0;
+        stack[top++] = count - 1;
+        while (top > 0) {
+            int last = stack[--top];
+            int first = stack[--top];
+            int farthest = -1;
+            double farthestDistance = limit;
+            for (int i = first + 1; i < last; i++) {
+                double distance = segmentDistanceSquared(i, first, last);
+                if (distance > farthestDistance) {
+                    farthestDistance = distance;
+                    farthest = i;
+                }
+            }
+            if (farthest < 0) {
+                continue;
+            }
+            keep[farthest] = true;
+            stack[top++] = first;
+            stack[top++] = farthest;
+            stack[top++] = farthest;
+            stack[top++] = last;
+        }
+    }
+
+    /**
+     * @return Squared distance of point i from the segment between a and b.
+     */
+    private double segmentDistanceSquared(int i, int a, int b) {
+        double dx = x[b] - x[a];
+        double dy = y[b] - y[a];
+        double px = x[i] - x[a];
+        double py = y[i] - y[a];
+        double length = (dx * dx) + (dy * dy);
+        if (length > 0) {
+            double t = Math.max(0, Math.min(1, ((px * dx) + (py * dy)) / length));
+            px -= t * dx;
+            py -= t * dy;
+        }
+        return (px * px) + (py * py);
+    }
+}
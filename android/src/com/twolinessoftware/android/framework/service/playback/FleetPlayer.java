@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Plays back many vehicles, each one a complete track or a copy of one
+ * started at another point or later, on a single TimerWheel. Vehicles are
+ * ids into primitive arrays (track, cursor, due time and time shift), so a
+ * vehicle costs a few dozen bytes and an emission is a handful of array
+ * reads, and ten thousand vehicles at 1 Hz take a small part of one core.
+ *
+ * As a PlaybackScheduler.Task every run is one wheel tick of tickMillis
+ * track time, so the scheduler's speed multiplier applies to the whole
+ * fleet. The recorded points are played back without interpolation.
+ *
+ * Not thread-safe: add the vehicles before starting, run() on one thread.
+ */
+public class FleetPlayer implements PlaybackScheduler.Task {
+
+    public static final long DEFAULT_TICK_MILLIS = 10;
+
+    /**
+     * Wheel slots, a revolution of about ten seconds at the default tick.
+     */
+    private static final int WHEEL_SLOTS = 1024;
+
+    /**
+     * Receives the locations of all vehicles, on the thread calling run().
+     */
+    public interface Sink {
+
+        /**
+         * @param time
+         *            Track time of the point in milliseconds since the epoch,
+         *            shifted by the start delay of the vehicle and by the
+         *            track duration for each loop so that it never goes back.
+         *            0 if unknown.
+         */
+        void onLocation(int vehicle, long time, double lat, double lon, double ele, double bearing, double speed, double hdop);
+    }
+
+    private final Sink sink;
+    private final long tickMillis;
+    private final boolean loop;
+    private final TimerWheel wheel = new TimerWheel(FleetPlayer.WHEEL_SLOTS);
+    private final TimerWheel.Handler emitter = new TimerWheel.Handler() {
+        @Override
+        public void expired(int vehicle) {
+            emit(vehicle);
+        }
+    };
+
+    private final List<Track> tracks = new ArrayList<Track>();
+    private final Map<Track, Integer> trackIds = new IdentityHashMap<Track, Integer>();
+
+    private int count;
+    private int[] trackOf = new int[16];
+    private int[] cursor = new int[16];
+    /**
+     * Track time of the next emission, in milliseconds since the start.
+     */
+    private long[] dueMillis = new long[16];
+    private long[] timeShift = new long[16];
+    private int active;
+    private long emitted;
+
+    /**
+     * @param loop
+     *            Start vehicles over at the end of their track instead of
+     *            retiring them.
+     */
+    public FleetPlayer(Sink sink, long tickMillis, boolean loop) {
+        this.sink = sink;
+        this.tickMillis = Math.max(1, tickMillis);
+        this.loop = loop;
+    }
+
+    /**
+     * Adds a vehicle playing back the track from startIndex, with its first
+     * point emitted startDelayMillis of track time after the fleet starts.
+     *
+     * @return The id of the vehicle, ids are consecutive from 0.
+     * @throws IllegalArgumentException
+     *             If the track is incomplete or empty.
+     */
+    public int addVehicle(Track track, int startIndex, long startDelayMillis) {
+        if (!track.isComplete() || track.isEmpty() || (track.firstIndex() != 0)) {
+            throw new IllegalArgumentException("Fleet tracks must be complete");
+        }
+        Integer trackId = trackIds.get(track);
+        if (trackId == null) {
+            trackId = tracks.size();
+            tracks.add(track);
+            trackIds.put(track, trackId);
+        }
+        int vehicle = count++;
+        if (vehicle >= trackOf.length) {
+            int capacity = trackOf.length * 2;
+            trackOf = Arrays.copyOf(trackOf, capacity);
+            cursor = Arrays.copyOf(cursor, capacity);
+            dueMillis = Arrays.copyOf(dueMillis, capacity);
+            timeShift = Arrays.copyOf(timeShift, capacity);
+        }
+        long delay = Math.max(0, startDelayMillis);
+        trackOf[vehicle] = trackId;
+        cursor[vehicle] = Math.max(0, Math.min(track.size() - 1, startIndex));
+        timeShift[vehicle] = delay;
+        long start = (wheel.getTick() * tickMillis) + delay;
+        dueMillis[vehicle] = start;
+        wheel.schedule(vehicle, ticksFor(start));
+        active++;
+        return vehicle;
+    }
+
+    public int getVehicleCount() {
+        return count;
+    }
+
+    /**
+     * @return Vehicles that have not reached the end of their track.
+     */
+    public int getActiveCount() {
+        return active;
+    }
+
+    public long getEmitted() {
+        return emitted;
+    }
+
+    /**
+     * Plays back one tick.
+     *
+     * @return tickMillis, or STOP when no vehicle is left.
+     */
+    @Override
+    public long run() {
+        if (active == 0) {
+            return PlaybackScheduler.STOP;
+        }
+        wheel.advance(emitter);
+        return tickMillis;
+    }
+
+    /**
+     * @return The wheel tick at which a point due at millis is emitted.
+     */
+    private long ticksFor(long millis) {
+        return (millis + tickMillis - 1) / tickMillis;
+    }
+
+    private void emit(int vehicle) {
+        Track track = tracks.get(trackOf[vehicle]);
+        int index = cursor[vehicle];
+        long time = track.getTime(index);
+        sink.onLocation(vehicle, time > 0 ? time + timeShift[vehicle] : 0, track.getLat(index), track.getLon(index),
+                track.getEle(index), track.getCourse(index), track.getSpeed(index), track.getHdop(index));
+        emitted++;
+
+        int next = index + 1;
+        long delay;
+        if (next < track.size()) {
+            long to = track.getTime(next);
+            delay = (time > 0) && (to > time) ? to - time : TrackPlayer.DEFAULT_DELAY;
+        } else if (loop) {
+            next = 0;
+            delay = TrackPlayer.DEFAULT_DELAY;
+            long first = track.getTime(0);
+            if ((time > 0) && (first > 0)) {
+                timeShift[vehicle] += (time - first) + delay;
+            }
+        } else {
+            active--;
+            return;
+        }
+        cursor[vehicle] = next;
+        long due = dueMillis[vehicle] + delay;
+        dueMillis[vehicle] = due;
+        wheel.schedule(vehicle, ticksFor(due));
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+/**
+ * Running statistics of how late emissions were compared to their planned
+ * time. Early emissions are recorded as negative lateness.
+ */
+public class LatenessStats {
+
+    /**
+     * Emissions later than this are counted as late.
+     */
+    public static final long LATE_THRESHOLD_NANOS = 5000000L;
+
+    private long count;
+    private long lateCount;
+    private long sumNanos;
+    private double sumSquares;
+    private long minNanos;
+    private long maxNanos;
+    private long lastNanos;
+
+    public synchronized void record(long latenessNanos) {
+        if (count == 0) {
+            minNanos = latenessNanos;
+            maxNanos = latenessNanos;
+        } else {
+            minNanos = Math.min(minNanos, latenessNanos);
+            maxNanos = Math.max(maxNanos, latenessNanos);
+        }
+        count++;
+        sumNanos += latenessNanos;
+        sumSquares += (double) latenessNanos * latenessNanos;
+        lastNanos = latenessNanos;
+        if (latenessNanos > LatenessStats.LATE_THRESHOLD_NANOS) {
+            lateCount++;
+        }
+    }
+
+    public synchronized void reset() {
+        count = 0;
+        lateCount = 0;
+        sumNanos = 0;
+        sumSquares = 0;
+        minNanos = 0;
+        maxNanos = 0;
+        lastNanos = 0;
+    }
+
+    public synchronized long getCount() {
+        return count;
+    }
+
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    public synchronized long getMinNanos() {
+        return minNanos;
+    }
+
+    public synchronized long getMaxNanos() {
+        return maxNanos;
+    }
+
+    public synchronized long getLastNanos() {
+        return lastNanos;
+    }
+
+    public synchronized double getMeanNanos() {
+        return count == 0 ? 0 : (double) sumNanos / count;
+    }
+
+    public synchronized double getStdDevNanos() {
+        if (count == 0) {
+            return 0;
+        }
+        double mean = (double) sumNanos / count;
+        return Math.sqrt(Math.max(0, (sumSquares / count) - (mean * mean)));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "n=" + count + " late=" + lateCount + " mean=" + (getMeanNanos() / 1000000) + "ms max=" + (maxNanos / 1000000.0) + "ms";
+    }
+}
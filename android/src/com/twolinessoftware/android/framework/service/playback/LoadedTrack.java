@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * A track together with its seek indexes and playback cursor. Published as a
+ * whole through one volatile field, so that no thread ever pairs the cursor
+ * or an index of one file with the points of another. The track itself is
+ * append-only, see Track.
+ */
+public final class LoadedTrack {
+
+    public final Track track;
+    public final TimeIndex timeIndex = new TimeIndex();
+    /**
+     * null for a streamed track whose points are mostly gone.
+     */
+    public final SpatialIndex spatialIndex;
+    public final PlaybackCursor cursor = new PlaybackCursor();
+
+    public LoadedTrack(Track track, SpatialIndex spatialIndex) {
+        this.track = track;
+        this.spatialIndex = spatialIndex;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+/**
+ * Monotonic time source for the playback engine. On a device this is
+ * SystemClock.elapsedRealtimeNanos(), which keeps counting in deep sleep.
+ */
+public interface PlaybackClock {
+
+    /**
+     * Clock backed by System.nanoTime(), for use off-device.
+     */
+    PlaybackClock SYSTEM = new PlaybackClock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    long nanoTime();
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Index of the point being played back, shared by the ticker and any number
+ * of seeking threads without locks. Seeks always win: the ticker only moves
+ * on with compareAndSet() from the index it has just played back, so a seek
+ * made in between is never overwritten. Relative moves are compare-and-set
+ * loops, so concurrent moves all take effect.
+ *
+ * Indices are clamped to the readable points of the track, or wrapped around
+ * when wrap is requested and the whole track is available.
+ */
+public class PlaybackCursor {
+
+    private final AtomicInteger index = new AtomicInteger();
+
+    public int get() {
+        return index.get();
+    }
+
+    /**
+     * Moves the cursor to the given index.
+     *
+     * @return The index actually set.
+     */
+    public int set(Track track, long newIndex, boolean wrap) {
+        int fitted = PlaybackCursor.fit(track, newIndex, wrap);
+        index.set(fitted);
+        return fitted;
+    }
+
+    /**
+     * Moves the cursor by delta points.
+     *
+     * @return The index actually set.
+     */
+    public int moveBy(Track track, long delta, boolean wrap) {
+        while (true) {
+            int current = index.get();
+            int fitted = PlaybackCursor.fit(track, current + delta, wrap);
+            if (index.compareAndSet(current, fitted)) {
+                return fitted;
+            }
+        }
+    }
+
+    /**
+     * Moves the cursor from expect to newIndex, e.g. from the point just
+     * played back to the next one.
+     *
+     * @return false if the cursor was moved by someone else in the meantime,
+     *         in which case it is left alone.
+     */
+    public boolean compareAndSet(Track track, int expect, long newIndex, boolean wrap) {
+        return index.compareAndSet(expect, PlaybackCursor.fit(track, newIndex, wrap));
+    }
+
+    /**
+     * @return newIndex clamped or wrapped into firstIndex() .. size() - 1 of
+     *         the track, or firstIndex() if the track has no points yet.
+     *         Wrapping only happens for a complete track that starts at 0.
+     */
+    public static int fit(Track track, long newIndex, boolean wrap) {
+        int first = track.firstIndex();
+        int count = track.size();
+        if (count <= first) {
+            return first;
+        }
+        if (wrap && track.isComplete() && (first == 0)) {
+            long wrapped = newIndex % count;
+            return (int) (wrapped < 0 ? wrapped + count : wrapped);
+        }
+        return (int) Math.max(first, Math.min(count - 1, newIndex));
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import com.twolinessoftware.android.framework.service.metrics.Counter;
+import com.twolinessoftware.android.framework.service.metrics.Histogram;
+import com.twolinessoftware.android.framework.service.metrics.MetricsRegistry;
+
+/**
+ * Runs a Task at the pace given by the track timestamps instead of at a
+ * fixed rate. Every run returns the track time until the next run, which is
+ * scaled by the speed multiplier and added to the previous planned time, so
+ * executor jitter never accumulates. Each emission is rescheduled against
+ * the PlaybackClock and its lateness is recorded in LatenessStats, and in
+ * the metrics below when a MetricsRegistry is given:
+ *
+ * PREFIX.tick.lateness - histogram of the lateness in nanoseconds, early
+ * emissions count as 0.
+ * PREFIX.tick.count, PREFIX.tick.late - emissions, and those later than
+ * LatenessStats.LATE_THRESHOLD_NANOS.
+ * PREFIX.tick.reanchored - emissions so late that the schedule was
+ * re-anchored instead of catching up.
+ */
+public class PlaybackScheduler {
+
+    public static final float MIN_SPEED = 0.5f;
+    public static final float MAX_SPEED = 50f;
+
+    /**
+     * Returned by Task.run() to stop the schedule.
+     */
+    public static final long STOP = -1;
+
+    /**
+     * If an emission is later than this (e.g. after the device was
+     * suspended), the schedule is re-anchored instead of bursting through
+     * all the missed points.
+     */
+    private static final long MAX_CATCH_UP_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    public interface Task {
+        /**
+         * Emits the current point.
+         *
+         * @return Track time in milliseconds until the next emission, or
+         *         STOP.
+         */
+        long run();
+    }
+
+    private final ScheduledExecutorService executor;
+    private final PlaybackClock clock;
+    private final Task task;
+    private final LatenessStats stats = new LatenessStats();
+    private final Histogram lateness;
+    private final Counter ticks;
+    private final Counter lateTicks;
+    private final Counter reanchoredTicks;
+
+    private volatile float speed = 1f;
+    private volatile boolean running;
+    /**
+     * Incremented by start() and stop(). A tick of an older chain, e.g. one
+     * that was already running when the schedule was restarted, drops out
+     * instead of scheduling a second chain.
+     */
+    private volatile int generation;
+    /**
+     * Held for the whole of a tick, and taken by start() and stop() before
+     * the scheduler itself, so that a restart waits for the run in flight
+     * and runs of the old and the new chain never overlap.
+     */
+    private final Object runLock = new Object();
+    private long targetNanos;
+    private ScheduledFuture<?> future;
+
+    /**
+     * One emission of the chain started by the given generation.
+     */
+    private final class Tick implements Runnable {
+
+        private final int chain;
+
+        Tick(int chain) {
+            this.chain = chain;
+        }
+
+        @Override
+        public void run() {
+            synchronized (runLock) {
+                if (chain != generation) {
+                    return;
+                }
+                long latenessNanos = clock.nanoTime() - targetNanos;
+                stats.record(latenessNanos);
+                lateness.record(latenessNanos);
+                ticks.increment();
+                if (latenessNanos > LatenessStats.LATE_THRESHOLD_NANOS) {
+                    lateTicks.increment();
+                }
+                long delayMillis = task.run();
+                if (delayMillis == PlaybackScheduler.STOP) {
+                    end(this);
+                    return;
+                }
+                scheduleNext(this, delayMillis);
+            }
+        }
+    }
+
+    public PlaybackScheduler(ScheduledExecutorService executor, PlaybackClock clock, Task task) {
+        this(executor, clock, task, new MetricsRegistry(), "");
+    }
+
+    /**
+     * @param prefix
+     *            Prepended to the metric names, e.g. "gps.".
+     */
+    public PlaybackScheduler(ScheduledExecutorService executor, PlaybackClock clock, Task task, MetricsRegistry metrics,
+            String prefix) {
+        this.executor = executor;
+        this.clock = clock;
+        this.task = task;
+        lateness = metrics.histogram(prefix + "tick.lateness");
+        ticks = metrics.counter(prefix + "tick.count");
+        lateTicks = metrics.counter(prefix + "tick.late");
+        reanchoredTicks = metrics.counter(prefix + "tick.reanchored");
+    }
+
+    /**
+     * Starts the schedule, the first emission happens after the given delay
+     * of wall time. Waits for a run of the previous schedule in flight.
+     */
+    public void start(long initialDelayMillis) {
+        synchronized (runLock) {
+            synchronized (this) {
+                stop();
+                running = true;
+                targetNanos = clock.nanoTime() + TimeUnit.MILLISECONDS.toNanos(initialDelayMillis);
+                future = executor.schedule(new Tick(generation), initialDelayMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stops the schedule. Waits for a run in flight, unless called from the
+     * task itself.
+     */
+    public void stop() {
+        synchronized (runLock) {
+            synchronized (this) {
+                generation++;
+                running = false;
+                if (future != null) {
+                    future.cancel(false);
+                    future = null;
+                }
+            }
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Ends the chain of the tick if it is still the current one.
+     */
+    private synchronized void end(Tick tick) {
+        if (tick.chain == generation) {
+            running = false;
+        }
+    }
+
+    private synchronized void scheduleNext(Tick tick, long trackDelayMillis) {
+        if (tick.chain != generation) {
+            return;
+        }
+        targetNanos += (long) (TimeUnit.MILLISECONDS.toNanos(Math.max(0, trackDelayMillis)) / speed);
+        long now = clock.nanoTime();
+        if ((now - targetNanos) > PlaybackScheduler.MAX_CATCH_UP_NANOS) {
+            targetNanos = now;
+            reanchoredTicks.increment();
+        }
+        future = executor.schedule(tick, targetNanos - now, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Sets the playback speed multiplier, clamped to MIN_SPEED..MAX_SPEED.
+     * Takes effect from the next scheduled emission.
+     */
+    public void setSpeed(float newSpeed) {
+        speed = Math.max(PlaybackScheduler.MIN_SPEED, Math.min(PlaybackScheduler.MAX_SPEED, newSpeed));
+    }
+
+    public float getSpeed() {
+        return speed;
+    }
+
+    public LatenessStats getLatenessStats() {
+        return stats;
+    }
+}
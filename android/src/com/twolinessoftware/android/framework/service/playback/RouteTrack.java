@@ -0,0 +1,480 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * A track driven along the waypoints of GPX routes (rte) or waypoint lists
+ * (wpt), which have no usable timestamps. The parser adds the waypoints;
+ * finish() plans the speed of every leg between them with the Profile, and
+ * only then the track becomes readable, as a point every step milliseconds.
+ *
+ * The points are never materialized: an index is mapped to its route and leg
+ * by binary search and the position is computed from the plan when read, so
+ * the memory used grows with the number of waypoints, not with the length of
+ * the drive. Every route becomes a track of a single segment, a step apart
+ * in time from the one before.
+ */
+public class RouteTrack implements Track {
+
+    /**
+     * How fast the legs are driven.
+     */
+    public enum Profile {
+        /**
+         * Every leg at the given speed.
+         */
+        CONSTANT,
+        /**
+         * Every leg at its own speed: in the time between its waypoints if
+         * both have one, else at the speed of its first waypoint, else at
+         * the given speed.
+         */
+        PER_LEG,
+        /**
+         * Like PER_LEG as a limit, but starting and stopping at every route
+         * end, slowing down for turns, and never speeding up or braking
+         * harder than the given acceleration.
+         */
+        ACCELERATION_LIMITED
+    }
+
+    /**
+     * m/s, about 36 km/h.
+     */
+    public static final double DEFAULT_SPEED = 10;
+    /**
+     * m/s^2.
+     */
+    public static final double DEFAULT_ACCELERATION = 1;
+    /**
+     * Milliseconds between generated points.
+     */
+    public static final long DEFAULT_STEP = 1000;
+
+    private final Profile profile;
+    private final double speed;
+    private final double acceleration;
+    private final long step;
+    private final long startTime;
+    private final TrackStore waypoints = new TrackStore();
+
+    /*
+     * The plan, written by finish() before planned is set. Routes are the
+     * segments of the waypoints; the leg arrays are indexed by the waypoint
+     * a leg starts at, the last waypoint of a route starts none.
+     */
+    private int[] routeFirst;
+    private int[] routeStarts;
+    private long[] routeTimes;
+    private long[] routeDurations;
+    private double[] legStarts;
+    private double[] lengths;
+    private double[] v0s;
+    private double[] peaks;
+    private double[] v1s;
+    private double[] accelerations;
+    private double[] decelerations;
+    private double[] durations;
+    private double[] bearings1;
+    private double[] bearings2;
+    private TrackSegments segments;
+    private int count;
+    private volatile boolean planned;
+
+    public RouteTrack() {
+        this(Profile.CONSTANT, RouteTrack.DEFAULT_SPEED, RouteTrack.DEFAULT_ACCELERATION, RouteTrack.DEFAULT_STEP, 0);
+    }
+
+    /**
+     * @param speed
+     *            In m/s, the speed of CONSTANT and the fallback of the other
+     *            profiles.
+     * @param acceleration
+     *            In m/s^2, used by ACCELERATION_LIMITED.
+     * @param step
+     *            Milliseconds between generated points.
+     * @param startTime
+     *            Time of the first point if the first waypoint has none.
+     *            Values that make no sense fall back to the defaults.
+     */
+    public RouteTrack(Profile profile, double speed, double acceleration, long step, long startTime) {
+        this.profile = profile != null ? profile : Profile.CONSTANT;
+        this.speed = speed > 0 ? speed : RouteTrack.DEFAULT_SPEED;
+        this.acceleration = acceleration > 0 ? acceleration : RouteTrack.DEFAULT_ACCELERATION;
+        this.step = step > 0 ? step : RouteTrack.DEFAULT_STEP;
+        this.startTime = startTime;
+    }
+
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return The waypoints added by the parser.
+     */
+    public Track getWaypoints() {
+        return waypoints;
+    }
+
+    @Override
+    public boolean add(GpxTrackPoint point) {
+        return waypoints.add(point);
+    }
+
+    /**
+     * Plans the routes and makes the generated points readable.
+     */
+    @Override
+    public void finish() {
+        waypoints.finish();
+        plan();
+        planned = true;
+    }
+
+    @Override
+    public void close() {
+        waypoints.close();
+    }
+
+    @Override
+    public void release(int index) {
+        // Nothing is held per point.
+    }
+
+    @Override
+    public int firstIndex() {
+        return 0;
+    }
+
+    @Override
+    public int size() {
+        return planned ? count : 0;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    @Override
+    public boolean isComplete() {
+        return planned;
+    }
+
+    private void plan() {
+        int total = waypoints.size();
+        TrackSegments routes = waypoints.getSegments();
+        int routeCount = total > 0 ? routes.getSegmentCount() : 0;
+        routeFirst = new int[routeCount + 1];
+        routeStarts = new int[routeCount];
+        routeTimes = new long[routeCount];
+        routeDurations = new long[routeCount];
+        legStarts = new double[total];
+        lengths = new double[total];
+        v0s = new double[total];
+        peaks = new double[total];
+        v1s = new double[total];
+        accelerations = new double[total];
+        decelerations = new double[total];
+        durations = new double[total];
+        bearings1 = new double[total];
+        bearings2 = new double[total];
+
+        long next = startTime;
+        long points = 0;
+        for (int r = 0; r < routeCount; r++) {
+            int first = routes.getSegmentStart(r);
+            int end = routes.getSegmentEnd(r);
+            int last = (end < 0 ? total : end) - 1;
+            routeFirst[r] = first;
+            planLegs(first, last);
+            double seconds = 0;
+            for (int i = first; i < last; i++) {
+                legStarts[i] = seconds;
+                seconds += durations[i];
+            }
+            // Rounded up, so that the last point is on the last waypoint.
+            long duration = (long) Math.ceil(seconds * 1000);
+            long recorded = waypoints.getTime(first);
+            if ((recorded > 0) && ((r == 0) || (recorded > next))) {
+                // Never before the end of the route before.
+                next = recorded;
+            }
+            routeStarts[r] = (int) points;
+            routeTimes[r] = next;
+            routeDurations[r] = duration;
+            points += ((duration + step - 1) / step) + 1;
+            next += duration + step;
+        }
+        routeFirst[routeCount] = total;
+        if (points > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Route too long for a step of " + step + " ms");
+        }
+        int[] trackStarts = new int[routeCount];
+        for (int r = 0; r < routeCount; r++) {
+            trackStarts[r] = r;
+        }
+        segments = new TrackSegments(routeCount > 0 ? routeStarts : new int[] { 0 }, routeCount > 0 ? trackStarts : new int[] { 0 });
+        count = (int) points;
+    }
+
+    /**
+     * Plans the legs between the waypoints first to last of a route.
+     */
+    private void planLegs(int first, int last) {
+        for (int i = first; i < last; i++) {
+            double lat1 = waypoints.getLat(i);
+            double lon1 = waypoints.getLon(i);
+            double lat2 = waypoints.getLat(i + 1);
+            double lon2 = waypoints.getLon(i + 1);
+            lengths[i] = TrackInterpolator.distance(lat1, lon1, lat2, lon2);
+            bearings1[i] = TrackInterpolator.bearing(lat1, lon1, lat2, lon2);
+            bearings2[i] = (TrackInterpolator.bearing(lat2, lon2, lat1, lon1) + 180) % 360;
+        }
+        if (profile != Profile.ACCELERATION_LIMITED) {
+            for (int i = first; i < last; i++) {
+                long recorded = waypoints.getTime(i + 1) - waypoints.getTime(i);
+                double v;
+                if ((profile == Profile.PER_LEG) && (waypoints.getTime(i) > 0) && (recorded > 0)) {
+                    // Driven in the recorded time, even if standing still.
+                    v = lengths[i] / (recorded / 1000.0);
+                    durations[i] = recorded / 1000.0;
+                } else {
+                    v = limit(i);
+                    durations[i] = lengths[i] / v;
+                }
+                v0s[i] = v;
+                peaks[i] = v;
+                v1s[i] = v;
+            }
+            return;
+        }
+        // Speeds at the waypoints: standing at both ends, slower the sharper
+        // the turn, then reachable from the one before and after.
+        double a = acceleration;
+        for (int i = first; i <= last; i++) {
+            if ((i == first) || (i == last)) {
+                v0s[i] = 0;
+                continue;
+            }
+            double turn = Math.toRadians(bearings1[i] - bearings2[i - 1]);
+            v0s[i] = Math.min(limit(i - 1), limit(i)) * ((1 + Math.cos(turn)) / 2);
+        }
+        for (int i = first; i < last; i++) {
+            v0s[i + 1] = Math.min(v0s[i + 1], Math.sqrt((v0s[i] * v0s[i]) + (2 * a * lengths[i])));
+        }
+        for (int i = last - 1; i >= first; i--) {
+            v0s[i] = Math.min(v0s[i], Math.sqrt((v0s[i + 1] * v0s[i + 1]) + (2 * a * lengths[i])));
+        }
+        // Then every leg is a trapezoid: speed up, cruise, slow down.
+        for (int i = first; i < last; i++) {
+            double v0 = v0s[i];
+            double v1 = v0s[i + 1];
+            double d = lengths[i];
+            double peak = Math.min(limit(i), Math.sqrt(((2 * a * d) + (v0 * v0) + (v1 * v1)) / 2));
+            peak = Math.max(peak, Math.max(v0, v1));
+            v1s[i] = v1;
+            peaks[i] = peak;
+            accelerations[i] = (peak - v0) / a;
+            decelerations[i] = (peak - v1) / a;
+            double cruise = d - (((peak * peak) - (v0 * v0)) / (2 * a)) - (((peak * peak) - (v1 * v1)) / (2 * a));
+            durations[i] = accelerations[i] + decelerations[i] + (peak > 0 ? Math.max(0, cruise) / peak : 0);
+        }
+    }
+
+    /**
+     * @return Speed limit of the leg starting at waypoint i.
+     */
+    private double limit(int i) {
+        double v = waypoints.getSpeed(i);
+        if ((profile != Profile.CONSTANT) && (v > 0)) {
+            return v;
+        }
+        return speed;
+    }
+
+    /**
+     * @return The route the point at index belongs to.
+     */
+    private int routeOf(int index) {
+        return segments.segmentOf(index);
+    }
+
+    /**
+     * @return Seconds since the start of its route of the point at index.
+     */
+    private double offset(int route, int index) {
+        long ms = Math.min((long) (index - routeStarts[route]) * step, routeDurations[route]);
+        return ms / 1000.0;
+    }
+
+    /**
+     * @return The leg driven at the given seconds into the route, or the
+     *         last waypoint of a route without legs.
+     */
+    private int legOf(int route, double seconds) {
+        int low = routeFirst[route];
+        int high = routeFirst[route + 1] - 2;
+        if (high < low) {
+            return low;
+        }
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (legStarts[mid] <= seconds) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private boolean isLeg(int route, int leg) {
+        return (leg + 1) < routeFirst[route + 1];
+    }
+
+    /**
+     * @return Meters driven on the leg after t seconds on it.
+     */
+    private double distanceAt(int leg, double t) {
+        double d = lengths[leg];
+        double ta = accelerations[leg];
+        double tc = durations[leg] - decelerations[leg];
+        double s;
+        if (t < ta) {
+            s = (v0s[leg] * t) + ((acceleration * t * t) / 2);
+        } else if (t < tc) {
+            s = (((peaks[leg] * peaks[leg]) - (v0s[leg] * v0s[leg])) / (2 * acceleration)) + (peaks[leg] * (t - ta));
+        } else {
+            double left = durations[leg] - t;
+            s = d - ((v1s[leg] * left) + ((acceleration * left * left) / 2));
+        }
+        return Math.max(0, Math.min(d, s));
+    }
+
+    /**
+     * @return Fraction of the leg covered by the point at index.
+     */
+    private double fraction(int route, int leg, int index) {
+        if (!isLeg(route, leg) || (lengths[leg] <= 0)) {
+            return 0;
+        }
+        double t = offset(route, index) - legStarts[leg];
+        return distanceAt(leg, Math.min(t, durations[leg])) / lengths[leg];
+    }
+
+    private double coordinate(int index, boolean latitude) {
+        int route = routeOf(index);
+        int leg = legOf(route, offset(route, index));
+        double f = fraction(route, leg, index);
+        if (!isLeg(route, leg) || (f >= 1)) {
+            int at = isLeg(route, leg) ? leg + 1 : leg;
+            return latitude ? waypoints.getLat(at) : waypoints.getLon(at);
+        }
+        return TrackInterpolator.intermediate(waypoints.getLat(leg), waypoints.getLon(leg), waypoints.getLat(leg + 1),
+                waypoints.getLon(leg + 1), f, latitude);
+    }
+
+    @Override
+    public double getLat(int index) {
+        return coordinate(index, true);
+    }
+
+    @Override
+    public double getLon(int index) {
+        return coordinate(index, false);
+    }
+
+    @Override
+    public long getTime(int index) {
+        int route = routeOf(index);
+        return routeTimes[route] + Math.min((long) (index - routeStarts[route]) * step, routeDurations[route]);
+    }
+
+    @Override
+    public double getEle(int index) {
+        int route = routeOf(index);
+        int leg = legOf(route, offset(route, index));
+        if (!isLeg(route, leg)) {
+            return waypoints.getEle(leg);
+        }
+        double f = fraction(route, leg, index);
+        return waypoints.getEle(leg) + ((waypoints.getEle(leg + 1) - waypoints.getEle(leg)) * f);
+    }
+
+    @Override
+    public double getCourse(int index) {
+        int route = routeOf(index);
+        int leg = legOf(route, offset(route, index));
+        if (!isLeg(route, leg)) {
+            return leg > routeFirst[route] ? bearings2[leg - 1] : 0;
+        }
+        return TrackInterpolator.interpolateBearing(bearings1[leg], bearings2[leg], fraction(route, leg, index));
+    }
+
+    @Override
+    public double getSpeed(int index) {
+        int route = routeOf(index);
+        int leg = legOf(route, offset(route, index));
+        if (!isLeg(route, leg)) {
+            return 0;
+        }
+        double t = offset(route, index) - legStarts[leg];
+        if (t < accelerations[leg]) {
+            return v0s[leg] + (acceleration * t);
+        } else if (t < (durations[leg] - decelerations[leg])) {
+            return peaks[leg];
+        }
+        return v1s[leg] + (acceleration * Math.max(0, durations[leg] - t));
+    }
+
+    @Override
+    public double getHdop(int index) {
+        return 0;
+    }
+
+    @Override
+    public String getFix(int index) {
+        return null;
+    }
+
+    @Override
+    public String getSat(int index) {
+        return null;
+    }
+
+    /**
+     * @return The routes as parsed until finish(), then the generated ones.
+     */
+    @Override
+    public TrackSegments getSegments() {
+        return planned ? segments : waypoints.getSegments();
+    }
+
+    /**
+     * @return Bytes held for the waypoints and the plan.
+     */
+    @Override
+    public long getMemoryUsage() {
+        long plan = planned ? (10L * 8 * lengths.length) + (28L * routeStarts.length) : 0;
+        return waypoints.getMemoryUsage() + plan;
+    }
+}
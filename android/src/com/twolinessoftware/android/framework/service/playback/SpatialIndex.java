@@ -0,0 +1,358 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.Arrays;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Two level lat/lon grid over the points of a track, for finding the point
+ * nearest to a coordinate. Only occupied cells are stored, in open
+ * addressing hash tables. The points of a cell are chained through one int
+ * per point, and the cells of a coarse cell through one int per cell, so the
+ * index costs about 4 bytes per point.
+ *
+ * A lookup searches rings of fine cells around the query until no closer
+ * point can exist. When the query is far from the track it visits the coarse
+ * cells instead, and only descends into those that may hold a closer point.
+ * Distances are equirectangular, which ranks points correctly at the scale
+ * of a cell; the grid does not wrap at the antimeridian.
+ *
+ * Like TimeIndex, the index follows a growing track through update(). The
+ * time spent indexing is available from getBuildNanos().
+ */
+public class SpatialIndex {
+
+    /**
+     * About 110 m of latitude.
+     */
+    public static final double DEFAULT_CELL_DEGREES = 0.001;
+
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int NONE = -1;
+    /**
+     * A coarse cell spans 1 << COARSE_SHIFT fine cells in each direction.
+     */
+    private static final int COARSE_SHIFT = 4;
+    /**
+     * Rings of fine cells searched around the query before falling back to
+     * the coarse cells.
+     */
+    private static final int MAX_RINGS = 8;
+
+    private final double cellDegrees;
+    private final double coarseDegrees;
+
+    private final CellTable cells = new CellTable();
+    private int[] cellHeads = new int[SpatialIndex.INITIAL_CAPACITY];
+    private int[] cellNext = new int[SpatialIndex.INITIAL_CAPACITY];
+
+    private final CellTable coarseCells = new CellTable();
+    private int[] coarseHeads = new int[SpatialIndex.INITIAL_CAPACITY];
+
+    private int[] next = new int[SpatialIndex.INITIAL_CAPACITY];
+    private int indexed;
+    private long buildNanos;
+
+    // State of the current lookup.
+    private Track track;
+    private int first;
+    private double lat;
+    private double lon;
+    private double cos;
+    private int best;
+    private double bestDistance;
+
+    public SpatialIndex() {
+        this(SpatialIndex.DEFAULT_CELL_DEGREES);
+    }
+
+    public SpatialIndex(double cellDegrees) {
+        this.cellDegrees = cellDegrees;
+        coarseDegrees = cellDegrees * (1 << SpatialIndex.COARSE_SHIFT);
+    }
+
+    /**
+     * Indexes the points added to the track since the last update. Points
+     * that a TrackWindow has already dropped are left out.
+     */
+    public synchronized void update(Track track) {
+        int count = track.size();
+        if (count <= indexed) {
+            return;
+        }
+        long start = System.nanoTime();
+        if (count > next.length) {
+            next = Arrays.copyOf(next, Math.max(count, next.length + (next.length >> 1)));
+        }
+        int firstIndex = track.firstIndex();
+        for (int i = indexed; i < count; i++) {
+            next[i] = SpatialIndex.NONE;
+            if (i < firstIndex) {
+                continue;
+            }
+            double pointLat = track.getLat(i);
+            double pointLon = track.getLon(i);
+            if (Double.isNaN(pointLat) || Double.isNaN(pointLon)) {
+                continue;
+            }
+            int cell = cellId(cell(pointLon, cellDegrees), cell(pointLat, cellDegrees));
+            next[i] = cellHeads[cell];
+            cellHeads[cell] = i;
+        }
+        indexed = count;
+        buildNanos += System.nanoTime() - start;
+    }
+
+    /**
+     * @return Number of points indexed.
+     */
+    public synchronized int size() {
+        return indexed;
+    }
+
+    /**
+     * @return Time spent in update() so far.
+     */
+    public synchronized long getBuildNanos() {
+        return buildNanos;
+    }
+
+    /**
+     * @return Index of the indexed point nearest to the coordinate, or -1 if
+     *         there is none.
+     */
+    public synchronized int nearest(Track track, double lat, double lon) {
+        this.track = track;
+        this.lat = lat;
+        this.lon = lon;
+        first = track.firstIndex();
+        cos = Math.cos(Math.toRadians(lat));
+        best = SpatialIndex.NONE;
+        bestDistance = Double.MAX_VALUE;
+        try {
+            if (cells.size() > 0) {
+                search();
+            }
+            return best;
+        } finally {
+            this.track = null;
+        }
+    }
+
+    private void search() {
+        int cx = cell(lon, cellDegrees);
+        int cy = cell(lat, cellDegrees);
+        for (int ring = 0; ring <= SpatialIndex.MAX_RINGS; ring++) {
+            for (int y = cy - ring; y <= (cy + ring); y++) {
+                boolean edge = (y == (cy - ring)) || (y == (cy + ring));
+                for (int x = cx - ring; x <= (cx + ring); x += edge ? 1 : 2 * ring) {
+                    searchCell(cells.get(CellTable.key(x, y)));
+                    if (ring == 0) {
+                        break;
+                    }
+                }
+            }
+            // Every cell outside this ring is at least ring cells away.
+            double bound = ring * cellDegrees * cos;
+            if ((best != SpatialIndex.NONE) && (bestDistance <= (bound * bound))) {
+                return;
+            }
+        }
+
+        // Far from the track. Start with the closest coarse cell for a good
+        // first candidate, then visit all coarse cells that may be closer.
+        int coarseCount = coarseCells.size();
+        int closest = 0;
+        double closestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < coarseCount; c++) {
+            double distance = cellDistance(coarseCells.keyAt(c), coarseDegrees);
+            if (distance < closestDistance) {
+                closestDistance = distance;
+                closest = c;
+            }
+        }
+        searchCoarseCell(closest);
+        for (int c = 0; c < coarseCount; c++) {
+            if ((c != closest) && (cellDistance(coarseCells.keyAt(c), coarseDegrees) < bestDistance)) {
+                searchCoarseCell(c);
+            }
+        }
+    }
+
+    private void searchCoarseCell(int coarse) {
+        for (int cell = coarseHeads[coarse]; cell != SpatialIndex.NONE; cell = cellNext[cell]) {
+            if (cellDistance(cells.keyAt(cell), cellDegrees) < bestDistance) {
+                searchCell(cell);
+            }
+        }
+    }
+
+    private void searchCell(int cell) {
+        if (cell == SpatialIndex.NONE) {
+            return;
+        }
+        for (int i = cellHeads[cell]; i != SpatialIndex.NONE; i = next[i]) {
+            if (i < first) {
+                // Dropped by a TrackWindow, and so is the rest of the chain.
+                break;
+            }
+            double dy = track.getLat(i) - lat;
+            double dx = (track.getLon(i) - lon) * cos;
+            double distance = (dx * dx) + (dy * dy);
+            if ((distance < bestDistance) || ((distance == bestDistance) && (i < best))) {
+                bestDistance = distance;
+                best = i;
+            }
+        }
+    }
+
+    /**
+     * @return Squared distance from the query to the nearest edge of the cell
+     *         with the given key and size.
+     */
+    private double cellDistance(long key, double size) {
+        double south = CellTable.y(key) * size;
+        double west = CellTable.x(key) * size;
+        double dy = Math.max(0, Math.max(south - lat, lat - (south + size)));
+        double dx = Math.max(0, Math.max(west - lon, lon - (west + size))) * cos;
+        return (dx * dx) + (dy * dy);
+    }
+
+    private static int cell(double degrees, double size) {
+        return (int) Math.floor(degrees / size);
+    }
+
+    /**
+     * @return Id of the fine cell, which is created and linked into its
+     *         coarse cell if needed.
+     */
+    private int cellId(int x, int y) {
+        long key = CellTable.key(x, y);
+        int cell = cells.get(key);
+        if (cell != SpatialIndex.NONE) {
+            return cell;
+        }
+        cell = cells.add(key);
+        if (cell >= cellHeads.length) {
+            int capacity = cellHeads.length * 2;
+            cellHeads = Arrays.copyOf(cellHeads, capacity);
+            cellNext = Arrays.copyOf(cellNext, capacity);
+        }
+        cellHeads[cell] = SpatialIndex.NONE;
+
+        long coarseKey = CellTable.key(x >> SpatialIndex.COARSE_SHIFT, y >> SpatialIndex.COARSE_SHIFT);
+        int coarse = coarseCells.get(coarseKey);
+        if (coarse == SpatialIndex.NONE) {
+            coarse = coarseCells.add(coarseKey);
+            if (coarse >= coarseHeads.length) {
+                coarseHeads = Arrays.copyOf(coarseHeads, coarseHeads.length * 2);
+            }
+            coarseHeads[coarse] = SpatialIndex.NONE;
+        }
+        cellNext[cell] = coarseHeads[coarse];
+        coarseHeads[coarse] = cell;
+        return cell;
+    }
+
+    /**
+     * Numbers the occupied cells of one grid level in order of appearance,
+     * through an open addressing table from cell key to id.
+     */
+    private static class CellTable {
+
+        private long[] keys = new long[SpatialIndex.INITIAL_CAPACITY];
+        private int[] slots;
+        private int size;
+
+        CellTable() {
+            allocate(SpatialIndex.INITIAL_CAPACITY * 2);
+        }
+
+        static long key(int x, int y) {
+            return ((long) y << 32) | (x & 0xffffffffL);
+        }
+
+        static int x(long key) {
+            return (int) key;
+        }
+
+        static int y(long key) {
+            return (int) (key >> 32);
+        }
+
+        int size() {
+            return size;
+        }
+
+        long keyAt(int id) {
+            return keys[id];
+        }
+
+        /**
+         * @return Id of the cell, or NONE.
+         */
+        int get(long key) {
+            int mask = slots.length - 1;
+            for (int slot = CellTable.hash(key) & mask;; slot = (slot + 1) & mask) {
+                int id = slots[slot];
+                if ((id == SpatialIndex.NONE) || (keys[id] == key)) {
+                    return id;
+                }
+            }
+        }
+
+        /**
+         * Adds a cell that is not in the table yet.
+         *
+         * @return Its id.
+         */
+        int add(long key) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+            }
+            if ((size + 1) > (slots.length >> 1)) {
+                allocate(slots.length * 2);
+                for (int id = 0; id < size; id++) {
+                    insert(id);
+                }
+            }
+            keys[size] = key;
+            insert(size);
+            return size++;
+        }
+
+        private void insert(int id) {
+            int mask = slots.length - 1;
+            int slot = CellTable.hash(keys[id]) & mask;
+            while (slots[slot] != SpatialIndex.NONE) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id;
+        }
+
+        private void allocate(int capacity) {
+            slots = new int[capacity];
+            Arrays.fill(slots, SpatialIndex.NONE);
+        }
+
+        private static int hash(long key) {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+
+/**
+ * Keeps a point when at least the interval has passed since the previous
+ * kept one. The first and the last point are always kept, as are points
+ * without a timestamp.
+ */
+public class TimeDecimationFilter extends TrackFilter {
+
+    private final long interval;
+    private final GpxTrackPoint pending = new GpxTrackPoint();
+    private boolean hasPending;
+    private boolean started;
+    private long lastKept;
+
+    /**
+     * @param interval
+     *            Minimum milliseconds between kept points.
+     */
+    public TimeDecimationFilter(long interval) {
+        this.interval = Math.max(0, interval);
+    }
+
+    @Override
+    protected void filter(GpxTrackPoint point) {
+        long time = point.getTime();
+        if (!started || (time <= 0) || ((time - lastKept) >= interval)) {
+            started = true;
+            hasPending = false;
+            if (time > 0) {
+                lastKept = time;
+            }
+            emit(point);
+            return;
+        }
+        // Held back in case it is the last one.
+        pending.set(point);
+        hasPending = true;
+    }
+
+    @Override
+    public void finish() {
+        if (hasPending) {
+            hasPending = false;
+            emit(pending);
+        }
+    }
+
+    @Override
+    public void split() {
+        finish();
+        started = false;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.Arrays;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Sparse index from track time to point index. Timestamps are taken as the
+ * running maximum of the recorded times, so missing (0) or out of order
+ * timestamps never break the ordering. Only the time at the start of every
+ * BLOCK_SIZE points is stored; a lookup binary searches these and then scans
+ * at most one block of the track, so it costs O(log(n / BLOCK_SIZE)) plus a
+ * constant, for 8 bytes per block.
+ *
+ * The index follows a growing track through update(), which only looks at
+ * the points added since the previous call. It may be shared between
+ * threads.
+ */
+public class TimeIndex {
+
+    public static final int BLOCK_SIZE = 256;
+
+    private static final int INITIAL_BLOCKS = 64;
+
+    private long[] blockTimes = new long[TimeIndex.INITIAL_BLOCKS];
+    private int indexed;
+    private long firstTime;
+    private long lastTime;
+
+    /**
+     * Indexes the points added to the track since the last update. Points
+     * that a TrackWindow has already dropped are indexed by their neighbours'
+     * times.
+     */
+    public synchronized void update(Track track) {
+        int count = track.size();
+        int first = track.firstIndex();
+        for (int i = indexed; i < count; i++) {
+            if (i >= first) {
+                long time = track.getTime(i);
+                if (time > lastTime) {
+                    if (firstTime <= 0) {
+                        firstTime = time;
+                    }
+                    lastTime = time;
+                }
+            }
+            if ((i % TimeIndex.BLOCK_SIZE) == 0) {
+                int block = i / TimeIndex.BLOCK_SIZE;
+                if (block >= blockTimes.length) {
+                    blockTimes = Arrays.copyOf(blockTimes, block + (block >> 1));
+                }
+                blockTimes[block] = lastTime;
+            }
+        }
+        indexed = Math.max(indexed, count);
+    }
+
+    /**
+     * @return Number of points indexed.
+     */
+    public synchronized int size() {
+        return indexed;
+    }
+
+    /**
+     * @return true if the indexed points carry timestamps.
+     */
+    public synchronized boolean hasTimes() {
+        return firstTime > 0;
+    }
+
+    /**
+     * @return Earliest timestamp of the indexed points, or 0.
+     */
+    public synchronized long getFirstTime() {
+        return firstTime;
+    }
+
+    /**
+     * @return Latest timestamp of the indexed points, or 0.
+     */
+    public synchronized long getLastTime() {
+        return lastTime;
+    }
+
+    /**
+     * Finds the point being played back at the given track time, that is the
+     * last point whose timestamp is not after it.
+     *
+     * @return Index between track.firstIndex() and size() - 1, or -1 if
+     *         nothing has been indexed.
+     */
+    public synchronized int indexOf(Track track, long time) {
+        if (indexed == 0) {
+            return -1;
+        }
+        int first = track.firstIndex();
+        // Last block that starts at or before time.
+        int blocks = ((indexed - 1) / TimeIndex.BLOCK_SIZE) + 1;
+        int low = 0;
+        int high = blocks - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (blockTimes[mid] <= time) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        int start = Math.max(first, low * TimeIndex.BLOCK_SIZE);
+        int end = Math.min(indexed, (low + 1) * TimeIndex.BLOCK_SIZE);
+        long running = blockTimes[low];
+        int result = start;
+        for (int i = start; i < end; i++) {
+            long t = track.getTime(i);
+            if (t > running) {
+                running = t;
+            }
+            if (running > time) {
+                break;
+            }
+            result = i;
+        }
+        return Math.min(result, indexed - 1);
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.Arrays;
+
+/**
+ * Hashed timer wheel of int ids, for scheduling many timers that each fire
+ * every few ticks. Timers live in intrusive singly linked lists in primitive
+ * arrays, one list per slot, so scheduling and expiring are O(1) and
+ * allocation free once the arrays have grown to the number of ids. A timer
+ * due more than one revolution ahead stays in its slot until its tick comes.
+ *
+ * Not thread-safe. Each id may be scheduled at most once at a time.
+ */
+public class TimerWheel {
+
+    /**
+     * Receives expired timers.
+     */
+    public interface Handler {
+        /**
+         * The timer of id has expired. May schedule it again.
+         */
+        void expired(int id);
+    }
+
+    private static final int NONE = -1;
+
+    private final int[] heads;
+    private final int mask;
+    private int[] next = new int[16];
+    private long[] due = new long[16];
+    private long currentTick;
+    private int size;
+
+    /**
+     * @param slots
+     *            Rounded up to a power of two. More slots than the usual delay
+     *            in ticks keeps every slot visit to due timers only.
+     */
+    public TimerWheel(int slots) {
+        int capacity = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        heads = new int[capacity];
+        Arrays.fill(heads, TimerWheel.NONE);
+        mask = capacity - 1;
+    }
+
+    /**
+     * @return The tick expired last.
+     */
+    public long getTick() {
+        return currentTick;
+    }
+
+    /**
+     * @return Number of scheduled timers.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Schedules id to expire at the given tick, or at the next tick if that
+     * has already passed.
+     */
+    public void schedule(int id, long tick) {
+        if (id >= next.length) {
+            int capacity = Math.max(id + 1, next.length * 2);
+            next = Arrays.copyOf(next, capacity);
+            due = Arrays.copyOf(due, capacity);
+        }
+        long at = Math.max(tick, currentTick + 1);
+        int slot = (int) (at & mask);
+        due[id] = at;
+        next[id] = heads[slot];
+        heads[slot] = id;
+        size++;
+    }
+
+    /**
+     * Moves on by one tick and hands every timer due at it to the handler.
+     */
+    public void advance(Handler handler) {
+        long tick = ++currentTick;
+        int slot = (int) (tick & mask);
+        int id = heads[slot];
+        heads[slot] = TimerWheel.NONE;
+        while (id != TimerWheel.NONE) {
+            int following = next[id];
+            if (due[id] <= tick) {
+                size--;
+                handler.expired(id);
+            } else {
+                // A later revolution.
+                next[id] = heads[slot];
+                heads[slot] = id;
+            }
+            id = following;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+
+/**
+ * Optional stage between the parser and the track that drops points the
+ * consumer does not need. Points are pushed through add() and the kept ones
+ * come out of the Output, in order, possibly later; finish() flushes what is
+ * still buffered. Memory is bounded by the filter, never by the track.
+ *
+ * Not thread-safe, runs on the parser thread.
+ */
+public abstract class TrackFilter {
+
+    /**
+     * Kinds of filter, see the implementations for their tolerance.
+     */
+    public enum Mode {
+        /**
+         * DouglasPeuckerFilter, tolerance in meters.
+         */
+        DOUGLAS_PEUCKER,
+        /**
+         * VisvalingamFilter, tolerance in square meters.
+         */
+        VISVALINGAM,
+        /**
+         * TimeDecimationFilter, tolerance in milliseconds.
+         */
+        TIME
+    }
+
+    /**
+     * Receives the kept points. Instances are reused, copy what is needed.
+     */
+    public interface Output {
+        void accept(GpxTrackPoint point);
+    }
+
+    private Output output;
+    private long inputCount;
+    private long outputCount;
+
+    /**
+     * @return A new filter of the given kind.
+     */
+    public static TrackFilter create(Mode mode, double tolerance) {
+        switch (mode) {
+            case DOUGLAS_PEUCKER:
+                return new DouglasPeuckerFilter(tolerance);
+            case VISVALINGAM:
+                return new VisvalingamFilter(tolerance);
+            default:
+                return new TimeDecimationFilter((long) tolerance);
+        }
+    }
+
+    /**
+     * Must be called before the first point.
+     */
+    public void setOutput(Output output) {
+        this.output = output;
+    }
+
+    public void add(GpxTrackPoint point) {
+        inputCount++;
+        filter(point);
+    }
+
+    /**
+     * Emits the points still buffered, after the last add().
+     */
+    public abstract void finish();
+
+    /**
+     * Called between two segments: emits what is buffered and starts over,
+     * so that no point is dropped or kept across the gap.
+     */
+    public void split() {
+        finish();
+    }
+
+    protected abstract void filter(GpxTrackPoint point);
+
+    protected void emit(GpxTrackPoint point) {
+        outputCount++;
+        output.accept(point);
+    }
+
+    public long getInputCount() {
+        return inputCount;
+    }
+
+    public long getOutputCount() {
+        return outputCount;
+    }
+
+    /**
+     * @return Points in per point out, e.g. 10 when one point in ten is
+     *         kept. 1 before any point has been kept.
+     */
+    public double getReductionRatio() {
+        return outputCount == 0 ? 1 : (double) inputCount / outputCount;
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Synthesizes positions between two recorded points. The position follows
+ * the great circle between the points, elevation and speed are linear and
+ * the bearing turns through the shorter angle. The result is kept in the
+ * instance so that a ticker can call interpolate() at a high rate without
+ * allocating.
+ */
+public class TrackInterpolator {
+
+    /**
+     * Below this angular distance (radians, about 1 mm) the points are
+     * treated as equal and interpolated linearly.
+     */
+    private static final double MIN_ANGLE = 1e-10;
+
+    /**
+     * Mean radius in meters.
+     */
+    private static final double EARTH_RADIUS = 6371000;
+
+    private double lat;
+    private double lon;
+    private double ele;
+    private double speed;
+    private double bearing;
+
+    /**
+     * Interpolates between the points at indices from and to.
+     *
+     * @param fraction
+     *            0 gives the from point, 1 gives the to point.
+     */
+    public void interpolate(Track track, int from, int to, double fraction) {
+        interpolate(track.getLat(from), track.getLon(from), track.getEle(from), track.getSpeed(from), track.getCourse(from),
+                track.getLat(to), track.getLon(to), track.getEle(to), track.getSpeed(to), track.getCourse(to), fraction);
+    }
+
+    public void interpolate(double lat1, double lon1, double ele1, double speed1, double bearing1, double lat2, double lon2,
+            double ele2, double speed2, double bearing2, double fraction) {
+        double f = Math.max(0, Math.min(1, fraction));
+        lat = TrackInterpolator.intermediate(lat1, lon1, lat2, lon2, f, true);
+        lon = TrackInterpolator.intermediate(lat1, lon1, lat2, lon2, f, false);
+        ele = ele1 + ((ele2 - ele1) * f);
+        speed = speed1 + ((speed2 - speed1) * f);
+        bearing = TrackInterpolator.interpolateBearing(bearing1, bearing2, f);
+    }
+
+    /**
+     * Thread-safe variant of interpolate() for a single coordinate.
+     *
+     * @return Latitude, or longitude if !latitude, of the point at fraction
+     *         f of the great circle from the first point to the second.
+     */
+    public static double intermediate(double lat1, double lon1, double lat2, double lon2, double f, boolean latitude) {
+        double phi1 = Math.toRadians(lat1);
+        double lambda1 = Math.toRadians(lon1);
+        double phi2 = Math.toRadians(lat2);
+        double lambda2 = Math.toRadians(lon2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin((lambda2 - lambda1) / 2);
+        double cosPhi1 = Math.cos(phi1);
+        double cosPhi2 = Math.cos(phi2);
+        double h = (sinDPhi * sinDPhi) + (cosPhi1 * cosPhi2 * sinDLambda * sinDLambda);
+        double delta = 2 * Math.atan2(Math.sqrt(h), Math.sqrt(Math.max(0, 1 - h)));
+        if (delta < TrackInterpolator.MIN_ANGLE) {
+            return latitude ? lat1 + ((lat2 - lat1) * f) : lon1 + ((lon2 - lon1) * f);
+        }
+        double sinDelta = Math.sin(delta);
+        double a = Math.sin((1 - f) * delta) / sinDelta;
+        double b = Math.sin(f * delta) / sinDelta;
+        double x = (a * cosPhi1 * Math.cos(lambda1)) + (b * cosPhi2 * Math.cos(lambda2));
+        double y = (a * cosPhi1 * Math.sin(lambda1)) + (b * cosPhi2 * Math.sin(lambda2));
+        if (!latitude) {
+            return Math.toDegrees(Math.atan2(y, x));
+        }
+        double z = (a * Math.sin(phi1)) + (b * Math.sin(phi2));
+        return Math.toDegrees(Math.atan2(z, Math.sqrt((x * x) + (y * y))));
+    }
+
+    /**
+     * @return Great circle distance between the points in meters.
+     */
+    public static double distance(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double sinDPhi = Math.sin((phi2 - phi1) / 2);
+        double sinDLambda = Math.sin(Math.toRadians(lon2 - lon1) / 2);
+        double h = (sinDPhi * sinDPhi) + (Math.cos(phi1) * Math.cos(phi2) * sinDLambda * sinDLambda);
+        return 2 * TrackInterpolator.EARTH_RADIUS * Math.atan2(Math.sqrt(h), Math.sqrt(Math.max(0, 1 - h)));
+    }
+
+    /**
+     * @return Initial bearing in 0..360 degrees of the great circle from the
+     *         first point to the second.
+     */
+    public static double bearing(double lat1, double lon1, double lat2, double lon2) {
+        double phi1 = Math.toRadians(lat1);
+        double phi2 = Math.toRadians(lat2);
+        double dLambda = Math.toRadians(lon2 - lon1);
+        double y = Math.sin(dLambda) * Math.cos(phi2);
+        double x = (Math.cos(phi1) * Math.sin(phi2)) - (Math.sin(phi1) * Math.cos(phi2) * Math.cos(dLambda));
+        double b = Math.toDegrees(Math.atan2(y, x));
+        return b < 0 ? b + 360 : b;
+    }
+
+    /**
+     * @return Bearing in 0..360 degrees, turning from b1 towards b2 through
+     *         the shorter angle.
+     */
+    public static double interpolateBearing(double b1, double b2, double f) {
+        double diff = ((((b2 - b1) % 360) + 540) % 360) - 180;
+        double b = (b1 + (diff * f)) % 360;
+        return b < 0 ? b + 360 : b;
+    }
+
+    public double getLat() {
+        return lat;
+    }
+
+    public double getLon() {
+        return lon;
+    }
+
+    public double getEle() {
+        return ele;
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+
+    public double getBearing() {
+        return bearing;
+    }
+}
@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.nio.channels.FileChannel;
+
+import com.twolinessoftware.android.framework.service.comms.FileTrackSource;
+import com.twolinessoftware.android.framework.service.comms.Parser;
+import com.twolinessoftware.android.framework.service.comms.TrackInput;
+import com.twolinessoftware.android.framework.service.comms.TrackSource;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.NmeaScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.ParallelGpxParser;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackWindow;
+
+/**
+ * Parses a GPX or NMEA track, plain or compressed, from a file or another
+ * TrackSource into a LoadedTrack on the calling thread, with the parser that
+ * suits the track, and extends the seek indexes as the points come in.
+ * Points go straight into the track, so a TrackWindow makes the loader wait
+ * for the player.
+ *
+ * An optional TrackFilter between the parser and the track drops points
+ * the consumer does not need.
+ *
+ * Loading into a RouteTrack switches to route mode: the route and waypoint
+ * points of a GPX file are loaded instead of the track points, and turned
+ * into a drive when the parse is over.
+ *
+ * Usage: open(), then parse(). stop() may be called from any thread.
+ */
+public class TrackLoader implements GpxPullParserListener, TrackFilter.Output {
+
+    /**
+     * Files larger than this are streamed through a TrackWindow instead of
+     * being loaded completely.
+     */
+    public static final long STREAMING_THRESHOLD_BYTES = 32 * 1024 * 1024;
+    /**
+     * Number of points buffered ahead of the cursor when streaming.
+     */
+    public static final int STREAMING_WINDOW = 64 * 1024;
+    /**
+     * GPX files larger than this are parsed on all cores with a
+     * ParallelGpxParser.
+     */
+    public static final long PARALLEL_THRESHOLD_BYTES = 8 * 1024 * 1024;
+    /**
+     * The seek indexes are extended every this many points.
+     */
+    public static final int INDEX_UPDATE_INTERVAL = 4096;
+
+    /**
+     * Receives what the loader does, on the loader thread.
+     */
+    public interface Listener {
+
+        /**
+         * A point has been added to the track. The instance is reused.
+         */
+        void onPoint(GpxTrackPoint point);
+
+        /**
+         * The seek indexes now cover the given number of points.
+         */
+        void onIndexed(int points, long bytesRead);
+
+        /**
+         * Called once, when the parse is over.
+         *
+         * @param complete
+         *            false if the parse was stopped, or failed before any
+         *            point, the track is then left incomplete. A parse that
+         *            failed later keeps the points before the error, see
+         *            isPartial().
+         */
+        void onEnd(boolean complete);
+
+        void onError(String message);
+    }
+
+    private final TrackSource source;
+    private final LoadedTrack loading;
+    private final Track target;
+    private final Listener listener;
+    /**
+     * Loading rte and wpt instead of trk points.
+     */
+    private final boolean routes;
+    private volatile Parser parser;
+    private volatile boolean stopped;
+    private boolean ended;
+    /**
+     * An error was reported, the track may lack the points after it.
+     */
+    private volatile boolean failed;
+    private TrackInput input;
+    private TrackFilter filter;
+    private int added;
+    private int parsed;
+
+    public TrackLoader(File file, LoadedTrack loading, Listener listener) {
+        this(new FileTrackSource(file), loading, listener);
+    }
+
+    public TrackLoader(TrackSource source, LoadedTrack loading, Listener listener) {
+        this.source = source;
+        this.loading = loading;
+        target = loading.track;
+        this.listener = listener;
+        routes = target instanceof RouteTrack;
+    }
+
+    /**
+     * @return An empty track suitable for the file: streamed through a
+     *         TrackWindow without a spatial index if it is large once
+     *         decompressed.
+     */
+    public static LoadedTrack newTrack(File file) {
+        return TrackLoader.newTrack(new FileTrackSource(file));
+    }
+
+    /**
+     * @return An empty track suitable for the source, see newTrack(File). A
+     *         source of unknown size is loaded completely.
+     */
+    public static LoadedTrack newTrack(TrackSource source) {
+        if (TrackInput.expandedLength(source) > TrackLoader.STREAMING_THRESHOLD_BYTES) {
+            return new LoadedTrack(new TrackWindow(TrackLoader.STREAMING_WINDOW), null);
+        }
+        return new LoadedTrack(new TrackStore(), new SpatialIndex());
+    }
+
+    /**
+     * @param length
+     *            Of a channel that can be mapped, -1 for a stream.
+     * @return The parser for a track starting with the given bytes: NMEA by
+     *         extension or first sentence, otherwise the fastest GPX parser
+     *         that can handle it.
+     */
+    private Parser newParser(String name, int first, int second, long length) {
+        int cores = Runtime.getRuntime().availableProcessors();
+        if (name.toLowerCase().endsWith(".nmea") || (first == '$')) {
+            return new NmeaScanner(this);
+        } else if (!GpxScanner.isSupported(first, second)) {
+            return new GpxPullParser(this);
+        } else if ((length > TrackLoader.PARALLEL_THRESHOLD_BYTES) && (cores > 1) && !routes) {
+            // Routes are only delivered by the sequential parsers.
+            return new ParallelGpxParser(this, cores);
+        }
+        return new GpxScanner(this);
+    }
+
+    /**
+     * @param filter
+     *            Applied to the parsed points before they are added to the
+     *            track, or null to keep them all. Set before parse().
+     */
+    public void setFilter(TrackFilter filter) {
+        this.filter = filter;
+        if (filter != null) {
+            filter.setOutput(this);
+        }
+    }
+
+    public TrackFilter getFilter() {
+        return filter;
+    }
+
+    public TrackSource getSource() {
+        return source;
+    }
+
+    public LoadedTrack getTrack() {
+        return loading;
+    }
+
+    /**
+     * Opens the source, which may block.
+     */
+    public void open() throws IOException {
+        input = new TrackInput(source);
+    }
+
+    /**
+     * Parses the opened source, returns when the parse is over.
+     */
+    public void parse() {
+        try {
+            FileChannel channel = input.getChannel();
+            if (channel != null) {
+                Parser current = newParser(input.getName(), input.peek(0), input.peek(1), channel.size());
+                if (start(current)) {
+                    current.parse(channel);
+                }
+                return;
+            }
+            InputStream stream;
+            try {
+                stream = input.openStream();
+            } catch (IOException e) {
+                onGpxError("Can't decompress " + source.getName() + ": " + e.getMessage());
+                return;
+            }
+            // Peeks past the compression, if any.
+            PushbackInputStream peeking = new PushbackInputStream(stream, 2);
+            byte[] head = new byte[2];
+            int read = 0;
+            int count;
+            while ((read < head.length) && ((count = peeking.read(head, read, head.length - read)) > 0)) {
+                read += count;
+            }
+            peeking.unread(head, 0, read);
+            Parser current = newParser(input.getName(), read > 0 ? head[0] & 0xff : -1, read > 1 ? head[1] & 0xff : -1, -1);
+            if (start(current)) {
+                current.parse(peeking);
+            }
+        } catch (IOException e) {
+            onGpxError("Reading " + source.getName() + " failed: " + e.getMessage());
+        } finally {
+            if (failed && !stopped && !ended && (parsed > 0)) {
+                // Play back what was read before the error.
+                finish();
+            }
+            end(false);
+            try {
+                input.close();
+            } catch (IOException e) {
+                // Nothing was written.
+            }
+        }
+    }
+
+    /**
+     * Publishes the parser for stop().
+     *
+     * @return false if stopped already.
+     */
+    private boolean start(Parser current) {
+        parser = current;
+        if (stopped) {
+            // Stopped before the parser existed.
+            current.stop();
+        }
+        return !stopped;
+    }
+
+    /**
+     * Stops the parser and wakes it up if it is waiting for room in the
+     * track.
+     */
+    public void stop() {
+        stopped = true;
+        target.close();
+        Parser current = parser;
+        if (current != null) {
+            current.stop();
+        }
+    }
+
+    public boolean isStopped() {
+        return stopped;
+    }
+
+    /**
+     * @return true if an error was reported, so a complete track may still
+     *         lack points, and should e.g. not be cached.
+     */
+    public boolean isPartial() {
+        return failed;
+    }
+
+    /**
+     * @return Position of the parser in the file, compressed. Reads are
+     *         buffered, so this runs slightly ahead of the parsed points.
+     */
+    public long bytesRead() {
+        return input.position();
+    }
+
+    private void end(boolean complete) {
+        if (!ended) {
+            ended = true;
+            listener.onEnd(complete);
+        }
+    }
+
+    /**
+     * Indexes the points parsed since the last call, on this thread so that
+     * seeks don't have to.
+     */
+    private void updateIndexes() {
+        loading.timeIndex.update(target);
+        if (loading.spatialIndex != null) {
+            loading.spatialIndex.update(target);
+        }
+        listener.onIndexed(target.size(), bytesRead());
+    }
+
+    @Override
+    public void onGpxPoint(GpxTrackPoint item) {
+        if (!routes) {
+            onParsed(item);
+        }
+    }
+
+    @Override
+    public void onGpxRoutePoint(GpxTrackPoint item) {
+        if (routes) {
+            onParsed(item);
+        }
+    }
+
+    private void onParsed(GpxTrackPoint item) {
+        parsed++;
+        if (filter != null) {
+            filter.add(item);
+        } else {
+            accept(item);
+        }
+    }
+
+    /**
+     * Adds a parsed point, or one kept by the filter, to the track.
+     */
+    @Override
+    public void accept(GpxTrackPoint item) {
+        if (ended) {
+            return;
+        }
+        if (!target.add(item)) {
+            // Track was closed, a new file is being loaded.
+            stop();
+            end(false);
+            return;
+        }
+        listener.onPoint(item);
+        added++;
+        if ((added % TrackLoader.INDEX_UPDATE_INTERVAL) == 0) {
+            updateIndexes();
+        }
+    }
+
+    /**
+     * Reports the error and lets the parse end. The points parsed so far are
+     * kept, see parse().
+     */
+    @Override
+    public void onGpxError(String message) {
+        failed = true;
+        listener.onError(message);
+    }
+
+    /**
+     * Flushes the filter so that it does not simplify across the gap, then
+     * marks the boundary in the track.
+     */
+    @Override
+    public void onGpxSegment(boolean newTrack) {
+        if (ended) {
+            return;
+        }
+        if (filter != null) {
+            filter.split();
+        }
+        target.getSegments().start(newTrack);
+    }
+
+    @Override
+    public void onGpxStart() {
+    }
+
+    /**
+     * Finishing a RouteTrack plans the drive, which is only then indexed.
+     */
+    @Override
+    public void onGpxEnd() {
+        if (stopped || ended) {
+            end(false);
+            return;
+        }
+        finish();
+    }
+
+    private void finish() {
+        if (filter != null) {
+            filter.finish();
+        }
+        target.finish();
+        updateIndexes();
+        end(true);
+    }
+
+    @Override
+    public void onGpxRoute(GpxTrackSegments items) {
+    }
+}
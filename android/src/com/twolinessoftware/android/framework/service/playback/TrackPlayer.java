@@ -0,0 +1,587 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+
+/**
+ * Plays back a LoadedTrack, one location per run, for a PlaybackScheduler.
+ * Emits the recorded points, optionally with interpolated locations in
+ * between, and moves the cursor on. A run does not allocate, so the
+ * emission path produces no garbage as long as the Sink doesn't either.
+ *
+ * At the end of a complete track playback goes on as set by LoopMode. The
+ * emitted times are rebased at every loop, so they keep increasing by the
+ * time between the emissions however long the playback runs.
+ *
+ * Playback may be limited to a range of points, e.g. one track or segment of
+ * a GPX file, which then loops on its own. The gap between two segments is
+ * crossed as set by GapMode.
+ *
+ * Runs must not overlap, which PlaybackScheduler guarantees. The track may
+ * be replaced and the cursor moved from other threads at any time.
+ */
+public class TrackPlayer implements PlaybackScheduler.Task {
+
+    /**
+     * Delay after the last point of a track, and between points without
+     * usable timestamps.
+     */
+    public static final long DEFAULT_DELAY = 1000;
+
+    /**
+     * How often the player checks for new points while the parser has not
+     * caught up yet.
+     */
+    public static final long POLL_INTERVAL = 50;
+
+    /**
+     * Speed in meters per second of a bridge between two points that have no
+     * recorded speed.
+     */
+    public static final double DEFAULT_BRIDGE_SPEED = 10;
+
+    /**
+     * What follows the last point of a complete track. A streamed track is
+     * always loaded again and starts over with a jump, as its first points
+     * are gone by then.
+     */
+    public enum LoopMode {
+        /**
+         * Jumps back to the first point after DEFAULT_DELAY.
+         */
+        JUMP,
+        /**
+         * Travels from the last point to the first on a great circle, at the
+         * speed recorded at the two points or DEFAULT_BRIDGE_SPEED, emitting
+         * a location every interpolation step or DEFAULT_DELAY.
+         */
+        BRIDGE,
+        /**
+         * Plays the track backwards to the first point, and forwards again
+         * from there. Bearings point along the way back.
+         */
+        PING_PONG
+    }
+
+    /**
+     * What happens between the last point of a segment and the first point
+     * of the next one, which are not joined by interpolation.
+     */
+    public enum GapMode {
+        /**
+         * Stays at the last point until the time recorded for the next one,
+         * DEFAULT_DELAY if unknown.
+         */
+        PAUSE,
+        /**
+         * Goes on with the next segment after DEFAULT_DELAY, leaving the
+         * recorded gap out of the emitted times.
+         */
+        SKIP,
+        /**
+         * Bridges the gap like LoopMode.BRIDGE, in the recorded time if known.
+         */
+        INTERPOLATE
+    }
+
+    /**
+     * Receives what the player emits, on the scheduler thread.
+     */
+    public interface Sink {
+
+        /**
+         * A recorded or interpolated location.
+         *
+         * @param time
+         *            Track time of the location in milliseconds since the
+         *            epoch, rebased at every loop, or 0 if unknown.
+         * @param hdop
+         *            HDOP of the recorded point, or 0 if unknown.
+         */
+        void onLocation(long time, double lat, double lon, double ele, double bearing, double speed, double hdop);
+
+        /**
+         * The recorded point at index has been emitted.
+         */
+        void onProgress(int index, int count);
+
+        /**
+         * The end of a streamed track whose start is gone has been reached.
+         * Typically reloads the track.
+         */
+        void onStreamEnd();
+    }
+
+    private final Sink sink;
+    private final int keepBehind;
+    private final TrackInterpolator interpolator = new TrackInterpolator();
+
+    private volatile LoadedTrack loaded;
+    private volatile long interpolationStep;
+    private volatile LoopMode loopMode = LoopMode.JUMP;
+    private volatile GapMode gapMode = GapMode.PAUSE;
+
+    /**
+     * First point of the range played back in the upper half, the point
+     * after its last one in the lower half, so that both change together.
+     */
+    private volatile long range = Integer.MAX_VALUE;
+
+    /**
+     * Track time already played back between the cursor and the next point
+     * when interpolating.
+     */
+    private long segmentOffset;
+
+    /**
+     * Cursor as seen by the previous run, to notice seeks.
+     */
+    private int lastIndex = -1;
+
+    /**
+     * Track of the previous run, to notice a new one.
+     */
+    private Track lastTrack;
+
+    /**
+     * 1 while playing forwards, -1 while playing backwards in PING_PONG.
+     */
+    private int direction = 1;
+
+    /**
+     * The emitted time of a point is timeBase + direction * its track time.
+     */
+    private long timeBase;
+
+    /**
+     * Set at a loop: the next recorded point with a time moves timeBase so
+     * that it is emitted at rebaseTo, unless that is 0.
+     */
+    private boolean rebasing;
+    private long rebaseTo;
+
+    /**
+     * Time of the latest emission, 0 if unknown.
+     */
+    private long lastTime;
+
+    /**
+     * Track being bridged from a point to another one, e.g. from its last
+     * point back to its first, null if none. Times are relative to the
+     * emission of the point bridged from.
+     */
+    private Track bridge;
+    private int bridgeFrom;
+    private int bridgeTo;
+    private long bridgeStart;
+    private long bridgeDuration;
+    private long bridgeOffset;
+    private double bridgeSpeed;
+    private double bridgeBearing;
+
+    /**
+     * @param keepBehind
+     *            Points a streamed track keeps behind the cursor, so that
+     *            short backward seeks still work.
+     */
+    public TrackPlayer(LoadedTrack loaded, Sink sink, int keepBehind) {
+        this.loaded = loaded;
+        this.sink = sink;
+        this.keepBehind = keepBehind;
+    }
+
+    public LoadedTrack getTrack() {
+        return loaded;
+    }
+
+    public void setTrack(LoadedTrack loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * @param step
+     *            Track time in milliseconds between interpolated locations,
+     *            0 to play back the recorded points only.
+     */
+    public void setInterpolationStep(long step) {
+        interpolationStep = Math.max(0, step);
+    }
+
+    public long getInterpolationStep() {
+        return interpolationStep;
+    }
+
+    /**
+     * Takes effect at the next end of the track.
+     */
+    public void setLoopMode(LoopMode mode) {
+        loopMode = mode;
+    }
+
+    public LoopMode getLoopMode() {
+        return loopMode;
+    }
+
+    /**
+     * Takes effect at the next gap.
+     */
+    public void setGapMode(GapMode mode) {
+        gapMode = mode;
+    }
+
+    public GapMode getGapMode() {
+        return gapMode;
+    }
+
+    /**
+     * Limits playback to the points from start up to, not including, end. A
+     * cursor outside of the range is moved to start once that point has
+     * been parsed.
+     */
+    public void setRange(int start, int end) {
+        range = ((long) start << 32) | (end & 0xffffffffL);
+    }
+
+    /**
+     * Plays back the whole track again.
+     */
+    public void clearRange() {
+        setRange(0, Integer.MAX_VALUE);
+    }
+
+    public int getRangeStart() {
+        return (int) (range >>> 32);
+    }
+
+    public int getRangeEnd() {
+        return (int) range;
+    }
+
+    @Override
+    public long run() {
+        LoadedTrack playing = loaded;
+        Track current = playing.track;
+        int index = playing.cursor.get();
+        if (current != lastTrack) {
+            // A new track starts forwards.
+            lastTrack = current;
+            direction = 1;
+            bridge = null;
+            lastIndex = -1;
+        }
+        long bounds = range;
+        int rangeStart = (int) (bounds >>> 32);
+        int rangeEnd = (int) bounds;
+        int count = current.size();
+        if (((index < rangeStart) || (index >= rangeEnd)) && (bridge == null)) {
+            if (rangeStart >= count) {
+                return TrackPlayer.POLL_INTERVAL;
+            }
+            // A new range starts forwards at its first point.
+            direction = 1;
+            playing.cursor.compareAndSet(current, index, rangeStart, false);
+            index = playing.cursor.get();
+        }
+        if (index != lastIndex) {
+            // Advanced, or moved by a seek, which also ends a bridge.
+            segmentOffset = 0;
+            bridge = null;
+            lastIndex = index;
+        }
+        if (bridge != null) {
+            long delay = runBridge(playing);
+            if (delay > 0) {
+                return delay;
+            }
+            index = playing.cursor.get();
+            lastIndex = index;
+        }
+        count = current.size();
+        int next = index + direction;
+        // The end of the range is known once the point after it is parsed.
+        int limit = Math.min(count, rangeEnd);
+        if ((index < current.firstIndex()) || (index >= count) || ((next >= count) && (rangeEnd > count) && !current.isComplete())) {
+            // Nothing parsed at the cursor yet, or the parser has not caught
+            // up with the playback.
+            return TrackPlayer.POLL_INTERVAL;
+        }
+        int first = Math.max(current.firstIndex(), rangeStart);
+        boolean end = (next < first) || (next >= limit);
+        boolean gap = !end && current.getSegments().isSegmentStart(direction > 0 ? next : index);
+        long segment = (end || gap) ? 0 : direction * TrackPlayer.timeBetween(current, index, next);
+        long step = interpolationStep;
+        if ((step <= 0) || (segment <= 0)) {
+            // Raw playback.
+            segmentOffset = 0;
+            emit(current, index, count);
+            if (end) {
+                return loop(playing, index, first, limit);
+            }
+            if (gap) {
+                return crossGap(playing, index, next);
+            }
+            advance(playing, index, next);
+            return timeToNext(current, index, playing.cursor.get());
+        }
+        if ((segmentOffset <= 0) || (segmentOffset >= segment)) {
+            // At a recorded point.
+            segmentOffset = 0;
+            emit(current, index, count);
+        } else {
+            double fraction = (double) segmentOffset / segment;
+            if (direction > 0) {
+                interpolator.interpolate(current, index, next, fraction);
+            } else {
+                double bearing = reverseCourse(current, index);
+                interpolator.interpolate(current.getLat(index), current.getLon(index), current.getEle(index), current.getSpeed(index),
+                        bearing, current.getLat(next), current.getLon(next), current.getEle(next), current.getSpeed(next), bearing,
+                        fraction);
+            }
+            // segment > 0 means both times are known.
+            lastTime = timeBase + (direction * current.getTime(index)) + segmentOffset;
+            sink.onLocation(lastTime, interpolator.getLat(), interpolator.getLon(), interpolator.getEle(), interpolator.getBearing(),
+                    interpolator.getSpeed(), current.getHdop(index));
+        }
+        long nextOffset = Math.min(segmentOffset + step, segment);
+        long delay = nextOffset - segmentOffset;
+        if (nextOffset == segment) {
+            segmentOffset = 0;
+            advance(playing, index, next);
+        } else {
+            segmentOffset = nextOffset;
+        }
+        return delay;
+    }
+
+    private void emit(Track current, int index, int count) {
+        long time = current.getTime(index);
+        if (time > 0) {
+            if (rebasing && (rebaseTo > 0)) {
+                timeBase = rebaseTo - (direction * time);
+            }
+            rebasing = false;
+            time = timeBase + (direction * time);
+        } else {
+            time = 0;
+        }
+        lastTime = time;
+        double course = direction > 0 ? current.getCourse(index) : reverseCourse(current, index);
+        sink.onLocation(time, current.getLat(index), current.getLon(index), current.getEle(index), course, current.getSpeed(index),
+                current.getHdop(index));
+        sink.onProgress(index, count);
+    }
+
+    /**
+     * Moves the cursor from index to next unless it was moved by a seek
+     * meanwhile, and lets a streamed track drop the points that are far
+     * enough behind.
+     */
+    private void advance(LoadedTrack playing, int index, int next) {
+        Track current = playing.track;
+        playing.cursor.compareAndSet(current, index, next, true);
+        current.release(playing.cursor.get() - keepBehind);
+    }
+
+    /**
+     * Goes on from the last point of the range in the direction of playback,
+     * the first one when playing backwards.
+     *
+     * @return Track time until the next emission.
+     */
+    private long loop(LoadedTrack playing, int index, int first, int limit) {
+        Track current = playing.track;
+        if (current.firstIndex() > 0) {
+            rebase(TrackPlayer.DEFAULT_DELAY);
+            sink.onStreamEnd();
+            return TrackPlayer.DEFAULT_DELAY;
+        }
+        LoopMode mode = loopMode;
+        int count = limit - first;
+        if ((count > 1) && ((mode == LoopMode.PING_PONG) || (direction < 0))) {
+            // Turn around without emitting the turning point twice.
+            direction = -direction;
+            int next = index + direction;
+            long delay = timeToNext(current, index, next);
+            if (playing.cursor.compareAndSet(current, index, next, false)) {
+                rebase(delay);
+            }
+            return delay;
+        }
+        if ((count > 1) && (mode == LoopMode.BRIDGE)) {
+            return startBridge(current, index, first, 0);
+        }
+        if (playing.cursor.compareAndSet(current, index, first, true)) {
+            rebase(TrackPlayer.DEFAULT_DELAY);
+        }
+        return TrackPlayer.DEFAULT_DELAY;
+    }
+
+    /**
+     * Goes on from the last point of a segment, which has just been
+     * emitted, to the first point of the next one in the direction of
+     * playback.
+     *
+     * @return Track time until the next emission.
+     */
+    private long crossGap(LoadedTrack playing, int index, int next) {
+        Track current = playing.track;
+        GapMode mode = gapMode;
+        if (mode == GapMode.INTERPOLATE) {
+            return startBridge(current, index, next, direction * TrackPlayer.timeBetween(current, index, next));
+        }
+        advance(playing, index, next);
+        int moved = playing.cursor.get();
+        if (mode == GapMode.SKIP) {
+            if (moved == next) {
+                rebase(TrackPlayer.DEFAULT_DELAY);
+            }
+            return TrackPlayer.DEFAULT_DELAY;
+        }
+        return timeToNext(current, index, moved);
+    }
+
+    /**
+     * Makes the next recorded point emitted delay after the latest
+     * emission.
+     */
+    private void rebase(long delay) {
+        rebasing = true;
+        rebaseTo = lastTime > 0 ? lastTime + delay : 0;
+    }
+
+    /**
+     * Starts bridging from a point, which has just been emitted, to another
+     * one.
+     *
+     * @param duration
+     *            Track time the bridge takes, 0 to derive it from the
+     *            distance and the speeds recorded at the two points.
+     * @return Track time until the first location on the bridge.
+     */
+    private long startBridge(Track current, int from, int to, long duration) {
+        double lat1 = current.getLat(from);
+        double lon1 = current.getLon(from);
+        double lat2 = current.getLat(to);
+        double lon2 = current.getLon(to);
+        double distance = TrackInterpolator.distance(lat1, lon1, lat2, lon2);
+        if (duration <= 0) {
+            double speed1 = current.getSpeed(from);
+            double speed2 = current.getSpeed(to);
+            double speed;
+            if ((speed1 > 0) && (speed2 > 0)) {
+                speed = (speed1 + speed2) / 2;
+            } else if ((speed1 > 0) || (speed2 > 0)) {
+                speed = Math.max(speed1, speed2);
+            } else {
+                speed = TrackPlayer.DEFAULT_BRIDGE_SPEED;
+            }
+            duration = Math.max(TrackPlayer.DEFAULT_DELAY, Math.round((distance * 1000) / speed));
+        }
+        bridge = current;
+        bridgeFrom = from;
+        bridgeTo = to;
+        bridgeStart = lastTime;
+        bridgeDuration = duration;
+        // The speed that actually gets from one end to the other in time.
+        bridgeSpeed = (distance * 1000) / bridgeDuration;
+        bridgeBearing = distance > 0 ? TrackInterpolator.bearing(lat1, lon1, lat2, lon2) : current.getCourse(from);
+        bridgeOffset = Math.min(bridgeStep(), bridgeDuration);
+        return bridgeOffset;
+    }
+
+    /**
+     * Emits the next location on the bridge.
+     *
+     * @return Track time until the next location on the bridge, or 0 if the
+     *         bridge has ended and the cursor is at the point bridged to.
+     */
+    private long runBridge(LoadedTrack playing) {
+        Track current = bridge;
+        int from = bridgeFrom;
+        int to = bridgeTo;
+        if (bridgeOffset >= bridgeDuration) {
+            bridge = null;
+            if (playing.cursor.compareAndSet(current, from, to, true)) {
+                rebasing = true;
+                rebaseTo = bridgeStart > 0 ? bridgeStart + bridgeDuration : 0;
+            }
+            return 0;
+        }
+        interpolator.interpolate(current.getLat(from), current.getLon(from), current.getEle(from), bridgeSpeed, bridgeBearing,
+                current.getLat(to), current.getLon(to), current.getEle(to), bridgeSpeed, bridgeBearing, (double) bridgeOffset
+                        / bridgeDuration);
+        lastTime = bridgeStart > 0 ? bridgeStart + bridgeOffset : 0;
+        sink.onLocation(lastTime, interpolator.getLat(), interpolator.getLon(), interpolator.getEle(), interpolator.getBearing(),
+                interpolator.getSpeed(), 0);
+        long nextOffset = Math.min(bridgeOffset + bridgeStep(), bridgeDuration);
+        long delay = nextOffset - bridgeOffset;
+        bridgeOffset = nextOffset;
+        return delay;
+    }
+
+    private long bridgeStep() {
+        long step = interpolationStep;
+        return step > 0 ? step : TrackPlayer.DEFAULT_DELAY;
+    }
+
+    /**
+     * @return Bearing at index while playing backwards: towards the point
+     *         before it, or the recorded course turned around if that one is
+     *         at the same place or gone.
+     */
+    private static double reverseCourse(Track current, int index) {
+        if (index > current.firstIndex()) {
+            double lat1 = current.getLat(index);
+            double lon1 = current.getLon(index);
+            double lat2 = current.getLat(index - 1);
+            double lon2 = current.getLon(index - 1);
+            if ((lat1 != lat2) || (lon1 != lon2)) {
+                return TrackInterpolator.bearing(lat1, lon1, lat2, lon2);
+            }
+        }
+        return (current.getCourse(index) + 180) % 360;
+    }
+
+    /**
+     * @return Milliseconds between the recorded timestamps of the two points
+     *         in the direction of playback, or DEFAULT_DELAY when the track
+     *         wrapped or the timestamps are missing or out of order.
+     */
+    private long timeToNext(Track current, int index, int next) {
+        if ((next != (index + direction)) || (next < 0) || (next >= current.size())) {
+            return TrackPlayer.DEFAULT_DELAY;
+        }
+        long delta = direction * TrackPlayer.timeBetween(current, index, next);
+        if (delta <= 0) {
+            return TrackPlayer.DEFAULT_DELAY;
+        }
+        return delta;
+    }
+
+    /**
+     * @return Milliseconds between the two points, or 0 if either time is
+     *         unknown.
+     */
+    private static long timeBetween(Track current, int index, int next) {
+        long from = current.getTime(index);
+        long to = current.getTime(next);
+        if ((from <= 0) || (to <= 0)) {
+            return 0;
+        }
+        return to - from;
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+/**
+ * Visvalingam-Whyatt simplification: repeatedly drops the point whose
+ * triangle with its neighbours has the smallest area, until every remaining
+ * triangle is at least the tolerance. The areas are kept in a binary heap,
+ * so a window takes O(n log n). Runs per window, see WindowedFilter.
+ */
+public class VisvalingamFilter extends WindowedFilter {
+
+    private final double tolerance;
+    private final int[] prev;
+    private final int[] next;
+    private final double[] area;
+    private final int[] heap;
+    /**
+     * Position of each point in the heap.
+     */
+    private final int[] position;
+    private int heapSize;
+
+    /**
+     * @param tolerance
+     *            Smallest area in square meters of a kept point's triangle.
+     */
+    public VisvalingamFilter(double tolerance) {
+        this(tolerance, WindowedFilter.DEFAULT_WINDOW);
+    }
+
+    public VisvalingamFilter(double tolerance, int window) {
+        super(window);
+        this.tolerance = tolerance;
+        int size = Math.max(3, window);
+        prev = new int[size];
+        next = new int[size];
+        area = new double[size];
+        heap = new int[size];
+        position = new int[size];
+    }
+
+    @Override
+    protected void simplify(int count) {
+        heapSize = 0;
+        for (int i = 1; i < (count - 1); i++) {
+            prev[i] = i - 1;
+            next[i] = i + 1;
+            area[i] = triangleArea(i - 1, i, i + 1);
+            heap[heapSize] = i;
+            position[i] = heapSize;
+            heapSize++;
+        }
+        for (int i = (heapSize / 2) - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        while ((heapSize > 0) && (area[heap[0]] < tolerance)) {
+            int removed = heap[0];
+            double removedArea = area[removed];
+            heap[0] = heap[--heapSize];
+            position[heap[0]] = 0;
+            siftDown(0);
+
+            int before = prev[removed];
+            int after = next[removed];
+            if (before > 0) {
+                next[before] = after;
+                update(before, removedArea);
+            }
+            if (after < (count - 1)) {
+                prev[after] = before;
+                update(after, removedArea);
+            }
+        }
+        for (int i = 0; i < heapSize; i++) {
+            keep[heap[i]] = true;
+        }
+    }
+
+    /**
+     * Recomputes the area of i after a neighbour was dropped. It never drops
+     * below the area of the dropped point, so that points go in order of
+     * their effective area.
+     */
+    private void update(int i, double removedArea) {
+        double old = area[i];
+        area[i] = Math.max(removedArea, triangleArea(prev[i], i, next[i]));
+        if (area[i] < old) {
+            siftUp(position[i]);
+        } else {
+            siftDown(position[i]);
+        }
+    }
+
+    private double triangleArea(int a, int b, int c) {
+        return Math.abs(((x[b] - x[a]) * (y[c] - y[a])) - ((x[c] - x[a]) * (y[b] - y[a]))) / 2;
+    }
+
+    private void siftUp(int index) {
+        int i = index;
+        int item = heap[i];
+        while (i > 0) {
+            int parent = (i - 1) / 2;
+            if (area[heap[parent]] <= area[item]) {
+                break;
+            }
+            heap[i] = heap[parent];
+            position[heap[i]] = i;
+            i = parent;
+        }
+        heap[i] = item;
+        position[item] = i;
+    }
+
+    private void siftDown(int index) {
+        int i = index;
+        int item = heap[i];
+        while (true) {
+            int child = (2 * i) + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (((child + 1) < heapSize) && (area[heap[child + 1]] < area[heap[child]])) {
+                child++;
+            }
+            if (area[item] <= area[heap[child]]) {
+                break;
+            }
+            heap[i] = heap[child];
+            position[heap[i]] = i;
+            i = child;
+        }
+        heap[i] = item;
+        position[item] = i;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.twolinessoftware.android.framework.service.playback;
+
+import java.util.Arrays;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+
+/**
+ * Base of the shape simplifying filters, which need a stretch of track to
+ * decide. Points are buffered in windows of a fixed size, projected to
+ * meters around the first point of the window. A full window is simplified,
+ * its kept points are emitted and its last point starts the next window, so
+ * memory stays bounded at the cost of always keeping one point per window.
+ */
+public abstract class WindowedFilter extends TrackFilter {
+
+    public static final int DEFAULT_WINDOW = 1024;
+
+    private static final double METERS_PER_DEGREE = (6371000 * Math.PI) / 180;
+
+    private final GpxTrackPoint[] points;
+    /**
+     * Projected coordinates of the buffered points, in meters.
+     */
+    protected final double[] x;
+    protected final double[] y;
+    /**
+     * Set by simplify() for the points to keep.
+     */
+    protected final boolean[] keep;
+    private int count;
+    private double metersPerLonDegree;
+
+    protected WindowedFilter(int window) {
+        int size = Math.max(3, window);
+        points = new GpxTrackPoint[size];
+        for (int i = 0; i < size; i++) {
+            points[i] = new GpxTrackPoint();
+        }
+        x = new double[size];
+        y = new double[size];
+        keep = new boolean[size];
+    }
+
+    /**
+     * Marks the points to keep out of the first count buffered ones. The
+     * first and the last one are already marked.
+     */
+    protected abstract void simplify(int count);
+
+    @Override
+    protected void filter(GpxTrackPoint point) {
+        if (count == 0) {
+            metersPerLonDegree = WindowedFilter.METERS_PER_DEGREE * Math.cos(Math.toRadians(point.getLat()));
+        }
+        points[count].set(point);
+        x[count] = point.getLon() * metersPerLonDegree;
+        y[count] = point.getLat() * WindowedFilter.METERS_PER_DEGREE;
+        count++;
+        if (count == points.length) {
+            flush(false);
+        }
+    }
+
+    @Override
+    public void finish() {
+        flush(true);
+    }
+
+    private void flush(boolean last) {
+        if (count == 0) {
+            return;
+        }
+        Arrays.fill(keep, 0, count, false);
+        keep[0] = true;
+        keep[count - 1] = true;
+        if (count > 2) {
+            simplify(count);
+        }
+        int end = last ? count : count - 1;
+        for (int i = 0; i < end; i++) {
+            if (keep[i]) {
+                emit(points[i]);
+            }
+        }
+        if (last) {
+            count = 0;
+            return;
+        }
+        // The last point starts the next window, swap it to the front.
+        GpxTrackPoint carried = points[count - 1];
+        points[count - 1] = points[0];
+        points[0] = carried;
+        count = 0;
+        filter(carried);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.FileTrackSource;
+import com.twolinessoftware.android.framework.service.comms.ReadAheadInputStream;
+import com.twolinessoftware.android.framework.service.comms.TrackInput;
+import com.twolinessoftware.android.framework.service.comms.TrackSource;
+
+/**
+ * Runs on a plain JVM, TrackInput has no Android dependencies.
+ */
+public class TrackInputTest extends TestCase {
+
+	private static TrackInput.Compression detect(byte[] data) {
+		return TrackInput.detect(data, data.length);
+	}
+
+	public void testDetectsByContent() throws IOException {
+		ByteArrayOutputStream gzip = new ByteArrayOutputStream();
+		new GZIPOutputStream(gzip).close();
+		ByteArrayOutputStream zlib = new ByteArrayOutputStream();
+		new DeflaterOutputStream(zlib).close();
+
+		assertEquals(TrackInput.Compression.GZIP, detect(gzip.toByteArray()));
+		assertEquals(TrackInput.Compression.DEFLATE, detect(zlib.toByteArray()));
+		assertEquals(TrackInput.Compression.ZIP, detect("PK\003\004".getBytes("US-ASCII")));
+		assertEquals(TrackInput.Compression.NONE, detect("<?xml".getBytes("US-ASCII")));
+		assertEquals(TrackInput.Compression.NONE, detect("$GPRMC".getBytes("US-ASCII")));
+		assertEquals(TrackInput.Compression.NONE, detect(new byte[] { (byte) 0xfe, (byte) 0xff, 0, '<' }));
+		assertEquals(TrackInput.Compression.NONE, detect(new byte[0]));
+	}
+
+	public void testStripSuffix() {
+		assertEquals("track.gpx", TrackInput.stripSuffix("track.gpx.gz"));
+		assertEquals("track.NMEA", TrackInput.stripSuffix("track.NMEA.ZIP"));
+		assertEquals("track.gpx", TrackInput.stripSuffix("track.gpx"));
+		assertEquals(".gz", TrackInput.stripSuffix(".gz"));
+	}
+
+	private static byte[] data(int length) {
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+
+	public void testReadAheadPassesAllBytes() throws IOException {
+		byte[] data = data(100003);
+		InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 3, 1000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[777];
+		int read;
+		assertEquals(data[0] & 0xff, in.read());
+		out.write(data[0]);
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		assertEquals(-1, in.read());
+		in.close();
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+	}
+
+	public void testReadAheadPassesErrors() throws IOException {
+		InputStream failing = new InputStream() {
+			private int count;
+
+			@Override
+			public int read() throws IOException {
+				if (count++ >= 1500) {
+					throw new IOException("broken");
+				}
+				return 1;
+			}
+		};
+		InputStream in = new ReadAheadInputStream(failing, 2, 1000);
+		byte[] buffer = new byte[4000];
+		try {
+			while (in.read(buffer) >= 0) {
+				// Until the error.
+			}
+			fail("No error");
+		} catch (IOException e) {
+			assertEquals("broken", e.getMessage());
+		}
+		in.close();
+	}
+
+	/**
+	 * Closing before the end stops the thread blocked on full buffers.
+	 */
+	public void testReadAheadCloseEarly() throws IOException {
+		InputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data(1000000)), 2, 1000);
+		in.read();
+		in.close();
+	}
+
+	private static File write(byte[] data, boolean gzip) throws IOException {
+		File file = File.createTempFile("input", gzip ? ".gpx.gz" : ".gpx");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		if (gzip) {
+			GZIPOutputStream zipped = new GZIPOutputStream(out);
+			zipped.write(data);
+			zipped.close();
+		} else {
+			out.write(data);
+			out.close();
+		}
+		return file;
+	}
+
+	private static byte[] readAll(InputStream in) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[4096];
+		int read;
+		while ((read = in.read(buffer)) >= 0) {
+			out.write(buffer, 0, read);
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * A plain file goes to the parser as a channel, a compressed one as a
+	 * stream, and neither loses the head that was peeked at.
+	 */
+	public void testChannelOrStream() throws IOException {
+		byte[] data = "<?xml version=\"1.0\"?><gpx/>".getBytes("US-ASCII");
+
+		TrackInput plain = new TrackInput(new FileTrackSource(write(data, false)));
+		assertNotNull(plain.getChannel());
+		assertEquals('<', plain.peek(0));
+		assertEquals(data.length, TrackInput.expandedLength(plain.getSource()));
+		assertTrue(Arrays.equals(data, readAll(plain.openStream())));
+		plain.close();
+
+		TrackInput gzip = new TrackInput(new FileTrackSource(write(data, true)));
+		assertNull(gzip.getChannel());
+		assertEquals(0x1f, gzip.peek(0));
+		assertEquals("input", gzip.getName().substring(0, 5));
+		assertEquals(data.length, TrackInput.expandedLength(gzip.getSource()));
+		assertTrue(Arrays.equals(data, readAll(gzip.openStream())));
+		gzip.close();
+	}
+
+	/**
+	 * A source of unknown length may be a pipe, which sizing it must not
+	 * consume.
+	 */
+	public void testUnknownLengthIsNotOpened() {
+		TrackSource pipe = new TrackSource() {
+			@Override
+			public String getName() {
+				return "stdin";
+			}
+
+			@Override
+			public long getLength() {
+				return -1;
+			}
+
+			@Override
+			public FileInputStream open() {
+				throw new AssertionError("opened");
+			}
+
+			@Override
+			public boolean isReopenable() {
+				return false;
+			}
+		};
+		assertEquals(-1, TrackInput.expandedLength(pipe));
+	}
+}
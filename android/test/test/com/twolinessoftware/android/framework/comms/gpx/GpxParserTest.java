@@ -17,12 +17,11 @@ package test.com.twolinessoftware.android.framework.comms.gpx;
 
 import android.test.AndroidTestCase;
 
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxParser;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxParserListener;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxSaxParser;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxSaxParserListener;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxTrackPoint;
-import com.twolinessoftware.android.framework.service.comms.gpx.GpxTrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
 
 public class GpxParserTest extends AndroidTestCase {
 
@@ -32,7 +31,9 @@ public class GpxParserTest extends AndroidTestCase {
 
 	public void testCorrectParserWithString() {
 
-		GpxParser parser = new GpxParser(new GpxParserListener() {
+		count = 0;
+
+		GpxPullParser parser = new GpxPullParser(new GpxPullParserListener() {
 
 			@Override
 			public void onGpxRoute(GpxTrackSegments items) {
@@ -42,11 +43,37 @@ public class GpxParserTest extends AndroidTestCase {
 			@Override
 			public void onGpxError(String message) {
 				fail(message);
+			}
 
+			@Override
+			public void onGpxPoint(GpxTrackPoint item) {
+				count++;
+				assertNotNull(item);
+				assertEquals(51.0519, item.getLat(), 0.0001);
+				assertEquals(-114.0863, item.getLon(), 0.0001);
+			}
+
+			@Override
+			public void onGpxRoutePoint(GpxTrackPoint item) {
+			}
+
+			@Override
+			public void onGpxSegment(boolean newTrack) {
+			}
+
+			@Override
+			public void onGpxStart() {
+				count = 0;
+			}
+
+			@Override
+			public void onGpxEnd() {
+				assertEquals(3, count);
 			}
 
 		});
 		parser.parse(xml);
+		assertEquals(3, count);
 
 	}
 
@@ -54,7 +81,12 @@ public class GpxParserTest extends AndroidTestCase {
 
 		count = 0;
 
-		GpxSaxParser parser = new GpxSaxParser(new GpxSaxParserListener() {
+		GpxScanner parser = new GpxScanner(new GpxPullParserListener() {
+
+			@Override
+			public void onGpxRoute(GpxTrackSegments items) {
+				assertNotNull(items);
+			}
 
 			@Override
 			public void onGpxError(String message) {
@@ -67,6 +99,14 @@ public class GpxParserTest extends AndroidTestCase {
 				assertNotNull(item);
 			}
 
+			@Override
+			public void onGpxRoutePoint(GpxTrackPoint item) {
+			}
+
+			@Override
+			public void onGpxSegment(boolean newTrack) {
+			}
+
 			@Override
 			public void onGpxStart() {
 				count = 0;
@@ -74,7 +114,7 @@ public class GpxParserTest extends AndroidTestCase {
 
 			@Override
 			public void onGpxEnd() {
-				assertEquals(count, 3);
+				assertEquals(3, count);
 			}
 
 		});
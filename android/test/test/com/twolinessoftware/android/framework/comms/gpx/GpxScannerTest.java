@@ -0,0 +1,420 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.ParallelGpxParser;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * Runs on a plain JVM, GpxScanner has no Android dependencies.
+ */
+public class GpxScannerTest extends TestCase {
+
+	private static String xml = "<?xml version='1.0' encoding='UTF-8' ?><gpx version='1.1' creator='SpeedProof/' xmlns='http://www.topografix.com/GPX/1/1' xmlns:rmc='urn:net:trekbuddy:1.0:nmea:rmc'>	<trk>		<trkseg>			<trkpt lat='51.05197012424469' lon='-114.08636569976807'>				<ele>1048.0</ele>				<time>2009-05-09T19:26:23Z</time>				<fix>2d</fix>				<sat>?</sat>				<extensions>					<rmc:course>0.0</rmc:course>					<rmc:course2>360</rmc:course2>					<rmc:speed>0.0</rmc:speed>				</extensions>			</trkpt>			<extensions>				<tamper name='hash'>d936a44118a439f7c9690003303ebf20bab32f05</tamper>			</extensions>			<trkpt lat='51.05197012424469' lon='-114.08636569976807'>				<ele>1048.0</ele>				<time>2009-05-09T19:26:23Z</time>				<fix>2d</fix>				<sat>?</sat>				<extensions>					<rmc:course>0.0</rmc:course>					<rmc:course2>360</rmc:course2>					<rmc:speed>0.0</rmc:speed>				</extensions>			</trkpt>			<extensions>				<tamper name='hash'>63ab007322a759fb1710cf372cbec565fc26ce4c</tamper>			</extensions>			<trkpt lat='51.05196475982666' lon='-114.086354970932'>				<ele>1047.0</ele>				<time>2009-05-09T19:26:24Z</time>				<fix>2d</fix>				<sat>?</sat>				<extensions>					<rmc:course>0.0</rmc:course>					<rmc:course2>360</rmc:course2>					<rmc:speed>0.0</rmc:speed>				</extensions>			</trkpt>		</trkseg>	</trk></gpx>";
+
+	public void testPointsAreParsed() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse(xml);
+
+		assertEquals(1, collector.ends);
+		assertEquals(3, collector.points.size());
+		assertEquals(51.05196475982666, collector.points.getLat(2));
+		assertEquals(-114.086354970932, collector.points.getLon(2));
+		assertEquals(1047.0, collector.points.getEle(2));
+		assertEquals(1241897184000L, collector.points.getTime(2));
+		assertEquals("2d", collector.points.getFix(2));
+		assertEquals("?", collector.points.getSat(2));
+	}
+
+	public void testUnknownSubtreesAreSkipped() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse("<gpx><trkpt lat='1' lon='2'><extensions><ele>5</ele><speed>9</speed></extensions>"
+				+ "<!-- <ele>6</ele> --><ele>3</ele><speed>4.5</speed></trkpt></gpx>");
+
+		assertEquals(1, collector.points.size());
+		assertEquals(3.0, collector.points.getEle(0));
+		assertEquals(4.5, collector.points.getSpeed(0));
+	}
+
+	public void testCommentsAndCdataAreSkipped() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse("<gpx><trk><trkseg><trkpt lat='1' lon='2'/>"
+				+ "<!-- <trkseg><trkpt lat='3' lon='4'/> --><trkpt lat='5' lon='6'/>"
+				+ "<desc><![CDATA[<trk><trkpt lat='7' lon='8'/>]]></desc><trkpt lat='9' lon='10'/></trkseg></trk></gpx>");
+
+		assertEquals(3, collector.points.size());
+		assertEquals(5.0, collector.points.getLat(1));
+		assertEquals(9.0, collector.points.getLat(2));
+		assertEquals(1, collector.points.getSegments().getSegmentCount());
+	}
+
+	/**
+	 * The comment is longer than the read buffer, its end is only found after
+	 * several reads.
+	 */
+	public void testLongCommentIsSkipped() throws IOException {
+		StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg><trkpt lat='1' lon='2'/><!--");
+		while (gpx.length() < (200 * 1024)) {
+			gpx.append(" <trkpt lat='3' lon='4'/>");
+		}
+		String xml = gpx.append(" --><trkpt lat='5' lon='6'/></trkseg></trk></gpx>").toString();
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+
+		assertEquals(2, collector.points.size());
+		assertEquals(5.0, collector.points.getLat(1));
+		assertEquals(1, collector.ends);
+	}
+
+	public void testMalformedPointIsDropped() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse("<gpx><trkpt lat='x' lon='2'></trkpt><trkpt lat='1' lon='2'/><trkpt lat='3' lon='4'><ele>");
+
+		assertEquals(1, collector.points.size());
+		assertEquals(1.0, collector.points.getLat(0));
+		assertEquals(1, collector.ends);
+	}
+
+	public void testStopEndsDocument() {
+		Collector collector = new Collector();
+		GpxScanner scanner = new GpxScanner(collector);
+		collector.stopAfterFirst = scanner;
+		scanner.parse(xml);
+
+		assertEquals(1, collector.points.size());
+		assertEquals(1, collector.ends);
+	}
+
+	/**
+	 * Tracks of the given number of segments of the given number of points,
+	 * and an empty segment in the first track.
+	 */
+	private static String tracks(int[] segments, int points) {
+		StringBuilder gpx = new StringBuilder("<gpx>");
+		int lat = 0;
+		for (int track = 0; track < segments.length; track++) {
+			gpx.append("<trk><name>").append(track).append("</name>");
+			for (int segment = 0; segment < segments[track]; segment++) {
+				gpx.append("\n<trkseg>");
+				for (int i = 0; i < points; i++) {
+					gpx.append("<trkpt lat='").append(lat++).append("' lon='2'><ele>1</ele></trkpt>\n");
+				}
+				gpx.append("</trkseg>");
+			}
+			if (track == 0) {
+				gpx.append("<trkseg/>");
+			}
+			gpx.append("</trk>");
+		}
+		return gpx.append("</gpx>").toString();
+	}
+
+	public void testSegments() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse(tracks(new int[] { 2, 1, 3 }, 4));
+
+		TrackSegments segments = collector.points.getSegments();
+		assertEquals(24, collector.points.size());
+		assertEquals(3, segments.getTrackCount());
+		assertEquals(6, segments.getSegmentCount());
+		assertEquals(8, segments.getSegmentStart(2));
+		assertEquals(12, segments.getSegmentEnd(2));
+		assertEquals(-1, segments.getSegmentEnd(5));
+		assertEquals(2, segments.getTrackStart(1));
+		assertEquals(3, segments.getTrackEnd(1));
+		assertEquals(6, segments.getTrackEnd(2));
+		assertEquals(4, segments.segmentOf(17));
+		assertEquals(2, segments.trackOf(4));
+		assertTrue(segments.isSegmentStart(4));
+		assertFalse(segments.isSegmentStart(0));
+		assertFalse(segments.isSegmentStart(5));
+		assertTrue(segments.isTrackStart(3));
+		assertFalse(segments.isTrackStart(4));
+	}
+
+	private static String routes = "<gpx><wpt lat='1' lon='1'><name>a</name></wpt><wpt lat='2' lon='2'/>"
+			+ "<rte><name>r</name><rtept lat='3' lon='3'><ele>7</ele></rtept><rtept lat='4' lon='4'/><rtept lat='5' lon='5'/></rte>"
+			+ "<trk><trkseg><trkpt lat='9' lon='9'/></trkseg></trk><wpt lat='6' lon='6'/></gpx>";
+
+	public void testRoutesAndWaypoints() {
+		Collector collector = new Collector();
+		new GpxScanner(collector).parse(routes);
+
+		assertEquals(1, collector.points.size());
+		assertEquals(9.0, collector.points.getLat(0));
+		TrackStore route = collector.routePoints;
+		assertEquals(6, route.size());
+		assertEquals(3.0, route.getLat(2));
+		assertEquals(7.0, route.getEle(2));
+		TrackSegments segments = route.getSegments();
+		// The waypoints, the route and the waypoints after the track.
+		assertEquals(3, segments.getTrackCount());
+		assertEquals(3, segments.getSegmentCount());
+		assertEquals(2, segments.getSegmentStart(1));
+		assertEquals(5, segments.getSegmentStart(2));
+	}
+
+	public void testParallelSegments() throws IOException {
+		// Large enough for several chunks of the smallest size.
+		String xml = tracks(new int[] { 3, 40, 7 }, 100);
+		File file = File.createTempFile("segments", ".gpx");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(xml.getBytes("UTF-8"));
+			out.close();
+			Collector sequential = new Collector();
+			new GpxScanner(sequential).parse(xml);
+			Collector parallel = new Collector();
+			FileInputStream in = new FileInputStream(file);
+			try {
+				new ParallelGpxParser(parallel, 4, 1).parse(in);
+			} finally {
+				in.close();
+			}
+
+			TrackSegments expected = sequential.points.getSegments();
+			TrackSegments actual = parallel.points.getSegments();
+			assertEquals(5000, parallel.points.size());
+			assertEquals(50, actual.getSegmentCount());
+			assertEquals(expected.getTrackCount(), actual.getTrackCount());
+			for (int i = 0; i < expected.getSegmentCount(); i++) {
+				assertEquals(expected.getSegmentStart(i), actual.getSegmentStart(i));
+				assertEquals(expected.isTrackStart(i), actual.isTrackStart(i));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * @return The collector of a ParallelGpxParser with the smallest chunk
+	 *         size on a file holding xml.
+	 */
+	private static Collector parseParallel(String xml) throws IOException {
+		File file = File.createTempFile("parallel", ".gpx");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(xml.getBytes("UTF-8"));
+			out.close();
+			Collector parallel = new Collector();
+			FileInputStream in = new FileInputStream(file);
+			try {
+				new ParallelGpxParser(parallel, 4, 1).parse(in);
+			} finally {
+				in.close();
+			}
+			return parallel;
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Including the trk and trkseg before the first point, and the route and
+	 * waypoints around the track.
+	 */
+	public void testParallelSegmentEvents() throws IOException {
+		String xml = routes.replace("</gpx>", tracks(new int[] { 3, 40, 7 }, 100).substring("<gpx>".length()));
+		Collector sequential = new Collector();
+		new GpxScanner(sequential).parse(xml);
+		Collector parallel = GpxScannerTest.parseParallel(xml);
+
+		assertTrue(sequential.events.toString().startsWith("TTTS.TTS...."));
+		assertEquals(sequential.events.toString(), parallel.events.toString());
+	}
+
+	/**
+	 * Commented out points across several chunks, and points in comments and
+	 * CDATA sections around the chunk boundaries.
+	 */
+	public void testParallelSkipsCommentsAndCdata() throws IOException {
+		StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg>\n");
+		int i = 0;
+		while (gpx.length() < (400 * 1024)) {
+			point(gpx, i++, "");
+			if ((i % 97) == 0) {
+				gpx.append("<!-- <trkseg>");
+				point(gpx, -1, "");
+				gpx.append(" -->");
+			} else if ((i % 89) == 0) {
+				gpx.append("<desc><![CDATA[");
+				point(gpx, -1, "");
+				gpx.append("]]></desc>");
+			} else if (i == 500) {
+				gpx.append("<!--\n");
+				while (gpx.length() < (300 * 1024)) {
+					point(gpx, -1, "");
+				}
+				gpx.append("-->");
+			}
+		}
+		String xml = gpx.append("</trkseg></trk></gpx>").toString();
+		Collector sequential = new Collector();
+		new GpxScanner(sequential).parse(xml);
+		Collector parallel = GpxScannerTest.parseParallel(xml);
+
+		assertEquals(i, sequential.points.size());
+		assertEquals(i, parallel.points.size());
+		for (int j = 0; j < i; j++) {
+			assertEquals(sequential.points.getLat(j), parallel.points.getLat(j));
+		}
+		assertEquals(sequential.events.toString(), parallel.events.toString());
+		assertEquals(1, parallel.ends);
+	}
+
+	public void testParallelFallsBackForStreams() throws IOException {
+		String xml = tracks(new int[] { 2, 1 }, 10);
+		Collector fromString = new Collector();
+		new ParallelGpxParser(fromString, 4, 1).parse(xml);
+		Collector fromStream = new Collector();
+		new ParallelGpxParser(fromStream, 4, 1).parse(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+
+		for (Collector collector : new Collector[] { fromString, fromStream }) {
+			assertEquals(30, collector.points.size());
+			assertEquals(3, collector.points.getSegments().getSegmentCount());
+			assertEquals(1, collector.ends);
+		}
+	}
+
+	/**
+	 * Chunks end at the first "&lt;trkpt" after chunkSize bytes, so the point
+	 * before it runs past the chunk end, here even past the mapped tail.
+	 */
+	public void testParallelPointAcrossChunkEnd() throws IOException {
+		StringBuilder gpx = new StringBuilder("<gpx><trk><trkseg>\n");
+		int i = 0;
+		// Up to just before the smallest chunk size.
+		while (gpx.length() < ((64 * 1024) - 1024)) {
+			point(gpx, i++, "");
+		}
+		StringBuilder desc = new StringBuilder("<desc>");
+		for (int j = 0; j < (100 * 1024); j++) {
+			desc.append((char) ('a' + (j % 26)));
+		}
+		assertTrue(gpx.length() < (64 * 1024));
+		point(gpx, i++, desc.append("</desc>").toString());
+		while (gpx.length() < (400 * 1024)) {
+			point(gpx, i++, "");
+		}
+		String xml = gpx.append("</trkseg></trk></gpx>").toString();
+		File file = File.createTempFile("chunks", ".gpx");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(xml.getBytes("UTF-8"));
+			out.close();
+			Collector sequential = new Collector();
+			new GpxScanner(sequential).parse(xml);
+			Collector parallel = new Collector();
+			FileInputStream in = new FileInputStream(file);
+			try {
+				new ParallelGpxParser(parallel, 4, 1).parse(in);
+			} finally {
+				in.close();
+			}
+
+			TrackStore expected = sequential.points;
+			TrackStore actual = parallel.points;
+			assertEquals(i, expected.size());
+			assertEquals(i, actual.size());
+			assertEquals(1, parallel.ends);
+			for (int j = 0; j < i; j++) {
+				assertEquals(expected.getLat(j), actual.getLat(j));
+				assertEquals(expected.getLon(j), actual.getLon(j));
+				assertEquals(expected.getEle(j), actual.getEle(j));
+				assertEquals(expected.getTime(j), actual.getTime(j));
+				assertEquals(expected.getCourse(j), actual.getCourse(j));
+				assertEquals(expected.getSpeed(j), actual.getSpeed(j));
+				assertEquals(expected.getFix(j), actual.getFix(j));
+				assertEquals(expected.getSat(j), actual.getSat(j));
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static void point(StringBuilder gpx, int i, String extra) {
+		gpx.append("<trkpt lat='").append(51 + (i * 1e-5)).append("' lon='").append(-114 - (i * 1e-5)).append("'>");
+		gpx.append(extra).append("<ele>").append(1000 + (i % 50)).append(".5</ele>");
+		gpx.append("<time>2009-05-09T19:").append(10 + ((i / 60) % 50)).append(':').append(10 + (i % 50)).append("Z</time>");
+		gpx.append("<fix>").append((i % 2) == 0 ? "2d" : "3d").append("</fix><sat>").append(i % 12).append("</sat>");
+		gpx.append("<extensions><rmc:course>").append(i % 360).append("</rmc:course><rmc:speed>").append(i % 7)
+				.append(".25</rmc:speed></extensions></trkpt>\n");
+	}
+
+	private static class Collector implements GpxPullParserListener {
+
+		final TrackStore points = new TrackStore();
+		final TrackStore routePoints = new TrackStore();
+		/**
+		 * 'T' and 'S' for new tracks and segments, '.' for points.
+		 */
+		final StringBuilder events = new StringBuilder();
+		int ends;
+		GpxScanner stopAfterFirst;
+
+		@Override
+		public void onGpxStart() {
+		}
+
+		@Override
+		public void onGpxPoint(GpxTrackPoint item) {
+			points.add(item);
+			events.append('.');
+			if (stopAfterFirst != null) {
+				stopAfterFirst.stop();
+			}
+		}
+
+		@Override
+		public void onGpxRoutePoint(GpxTrackPoint item) {
+			routePoints.add(item);
+		}
+
+		@Override
+		public void onGpxSegment(boolean newTrack) {
+			events.append(newTrack ? 'T' : 'S');
+			points.getSegments().start(newTrack);
+			routePoints.getSegments().start(newTrack);
+		}
+
+		@Override
+		public void onGpxEnd() {
+			ends++;
+		}
+
+		@Override
+		public void onGpxError(String message) {
+			fail(message);
+		}
+
+		@Override
+		public void onGpxRoute(GpxTrackSegments items) {
+		}
+	}
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTimeParser;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+
+/**
+ * Runs on a plain JVM, GpxTimeParser has no Android dependencies.
+ */
+public class GpxTimeParserTest extends TestCase {
+
+	/**
+	 * @return The UTC time, worked out by the JDK.
+	 */
+	private static long utc(int year, int month, int day, int hour, int minute, int second, int millis) {
+		Calendar calendar = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+		calendar.clear();
+		calendar.set(year, month - 1, day, hour, minute, second);
+		calendar.set(Calendar.MILLISECOND, millis);
+		return calendar.getTimeInMillis();
+	}
+
+	public void testFractionalSeconds() {
+		GpxTimeParser parser = new GpxTimeParser();
+
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 0), parser.parse("2007-08-27T15:38:52Z"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 900), parser.parse("2007-08-27T15:38:52.9Z"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 980), parser.parse("2007-08-27T15:38:52.98Z"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 983), parser.parse("2007-08-27T15:38:52.983Z"));
+		// Truncated, not rounded.
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 983), parser.parse("2007-08-27T15:38:52.983999Z"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 500), parser.parse("2007-08-27T15:38:52,5Z"));
+	}
+
+	public void testZones() {
+		GpxTimeParser parser = new GpxTimeParser();
+		long utc = utc(2007, 8, 27, 15, 38, 52, 0);
+
+		assertEquals(utc, parser.parse("2007-08-27T15:38:52Z"));
+		// No zone means UTC.
+		assertEquals(utc, parser.parse("2007-08-27T15:38:52"));
+		assertEquals(utc, parser.parse("2007-08-27T18:38:52+03:00"));
+		assertEquals(utc, parser.parse("2007-08-27T10:38:52-0500"));
+		assertEquals(utc, parser.parse("2007-08-27T21:08:52+05:30"));
+		assertEquals(utc, parser.parse("2007-08-27T17:38:52+02"));
+		// Back across midnight.
+		assertEquals(utc, parser.parse("2007-08-28T01:38:52+10:00"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 250), parser.parse("2007-08-27T11:38:52.25-04:00"));
+	}
+
+	/**
+	 * Consecutive stamps that leave the cached day must not reuse it.
+	 */
+	public void testDayCache() {
+		GpxTimeParser parser = new GpxTimeParser();
+
+		assertEquals(utc(2007, 8, 27, 23, 59, 59, 0), parser.parse("2007-08-27T23:59:59Z"));
+		assertEquals(utc(2007, 8, 27, 23, 59, 59, 500), parser.parse("2007-08-27T23:59:59.5Z"));
+		assertEquals(utc(2007, 8, 28, 0, 0, 0, 0), parser.parse("2007-08-28T00:00:00Z"));
+		assertEquals(utc(2007, 8, 28, 0, 1, 0, 0), parser.parse("2007-08-28T00:01:00Z"));
+		assertEquals(utc(2007, 8, 31, 23, 59, 0, 0), parser.parse("2007-08-31T23:59:00Z"));
+		assertEquals(utc(2007, 9, 1, 0, 0, 0, 0), parser.parse("2007-09-01T00:00:00Z"));
+		assertEquals(utc(2007, 12, 31, 23, 59, 59, 0), parser.parse("2007-12-31T23:59:59Z"));
+		assertEquals(utc(2008, 1, 1, 0, 0, 0, 0), parser.parse("2008-01-01T00:00:00Z"));
+		assertEquals(utc(2008, 2, 29, 12, 0, 0, 0), parser.parse("2008-02-29T12:00:00Z"));
+		// Back to an earlier day, and the same day after an invalid stamp.
+		assertEquals(utc(2007, 8, 27, 12, 0, 0, 0), parser.parse("2007-08-27T12:00:00Z"));
+		assertEquals(GpxTimeParser.INVALID, parser.parse("2007-08-27T25:00:00Z"));
+		assertEquals(utc(2007, 8, 27, 12, 0, 1, 0), parser.parse("2007-08-27T12:00:01Z"));
+	}
+
+	public void testOtherForms() {
+		GpxTimeParser parser = new GpxTimeParser();
+
+		assertEquals(utc(2007, 8, 27, 0, 0, 0, 0), parser.parse("2007-08-27"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 0, 0), parser.parse("2007-08-27T15:38"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 0), parser.parse("2007-08-27 15:38:52"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 0), parser.parse(" 2007-08-27T15:38:52Z\n"));
+		assertEquals(utc(1969, 12, 31, 23, 59, 59, 0), parser.parse("1969-12-31T23:59:59Z"));
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 0), parser.parse("<time>2007-08-27T15:38:52Z</time>", 6, 26));
+	}
+
+	public void testMalformed() {
+		GpxTimeParser parser = new GpxTimeParser();
+		String[] malformed = { "", "yesterday", "2007-08", "2007/08/27T15:38:52Z", "2007-13-27T15:38:52Z", "2007-08-32T15:38:52Z",
+				"2007-08-27X15:38:52Z", "2007-08-27T15:60:52Z", "2007-08-27T15:38:5", "2007-08-27T15:38:52.Z",
+				"2007-08-27T15:38:52+3", "2007-08-27T15:38:52+03:75", "2007-08-27T15:38:52Zulu", "2007-08-27T1a:38:52Z" };
+		for (String text : malformed) {
+			assertEquals(text, GpxTimeParser.INVALID, parser.parse(text));
+		}
+	}
+
+	/**
+	 * A point whose time can't be parsed gets 0, i.e. unknown, instead of a
+	 * wrong time.
+	 */
+	public void testPointFallsBackToUnknown() {
+		GpxTimeParser parser = new GpxTimeParser();
+		GpxTrackPoint point = new GpxTrackPoint();
+
+		point.setTime(parser, "2007-08-27T15:38:52Z");
+		assertEquals(utc(2007, 8, 27, 15, 38, 52, 0), point.getTime());
+		point.setTime(parser, "not a time");
+		assertEquals(0, point.getTime());
+		point.setTime("2007-08-27T15:38:53Z");
+		assertEquals(utc(2007, 8, 27, 15, 38, 53, 0), point.getTime());
+	}
+}
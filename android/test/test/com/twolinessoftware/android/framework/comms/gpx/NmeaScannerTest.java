@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxPullParserListener;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.NmeaParser;
+import com.twolinessoftware.android.framework.service.comms.gps.NmeaScanner;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * Runs on a plain JVM, NmeaScanner has no Android dependencies.
+ */
+public class NmeaScannerTest extends TestCase {
+
+	private static String nmea = "$GPGGA,153851.983,6235.8779,N,02944.6810,E,1,05,1.6,102.3,M,,,,0000*03\r\n"
+			+ "$GPGSA,A,3,05,30,02,06,31,,,,,,,,2.9,1.6,2.4*38\r\n"
+			+ "$GPGSV,3,1,10,05,74,187,51,30,68,251,49,02,47,111,39,04,35,059,15*70\r\n"
+			+ "$GPRMC,153851.983,A,6235.8779,N,02944.6810,E,0.325276,140.85,270807,,A*49\r\n"
+			+ "$GPGGA,153852.983,6235.8778,N,02944.6810,E,1,05,1.6,102.1,M,,,,0000*03\r\n"
+			+ "$GPRMC,153852.983,A,6235.8778,N,02944.6810,E,0.373076,189.45,270807,,A*43\r\n";
+
+	public void testEpochsAreMerged() {
+		Collector collector = new Collector();
+		new NmeaScanner(collector).parse(nmea);
+
+		assertEquals(2, collector.points.size());
+		assertEquals(62.597965, collector.points.getLat(0), 0.000001);
+		assertEquals(29.744683, collector.points.getLon(0), 0.000001);
+		assertEquals(102.3, collector.points.getEle(0), 0.001);
+		// 2007-08-27T15:38:51.983Z
+		assertEquals(1188229131983L, collector.points.getTime(0));
+		assertEquals(0.325276 * 1852 / 3600, collector.points.getSpeed(0), 0.0001);
+		assertEquals(140.85, collector.points.getCourse(0), 0.001);
+		assertEquals("3d", collector.points.getFix(0));
+		assertEquals("5", collector.points.getSat(0));
+		assertEquals(1.6, collector.points.getHdop(0), 0.001);
+		assertEquals(1000, collector.points.getTime(1) - collector.points.getTime(0));
+		assertEquals(1, collector.ends);
+	}
+
+	public void testBadChecksumIsSkipped() {
+		Collector collector = new Collector();
+		NmeaScanner scanner = new NmeaScanner(collector);
+		scanner.parse(nmea.replace("102.1,M", "999.9,M").replace("0.373076,189.45", "0.373076,189.46"));
+
+		assertEquals(1, collector.points.size());
+		assertEquals(2, scanner.getChecksumErrors());
+	}
+
+	public void testVoidFixesAreDropped() {
+		Collector collector = new Collector();
+		new NmeaScanner(collector).parse("$GPGGA,153851.983,,,,,0,00,,,M,,,,0000*3C\n"
+				+ "$GPRMC,153851.983,V,,,,,,,270807,,N*62\n");
+
+		assertEquals(0, collector.points.size());
+		assertEquals(1, collector.ends);
+	}
+
+	public void testNmeaParserReadsOnTheCallingThread() {
+		Collector collector = new Collector();
+		new NmeaParser(collector).parse(nmea + "$GPRMC,153851.983,V,,,,,,,270807,,N*62\n");
+
+		// Ended before returning, the void fix dropped.
+		assertEquals(1, collector.ends);
+		assertEquals(2, collector.points.size());
+		assertEquals(62.597965, collector.points.getLat(0), 0.000001);
+		assertEquals(1000, collector.points.getTime(1) - collector.points.getTime(0));
+	}
+
+	private static class Collector implements GpxPullParserListener {
+
+		final TrackStore points = new TrackStore();
+		int ends;
+
+		@Override
+		public void onGpxStart() {
+		}
+
+		@Override
+		public void onGpxPoint(GpxTrackPoint item) {
+			points.add(item);
+		}
+
+		@Override
+		public void onGpxRoutePoint(GpxTrackPoint item) {
+			fail("NMEA has no routes");
+		}
+
+		@Override
+		public void onGpxSegment(boolean newTrack) {
+			points.getSegments().start(newTrack);
+		}
+
+		@Override
+		public void onGpxEnd() {
+			ends++;
+		}
+
+		@Override
+		public void onGpxError(String message) {
+			fail(message);
+		}
+
+		@Override
+		public void onGpxRoute(GpxTrackSegments items) {
+		}
+	}
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.Track;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCache;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackCacheWriter;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * Runs on a plain JVM, TrackCache has no Android dependencies.
+ */
+public class TrackCacheTest extends TestCase {
+
+	private static final long MODIFIED = 1188229131000L;
+	/**
+	 * Offsets in the header, see TrackCache.
+	 */
+	private static final int VERSION_OFFSET = 4;
+	private static final int COUNT_OFFSET = 24;
+	private static final int FIX_NAMES_OFFSET = 28;
+	/**
+	 * After the fix names "2d" and "3d" and the sat name "5".
+	 */
+	private static final int SEGMENTS_OFFSET = FIX_NAMES_OFFSET + 4 + (2 * (2 + 2)) + 4 + 2 + 1;
+
+	private File dir;
+	private File temp;
+	private File source;
+	private File cache;
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = File.createTempFile("cache", "");
+		dir.delete();
+		dir.mkdir();
+		temp = new File(dir, "temp");
+		temp.mkdir();
+		source = new File(dir, "track.gpx");
+		Writer out = new FileWriter(source);
+		out.write("<gpx>Not parsed, only its length and time matter</gpx>");
+		out.close();
+		source.setLastModified(TrackCacheTest.MODIFIED);
+		cache = TrackCache.cacheFileFor(source, dir);
+	}
+
+	@Override
+	protected void tearDown() {
+		for (File file : temp.listFiles()) {
+			file.delete();
+		}
+		for (File file : dir.listFiles()) {
+			file.delete();
+		}
+		dir.delete();
+	}
+
+	/**
+	 * Two tracks, the first of two segments, of 10 points each.
+	 */
+	private static TrackStore track() {
+		TrackStore track = new TrackStore();
+		for (int i = 0; i < 30; i++) {
+			if ((i % 10) == 0) {
+				track.getSegments().start(i != 10);
+			}
+			track.add(60 + (i * 0.0001), 25 - (i * 0.0001), i, 1000L * i, i % 360, i / 2.0, 1.5, (i % 2) == 0 ? "2d" : "3d", i < 20 ? "5"
+					: null);
+		}
+		track.finish();
+		return track;
+	}
+
+	private void write(TrackStore track) {
+		TrackCacheWriter writer;
+		try {
+			writer = new TrackCacheWriter(source, cache, temp);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+		GpxTrackPoint point = new GpxTrackPoint();
+		for (int i = 0; i < track.size(); i++) {
+			writer.add(track.get(i, point));
+		}
+		assertTrue(writer.finish(track.getSegments()));
+		assertEquals(track.size(), writer.getCount());
+	}
+
+	private void corrupt(long offset, int value) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(cache, "rw");
+		try {
+			file.seek(offset);
+			file.writeInt(value);
+		} finally {
+			file.close();
+		}
+	}
+
+	private void assertRejected() {
+		assertNull(TrackCache.open(source, cache));
+		// Rebuilt on the next load.
+		assertFalse(cache.exists());
+	}
+
+	public void testRoundTrip() {
+		TrackStore expected = track();
+		write(expected);
+		Track mapped = TrackCache.open(source, cache);
+
+		assertNotNull(mapped);
+		assertTrue(mapped.isComplete());
+		assertEquals(expected.size(), mapped.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertEquals(expected.getLat(i), mapped.getLat(i));
+			assertEquals(expected.getLon(i), mapped.getLon(i));
+			assertEquals(expected.getTime(i), mapped.getTime(i));
+			assertEquals(expected.getEle(i), mapped.getEle(i));
+			assertEquals(expected.getCourse(i), mapped.getCourse(i));
+			assertEquals(expected.getSpeed(i), mapped.getSpeed(i));
+			assertEquals(expected.getHdop(i), mapped.getHdop(i));
+			assertEquals(expected.getFix(i), mapped.getFix(i));
+			assertEquals(expected.getSat(i), mapped.getSat(i));
+		}
+		TrackSegments segments = mapped.getSegments();
+		assertEquals(3, segments.getSegmentCount());
+		assertEquals(2, segments.getTrackCount());
+		assertEquals(20, segments.getSegmentStart(2));
+		assertEquals(2, segments.getTrackStart(1));
+	}
+
+	public void testEmptyTrack() {
+		write(new TrackStore());
+		Track mapped = TrackCache.open(source, cache);
+
+		assertNotNull(mapped);
+		assertEquals(0, mapped.size());
+	}
+
+	public void testMissingCache() {
+		assertNull(TrackCache.open(source, cache));
+	}
+
+	public void testStaleAfterSourceGrows() throws IOException {
+		write(track());
+		Writer out = new FileWriter(source, true);
+		out.write("<!-- edited -->");
+		out.close();
+		source.setLastModified(TrackCacheTest.MODIFIED);
+
+		assertRejected();
+	}
+
+	public void testStaleAfterSourceTouched() {
+		write(track());
+		source.setLastModified(TrackCacheTest.MODIFIED + 60000);
+
+		assertRejected();
+	}
+
+	public void testTruncated() throws IOException {
+		write(track());
+		RandomAccessFile file = new RandomAccessFile(cache, "rw");
+		file.setLength(file.length() - 3);
+		file.close();
+
+		assertRejected();
+	}
+
+	public void testTruncatedHeader() throws IOException {
+		write(track());
+		RandomAccessFile file = new RandomAccessFile(cache, "rw");
+		file.setLength(TrackCacheTest.COUNT_OFFSET + 2);
+		file.close();
+
+		assertRejected();
+	}
+
+	public void testWrongMagic() throws IOException {
+		write(track());
+		corrupt(0, 0x12345678);
+
+		assertRejected();
+	}
+
+	public void testWrongVersion() throws IOException {
+		write(track());
+		corrupt(TrackCacheTest.VERSION_OFFSET, 1);
+
+		assertRejected();
+	}
+
+	public void testWrongCount() throws IOException {
+		write(track());
+		corrupt(TrackCacheTest.COUNT_OFFSET, 31);
+
+		assertRejected();
+	}
+
+	public void testCorruptDictionary() throws IOException {
+		write(track());
+		corrupt(TrackCacheTest.FIX_NAMES_OFFSET, 100000);
+
+		assertRejected();
+	}
+
+	public void testCorruptSegments() throws IOException {
+		write(track());
+		// First segment start, which must be 0.
+		corrupt(TrackCacheTest.SEGMENTS_OFFSET + 4, 5);
+
+		assertRejected();
+	}
+
+	public void testCorruptEnd() throws IOException {
+		write(track());
+		corrupt(cache.length() - 4, 0);
+
+		assertRejected();
+	}
+
+	public void testAbortLeavesNoFiles() throws IOException {
+		TrackCacheWriter writer = new TrackCacheWriter(source, cache, temp);
+		writer.add(new GpxTrackPoint());
+		writer.abort();
+
+		assertFalse(writer.finish(new TrackSegments()));
+		// The source and the temporary directory.
+		assertEquals(2, dir.listFiles().length);
+		assertEquals(0, temp.listFiles().length);
+	}
+
+	/**
+	 * Only the finished cache is written next to the source.
+	 */
+	public void testColumnsGoToTemporaryDirectory() throws IOException {
+		TrackCacheWriter writer = new TrackCacheWriter(source, cache, temp);
+		writer.add(new GpxTrackPoint());
+
+		assertEquals(2, dir.listFiles().length);
+		assertTrue(temp.listFiles().length > 0);
+		assertTrue(writer.finish(new TrackSegments()));
+		assertEquals(3, dir.listFiles().length);
+		assertTrue(cache.isFile());
+		assertEquals(0, temp.listFiles().length);
+	}
+
+	public void testDeleteTemporaryFiles() throws IOException {
+		// As left by a writer in a killed process.
+		new TrackCacheWriter(source, cache, temp).add(new GpxTrackPoint());
+		File other = new File(temp, "other.tmp");
+		other.createNewFile();
+		TrackCacheWriter.deleteTemporaryFiles(temp);
+
+		assertEquals(1, temp.listFiles().length);
+		assertTrue(other.exists());
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+
+/**
+ * Runs on a plain JVM, TrackStore has no Android dependencies.
+ */
+public class TrackStoreTest extends TestCase {
+
+	private static void add(TrackStore store, int i) {
+		store.add(i * 0.001, -i * 0.002, i, 1000L * i, i % 360, i / 4.0, 0.5, (i % 3) == 0 ? "3d" : "2d", (i % 2) == 0 ? null : "7");
+	}
+
+	private static void assertPoint(TrackStore store, int i) {
+		assertEquals(i * 0.001, store.getLat(i));
+		assertEquals(-i * 0.002, store.getLon(i));
+		assertEquals(1000L * i, store.getTime(i));
+		assertEquals((double) i, store.getEle(i));
+		assertEquals((double) (i % 360), store.getCourse(i));
+		assertEquals(i / 4.0, store.getSpeed(i));
+		assertEquals(0.5, store.getHdop(i));
+		assertEquals((i % 3) == 0 ? "3d" : "2d", store.getFix(i));
+		assertEquals((i % 2) == 0 ? null : "7", store.getSat(i));
+	}
+
+	/**
+	 * Growing from a single slot must keep every point already added.
+	 */
+	public void testGrowth() {
+		TrackStore store = new TrackStore(1);
+		long memory = store.getMemoryUsage();
+		for (int i = 0; i < 5000; i++) {
+			add(store, i);
+			assertEquals(i + 1, store.size());
+		}
+
+		assertTrue(store.getMemoryUsage() > memory);
+		assertTrue(store.getMemoryUsage() >= (42L * 5000));
+		for (int i = 0; i < 5000; i++) {
+			assertPoint(store, i);
+		}
+	}
+
+	public void testFinishTrims() {
+		TrackStore store = new TrackStore();
+		for (int i = 0; i < 1100; i++) {
+			add(store, i);
+		}
+		assertTrue(store.getMemoryUsage() > (42L * 1100));
+		assertFalse(store.isComplete());
+		store.finish();
+
+		assertTrue(store.isComplete());
+		assertEquals(42L * 1100, store.getMemoryUsage());
+		for (int i = 0; i < 1100; i++) {
+			assertPoint(store, i);
+		}
+	}
+
+	public void testSegmentsFollowGrowth() {
+		TrackStore store = new TrackStore(2);
+		for (int i = 0; i < 100; i++) {
+			if ((i % 25) == 0) {
+				store.getSegments().start((i == 0) || (i == 50));
+			}
+			add(store, i);
+		}
+
+		assertEquals(4, store.getSegments().getSegmentCount());
+		assertEquals(2, store.getSegments().getTrackCount());
+		assertEquals(75, store.getSegments().getSegmentStart(3));
+		assertEquals(2, store.getSegments().getTrackStart(1));
+	}
+
+	public void testGetCopiesPoint() {
+		TrackStore store = new TrackStore();
+		add(store, 3);
+		GpxTrackPoint point = store.get(0, new GpxTrackPoint());
+
+		assertEquals(0.003, point.getLat());
+		assertEquals(3000L, point.getTime());
+		assertEquals("3d", point.getFix());
+		assertEquals("7", point.getSat());
+	}
+
+	public void testClosedRejectsPoints() {
+		TrackStore store = new TrackStore();
+		assertTrue(store.add(new GpxTrackPoint()));
+		store.close();
+
+		assertFalse(store.add(new GpxTrackPoint()));
+		assertEquals(1, store.size());
+	}
+
+	public void testClear() {
+		TrackStore store = new TrackStore(1);
+		for (int i = 0; i < 10; i++) {
+			if (i == 5) {
+				store.getSegments().start(true);
+			}
+			add(store, i);
+		}
+		store.finish();
+		assertEquals(2, store.getSegments().getSegmentCount());
+		store.clear();
+
+		assertEquals(0, store.size());
+		assertTrue(store.isEmpty());
+		assertFalse(store.isComplete());
+		assertEquals(1, store.getSegments().getSegmentCount());
+		add(store, 0);
+		assertEquals(1, store.size());
+		assertPoint(store, 0);
+	}
+}
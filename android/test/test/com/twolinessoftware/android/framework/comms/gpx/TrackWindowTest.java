@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.comms.gpx;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackWindow;
+
+/**
+ * Runs on a plain JVM, TrackWindow has no Android dependencies.
+ */
+public class TrackWindowTest extends TestCase {
+
+	private static GpxTrackPoint point(int i) {
+		GpxTrackPoint point = new GpxTrackPoint();
+		point.setLat(i);
+		point.setLon(-i);
+		point.setTime(1000L * i);
+		point.setFix((i % 2) == 0 ? "2d" : "3d");
+		return point;
+	}
+
+	public void testCapacityIsPowerOfTwo() {
+		assertEquals(4, new TrackWindow(1).getCapacity());
+		assertEquals(4, new TrackWindow(3).getCapacity());
+		assertEquals(8, new TrackWindow(8).getCapacity());
+		assertEquals(16, new TrackWindow(9).getCapacity());
+		assertEquals(42L * 16, new TrackWindow(9).getMemoryUsage());
+	}
+
+	/**
+	 * Released points are dropped, and their slots reused for later points
+	 * without disturbing the ones still held.
+	 */
+	public void testReleaseAdvancesFirstIndex() {
+		TrackWindow window = new TrackWindow(4);
+		for (int i = 0; i < 4; i++) {
+			assertTrue(window.add(point(i)));
+		}
+		assertEquals(0, window.firstIndex());
+
+		window.release(3);
+		assertEquals(3, window.firstIndex());
+		assertEquals(4, window.size());
+		assertFalse(window.isEmpty());
+		for (int i = 4; i < 7; i++) {
+			assertTrue(window.add(point(i)));
+		}
+		for (int i = 3; i < 7; i++) {
+			assertEquals((double) i, window.getLat(i));
+			assertEquals((double) -i, window.getLon(i));
+			assertEquals(1000L * i, window.getTime(i));
+			assertEquals((i % 2) == 0 ? "2d" : "3d", window.getFix(i));
+		}
+
+		// Never backwards, and never past what has been added.
+		window.release(1);
+		assertEquals(3, window.firstIndex());
+		window.release(100);
+		assertEquals(7, window.firstIndex());
+		assertTrue(window.isEmpty());
+	}
+
+	public void testFullWindowBlocksUntilRelease() throws InterruptedException {
+		final TrackWindow window = new TrackWindow(4);
+		for (int i = 0; i < 4; i++) {
+			window.add(point(i));
+		}
+		final CountDownLatch added = new CountDownLatch(1);
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				if (window.add(point(4))) {
+					added.countDown();
+				}
+			}
+		};
+		producer.start();
+
+		assertFalse(added.await(200, TimeUnit.MILLISECONDS));
+		assertEquals(4, window.size());
+		window.release(1);
+		assertTrue(added.await(5, TimeUnit.SECONDS));
+		assertEquals(5, window.size());
+		assertEquals(4.0, window.getLat(4));
+		assertEquals(1.0, window.getLat(1));
+		producer.join();
+	}
+
+	public void testCloseReleasesProducer() throws InterruptedException {
+		final TrackWindow window = new TrackWindow(4);
+		for (int i = 0; i < 4; i++) {
+			window.add(point(i));
+		}
+		final boolean[] result = { true };
+		Thread producer = new Thread() {
+			@Override
+			public void run() {
+				result[0] = window.add(point(4));
+			}
+		};
+		producer.start();
+		window.close();
+		producer.join(5000);
+
+		assertFalse(producer.isAlive());
+		assertFalse(result[0]);
+		assertEquals(4, window.size());
+	}
+
+	public void testSegmentsSurviveRelease() {
+		TrackWindow window = new TrackWindow(4);
+		for (int i = 0; i < 10; i++) {
+			if (i == 6) {
+				window.getSegments().start(true);
+			}
+			window.add(point(i));
+			window.release(i);
+		}
+		window.finish();
+
+		assertTrue(window.isComplete());
+		assertEquals(2, window.getSegments().getSegmentCount());
+		assertEquals(6, window.getSegments().getSegmentStart(1));
+		assertEquals(9, window.firstIndex());
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.metrics;
+
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedMap;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.metrics.Counter;
+import com.twolinessoftware.android.framework.service.metrics.Histogram;
+import com.twolinessoftware.android.framework.service.metrics.MetricsRegistry;
+
+/**
+ * Runs on a plain JVM, the metrics have no Android dependencies.
+ */
+public class HistogramTest extends TestCase {
+
+	public void testSmallValuesAreExact() {
+		Histogram histogram = new Histogram();
+		for (int i = 1; i <= 10; i++) {
+			histogram.record(i);
+		}
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(10, snapshot.getCount());
+		assertEquals(5, snapshot.getValueAtPercentile(50));
+		assertEquals(10, snapshot.getValueAtPercentile(100));
+		assertEquals(1, snapshot.getValueAtPercentile(0));
+		assertEquals(5.5, snapshot.getMean(), 1e-9);
+	}
+
+	public void testPercentilesWithinPrecision() {
+		Random random = new Random(42);
+		int count = 100000;
+		long[] values = new long[count];
+		Histogram histogram = new Histogram();
+		for (int i = 0; i < count; i++) {
+			// Log-normal, like latencies.
+			values[i] = (long) Math.exp(13 + (random.nextGaussian() * 1.5));
+			histogram.record(values[i]);
+		}
+		Arrays.sort(values);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		double[] percentiles = { 10, 50, 90, 99, 99.9 };
+		for (double percentile : percentiles) {
+			long exact = values[(int) Math.ceil((percentile / 100) * count) - 1];
+			long estimate = snapshot.getValueAtPercentile(percentile);
+			assertTrue(percentile + ": " + estimate + " < " + exact, estimate >= exact);
+			assertTrue(percentile + ": " + estimate + " vs " + exact, estimate <= (exact * 1.04));
+		}
+		assertEquals(values[count - 1], snapshot.getMax());
+	}
+
+	public void testClampsOutOfRange() {
+		Histogram histogram = new Histogram();
+		histogram.record(-5);
+		histogram.record(Long.MAX_VALUE);
+		Histogram.Snapshot snapshot = histogram.snapshot();
+		assertEquals(0, snapshot.getValueAtPercentile(50));
+		assertEquals(Histogram.MAX_VALUE, snapshot.getMax());
+		assertEquals(Histogram.MAX_VALUE, snapshot.getValueAtPercentile(100));
+	}
+
+	public void testConcurrentRecording() throws Exception {
+		final Histogram histogram = new Histogram();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 100000; i++) {
+						histogram.record(i);
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(400000, histogram.snapshot().getCount());
+		assertEquals(99999, histogram.snapshot().getMax());
+	}
+
+	public void testRegistrySnapshot() throws Exception {
+		MetricsRegistry registry = new MetricsRegistry();
+		Counter counter = registry.counter("gps.tick.count");
+		assertSame(counter, registry.counter("gps.tick.count"));
+		counter.add(3);
+		registry.histogram("gps.tick.lateness").record(1000);
+		registry.gauge("gps.track.memory", new MetricsRegistry.Gauge() {
+			@Override
+			public long getValue() {
+				return 42;
+			}
+		});
+
+		SortedMap<String, Long> values = registry.snapshot();
+		assertEquals(Long.valueOf(3), values.get("gps.tick.count"));
+		assertEquals(Long.valueOf(42), values.get("gps.track.memory"));
+		assertEquals(Long.valueOf(1), values.get("gps.tick.lateness" + MetricsRegistry.COUNT));
+		assertEquals(Long.valueOf(1000), values.get("gps.tick.lateness" + MetricsRegistry.P99));
+
+		StringWriter out = new StringWriter();
+		registry.dump(out);
+		assertTrue(out.toString(), out.toString().startsWith("gps.tick.count 3\n"));
+
+		try {
+			registry.histogram("gps.tick.count");
+			fail("A counter is not a histogram");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+
+		registry.reset();
+		assertEquals(0, counter.get());
+	}
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.FleetPlayer;
+import com.twolinessoftware.android.framework.service.playback.PlaybackScheduler;
+import com.twolinessoftware.android.framework.service.playback.TimerWheel;
+
+/**
+ * Runs on a plain JVM, FleetPlayer has no Android dependencies.
+ */
+public class FleetPlayerTest extends TestCase {
+
+	private static final long START = 1188229131000L;
+
+	/**
+	 * Emissions as "tick vehicle time".
+	 */
+	private static class Recorder implements FleetPlayer.Sink {
+		final List<String> emissions = new ArrayList<String>();
+		final long[] lastTime = new long[16];
+		long tick;
+		boolean monotonic = true;
+
+		@Override
+		public void onLocation(int vehicle, long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+			emissions.add(tick + " " + vehicle + " " + (time - START));
+			if (time <= lastTime[vehicle]) {
+				monotonic = false;
+			}
+			lastTime[vehicle] = time;
+		}
+	}
+
+	private static TrackStore track(int count, long interval) {
+		TrackStore track = new TrackStore(count);
+		for (int i = 0; i < count; i++) {
+			track.add(60 + (i * 0.0001), 25, 10, START + (i * interval), 0, 10, 1.5, null, null);
+		}
+		track.finish();
+		return track;
+	}
+
+	private static void run(FleetPlayer fleet, Recorder recorder, int ticks) {
+		for (int i = 0; i < ticks; i++) {
+			recorder.tick++;
+			if (fleet.run() == PlaybackScheduler.STOP) {
+				return;
+			}
+		}
+	}
+
+	public void testStaggeredCopies() {
+		Recorder recorder = new Recorder();
+		FleetPlayer fleet = new FleetPlayer(recorder, 100, false);
+		TrackStore track = track(3, 1000);
+		fleet.addVehicle(track, 0, 0);
+		fleet.addVehicle(track, 0, 500);
+		fleet.addVehicle(track, 2, 0);
+
+		run(fleet, recorder, 100);
+
+		assertEquals(7, recorder.emissions.size());
+		assertEquals("1 2 2000", recorder.emissions.get(0));
+		assertEquals("1 0 0", recorder.emissions.get(1));
+		assertEquals("5 1 500", recorder.emissions.get(2));
+		assertEquals("10 0 1000", recorder.emissions.get(3));
+		assertEquals("15 1 1500", recorder.emissions.get(4));
+		assertEquals("20 0 2000", recorder.emissions.get(5));
+		assertEquals("25 1 2500", recorder.emissions.get(6));
+		assertEquals(0, fleet.getActiveCount());
+		assertEquals(PlaybackScheduler.STOP, fleet.run());
+	}
+
+	public void testLoopKeepsTimeMonotonic() {
+		Recorder recorder = new Recorder();
+		FleetPlayer fleet = new FleetPlayer(recorder, 10, true);
+		fleet.addVehicle(track(5, 1000), 0, 0);
+
+		run(fleet, recorder, 2000);
+
+		assertEquals(1, fleet.getActiveCount());
+		assertTrue(recorder.emissions.size() >= 19);
+		assertTrue(recorder.monotonic);
+		// After 4 s of track and the 1 s pause at the end.
+		assertEquals("500 0 5000", recorder.emissions.get(5));
+	}
+
+	public void testRejectsIncompleteTrack() {
+		FleetPlayer fleet = new FleetPlayer(new Recorder(), 10, false);
+		try {
+			fleet.addVehicle(new TrackStore(), 0, 0);
+			fail("Empty track accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected.
+		}
+	}
+
+	public void testWheelKeepsLaterRevolutions() {
+		final List<Long> fired = new ArrayList<Long>();
+		final TimerWheel wheel = new TimerWheel(8);
+		wheel.schedule(0, 3);
+		wheel.schedule(1, 3 + 8);
+		wheel.schedule(2, 3 + 16);
+		for (int i = 0; i < 20; i++) {
+			wheel.advance(new TimerWheel.Handler() {
+				@Override
+				public void expired(int id) {
+					fired.add((wheel.getTick() * 10) + id);
+				}
+			});
+		}
+		assertEquals("[30, 111, 192]", fired.toString());
+		assertEquals(0, wheel.size());
+	}
+
+	public void testTenThousandVehicles() {
+		final long[] emissions = new long[1];
+		FleetPlayer fleet = new FleetPlayer(new FleetPlayer.Sink() {
+			@Override
+			public void onLocation(int vehicle, long time, double lat, double lon, double ele, double bearing, double speed,
+					double hdop) {
+				emissions[0]++;
+			}
+		}, FleetPlayer.DEFAULT_TICK_MILLIS, true);
+		TrackStore track = track(600, 1000);
+		for (int v = 0; v < 10000; v++) {
+			fleet.addVehicle(track, v % 600, v % 1000);
+		}
+		// One minute of track time.
+		for (int i = 0; i < 6000; i++) {
+			fleet.run();
+		}
+		assertEquals(fleet.getEmitted(), emissions[0]);
+		assertEquals(600000, emissions[0], 10000);
+	}
+}
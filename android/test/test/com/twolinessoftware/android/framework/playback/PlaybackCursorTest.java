@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.PlaybackCursor;
+
+/**
+ * Runs on a plain JVM, PlaybackCursor has no Android dependencies.
+ */
+public class PlaybackCursorTest extends TestCase {
+
+	private static TrackStore track(int count, boolean complete) {
+		TrackStore track = new TrackStore(count);
+		for (int i = 0; i < count; i++) {
+			track.add(0, 0, 0, i * 1000L, 0, 0, 0, null, null);
+		}
+		if (complete) {
+			track.finish();
+		}
+		return track;
+	}
+
+	public void testClampAndWrap() {
+		TrackStore complete = track(100, true);
+		TrackStore loading = track(100, false);
+
+		assertEquals(0, PlaybackCursor.fit(complete, -5, false));
+		assertEquals(99, PlaybackCursor.fit(complete, 250, false));
+		assertEquals(95, PlaybackCursor.fit(complete, -5, true));
+		assertEquals(50, PlaybackCursor.fit(complete, 250, true));
+		// A track that is still being parsed never wraps.
+		assertEquals(99, PlaybackCursor.fit(loading, 250, true));
+		assertEquals(0, PlaybackCursor.fit(new TrackStore(), 10, true));
+	}
+
+	public void testSeekWinsOverTicker() {
+		TrackStore track = track(100, true);
+		PlaybackCursor cursor = new PlaybackCursor();
+		cursor.set(track, 5, true);
+
+		int playing = cursor.get();
+		// A seek between emitting point 5 and advancing past it.
+		cursor.set(track, 80, true);
+		assertFalse(cursor.compareAndSet(track, playing, playing + 1, true));
+		assertEquals(80, cursor.get());
+
+		assertTrue(cursor.compareAndSet(track, 80, 81, true));
+		assertEquals(81, cursor.get());
+	}
+
+	public void testConcurrentMovesAreNotLost() throws Exception {
+		final TrackStore track = track(1000, true);
+		final PlaybackCursor cursor = new PlaybackCursor();
+		final int threads = 8;
+		final int moves = 20000;
+		final CountDownLatch start = new CountDownLatch(1);
+		Thread[] workers = new Thread[threads];
+		for (int t = 0; t < threads; t++) {
+			workers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < moves; i++) {
+						cursor.moveBy(track, 1, true);
+					}
+				}
+			};
+			workers[t].start();
+		}
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		assertEquals((threads * moves) % 1000, cursor.get());
+	}
+
+	/**
+	 * A ticker advancing as fast as it can while other threads jump around,
+	 * as the binder threads do with jump() during playback.
+	 */
+	public void testJumpsDuringPlayback() throws Exception {
+		final TrackStore track = track(5000, true);
+		final PlaybackCursor cursor = new PlaybackCursor();
+		final AtomicBoolean running = new AtomicBoolean(true);
+		final AtomicReference<String> failure = new AtomicReference<String>();
+
+		Thread ticker = new Thread() {
+			@Override
+			public void run() {
+				while (running.get()) {
+					int index = cursor.get();
+					if ((index < 0) || (index >= track.size())) {
+						failure.compareAndSet(null, "ticker saw " + index);
+						return;
+					}
+					// Reading the point must always work.
+					track.getLat(index);
+					cursor.compareAndSet(track, index, index + 1, true);
+				}
+			}
+		};
+		Thread[] jumpers = new Thread[4];
+		for (int t = 0; t < jumpers.length; t++) {
+			final Random random = new Random(t);
+			jumpers[t] = new Thread() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 50000; i++) {
+						int index;
+						if ((i % 3) == 0) {
+							index = cursor.set(track, random.nextInt(20000) - 10000, true);
+						} else {
+							index = cursor.moveBy(track, (random.nextInt(21) - 10) * 60, (i % 2) == 0);
+						}
+						if ((index < 0) || (index >= track.size())) {
+							failure.compareAndSet(null, "jump to " + index);
+							return;
+						}
+					}
+				}
+			};
+		}
+		ticker.start();
+		for (Thread jumper : jumpers) {
+			jumper.start();
+		}
+		for (Thread jumper : jumpers) {
+			jumper.join();
+		}
+		running.set(false);
+		ticker.join();
+
+		assertNull(failure.get(), failure.get());
+		int index = cursor.get();
+		assertTrue((index >= 0) && (index < track.size()));
+	}
+}
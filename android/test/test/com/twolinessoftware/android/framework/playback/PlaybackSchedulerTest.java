@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.playback.PlaybackClock;
+import com.twolinessoftware.android.framework.service.playback.PlaybackScheduler;
+
+/**
+ * Runs on a plain JVM, PlaybackScheduler has no Android dependencies.
+ */
+public class PlaybackSchedulerTest extends TestCase {
+
+	/**
+	 * A restart while a tick is running must wait for it, and must not leave
+	 * that tick's chain going next to the new one.
+	 */
+	public void testRestartDuringTickKeepsOneChain() throws Exception {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+		executor.setRemoveOnCancelPolicy(true);
+		final CountDownLatch inTick = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		try {
+			final PlaybackScheduler scheduler = new PlaybackScheduler(executor, PlaybackClock.SYSTEM, new PlaybackScheduler.Task() {
+				private boolean first = true;
+
+				@Override
+				public long run() {
+					if (first) {
+						first = false;
+						inTick.countDown();
+						try {
+							release.await(5, TimeUnit.SECONDS);
+						} catch (InterruptedException e) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					return 0;
+				}
+			});
+			scheduler.start(0);
+			assertTrue(inTick.await(5, TimeUnit.SECONDS));
+			// The new chain is far off, anything queued soon is the old one.
+			Thread restart = new Thread() {
+				@Override
+				public void run() {
+					scheduler.start(TimeUnit.HOURS.toMillis(1));
+				}
+			};
+			restart.start();
+			restart.join(200);
+			assertTrue(restart.isAlive());
+			release.countDown();
+			restart.join(5000);
+			assertFalse(restart.isAlive());
+			Thread.sleep(200);
+
+			assertTrue(scheduler.isRunning());
+			assertEquals(1, executor.getQueue().size());
+			scheduler.stop();
+			assertEquals(0, executor.getQueue().size());
+			assertFalse(scheduler.isRunning());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Restarts racing with back to back ticks on two threads never run the
+	 * task twice at once.
+	 */
+	public void testRunsNeverOverlap() throws Exception {
+		ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(2);
+		final AtomicInteger active = new AtomicInteger();
+		final AtomicInteger overlaps = new AtomicInteger();
+		final AtomicInteger runs = new AtomicInteger();
+		try {
+			PlaybackScheduler scheduler = new PlaybackScheduler(executor, PlaybackClock.SYSTEM, new PlaybackScheduler.Task() {
+				@Override
+				public long run() {
+					if (active.incrementAndGet() > 1) {
+						overlaps.incrementAndGet();
+					}
+					runs.incrementAndGet();
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					active.decrementAndGet();
+					return 0;
+				}
+			});
+			for (int i = 0; i < 200; i++) {
+				scheduler.start(0);
+				Thread.sleep(i % 3);
+			}
+			scheduler.stop();
+
+			assertTrue(runs.get() > 0);
+			assertEquals(0, overlaps.get());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackSegments;
+import com.twolinessoftware.android.framework.service.playback.RouteTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackInterpolator;
+
+/**
+ * Runs on a plain JVM, RouteTrack has no Android dependencies.
+ */
+public class RouteTrackTest extends TestCase {
+
+	private static final long START = 1188229131000L;
+
+	/**
+	 * Adds a waypoint, at the given time if not 0.
+	 */
+	private static void add(RouteTrack route, double lat, double lon, long time) {
+		GpxTrackPoint point = new GpxTrackPoint();
+		point.setLat(lat);
+		point.setLon(lon);
+		point.setTime(time);
+		route.add(point);
+	}
+
+	/**
+	 * About 1 km north, then 1 km east.
+	 */
+	private static RouteTrack corner(RouteTrack.Profile profile) {
+		RouteTrack route = new RouteTrack(profile, 10, 1, 1000, START);
+		add(route, 60, 25, 0);
+		add(route, 60.009, 25, 0);
+		add(route, 60.009, 25.018, 0);
+		route.finish();
+		return route;
+	}
+
+	private static double distance(RouteTrack route, int index) {
+		return TrackInterpolator.distance(route.getLat(index), route.getLon(index), route.getLat(index + 1), route.getLon(index + 1));
+	}
+
+	public void testNotReadableUntilPlanned() {
+		RouteTrack route = new RouteTrack();
+		add(route, 60, 25, 0);
+		add(route, 60.001, 25, 0);
+
+		assertEquals(0, route.size());
+		assertFalse(route.isComplete());
+		route.finish();
+		assertTrue(route.isComplete());
+		assertTrue(route.size() > 0);
+	}
+
+	public void testConstantSpeed() {
+		RouteTrack route = corner(RouteTrack.Profile.CONSTANT);
+		int count = route.size();
+
+		assertEquals(START, route.getTime(0));
+		assertEquals(60, route.getLat(0), 1e-9);
+		int cut = 0;
+		for (int i = 0; i < (count - 2); i++) {
+			assertEquals(START + (i * 1000L), route.getTime(i));
+			assertEquals(10, route.getSpeed(i), 1e-9);
+			double distance = distance(route, i);
+			assertTrue(distance < 10.01);
+			if (distance < 9.99) {
+				cut++;
+			}
+		}
+		// Only the corner is cut.
+		assertEquals(1, cut);
+		assertEquals(60.009, route.getLat(count - 1), 1e-9);
+		assertEquals(25.018, route.getLon(count - 1), 1e-9);
+		assertEquals(0, route.getCourse(10), 1e-6);
+		assertEquals(90, route.getCourse(count - 2), 0.1);
+	}
+
+	public void testPerLegTimes() {
+		RouteTrack route = new RouteTrack(RouteTrack.Profile.PER_LEG, 10, 1, 1000, 0);
+		add(route, 60, 25, START);
+		add(route, 60.001, 25, START + 20000);
+		add(route, 60.002, 25, 0);
+		route.finish();
+
+		// 111 m in 20 s, then 111 m at the given speed.
+		assertEquals(START, route.getTime(0));
+		assertEquals(60.0005, route.getLat(10), 1e-6);
+		assertEquals(60.001, route.getLat(20), 1e-9);
+		assertEquals(5.56, route.getSpeed(5), 0.01);
+		assertEquals(10, route.getSpeed(25), 1e-9);
+		assertEquals(20 + 12 + 1, route.size());
+	}
+
+	public void testAccelerationLimited() {
+		RouteTrack route = corner(RouteTrack.Profile.ACCELERATION_LIMITED);
+		int count = route.size();
+
+		// Starts and stops standing, within the acceleration.
+		assertEquals(0, route.getSpeed(0), 1e-9);
+		assertEquals(1, route.getSpeed(1), 1e-9);
+		assertEquals(0, route.getSpeed(count - 1), 1e-9);
+		double cornerSpeed = Double.MAX_VALUE;
+		for (int i = 0; i < (count - 1); i++) {
+			double speed = route.getSpeed(i);
+			double next = route.getSpeed(i + 1);
+			assertTrue(speed <= (10 + 1e-9));
+			assertTrue(Math.abs(next - speed) <= (1 + 1e-6));
+			assertTrue(route.getTime(i + 1) > route.getTime(i));
+			if (TrackInterpolator.distance(route.getLat(i), route.getLon(i), 60.009, 25) < 10) {
+				cornerSpeed = Math.min(cornerSpeed, speed);
+			}
+		}
+		// Half the speed for a right angle.
+		assertEquals(5, cornerSpeed, 0.5);
+		assertEquals(60.009, route.getLat(count - 1), 1e-9);
+		assertEquals(25.018, route.getLon(count - 1), 1e-9);
+		assertTrue(count > corner(RouteTrack.Profile.CONSTANT).size());
+	}
+
+	public void testRoutesBecomeTracks() {
+		RouteTrack route = new RouteTrack(RouteTrack.Profile.CONSTANT, 10, 1, 1000, START);
+		add(route, 60, 25, 0);
+		add(route, 60.001, 25, 0);
+		route.getSegments().start(true);
+		add(route, 61, 25, 0);
+		route.finish();
+
+		TrackSegments segments = route.getSegments();
+		assertEquals(2, segments.getTrackCount());
+		assertEquals(2, segments.getSegmentCount());
+		assertEquals(13, segments.getSegmentStart(1));
+		assertEquals(14, route.size());
+		assertEquals(61, route.getLat(13), 1e-9);
+		// A step after the end of the first route.
+		assertEquals(route.getTime(12) + 1000, route.getTime(13));
+	}
+
+	public void testLongRouteIsNotMaterialized() {
+		// Around the world at walking speed, a point every 100 ms.
+		RouteTrack route = new RouteTrack(RouteTrack.Profile.CONSTANT, 1, 1, 100, START);
+		for (int i = 0; i <= 8; i++) {
+			add(route, 0, (i * 45) - 180, 0);
+		}
+		route.finish();
+
+		assertTrue(route.size() > 400000000);
+		assertTrue(route.getMemoryUsage() < (100 * 1024));
+		int last = route.size() - 1;
+		assertEquals(180, Math.abs(route.getLon(last)), 1e-9);
+		assertEquals(START + (last * 100L), route.getTime(last), 100);
+	}
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.SpatialIndex;
+
+/**
+ * Runs on a plain JVM, SpatialIndex has no Android dependencies.
+ */
+public class SpatialIndexTest extends TestCase {
+
+	/**
+	 * A random walk of about 10 m steps around Helsinki.
+	 */
+	private static TrackStore walk(int count) {
+		TrackStore track = new TrackStore();
+		Random random = new Random(42);
+		double lat = 60.17;
+		double lon = 24.94;
+		double heading = 0;
+		for (int i = 0; i < count; i++) {
+			heading += random.nextGaussian() * 0.3;
+			lat += Math.cos(heading) * 0.00009;
+			lon += Math.sin(heading) * 0.00018;
+			track.add(lat, lon, 0, i * 1000L, 0, 0, 0, null, null);
+		}
+		return track;
+	}
+
+	private static int bruteForce(TrackStore track, double lat, double lon) {
+		double cos = Math.cos(Math.toRadians(lat));
+		int best = -1;
+		double bestDistance = Double.MAX_VALUE;
+		for (int i = 0; i < track.size(); i++) {
+			double dy = track.getLat(i) - lat;
+			double dx = (track.getLon(i) - lon) * cos;
+			double distance = (dx * dx) + (dy * dy);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	public void testMatchesBruteForce() {
+		TrackStore track = walk(50000);
+		SpatialIndex index = new SpatialIndex();
+		index.update(track);
+		assertEquals(50000, index.size());
+
+		Random random = new Random(7);
+		for (int q = 0; q < 200; q++) {
+			int near = random.nextInt(track.size());
+			// Every tenth query is tens of kilometers off the track.
+			double spread = (q % 10) == 0 ? 0.5 : 0.002;
+			double lat = track.getLat(near) + (random.nextGaussian() * spread);
+			double lon = track.getLon(near) + (random.nextGaussian() * spread);
+			assertEquals(bruteForce(track, lat, lon), index.nearest(track, lat, lon));
+		}
+	}
+
+	public void testExactPointIsFound() {
+		TrackStore track = walk(10000);
+		SpatialIndex index = new SpatialIndex();
+		index.update(track);
+
+		assertEquals(1234, index.nearest(track, track.getLat(1234), track.getLon(1234)));
+	}
+
+	public void testUpdateFollowsGrowingTrack() {
+		TrackStore track = new TrackStore();
+		SpatialIndex index = new SpatialIndex();
+		assertEquals(-1, index.nearest(track, 60, 25));
+
+		track.add(60, 25, 0, 0, 0, 0, 0, null, null);
+		index.update(track);
+		assertEquals(0, index.nearest(track, 61, 26));
+
+		track.add(61, 26, 0, 0, 0, 0, 0, null, null);
+		assertEquals(0, index.nearest(track, 61, 26));
+		index.update(track);
+		assertEquals(1, index.nearest(track, 61, 26));
+		assertTrue(index.getBuildNanos() > 0);
+	}
+}
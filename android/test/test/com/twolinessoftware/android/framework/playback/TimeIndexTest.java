@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.TimeIndex;
+
+/**
+ * Runs on a plain JVM, TimeIndex has no Android dependencies.
+ */
+public class TimeIndexTest extends TestCase {
+
+	private static final long START = 1188229131000L;
+
+	private static TrackStore track(long... times) {
+		TrackStore track = new TrackStore();
+		for (long time : times) {
+			track.add(0, 0, 0, time, 0, 0, 0, null, null);
+		}
+		return track;
+	}
+
+	public void testFindsPointAtOrBeforeTime() {
+		TrackStore track = new TrackStore();
+		for (int i = 0; i < 10000; i++) {
+			// Two seconds apart.
+			track.add(0, 0, 0, START + (i * 2000L), 0, 0, 0, null, null);
+		}
+		TimeIndex index = new TimeIndex();
+		index.update(track);
+
+		assertEquals(10000, index.size());
+		assertEquals(START, index.getFirstTime());
+		assertEquals(START + (9999 * 2000L), index.getLastTime());
+		assertEquals(0, index.indexOf(track, START - 5000));
+		assertEquals(0, index.indexOf(track, START));
+		assertEquals(0, index.indexOf(track, START + 1999));
+		assertEquals(1, index.indexOf(track, START + 2000));
+		assertEquals(TimeIndex.BLOCK_SIZE, index.indexOf(track, START + (TimeIndex.BLOCK_SIZE * 2000L)));
+		assertEquals(TimeIndex.BLOCK_SIZE - 1, index.indexOf(track, (START + (TimeIndex.BLOCK_SIZE * 2000L)) - 1));
+		assertEquals(5000, index.indexOf(track, START + (5000 * 2000L) + 500));
+		assertEquals(9999, index.indexOf(track, Long.MAX_VALUE));
+	}
+
+	public void testMissingAndOutOfOrderTimes() {
+		TrackStore track = track(START, 0, START + 2000, START + 1000, START + 3000);
+		TimeIndex index = new TimeIndex();
+		index.update(track);
+
+		assertTrue(index.hasTimes());
+		// The point without a time and the late one belong to their
+		// predecessors.
+		assertEquals(1, index.indexOf(track, START + 1000));
+		assertEquals(3, index.indexOf(track, START + 2000));
+		assertEquals(4, index.indexOf(track, START + 3000));
+	}
+
+	public void testUpdateFollowsGrowingTrack() {
+		TrackStore track = new TrackStore();
+		TimeIndex index = new TimeIndex();
+		assertFalse(index.hasTimes());
+		assertEquals(-1, index.indexOf(track, START));
+
+		for (int i = 0; i < 1000; i++) {
+			track.add(0, 0, 0, START + (i * 1000L), 0, 0, 0, null, null);
+			if ((i % 77) == 0) {
+				index.update(track);
+			}
+		}
+		assertEquals(924, index.indexOf(track, Long.MAX_VALUE));
+		index.update(track);
+		assertEquals(999, index.indexOf(track, Long.MAX_VALUE));
+		assertEquals(500, index.indexOf(track, START + 500000));
+	}
+
+	public void testTrackWithoutTimes() {
+		TrackStore track = track(0, 0, 0);
+		TimeIndex index = new TimeIndex();
+		index.update(track);
+
+		assertFalse(index.hasTimes());
+		assertEquals(3, index.size());
+	}
+}
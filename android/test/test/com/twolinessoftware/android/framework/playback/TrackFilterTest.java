@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.playback.DouglasPeuckerFilter;
+import com.twolinessoftware.android.framework.service.playback.TimeDecimationFilter;
+import com.twolinessoftware.android.framework.service.playback.TrackFilter;
+import com.twolinessoftware.android.framework.service.playback.VisvalingamFilter;
+
+/**
+ * Runs on a plain JVM, the filters have no Android dependencies.
+ */
+public class TrackFilterTest extends TestCase {
+
+	private static final long START = 1188229131000L;
+
+	/**
+	 * About a meter in latitude.
+	 */
+	private static final double METER = 1 / 111195.0;
+
+	private static class Collector implements TrackFilter.Output {
+		final List<GpxTrackPoint> points = new ArrayList<GpxTrackPoint>();
+
+		@Override
+		public void accept(GpxTrackPoint point) {
+			points.add(new GpxTrackPoint().set(point));
+		}
+	}
+
+	private static Collector run(TrackFilter filter, double[] lats, double[] lons) {
+		Collector collector = new Collector();
+		filter.setOutput(collector);
+		GpxTrackPoint point = new GpxTrackPoint();
+		for (int i = 0; i < lats.length; i++) {
+			point.setLat(lats[i]);
+			point.setLon(lons[i]);
+			point.setTime(START + (i * 1000L));
+			filter.add(point);
+		}
+		filter.finish();
+		return collector;
+	}
+
+	/**
+	 * Points 10 m apart going north, with the given sideways offsets in
+	 * meters.
+	 */
+	private static Collector run(TrackFilter filter, double... offsets) {
+		double[] lats = new double[offsets.length];
+		double[] lons = new double[offsets.length];
+		double metersPerLon = Math.cos(Math.toRadians(60)) / TrackFilterTest.METER;
+		for (int i = 0; i < offsets.length; i++) {
+			lats[i] = 60 + (i * 10 * TrackFilterTest.METER);
+			lons[i] = 25 + (offsets[i] / metersPerLon);
+		}
+		return TrackFilterTest.run(filter, lats, lons);
+	}
+
+	private static void assertKept(Collector collector, int... indexes) {
+		assertEquals(indexes.length, collector.points.size());
+		for (int i = 0; i < indexes.length; i++) {
+			assertEquals(START + (indexes[i] * 1000L), collector.points.get(i).getTime());
+		}
+	}
+
+	public void testDouglasPeuckerDropsNoise() {
+		Collector kept = TrackFilterTest.run(new DouglasPeuckerFilter(5), 0, 1, -1, 2, 0, 30, 0, 1, -2, 0);
+		// The 30 m spike stays, the jitter around the line goes.
+		assertKept(kept, 0, 4, 5, 6, 9);
+	}
+
+	public void testVisvalingamDropsSmallTriangles() {
+		// The jitter makes triangles of 10 square meters, the spike of 150 and
+		// more.
+		Collector kept = TrackFilterTest.run(new VisvalingamFilter(50), 0, 1, 0, 0, 0, 30, 0, 0, 0, 0);
+		assertKept(kept, 0, 4, 5, 6, 9);
+	}
+
+	public void testZeroToleranceKeepsCorners() {
+		Collector kept = TrackFilterTest.run(new DouglasPeuckerFilter(0), 0, 0, 0, 5, 10, 10);
+		assertKept(kept, 0, 2, 4, 5);
+	}
+
+	public void testTimeDecimationKeepsEnds() {
+		TimeDecimationFilter filter = new TimeDecimationFilter(3000);
+		Collector kept = TrackFilterTest.run(filter, new double[8]);
+		assertKept(kept, 0, 3, 6, 7);
+		assertEquals(8, filter.getInputCount());
+		assertEquals(4, filter.getOutputCount());
+		assertEquals(2.0, filter.getReductionRatio(), 1e-9);
+	}
+
+	/**
+	 * A straight line over many windows keeps the window boundaries and
+	 * nothing else, in order.
+	 */
+	public void testWindowsCarryOver() {
+		DouglasPeuckerFilter filter = new DouglasPeuckerFilter(1, 100);
+		Collector kept = TrackFilterTest.run(filter, new double[1000]);
+		// Every window but the first starts with the last point of the
+		// previous one.
+		assertKept(kept, 0, 99, 198, 297, 396, 495, 594, 693, 792, 891, 990, 999);
+		assertEquals(1000, filter.getInputCount());
+	}
+
+	public void testEmptyAndSingle() {
+		assertKept(TrackFilterTest.run(new DouglasPeuckerFilter(5)));
+		assertKept(TrackFilterTest.run(new VisvalingamFilter(5), 0), 0);
+		assertKept(TrackFilterTest.run(new TimeDecimationFilter(1000), 0, 0), 0, 1);
+		assertEquals(1.0, new VisvalingamFilter(5).getReductionRatio(), 1e-9);
+	}
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.GpxTrackPoint;
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.RouteTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackLoader;
+
+/**
+ * Runs on a plain JVM, TrackLoader has no Android dependencies.
+ */
+public class TrackLoaderTest extends TestCase {
+
+	private File file;
+
+	private static class Events implements TrackLoader.Listener {
+		int points;
+		int indexed = -1;
+		int ends;
+		boolean complete;
+		String error;
+
+		@Override
+		public void onPoint(GpxTrackPoint point) {
+			points++;
+		}
+
+		@Override
+		public void onIndexed(int points, long bytesRead) {
+			indexed = points;
+		}
+
+		@Override
+		public void onEnd(boolean complete) {
+			ends++;
+			this.complete = complete;
+		}
+
+		@Override
+		public void onError(String message) {
+			error = message;
+		}
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		file = File.createTempFile("track", ".nmea");
+		Writer out = new FileWriter(file);
+		try {
+			for (int i = 0; i < 10; i++) {
+				String sentence = "GPRMC,1538" + (10 + i) + ".000,A,6235.8779,N,02944.6810,E,0.3,140.8,270807,,A";
+				int checksum = 0;
+				for (int c = 0; c < sentence.length(); c++) {
+					checksum ^= sentence.charAt(c);
+				}
+				out.write("$" + sentence + "*" + String.format("%02X", checksum) + "\r\n");
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	@Override
+	protected void tearDown() {
+		file.delete();
+	}
+
+	public void testLoadsAndIndexes() throws IOException {
+		Events events = new Events();
+		LoadedTrack loading = TrackLoader.newTrack(file);
+		TrackLoader loader = new TrackLoader(file, loading, events);
+		loader.open();
+		loader.parse();
+
+		assertTrue(loading.track.isComplete());
+		assertEquals(10, loading.track.size());
+		assertEquals(10, events.points);
+		assertEquals(10, events.indexed);
+		assertEquals(1, events.ends);
+		assertTrue(events.complete);
+		assertNull(events.error, events.error);
+		assertEquals(loading.track.getTime(9), loading.timeIndex.getLastTime());
+	}
+
+	public void testStopBeforeParse() throws IOException {
+		Events events = new Events();
+		LoadedTrack loading = new LoadedTrack(new TrackStore(), null);
+		TrackLoader loader = new TrackLoader(file, loading, events);
+		loader.open();
+		loader.stop();
+		loader.parse();
+
+		assertFalse(loading.track.isComplete());
+		assertEquals(0, events.points);
+		assertEquals(1, events.ends);
+		assertFalse(events.complete);
+	}
+
+	public void testLoadsRoutes() throws IOException {
+		File gpx = File.createTempFile("route", ".gpx");
+		try {
+			Writer out = new FileWriter(gpx);
+			out.write("<gpx><trk><trkseg><trkpt lat='9' lon='9'/></trkseg></trk>"
+					+ "<rte><rtept lat='60' lon='25'/><rtept lat='60.001' lon='25'/></rte></gpx>");
+			out.close();
+			Events events = new Events();
+			LoadedTrack loading = new LoadedTrack(new RouteTrack(), null);
+			TrackLoader loader = new TrackLoader(gpx, loading, events);
+			loader.open();
+			loader.parse();
+
+			assertTrue(events.complete);
+			// The route point, not the track point.
+			assertEquals(2, events.points);
+			// 111 m at 10 m/s, a point a second.
+			assertEquals(13, loading.track.size());
+			assertEquals(13, events.indexed);
+			assertEquals(60.001, loading.track.getLat(12), 1e-9);
+		} finally {
+			gpx.delete();
+		}
+	}
+
+	/**
+	 * Copies the file into a compressed one named so that only the content
+	 * tells it is NMEA.
+	 */
+	private File compress(boolean zip) throws IOException {
+		File compressed = File.createTempFile("track", zip ? ".zip" : ".gz");
+		OutputStream out = new FileOutputStream(compressed);
+		if (zip) {
+			ZipOutputStream zipped = new ZipOutputStream(out);
+			zipped.putNextEntry(new ZipEntry("notes.txt"));
+			zipped.write("Not a track".getBytes("US-ASCII"));
+			zipped.putNextEntry(new ZipEntry("logs/track.nmea"));
+			out = zipped;
+		} else {
+			out = new GZIPOutputStream(out);
+		}
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] buffer = new byte[4096];
+			int read;
+			while ((read = in.read(buffer)) > 0) {
+				out.write(buffer, 0, read);
+			}
+		} finally {
+			in.close();
+			out.close();
+		}
+		return compressed;
+	}
+
+	public void testLoadsCompressed() throws IOException {
+		for (boolean zip : new boolean[] { false, true }) {
+			File compressed = compress(zip);
+			try {
+				Events events = new Events();
+				LoadedTrack loading = TrackLoader.newTrack(compressed);
+				TrackLoader loader = new TrackLoader(compressed, loading, events);
+				loader.open();
+				loader.parse();
+
+				assertNull(events.error, events.error);
+				assertTrue(events.complete);
+				assertEquals(10, loading.track.size());
+			} finally {
+				compressed.delete();
+			}
+		}
+	}
+
+	/**
+	 * A gzipped GPX file of the given number of points, with garbage in the
+	 * compressed data from the given fraction of its length on, 0 for right
+	 * after the gzip header.
+	 */
+	private static File corruptGpx(int points, double from) throws IOException {
+		File gpx = File.createTempFile("corrupt", ".gpx.gz");
+		Writer out = new OutputStreamWriter(new GZIPOutputStream(new FileOutputStream(gpx)), "UTF-8");
+		try {
+			out.write("<gpx><trk><trkseg>\n");
+			for (int i = 0; i < points; i++) {
+				// Varying digits, so that the data does not compress to nothing.
+				out.write("<trkpt lat='" + (60 + (i * 1e-5)) + "' lon='" + (25 + (((i * 7919) % 10007) * 1e-6)) + "'><ele>" + (i % 97)
+						+ "</ele></trkpt>\n");
+			}
+			out.write("</trkseg></trk></gpx>\n");
+		} finally {
+			out.close();
+		}
+		RandomAccessFile file = new RandomAccessFile(gpx, "rw");
+		try {
+			long length = file.length();
+			long start = Math.max(10, (long) (length * from));
+			file.seek(start);
+			for (long i = start; i < (length - 8); i++) {
+				file.write(0xff);
+			}
+		} finally {
+			file.close();
+		}
+		return gpx;
+	}
+
+	/**
+	 * The points before a corrupt part are played back, the error is still
+	 * reported.
+	 */
+	public void testKeepsPointsBeforeError() throws IOException {
+		File gpx = corruptGpx(100000, 0.5);
+		try {
+			Events events = new Events();
+			LoadedTrack loading = TrackLoader.newTrack(gpx);
+			TrackLoader loader = new TrackLoader(gpx, loading, events);
+			loader.open();
+			loader.parse();
+
+			assertNotNull(events.error);
+			assertEquals(1, events.ends);
+			assertTrue(events.complete);
+			assertTrue(loader.isPartial());
+			assertTrue(loading.track.isComplete());
+			int count = loading.track.size();
+			assertTrue(count > 0);
+			assertTrue(count < 100000);
+			assertEquals(count, events.indexed);
+			assertEquals(60 + ((count - 1) * 1e-5), loading.track.getLat(count - 1), 1e-9);
+		} finally {
+			gpx.delete();
+		}
+	}
+
+	public void testFailsWithoutPoints() throws IOException {
+		File gpx = corruptGpx(100000, 0);
+		try {
+			Events events = new Events();
+			LoadedTrack loading = TrackLoader.newTrack(gpx);
+			TrackLoader loader = new TrackLoader(gpx, loading, events);
+			loader.open();
+			loader.parse();
+
+			assertNotNull(events.error);
+			assertEquals(1, events.ends);
+			assertFalse(events.complete);
+			assertFalse(loading.track.isComplete());
+		} finally {
+			gpx.delete();
+		}
+	}
+}
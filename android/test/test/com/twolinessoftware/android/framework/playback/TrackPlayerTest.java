@@ -0,0 +1,351 @@
+/*
+ * Copyright (c) 2011 2linessoftware.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package test.com.twolinessoftware.android.framework.playback;
+
+import java.lang.management.ManagementFactory;
+
+import junit.framework.TestCase;
+
+import com.twolinessoftware.android.framework.service.comms.gps.TrackStore;
+import com.twolinessoftware.android.framework.service.playback.LoadedTrack;
+import com.twolinessoftware.android.framework.service.playback.TrackPlayer;
+
+/**
+ * Runs on a plain JVM, TrackPlayer has no Android dependencies. The
+ * allocation test needs a HotSpot compatible JVM.
+ */
+public class TrackPlayerTest extends TestCase {
+
+	private static final long START = 1188229131000L;
+
+	private static class CountingSink implements TrackPlayer.Sink {
+		int locations;
+		int progress;
+		int lastProgress = -1;
+		int streamEnds;
+		long time;
+		double lat;
+		double bearing;
+		/**
+		 * Locations not later than the one before.
+		 */
+		int backwards;
+
+		@Override
+		public void onLocation(long time, double lat, double lon, double ele, double bearing, double speed, double hdop) {
+			locations++;
+			if (time <= this.time) {
+				backwards++;
+			}
+			this.time = time;
+			this.lat = lat;
+			this.bearing = bearing;
+		}
+
+		@Override
+		public void onProgress(int index, int count) {
+			progress++;
+			lastProgress = index;
+		}
+
+		@Override
+		public void onStreamEnd() {
+			streamEnds++;
+		}
+	}
+
+	/**
+	 * Points 1 s apart, moving north.
+	 */
+	private static LoadedTrack track(int count) {
+		TrackStore track = new TrackStore(count);
+		for (int i = 0; i < count; i++) {
+			track.add(60 + (i * 0.0001), 25, 10, START + (i * 1000L), 0, 10, 1.5, null, null);
+		}
+		track.finish();
+		return new LoadedTrack(track, null);
+	}
+
+	/**
+	 * Two segments of three points 1 s apart, moving north, with a minute
+	 * and about 110 m between them.
+	 */
+	private static LoadedTrack segments() {
+		TrackStore track = new TrackStore(6);
+		for (int i = 0; i < 6; i++) {
+			if (i == 3) {
+				track.getSegments().start(false);
+			}
+			long gap = i < 3 ? 0 : 60000;
+			double jump = i < 3 ? 0 : 0.001;
+			track.add(60 + jump + (i * 0.0001), 25, 10, START + gap + (i * 1000L), 0, 10, 1.5, null, null);
+		}
+		track.finish();
+		return new LoadedTrack(track, null);
+	}
+
+	public void testRawPlayback() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = track(3);
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+
+		assertEquals(1000, player.run());
+		assertEquals(1000, player.run());
+		// Last point, wraps to the start.
+		assertEquals(TrackPlayer.DEFAULT_DELAY, player.run());
+		assertEquals(0, loaded.cursor.get());
+		assertEquals(3, sink.locations);
+		assertEquals(2, sink.lastProgress);
+	}
+
+	public void testInterpolation() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = track(3);
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setInterpolationStep(250);
+
+		for (int i = 0; i < 4; i++) {
+			assertEquals(250, player.run());
+		}
+		assertEquals(4, sink.locations);
+		assertEquals(1, sink.progress);
+		assertEquals(1, loaded.cursor.get());
+		assertEquals(60.000075, sink.lat, 1e-9);
+		assertEquals(START + 750, sink.time);
+	}
+
+	public void testSeekRestartsSegment() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = track(100);
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setInterpolationStep(250);
+
+		player.run();
+		player.run();
+		loaded.cursor.set(loaded.track, 50, true);
+		player.run();
+		// Emitted the recorded point seeked to, not an interpolated one.
+		assertEquals(50, sink.lastProgress);
+		assertEquals(60.005, sink.lat, 1e-9);
+	}
+
+	public void testWaitsForParser() {
+		CountingSink sink = new CountingSink();
+		TrackPlayer player = new TrackPlayer(new LoadedTrack(new TrackStore(), null), sink, 0);
+
+		assertEquals(TrackPlayer.POLL_INTERVAL, player.run());
+		assertEquals(0, sink.locations);
+	}
+
+	public void testJumpRebasesTime() {
+		CountingSink sink = new CountingSink();
+		TrackPlayer player = new TrackPlayer(track(3), sink, 0);
+
+		for (int i = 0; i < 4; i++) {
+			player.run();
+		}
+		// Back at the first point, a second after the last one.
+		assertEquals(60, sink.lat, 1e-9);
+		assertEquals(START + 3000, sink.time);
+		assertEquals(0, sink.backwards);
+	}
+
+	public void testBridge() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = track(3);
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setLoopMode(TrackPlayer.LoopMode.BRIDGE);
+
+		player.run();
+		player.run();
+		// The last point starts a bridge of about 22 m at 10 m/s.
+		assertEquals(1000, player.run());
+		assertEquals(1000, player.run());
+		assertEquals(2, loaded.cursor.get());
+		assertEquals(180, sink.bearing, 1e-6);
+		assertTrue((sink.lat > 60) && (sink.lat < 60.0002));
+		long delay = player.run();
+		assertTrue((delay > 200) && (delay < 250));
+		player.run();
+		assertEquals(0, sink.lastProgress);
+		assertEquals(60, sink.lat, 1e-9);
+		assertEquals(START + 4000 + delay, sink.time);
+		assertEquals(0, sink.backwards);
+	}
+
+	public void testPingPong() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = track(3);
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setLoopMode(TrackPlayer.LoopMode.PING_PONG);
+
+		player.run();
+		player.run();
+		// Turns at the last point without emitting it twice.
+		assertEquals(1000, player.run());
+		assertEquals(1, loaded.cursor.get());
+		player.run();
+		assertEquals(60.0001, sink.lat, 1e-9);
+		assertEquals(180, sink.bearing, 1e-6);
+		player.run();
+		player.run();
+		// Forwards again.
+		assertEquals(60.0001, sink.lat, 1e-9);
+		assertEquals(0, sink.bearing, 1e-6);
+		assertEquals(START + 5000, sink.time);
+		assertEquals(6, sink.locations);
+		assertEquals(0, sink.backwards);
+	}
+
+	/**
+	 * Every location is emitted exactly at the sum of the delays before it,
+	 * however many loops have been played back.
+	 */
+	public void testLoopsDoNotDrift() {
+		for (TrackPlayer.LoopMode mode : TrackPlayer.LoopMode.values()) {
+			CountingSink sink = new CountingSink();
+			TrackPlayer player = new TrackPlayer(track(10), sink, 0);
+			player.setLoopMode(mode);
+			player.setInterpolationStep(300);
+			long total = 0;
+			for (int i = 0; i < 100000; i++) {
+				long delay = player.run();
+				assertEquals(mode.toString(), START + total, sink.time);
+				total += delay;
+			}
+			assertEquals(mode.toString(), 0, sink.backwards);
+		}
+	}
+
+	public void testGapPause() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = segments();
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setInterpolationStep(250);
+
+		for (int i = 0; i < 8; i++) {
+			assertEquals(250, player.run());
+		}
+		// Not interpolated across the gap.
+		assertEquals(61000, player.run());
+		assertEquals(START + 2000, sink.time);
+		assertEquals(3, loaded.cursor.get());
+		player.run();
+		assertEquals(START + 63000, sink.time);
+		assertEquals(60.0013, sink.lat, 1e-9);
+	}
+
+	public void testGapSkip() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = segments();
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setGapMode(TrackPlayer.GapMode.SKIP);
+
+		player.run();
+		player.run();
+		assertEquals(TrackPlayer.DEFAULT_DELAY, player.run());
+		player.run();
+		assertEquals(3, sink.lastProgress);
+		assertEquals(START + 3000, sink.time);
+		assertEquals(1000, player.run());
+		assertEquals(START + 4000, sink.time);
+	}
+
+	public void testGapInterpolate() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = segments();
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setGapMode(TrackPlayer.GapMode.INTERPOLATE);
+
+		player.run();
+		player.run();
+		// Bridged in the recorded time, a location every second.
+		long total = player.run();
+		while (loaded.cursor.get() == 2) {
+			assertTrue((sink.lat >= 60.0002) && (sink.lat < 60.0013));
+			total += player.run();
+		}
+		assertEquals(61000 + 1000, total);
+		assertEquals(60.0013, sink.lat, 1e-9);
+		assertEquals(START + 63000, sink.time);
+		assertEquals(0, sink.backwards);
+	}
+
+	public void testGapsDoNotDrift() {
+		for (TrackPlayer.GapMode mode : TrackPlayer.GapMode.values()) {
+			CountingSink sink = new CountingSink();
+			TrackPlayer player = new TrackPlayer(segments(), sink, 0);
+			player.setGapMode(mode);
+			player.setLoopMode(TrackPlayer.LoopMode.PING_PONG);
+			player.setInterpolationStep(300);
+			long total = 0;
+			for (int i = 0; i < 10000; i++) {
+				long delay = player.run();
+				assertEquals(mode.toString(), START + total, sink.time);
+				total += delay;
+			}
+			assertEquals(mode.toString(), 0, sink.backwards);
+		}
+	}
+
+	public void testRangeLoopsOnItsOwn() {
+		CountingSink sink = new CountingSink();
+		LoadedTrack loaded = segments();
+		TrackPlayer player = new TrackPlayer(loaded, sink, 0);
+		player.setRange(3, 6);
+
+		player.run();
+		assertEquals(3, sink.lastProgress);
+		player.run();
+		assertEquals(TrackPlayer.DEFAULT_DELAY, player.run());
+		assertEquals(3, loaded.cursor.get());
+		player.clearRange();
+		loaded.cursor.set(loaded.track, 5, false);
+		player.run();
+		assertEquals(0, loaded.cursor.get());
+		assertEquals(4, sink.progress);
+	}
+
+	public void testSteadyStateDoesNotAllocate() {
+		if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+			return;
+		}
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if (!threads.isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+		long thread = Thread.currentThread().getId();
+
+		CountingSink sink = new CountingSink();
+		TrackPlayer player = new TrackPlayer(track(10000), sink, 0);
+		player.setInterpolationStep(100);
+		// Warm up until the runs are compiled.
+		for (int i = 0; i < 500000; i++) {
+			player.run();
+		}
+		threads.getThreadAllocatedBytes(thread);
+
+		long before = threads.getThreadAllocatedBytes(thread);
+		for (int i = 0; i < 100000; i++) {
+			player.run();
+		}
+		long allocated = threads.getThreadAllocatedBytes(thread) - before;
+
+		// Anything per tick would add up to megabytes.
+		assertTrue(allocated + " bytes allocated", allocated < 1024);
+	}
+}